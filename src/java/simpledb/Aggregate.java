@@ -150,6 +150,7 @@ public class Aggregate extends Operator {
         super.close();
         child.close();
         it.close();
+        aggregator.release();
     }
 
     @Override
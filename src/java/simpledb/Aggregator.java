@@ -73,13 +73,22 @@ public interface Aggregator extends Serializable {
      * been encountered.
      *
      * @param tup the Tuple containing an aggregate field and a group-by field
+     * @throws DbException if groups that do not fit in memory cannot be
+     *         spilled to disk
      */
-    public void mergeTupleIntoGroup(Tuple tup);
+    public void mergeTupleIntoGroup(Tuple tup) throws DbException;
 
     /**
      * Create a OpIterator over group aggregate results.
      * @see simpledb.TupleIterator for a possible helper
      */
     public OpIterator iterator();
+
+    /**
+     * Release the resources held for groups that did not fit in memory, such
+     * as spill files, once no iterator over the results will be opened again.
+     */
+    public default void release() {
+    }
     
 }
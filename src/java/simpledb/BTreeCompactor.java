@@ -0,0 +1,92 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BTreeCompactor rebalances, in the background, the leaves of the B+ tree
+ * files in the catalog that deletes have left less than half full because
+ * of a merge watermark below one half (see
+ * {@link BTreeFile#setMergeWatermark}). Each pass compacts each table in a
+ * transaction of its own, and skips leaves that running transactions hold
+ * locks on, so that it works on the cold parts of a tree and leaves the
+ * hot ones to a later pass.
+ */
+public class BTreeCompactor {
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Compact every B+ tree file in the catalog once, in the calling thread.
+     * A table whose compaction is aborted, because it would have to wait
+     * too long for a lock, is rolled back and left for the next pass.
+     *
+     * @return the number of leaves rebalanced, or found no longer
+     *         underfull
+     */
+    public int compactAll() throws DbException, IOException {
+        int compacted = 0;
+        Iterator<Integer> ids = Database.getCatalog().tableIdIterator();
+        while (ids.hasNext()) {
+            int tableId = ids.next();
+            DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+            if (!(file instanceof BTreeFile) || ((BTreeFile) file).numUnderfullLeaves() == 0)
+                continue;
+            BTreeFile bf = (BTreeFile) file;
+            int before = bf.numUnderfullLeaves();
+            TransactionId tid = new TransactionId();
+            boolean commit = false;
+            try {
+                Database.getBufferPool().compactTable(tid, tableId);
+                commit = true;
+            } catch (TransactionAbortedException e) {
+                // another transaction is using the pages; try again next pass
+            } finally {
+                Database.getBufferPool().transactionComplete(tid, commit);
+            }
+            if (commit)
+                compacted += before - bf.numUnderfullLeaves();
+        }
+        return compacted;
+    }
+
+    /**
+     * Start compacting the catalog's B+ tree files periodically, on a
+     * background thread.
+     *
+     * @param periodMillis the time to wait before the first pass, and
+     *            between the end of one pass and the start of the next, in
+     *            milliseconds
+     */
+    public synchronized void start(long periodMillis) {
+        if (scheduler != null)
+            throw new IllegalStateException("compactor is already running");
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "simpledb-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                compactAll();
+            } catch (DbException | IOException | RuntimeException e) {
+                e.printStackTrace();
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop compacting in the background, waiting for a pass in progress to
+     * finish.
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (scheduler == null)
+            return;
+        scheduler.shutdown();
+        scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        scheduler = null;
+    }
+}
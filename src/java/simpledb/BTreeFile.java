@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import simpledb.Predicate.Op;
 
@@ -24,6 +25,20 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
+	private final int keyFields[];
+	private final boolean prefixCompressed;
+
+	/** Default number of leaves a scan reads ahead of the one it is on. */
+	public static final int DEFAULT_PREFETCH_LEAVES = 8;
+
+	private static int prefetchLeaves = DEFAULT_PREFETCH_LEAVES;
+
+	/** Default fraction of a leaf below which a delete rebalances it. */
+	public static final double DEFAULT_MERGE_WATERMARK = 0.5;
+
+	private volatile double mergeWatermark = DEFAULT_MERGE_WATERMARK;
+	/** Page numbers of the leaves deletes have left less than half full. */
+	private final Set<Integer> underfullLeaves = ConcurrentHashMap.newKeySet();
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -34,10 +49,105 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, new int[] {key}, td);
+	}
+
+	/**
+	 * Constructs a B+ tree file backed by the specified file, keyed on several
+	 * fields. Its tuples are ordered by the first of them, then by the second
+	 * and so on, and its keys are {@link CompositeField}s of their values.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param keys - the fields which index is keyed on, most significant first
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public BTreeFile(File f, int[] keys, TupleDesc td) {
+		this(f, keys, td, false);
+	}
+
+	/**
+	 * Constructs a B+ tree file backed by the specified file, whose leaf pages
+	 * may be stored in the prefix-compressed format of {@link BTreeLeafPage}.
+	 * The format is part of the file, so a file must always be opened with the
+	 * same setting.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param keys - the fields which index is keyed on, most significant first
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @param prefixCompressed - true to store each key of a leaf page as the
+	 *            bytes it does not share with the previous one
+	 */
+	public BTreeFile(File f, int[] keys, TupleDesc td, boolean prefixCompressed) {
+		if(keys.length == 0) {
+			throw new IllegalArgumentException("a B+ tree must be keyed on a field");
+		}
 		this.f = f;
 		this.tableid = f.getAbsoluteFile().hashCode();
-		this.keyField = key;
+		this.keyField = keys[0];
+		this.keyFields = keys.clone();
 		this.td = td;
+		this.prefixCompressed = prefixCompressed;
+	}
+
+	/**
+	 * @return the number of leaves the scans of B+ tree files read ahead of
+	 *         the one they are on
+	 * @see BTreeLeafPrefetcher
+	 */
+	public static int getPrefetchLeaves() {
+		return prefetchLeaves;
+	}
+
+	/**
+	 * Set the number of leaves the scans of B+ tree files read ahead of the
+	 * one they are on.
+	 *
+	 * @param leaves the number of leaves; 0 turns reading ahead off
+	 */
+	public static void setPrefetchLeaves(int leaves) {
+		if (leaves < 0)
+			throw new IllegalArgumentException("cannot read ahead a negative number of leaves");
+		prefetchLeaves = leaves;
+	}
+
+	public static void resetPrefetchLeaves() {
+		prefetchLeaves = DEFAULT_PREFETCH_LEAVES;
+	}
+
+	/**
+	 * @return the fraction of a leaf below which a delete from it steals
+	 *         tuples from, or merges with, a sibling
+	 */
+	public double getMergeWatermark() {
+		return mergeWatermark;
+	}
+
+	/**
+	 * Set the fraction of a leaf below which a delete from it steals tuples
+	 * from, or merges with, a sibling. At the default of one half, leaves are
+	 * kept at least half full. Below it, deletes leave leaves between the
+	 * watermark and half full as they are, which spares them locking the
+	 * parent and a sibling; an empty leaf is always merged. Such leaves are
+	 * remembered, and rebalanced later by {@link #compact}. Internal pages are
+	 * always kept at least half full.
+	 *
+	 * @param watermark the fraction, from 0 (rebalance only empty leaves) to
+	 *            one half
+	 */
+	public void setMergeWatermark(double watermark) {
+		if (watermark < 0 || watermark > 0.5)
+			throw new IllegalArgumentException("merge watermark must be between 0 and 0.5");
+		mergeWatermark = watermark;
+	}
+
+	/**
+	 * @return the number of leaves deletes have left less than half full
+	 *         that {@link #compact} has not rebalanced yet
+	 */
+	public int numUnderfullLeaves() {
+		return underfullLeaves.size();
 	}
 
 	/**
@@ -169,19 +279,136 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Returns the index of the field that this B+ tree is keyed on
+	 * Returns the index of the field that this B+ tree is keyed on, or of the
+	 * first of them if it is keyed on several
 	 */
 	public int keyField() {
 		return keyField;
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
-	 * leaf node with permission perm.
+	 * Returns the indexes of the fields that this B+ tree is keyed on, most
+	 * significant first
+	 */
+	public int[] keyFields() {
+		return keyFields.clone();
+	}
+
+	/**
+	 * Returns true if the leaf pages of this B+ tree are prefix-compressed
+	 */
+	public boolean isPrefixCompressed() {
+		return prefixCompressed;
+	}
+
+	/**
+	 * Returns the key of a tuple of this B+ tree: its key field, or a
+	 * {@link CompositeField} of its key fields if the tree is keyed on several.
+	 */
+	public Field getKey(Tuple t) {
+		if(keyFields.length == 1) {
+			return t.getField(keyField);
+		}
+		Field[] fs = new Field[keyFields.length];
+		for(int i = 0; i < fs.length; i++) {
+			fs[i] = t.getField(keyFields[i]);
+		}
+		return new CompositeField(fs);
+	}
+
+	/**
+	 * Returns the shortest key that separates two adjacent leaf pages, given the
+	 * last key on the left-hand page and the first key on the right-hand one: a
+	 * key greater than left and less than or equal to right, to copy up to the
+	 * parent instead of right itself. The separator of two strings is the
+	 * shortest prefix of right that is greater than left, and that of two
+	 * composite keys keeps only the fields up to the first that differs; so the
+	 * separators in internal pages, stored in the variable-length format of
+	 * {@link BTreeInternalPage}, take up only as many bytes as telling the pages
+	 * apart needs. If left equals right, the separator is right.
+	 * 
+	 * @param left - the last key on the left-hand page
+	 * @param right - the first key on the right-hand page
+	 * @return the separator key
+	 */
+	public static Field separator(Field left, Field right) {
+		if(left instanceof CompositeField && right instanceof CompositeField) {
+			CompositeField l = (CompositeField) left;
+			CompositeField r = (CompositeField) right;
+			int n = Math.min(l.numFields(), r.numFields());
+			for(int i = 0; i < n; i++) {
+				if(TupleComparator.compareFields(l.getField(i), r.getField(i)) != 0) {
+					Field[] fs = new Field[i + 1];
+					for(int j = 0; j < i; j++) {
+						fs[j] = r.getField(j);
+					}
+					fs[i] = separator(l.getField(i), r.getField(i));
+					return new CompositeField(fs);
+				}
+			}
+			return right;
+		}
+		if(left instanceof StringField && right instanceof StringField) {
+			String l = ((StringField) left).getValue();
+			String r = ((StringField) right).getValue();
+			int n = 0;
+			while(n < l.length() && n < r.length() && l.charAt(n) == r.charAt(n)) {
+				n++;
+			}
+			if(n + 1 < r.length()) {
+				return new StringField(r.substring(0, n + 1), Type.STRING_LEN);
+			}
+		}
+		return right;
+	}
+
+	/**
+	 * Find and lock the leaf page in the B+ tree corresponding to the left-most page
+	 * possibly containing the key field f (or the right-most one, if reverse is true).
+	 * It locks the leaf node with permission perm.
+	 * <p>
+	 * Internal nodes are locked with READ_ONLY permission only for the descent, in the
+	 * manner of latch crabbing: a node is released as soon as its child on the path is
+	 * locked. No writer can change a node's child pointers without a write lock on the
+	 * node, so once the child is locked the path to it no longer matters, and the nodes
+	 * hold no tuples whose reads would have to be repeatable. Concurrent inserts into
+	 * different leaves therefore do not hold each other up on the upper levels of the
+	 * tree; only splits and merges, which write lock the parents, do. Nodes that the
+	 * transaction had already locked, or dirtied, before the descent keep their locks.
+	 * <p>
+	 * If f is null, it finds the left-most (right-most) leaf page -- used for the iterators
 	 * 
-	 * If f is null, it finds the left-most leaf page -- used for the iterator
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param above - a page locked only to find pid, to release once pid is locked, or null
+	 * @param pid - the current page being searched
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for
+	 * @param reverse - true to find the right-most leaf page possibly containing f
+	 * @return the left-most (right-most) leaf page possibly containing the key field f
+	 * 
+	 */
+	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, PageId above,
+			BTreePageId pid, Permissions perm, Field f, boolean reverse)
+			throws DbException, TransactionAbortedException {
+		while (true) {
+			boolean held = dirtypages.containsKey(pid) || Database.getBufferPool().holdsLock(tid, pid);
+			Page page = getPage(tid, dirtypages, pid,
+					pid.pgcateg() == BTreePageId.LEAF ? perm : Permissions.READ_ONLY);
+			if (above != null)
+				Database.getBufferPool().releasePage(tid, above);
+			if (pid.pgcateg() == BTreePageId.LEAF)
+				return (BTreeLeafPage) page;
+			above = held ? null : pid;
+			BTreeInternalPage internal = (BTreeInternalPage) page;
+			pid = reverse ? internal.findReverseChild(f) : internal.findChild(f);
+		}
+	}
+
+	/**
+	 * Find and lock the leaf page in the B+ tree corresponding to the left-most page
+	 * possibly containing the key field f. Internal nodes are only locked for the descent.
+	 * @see #findLeafPage(TransactionId, HashMap, PageId, BTreePageId, Permissions, Field, boolean)
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -194,21 +421,7 @@ public class BTreeFile implements DbFile {
 	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
 			Field f)
 			throws DbException, TransactionAbortedException{
-		if(pid.pgcateg() == BTreePageId.LEAF)return(BTreeLeafPage)this.getPage(tid,dirtypages,pid,perm);
-		else{
-			BTreeInternalPage page = (BTreeInternalPage)this.getPage(tid,dirtypages,pid,perm);
-			Iterator<BTreeEntry> entries = page.iterator();
-			if(f == null)return findLeafPage(tid, dirtypages, entries.next().getLeftChild(), perm, f);
-			BTreeEntry entry = entries.next();
-			while(true){
-				if(entry.getKey().compare(Op.GREATER_THAN_OR_EQ,f)){
-					return findLeafPage(tid, dirtypages, entry.getLeftChild(), perm, f);
-				}
-				if(entries.hasNext())entry = entries.next();
-				else break;
-			}
-			return findLeafPage(tid,dirtypages,entry.getRightChild(),perm,f);
-		}
+		return findLeafPage(tid, dirtypages, null, pid, perm, f, false);
 	}
 	
 	/**
@@ -229,58 +442,44 @@ public class BTreeFile implements DbFile {
 		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
 	}
 
+	/**
+	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
+	 * Used by the BTreeFile reverse iterators.
+	 *
+	 * @param tid  - the transaction id
+	 * @param pid  - the current page being searched
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f    - the field to search for
+	 * @return the right-most leaf page possibly containing the key field f
+	 * @see #findLeafPage(TransactionId, HashMap, PageId, BTreePageId, Permissions, Field, boolean)
+	 */
+	BTreeLeafPage findReverseLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
+			Field f)
+					throws DbException, TransactionAbortedException {
+		return findLeafPage(tid, new HashMap<PageId, Page>(), null, pid, perm, f, true);
+	}
 
-    /**
-     * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-     * the left-most page possibly containing the key field f. It locks all internal
-     * nodes along the path to the leaf node with READ_ONLY permission, and locks the
-     * leaf node with permission perm.
-     * <p>
-     * If f is null, it finds the left-most leaf page -- used for the iterator
-     *
-     * @param tid        - the transaction id
-     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-     * @param pid        - the current page being searched
-     * @param perm       - the permissions with which to lock the leaf page
-     * @param f          - the field to search for
-     * @return the left-most leaf page possibly containing the key field f
-     */
-    private BTreeLeafPage findReverseLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
-                                              Field f)
-            throws DbException, TransactionAbortedException {
-        if(pid.pgcateg() == BTreePageId.LEAF)return(BTreeLeafPage)this.getPage(tid,dirtypages,pid,perm);
-        else{
-            BTreeInternalPage page = (BTreeInternalPage)this.getPage(tid,dirtypages,pid,perm);
-            Iterator<BTreeEntry> entries = page.reverseIterator();
-            if(f == null)return findLeafPage(tid, dirtypages, entries.next().getRightChild(), perm, f);
-            BTreeEntry entry = entries.next();
-            while(true){
-                if(entry.getKey().compare(Op.LESS_THAN_OR_EQ,f)){
-                    return findLeafPage(tid, dirtypages, entry.getRightChild(), perm, f);
-                }
-                if(entries.hasNext())entry = entries.next();
-                else break;
-            }
-            return findLeafPage(tid,dirtypages,entry.getLeftChild(),perm,f);
-        }
-    }
-
-    /**
-     * Convenience method to find a leaf page when there is no dirtypages HashMap.
-     * Used by the BTreeFile iterator.
-     *
-     * @param tid  - the transaction id
-     * @param pid  - the current page being searched
-     * @param perm - the permissions with which to lock the leaf page
-     * @param f    - the field to search for
-     * @return the left-most leaf page possibly containing the key field f
-     * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
-     */
-    BTreeLeafPage findReverseLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
-                                      Field f)
-            throws DbException, TransactionAbortedException {
-        return findReverseLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
-    }
+	/**
+	 * Find and lock the leaf page for the key field f, starting from the root pointer
+	 * page. The root pointer page is only locked until the root is, unless the
+	 * transaction already held it. Used by the BTreeFile iterators.
+	 * @see #findLeafPage(TransactionId, HashMap, PageId, BTreePageId, Permissions, Field, boolean)
+	 *
+	 * @param tid - the transaction id
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for, or null for the left-most (right-most) leaf
+	 * @param reverse - true to find the right-most leaf page possibly containing f
+	 * @return the leaf page
+	 */
+	BTreeLeafPage findLeafPageFromRoot(TransactionId tid, Permissions perm, Field f, boolean reverse)
+			throws DbException, TransactionAbortedException {
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		boolean held = Database.getBufferPool().holdsLock(tid, rootPtrId);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, rootPtrId, Permissions.READ_ONLY);
+		return findLeafPage(tid, new HashMap<PageId, Page>(), held ? null : rootPtrId,
+				rootPtr.getRootId(), perm, f, reverse);
+	}
 
 	/**
 	 * Split a leaf page to make room for new tuples and recursively split the parent node
@@ -306,23 +505,24 @@ public class BTreeFile implements DbFile {
 	protected BTreeLeafPage splitLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage page, Field field) 
 			throws DbException, IOException, TransactionAbortedException {
 		BTreeLeafPage newPage = (BTreeLeafPage) getEmptyPage(tid,dirtypages,BTreePageId.LEAF);
-		int num = page.getNumTuples()/2;
+		int num = page.getSplitPoint();
 		Iterator<Tuple> it = page.iterator();
+        Tuple t = null;
         for (int i = 0; i < num; i++) {
             if(!it.hasNext()) throw new DbException("No Tuples");
-            Tuple t = it.next();
+            t = it.next();
             page.deleteTuple(t);
             newPage.insertTuple(t);   //问题1 删除和插入的顺序问题
         }
 
         if(page.getLeftSiblingId()!=null){
-            BTreeLeafPage brother = (BTreeLeafPage)getPage(tid,dirtypages,page.getLeftSiblingId(),Permissions.READ_ONLY);
+            BTreeLeafPage brother = (BTreeLeafPage)getPage(tid,dirtypages,page.getLeftSiblingId(),Permissions.READ_WRITE);
             brother.setRightSiblingId(newPage.getId());
         }
         newPage.setLeftSiblingId(page.getLeftSiblingId());
         newPage.setRightSiblingId(page.getId());
         page.setLeftSiblingId(newPage.getId());
-        Field f = it.next().getField(keyField);
+        Field f = separator(getKey(t), getKey(it.next()));
         BTreeEntry entry = new BTreeEntry(f,newPage.getId(),page.getId());
         BTreeInternalPage parent = getParentWithEmptySlots(tid,dirtypages,page.getParentId(),f);
         parent.insertEntry(entry);
@@ -357,9 +557,9 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage page, Field field) 
 					throws DbException, IOException, TransactionAbortedException {
         BTreeInternalPage newPage = (BTreeInternalPage)getEmptyPage(tid,dirtypages,BTreePageId.INTERNAL);
-        int num = page.getNumEntries();
+        int num = page.getSplitPoint();
         Iterator<BTreeEntry> it = page.iterator();
-        for (int i = 0; i < num/2; i++) {
+        for (int i = 0; i < num; i++) {
             if(!it.hasNext()) throw new DbException("No Tuples");
             BTreeEntry e = it.next();
             page.deleteKeyAndLeftChild(e);
@@ -530,6 +730,8 @@ public class BTreeFile implements DbFile {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 
 		// get a read lock on the root pointer page and use it to locate the root page
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		boolean held = Database.getBufferPool().holdsLock(tid, rootPtrId);
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
 		BTreePageId rootId = rootPtr.getRootId();
 
@@ -540,10 +742,13 @@ public class BTreeFile implements DbFile {
 		}
 
 		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		// and split the leaf page if there are no more slots available. The root
+		// pointer is only locked until the root is, unless it has to be kept.
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages,
+				held || dirtypages.containsKey(rootPtrId) ? null : rootPtrId,
+				rootId, Permissions.READ_WRITE, getKey(t), false);
 		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			leafPage = splitLeafPage(tid, dirtypages, leafPage, getKey(t));	
 		}
 
 		// insert the tuple into the leaf page
@@ -631,28 +836,51 @@ public class BTreeFile implements DbFile {
 		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
 		if(leftSiblingId != null) {
 			BTreeLeafPage leftSibling = (BTreeLeafPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
-			// if the left sibling is at minimum occupancy, merge with it. Otherwise
-			// steal some tuples from it
-			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+			// if the left sibling is at minimum occupancy, or stealing could not leave
+			// both pages half full, merge with it. Otherwise steal some tuples from it
+			if(leftSibling.getNumEmptySlots() >= maxEmptySlots || !canSteal(page, leftSibling)) {
 				mergeLeafPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
+				noteIfUnderfull(leftSibling);
 			}
 			else {
 				stealFromLeafPage(page, leftSibling, parent, leftEntry, false);				
+				splitIfOverfull(tid, dirtypages, parent, leftEntry.getKey());
 			}
 		}
 		else if(rightSiblingId != null) {	
 			BTreeLeafPage rightSibling = (BTreeLeafPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
-			// if the right sibling is at minimum occupancy, merge with it. Otherwise
-			// steal some tuples from it
-			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+			// if the right sibling is at minimum occupancy, or stealing could not leave
+			// both pages half full, merge with it. Otherwise steal some tuples from it
+			if(rightSibling.getNumEmptySlots() >= maxEmptySlots || !canSteal(page, rightSibling)) {
 				mergeLeafPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
+				noteIfUnderfull(page);
 			}
 			else {
 				stealFromLeafPage(page, rightSibling, parent, rightEntry, true);				
+				splitIfOverfull(tid, dirtypages, parent, rightEntry.getKey());
 			}
 		}
 	}
 	
+	/**
+	 * @return whether the two leaves hold enough tuples between them for
+	 *         both to be at least half full. Only leaves below the merge
+	 *         watermark may fall short while their sibling is above half full.
+	 */
+	private boolean canSteal(BTreeLeafPage page, BTreeLeafPage sibling) {
+		return page.getNumTuples() + sibling.getNumTuples() >= page.getMaxTuples()/2 * 2;
+	}
+
+	/**
+	 * Remember a leaf left less than half full by a merge, for compact().
+	 */
+	private void noteIfUnderfull(BTreeLeafPage page) {
+		if(page.getNumTuples() < page.getMaxTuples()/2 
+				&& page.getParentId().pgcateg() != BTreePageId.ROOT_PTR) {
+			underfullLeaves.add(page.getId().getPageNumber());
+		}
+	}
+
 	/**
 	 * Steal tuples from a sibling and copy them to the given page so that both pages are at least
 	 * half full.  Update the parent's entry so that the key matches the key field of the first
@@ -668,16 +896,18 @@ public class BTreeFile implements DbFile {
 	 */
 	protected void stealFromLeafPage(BTreeLeafPage page, BTreeLeafPage sibling,
 			BTreeInternalPage parent, BTreeEntry entry, boolean isRightSibling) throws DbException {
-		int numSteal = (sibling.getNumTuples() - page.getNumTuples()) / 2;//均分
+		// steal until the pages are equally full, which is by number of tuples
+		// unless the leaves are prefix-compressed
 		Iterator<Tuple> it = (isRightSibling) ? sibling.iterator() : sibling.reverseIterator();//右邻居读小一点的，左邻居读大一点的
 		Tuple t = null;
-		for (int j = 0; j < numSteal; j ++) {
+		while (page.getNumEmptySlots() - sibling.getNumEmptySlots() > 1) {
 			t = it.next();
 			sibling.deleteTuple(t);
 			page.insertTuple(t);
 		}
-		if (isRightSibling) t = it.next();
-		entry.setKey(t.getField(keyField));
+		Tuple next = it.next();
+		if (isRightSibling) entry.setKey(separator(getKey(t), getKey(next)));
+		else entry.setKey(separator(getKey(next), getKey(t)));
 		parent.updateEntry(entry);
 	}
 
@@ -718,6 +948,7 @@ public class BTreeFile implements DbFile {
 			}
 			else {
 				stealFromLeftInternalPage(tid, dirtypages, page, leftSibling, parent, leftEntry);
+				splitIfOverfull(tid, dirtypages, parent, leftEntry.getKey());
 			}
 		}
 		else if(rightSiblingId != null) {
@@ -729,9 +960,32 @@ public class BTreeFile implements DbFile {
 			}
 			else {
 				stealFromRightInternalPage(tid, dirtypages, page, rightSibling, parent, rightEntry);
+				splitIfOverfull(tid, dirtypages, parent, rightEntry.getKey());
 			}
 		}
 	}
+
+	/**
+	 * Split the parent of two pages that have just redistributed their tuples or
+	 * entries if the new key between them has left it overfull, which may happen
+	 * when the keys are stored in the variable-length format.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param parent - the parent of the two pages
+	 * @param key - the new key between them
+	 * @see BTreeInternalPage#isOverfull()
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private void splitIfOverfull(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			BTreeInternalPage parent, Field key) throws DbException, IOException, TransactionAbortedException {
+		if(parent.isOverfull()) {
+			splitInternalPage(tid, dirtypages, parent, key);
+		}
+	}
 	
 	/**
 	 * Steal entries from the left sibling and copy them to the given page so that both pages are at least
@@ -754,10 +1008,11 @@ public class BTreeFile implements DbFile {
 	protected void stealFromLeftInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, BTreeInternalPage leftSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, IOException, TransactionAbortedException {
-		int numSteal = (leftSibling.getNumEntries() - page.getNumEntries()) / 2;
+		// steal until the pages are equally full, which is by number of entries
+		// unless the keys are stored in the variable-length format
 		Iterator<BTreeEntry> e = leftSibling.reverseIterator();
 		BTreeEntry center = new BTreeEntry(parentEntry.getKey(), null, page.iterator().next().getLeftChild());
-		for (int j = 0; j < numSteal; j ++) {
+		while (page.getNumEmptySlots() - leftSibling.getNumEmptySlots() > 1) {
 			BTreeEntry left = e.next();
 			center.setLeftChild(left.getRightChild());
 			page.insertEntry(center);
@@ -791,10 +1046,11 @@ public class BTreeFile implements DbFile {
 	protected void stealFromRightInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, BTreeInternalPage rightSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, IOException, TransactionAbortedException {
-		int numSteal = (rightSibling.getNumEntries() - page.getNumEntries()) / 2;
+		// steal until the pages are equally full, which is by number of entries
+		// unless the keys are stored in the variable-length format
 		Iterator<BTreeEntry> e = rightSibling.iterator();
 		BTreeEntry center = new BTreeEntry(parentEntry.getKey(), page.reverseIterator().next().getRightChild(), null);
-		for (int j = 0; j < numSteal; j ++) {
+		while (page.getNumEmptySlots() - rightSibling.getNumEmptySlots() > 1) {
 			BTreeEntry right = e.next();
 			center.setRightChild(right.getLeftChild());
 			page.insertEntry(center);
@@ -928,7 +1184,8 @@ public class BTreeFile implements DbFile {
 	/**
 	 * Delete a tuple from this BTreeFile. 
 	 * May cause pages to merge or redistribute entries/tuples if the pages 
-	 * become less than half full.
+	 * become less than half full, or for leaves, less full than the merge
+	 * watermark.
 	 * 
 	 * @param tid - the transaction id
 	 * @param t - the tuple to delete
@@ -945,18 +1202,110 @@ public class BTreeFile implements DbFile {
 		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
 		page.deleteTuple(t);
 
-		// if the page is below minimum occupancy, get some tuples from its siblings
-		// or merge with one of the siblings
-		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
-		if(page.getNumEmptySlots() > maxEmptySlots) { 
+		// if the page is below the merge watermark, get some tuples from its siblings
+		// or merge with one of the siblings. If it is only below minimum occupancy,
+		// leave it for compact()
+		int minTuples = (int) (page.getMaxTuples() * mergeWatermark);
+		if(page.getNumTuples() == 0 || page.getNumTuples() < minTuples) { 
+			underfullLeaves.remove(pageId.getPageNumber());
 			handleMinOccupancyPage(tid, dirtypages, page);
 		}
+		else {
+			noteIfUnderfull(page);
+		}
+
+		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+		dirtyPagesArr.addAll(dirtypages.values());
+		return dirtyPagesArr;
+	}
+
+	/**
+	 * Rebalance the leaves that deletes have left less than half full, because
+	 * they were above the merge watermark, as deletes do under the default
+	 * watermark. A leaf is only rebalanced if it, its parent and the sibling
+	 * it would steal from or merge with can be write locked without waiting;
+	 * the others are in use, and are left for a later call. Merges may still
+	 * wait for locks on pages further away, such as the parent's siblings.
+	 * 
+	 * @param tid - the transaction id
+	 * @return a list of all pages that were dirtied by this operation
+	 * @see #setMergeWatermark(double)
+	 * @see #handleMinOccupancyPage(TransactionId, HashMap, BTreePage)
+	 */
+	public ArrayList<Page> compact(TransactionId tid) 
+			throws DbException, IOException, TransactionAbortedException {
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		// a merge may leave the merged leaf underfull, to be merged again
+		boolean progress = true;
+		List<Integer> rebalanced = new ArrayList<Integer>();
+		try {
+			while(progress) {
+				progress = false;
+				for(Integer pgNo : new ArrayList<Integer>(underfullLeaves)) {
+					BTreePageId pageId = new BTreePageId(tableid, pgNo, BTreePageId.LEAF);
+					BTreeLeafPage page = (BTreeLeafPage) tryGetPage(tid, dirtypages, pageId);
+					// once locked, the page cannot be freed, but it may have been before
+					if(page == null || !underfullLeaves.contains(pgNo)) {
+						continue;
+					}
+					BTreePageId parentId = page.getParentId();
+					if(page.getNumTuples() >= page.getMaxTuples()/2 || parentId.pgcateg() == BTreePageId.ROOT_PTR) {
+						underfullLeaves.remove(pgNo);
+						continue;
+					}
+					BTreeInternalPage parent = (BTreeInternalPage) tryGetPage(tid, dirtypages, parentId);
+					if(parent == null) {
+						continue;
+					}
+					// handleMinOccupancyLeafPage prefers the left sibling
+					BTreePageId siblingId = null;
+					Iterator<BTreeEntry> ite = parent.iterator();
+					while(ite.hasNext()) {
+						BTreeEntry e = ite.next();
+						if(e.getRightChild().equals(pageId)) {
+							siblingId = e.getLeftChild();
+							break;
+						}
+						else if(e.getLeftChild().equals(pageId)) {
+							siblingId = e.getRightChild();
+						}
+					}
+					if(siblingId == null || tryGetPage(tid, dirtypages, siblingId) == null) {
+						continue;
+					}
+					dirtypages.put(pageId, page);
+					underfullLeaves.remove(pgNo);
+					rebalanced.add(pgNo);
+					handleMinOccupancyPage(tid, dirtypages, page);
+					progress = true;
+				}
+			}
+		}
+		catch(TransactionAbortedException e) {
+			// the transaction will be rolled back, and the leaves with it
+			underfullLeaves.addAll(rebalanced);
+			throw e;
+		}
 
 		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
 		dirtyPagesArr.addAll(dirtypages.values());
 		return dirtyPagesArr;
 	}
 
+	/**
+	 * Write lock a page, without waiting for other transactions. The page is
+	 * not added to the dirty pages.
+	 * 
+	 * @return the page, or null if another transaction holds a lock on it
+	 */
+	private Page tryGetPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid)
+			throws DbException, TransactionAbortedException {
+		if(dirtypages.containsKey(pid)) {
+			return dirtypages.get(pid);
+		}
+		return Database.getBufferPool().tryGetPage(tid, pid, Permissions.READ_WRITE);
+	}
+
 	/**
 	 * Get a read lock on the root pointer page. Create the root pointer page and root page
 	 * if necessary.
@@ -1000,7 +1349,9 @@ public class BTreeFile implements DbFile {
 	 */
 	protected int getEmptyPageNo(TransactionId tid, HashMap<PageId, Page> dirtypages) 
 			throws DbException, IOException, TransactionAbortedException {
-		// get a read lock on the root pointer page and use it to locate the first header page
+		// get a read lock on the root pointer page and use it to locate the first header page.
+		// The lock is kept until the transaction completes, so that the header list cannot
+		// change under the allocation
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
 		BTreePageId headerId = rootPtr.getHeaderId();
 		int emptyPageNo = 0;
@@ -1066,6 +1417,7 @@ public class BTreeFile implements DbFile {
 			throws DbException, IOException, TransactionAbortedException {
 		// create the new page
 		int emptyPageNo = getEmptyPageNo(tid, dirtypages);
+		underfullLeaves.remove(emptyPageNo);
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
@@ -1096,6 +1448,8 @@ public class BTreeFile implements DbFile {
 	 */
 	protected void setEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int emptyPageNo) 
 			throws DbException, IOException, TransactionAbortedException {
+		// the page may be reused as any kind of page, so compact() must not visit it
+		underfullLeaves.remove(emptyPageNo);
 
 		// if this is the last page in the file (and not the only page), just 
 		// truncate the file
@@ -1226,6 +1580,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	BTreeLeafPrefetcher prefetcher = null;
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1244,10 +1599,9 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		curp = f.findLeafPageFromRoot(tid, Permissions.READ_ONLY, null, false);
+		prefetcher = new BTreeLeafPrefetcher(tid, false, null);
+		prefetcher.visit(curp);
 		it = curp.iterator();
 	}
 
@@ -1270,6 +1624,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				prefetcher.visit(curp);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1294,6 +1649,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
+		if (prefetcher != null)
+			prefetcher.close();
 		it = null;
 		curp = null;
 	}
@@ -1306,6 +1663,7 @@ class BTreeFileReverseIterator extends AbstractDbFileIterator {
 
     Iterator<Tuple> it = null;
     BTreeLeafPage curp = null;
+    BTreeLeafPrefetcher prefetcher = null;
 
     TransactionId tid;
     BTreeFile f;
@@ -1325,10 +1683,9 @@ class BTreeFileReverseIterator extends AbstractDbFileIterator {
      * Open this iterator by getting an iterator on the last leaf page
      */
     public void open() throws DbException, TransactionAbortedException {
-        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-                tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-        BTreePageId root = rootPtr.getRootId();
-        curp = f.findReverseLeafPage(tid, root, Permissions.READ_ONLY, null);
+        curp = f.findLeafPageFromRoot(tid, Permissions.READ_ONLY, null, true);
+        prefetcher = new BTreeLeafPrefetcher(tid, true, null);
+        prefetcher.visit(curp);
         it = curp.reverseIterator();
     }
 
@@ -1350,6 +1707,7 @@ class BTreeFileReverseIterator extends AbstractDbFileIterator {
             } else {
                 curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
                         nextp, Permissions.READ_ONLY);
+                prefetcher.visit(curp);
                 it = curp.reverseIterator();
                 if (!it.hasNext())
                     it = null;
@@ -1374,6 +1732,8 @@ class BTreeFileReverseIterator extends AbstractDbFileIterator {
      */
     public void close() {
         super.close();
+        if (prefetcher != null)
+            prefetcher.close();
         it = null;
         curp = null;
     }
@@ -1381,12 +1741,17 @@ class BTreeFileReverseIterator extends AbstractDbFileIterator {
 
 /**
  * Helper class that implements the DbFileIterator for search tuples on a
- * B+ Tree File
+ * B+ Tree File. The tuples of each leaf in the range are found with one
+ * binary search for each end of the range, rather than by comparing the key
+ * of every tuple, and the scan ends at the leaf holding the end of the range.
  */
 class BTreeSearchIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	BTreeLeafPrefetcher prefetcher = null;
+	/** true if curp holds the end of the range */
+	boolean lastPage = false;
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1409,17 +1774,45 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
-				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
-		}
-		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		Op op = ipred.getOp();
+		boolean lowerBound = op == Op.EQUALS || op == Op.GREATER_THAN || op == Op.GREATER_THAN_OR_EQ;
+		boolean upperBound = op == Op.EQUALS || op == Op.LESS_THAN || op == Op.LESS_THAN_OR_EQ;
+		curp = f.findLeafPageFromRoot(tid, Permissions.READ_ONLY,
+				lowerBound ? ipred.getField() : null, false);
+		prefetcher = new BTreeLeafPrefetcher(tid, false, upperBound ? ipred.getField() : null);
+		it = range(curp);
+	}
+
+	/**
+	 * @return an iterator over the tuples of a leaf that are in the range,
+	 * setting lastPage if the range ends on the leaf
+	 */
+	private Iterator<Tuple> range(BTreeLeafPage p) throws DbException, TransactionAbortedException {
+		prefetcher.visit(p);
+		Field field = ipred.getField();
+		int from = 0, to = p.getNumTuples();
+		switch (ipred.getOp()) {
+		case EQUALS:
+			from = p.countKeys(field, false);
+			to = p.countKeys(field, true);
+			break;
+		case GREATER_THAN:
+			from = p.countKeys(field, true);
+			break;
+		case GREATER_THAN_OR_EQ:
+			from = p.countKeys(field, false);
+			break;
+		case LESS_THAN:
+			to = p.countKeys(field, false);
+			break;
+		case LESS_THAN_OR_EQ:
+			to = p.countKeys(field, true);
+			break;
+		default:
+			// the other operators are checked tuple by tuple
 		}
-		it = curp.iterator();
+		lastPage = to < p.getNumTuples();
+		return p.iterator(from, to);
 	}
 
 	/**
@@ -1431,26 +1824,20 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	@Override
 	protected Tuple readNext() throws TransactionAbortedException, DbException,
 	NoSuchElementException {
+		boolean check = ipred.getOp() == Op.NOT_EQUALS || ipred.getOp() == Op.LIKE;
 		while (it != null) {
 
 			while (it.hasNext()) {
 				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+				if (!check || f.getKey(t).compare(ipred.getOp(), ipred.getField())) {
 					return t;
 				}
-				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
-					// if the predicate was not satisfied and the operation is less than, we have
-					// hit the end
-					return null;
-				}
-				else if(ipred.getOp() == Op.EQUALS && 
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
-					// if the tuple is now greater than the field passed in and the operation
-					// is equals, we have reached the end
-					return null;
-				}
 			}
 
+			// a key past the end of the range is on this page, so none can follow
+			if (lastPage) {
+				return null;
+			}
 			BTreePageId nextp = curp.getRightSiblingId();
 			// if there are no more pages to the right, end the iteration
 			if(nextp == null) {
@@ -1459,7 +1846,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
-				it = curp.iterator();
+				it = range(curp);
 			}
 		}
 
@@ -1479,18 +1866,24 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
+		if (prefetcher != null)
+			prefetcher.close();
 		it = null;
 	}
 
 }
 /**
  * Helper class that implements the DbFileIterator for search tuples on a
- * B+ Tree File
+ * B+ Tree File, in reverse. Like {@link BTreeSearchIterator}, it finds the
+ * tuples of each leaf in the range by binary search.
  */
 class BTreeSearchReverseIterator extends AbstractDbFileIterator {
 
     Iterator<Tuple> it = null;
     BTreeLeafPage curp = null;
+    BTreeLeafPrefetcher prefetcher = null;
+    /** true if curp holds the start of the range */
+    boolean lastPage = false;
 
     TransactionId tid;
     BTreeFile f;
@@ -1514,16 +1907,45 @@ class BTreeSearchReverseIterator extends AbstractDbFileIterator {
      * for the given predicate operation
      */
     public void open() throws DbException, TransactionAbortedException {
-        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-                tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-        BTreePageId root = rootPtr.getRootId();
-        if (ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.LESS_THAN
-                || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
-            curp = f.findReverseLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
-        } else {
-            curp = f.findReverseLeafPage(tid, root, Permissions.READ_ONLY, null);
+        Op op = ipred.getOp();
+        boolean lowerBound = op == Op.EQUALS || op == Op.GREATER_THAN || op == Op.GREATER_THAN_OR_EQ;
+        boolean upperBound = op == Op.EQUALS || op == Op.LESS_THAN || op == Op.LESS_THAN_OR_EQ;
+        curp = f.findLeafPageFromRoot(tid, Permissions.READ_ONLY,
+                upperBound ? ipred.getField() : null, true);
+        prefetcher = new BTreeLeafPrefetcher(tid, true, lowerBound ? ipred.getField() : null);
+        it = range(curp);
+    }
+
+    /**
+     * @return a reverse iterator over the tuples of a leaf that are in the
+     * range, setting lastPage if the range starts on the leaf
+     */
+    private Iterator<Tuple> range(BTreeLeafPage p) throws DbException, TransactionAbortedException {
+        prefetcher.visit(p);
+        Field field = ipred.getField();
+        int from = 0, to = p.getNumTuples();
+        switch (ipred.getOp()) {
+        case EQUALS:
+            from = p.countKeys(field, false);
+            to = p.countKeys(field, true);
+            break;
+        case GREATER_THAN:
+            from = p.countKeys(field, true);
+            break;
+        case GREATER_THAN_OR_EQ:
+            from = p.countKeys(field, false);
+            break;
+        case LESS_THAN:
+            to = p.countKeys(field, false);
+            break;
+        case LESS_THAN_OR_EQ:
+            to = p.countKeys(field, true);
+            break;
+        default:
+            // the other operators are checked tuple by tuple
         }
-        it = curp.reverseIterator();
+        lastPage = from > 0;
+        return p.reverseIterator(from, to);
     }
 
     /**
@@ -1535,32 +1957,28 @@ class BTreeSearchReverseIterator extends AbstractDbFileIterator {
     @Override
     protected Tuple readNext() throws TransactionAbortedException, DbException,
             NoSuchElementException {
+        boolean check = ipred.getOp() == Op.NOT_EQUALS || ipred.getOp() == Op.LIKE;
         while (it != null) {
 
             while (it.hasNext()) {
                 Tuple t = it.next();
-                if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+                if (!check || f.getKey(t).compare(ipred.getOp(), ipred.getField())) {
                     return t;
-                } else if (ipred.getOp() == Op.GREATER_THAN || ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-                    // if the predicate was not satisfied and the operation is less than, we have
-                    // hit the end
-                    return null;
-                } else if (ipred.getOp() == Op.EQUALS &&
-                        t.getField(f.keyField()).compare(Op.LESS_THAN_OR_EQ, ipred.getField())) {
-                    // if the tuple is now greater than the field passed in and the operation
-                    // is equals, we have reached the end
-                    return null;
                 }
             }
 
+            // a key before the start of the range is on this page, so none can follow
+            if (lastPage) {
+                return null;
+            }
             BTreePageId nextp = curp.getLeftSiblingId();
-            // if there are no more pages to the right, end the iteration
+            // if there are no more pages to the left, end the iteration
             if (nextp == null) {
                 return null;
             } else {
                 curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
                         nextp, Permissions.READ_ONLY);
-                it = curp.reverseIterator();
+                it = range(curp);
             }
         }
 
@@ -1580,6 +1998,119 @@ class BTreeSearchReverseIterator extends AbstractDbFileIterator {
      */
     public void close() {
         super.close();
+        if (prefetcher != null)
+            prefetcher.close();
         it = null;
     }
 }
+
+/**
+ * Helper class that reads ahead the leaves a scan of a B+ Tree File is about
+ * to visit, using the child list of the parent of the leaf it is on. The
+ * leaves after it (before it, for reverse scans) among the parent's children
+ * are handed to {@link BufferPool#prefetchPages} in batches of
+ * {@link BTreeFile#getPrefetchLeaves()}; when the scan reaches the middle of
+ * a batch, the next one is requested. A batch stops at the first leaf whose
+ * keys are all past the end of the range, and at the last child of the
+ * parent: the first leaf under the next parent is read when the scan gets
+ * there. Like the descent of {@link BTreeFile#findLeafPageFromRoot}, the
+ * parent is only locked while its children are read, and a scan never waits
+ * for the lock: if a writer holds it, the scan just goes on without reading
+ * ahead. Leaves read ahead that the scan does not reach before it is closed
+ * are given back to the buffer pool.
+ */
+class BTreeLeafPrefetcher {
+
+	private final TransactionId tid;
+	private final boolean reverse;
+	/** The end of the range the scan reads, or null if it reads to the end. */
+	private final Field bound;
+
+	/** The leaves requested and not yet visited, in the order of the scan. */
+	private final LinkedList<BTreePageId> pending = new LinkedList<BTreePageId>();
+	private BTreePageId parent = null;
+	private BTreePageId trigger = null;
+
+	/**
+	 * @param tid - the transaction the scan runs in
+	 * @param reverse - true for a scan from the right-most leaf to the left
+	 * @param bound - the largest key the scan may read (the smallest, for a
+	 *            reverse scan), or null if it reads to the last leaf
+	 */
+	BTreeLeafPrefetcher(TransactionId tid, boolean reverse, Field bound) {
+		this.tid = tid;
+		this.reverse = reverse;
+		this.bound = bound;
+	}
+
+	/**
+	 * Note that the scan has reached a leaf, and read ahead if it is time to.
+	 */
+	void visit(BTreeLeafPage leaf) throws DbException, TransactionAbortedException {
+		if (BTreeFile.getPrefetchLeaves() <= 0)
+			return;
+		BTreePageId id = leaf.getId();
+		if (pending.remove(id)) {
+			if (id.equals(trigger) && !pending.isEmpty())
+				request(parent, pending.getLast());
+			return;
+		}
+		// the scan left the leaves requested: start again from this leaf
+		close();
+		request(leaf.getParentId(), id);
+	}
+
+	/**
+	 * Note that the scan will not visit the leaves requested and not yet
+	 * visited, so that the buffer pool stops reading them and releases the
+	 * locks it took on them.
+	 */
+	void close() {
+		if (pending.isEmpty())
+			return;
+		Database.getBufferPool().cancelPrefetch(tid, pending);
+		pending.clear();
+	}
+
+	/**
+	 * Request the next batch of children of a parent after one of them.
+	 */
+	private void request(BTreePageId parentId, BTreePageId after)
+			throws DbException, TransactionAbortedException {
+		if (parentId.pgcateg() != BTreePageId.INTERNAL)
+			return;
+		BufferPool pool = Database.getBufferPool();
+		boolean held = pool.holdsLock(tid, parentId);
+		BTreeInternalPage page = (BTreeInternalPage) pool.tryGetPage(tid, parentId, Permissions.READ_ONLY);
+		if (page == null)
+			return;
+		List<BTreePageId> batch = new ArrayList<BTreePageId>();
+		boolean found = false;
+		Iterator<BTreeEntry> it = reverse ? page.reverseIterator() : page.iterator();
+		while (it.hasNext() && batch.size() < BTreeFile.getPrefetchLeaves()) {
+			BTreeEntry e = it.next();
+			if (!found) {
+				// the first entry of the scan also has the child before it
+				BTreePageId first = reverse ? e.getRightChild() : e.getLeftChild();
+				found = first.equals(after);
+			}
+			BTreePageId child = reverse ? e.getLeftChild() : e.getRightChild();
+			if (!found) {
+				found = child.equals(after);
+				continue;
+			}
+			// the keys of the child are at least (at most) the entry's key
+			if (bound != null && TupleComparator.compareFields(e.getKey(), bound) * (reverse ? -1 : 1) > 0)
+				break;
+			batch.add(child);
+		}
+		if (!held)
+			pool.releasePage(tid, parentId);
+		if (batch.isEmpty())
+			return;
+		pending.addAll(batch);
+		parent = parentId;
+		trigger = batch.get(batch.size() / 2);
+		pool.prefetchPages(tid, batch);
+	}
+}
@@ -335,6 +335,355 @@ public class BTreeFileEncoder {
 		return bf;
 	}
 
+	/**
+	 * The default fraction of each page filled by {@link #bulkLoad}, which
+	 * leaves some room for later inserts before pages start to split.
+	 */
+	public static final double DEFAULT_FILL_FACTOR = 0.9;
+
+	/**
+	 * Build a B+ tree bottom-up from tuples already sorted on its key field.
+	 * <p>
+	 * Leaves are filled to the given fraction of their capacity in key order
+	 * and each internal level is built from the level below as its pages
+	 * fill, so the input is read once and the file is written front to back
+	 * in a single pass, with at most a page's worth of children per level
+	 * held in memory. Every page except the root holds at least half of its
+	 * capacity. The root pointer page is written last; the loaded tree has
+	 * no free pages, so it has no header pages.
+	 * <p>
+	 * Pages are written straight to the file, bypassing the BufferPool and
+	 * the log, so the tree must be empty and not in use by any transaction.
+	 * It must already be in the catalog.
+	 * 
+	 * @param bf - the empty BTreeFile to load
+	 * @param sorted - an open iterator over the tuples, in ascending order of the key field
+	 * @param fillFactor - the fraction of each page to fill, in (0, 1]
+	 * @throws DbException if the file is not empty or the input is not sorted
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	public static void bulkLoad(BTreeFile bf, OpIterator sorted, double fillFactor)
+			throws DbException, IOException, TransactionAbortedException {
+		if(!(fillFactor > 0 && fillFactor <= 1)) {
+			throw new IllegalArgumentException("fill factor must be in (0, 1]");
+		}
+		if(bf.numPages() > 0) {
+			throw new DbException("can only bulk load an empty B+ tree");
+		}
+		BulkLoader loader = new BulkLoader(bf, fillFactor);
+		try {
+			while(sorted.hasNext()) {
+				loader.add(sorted.next());
+			}
+			loader.finish();
+		}
+		finally {
+			loader.close();
+		}
+		Database.getBufferPool().discardPage(BTreeRootPtrPage.getId(bf.getId()));
+	}
+
+	/**
+	 * Sort tuples on the key field of a B+ tree with an {@link ExternalSort}
+	 * and {@link #bulkLoad} them into the tree.
+	 * 
+	 * @param bf - the empty BTreeFile to load
+	 * @param tuples - an open iterator over the tuples, in any order
+	 * @param fillFactor - the fraction of each page to fill, in (0, 1]
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	public static void sortAndBulkLoad(BTreeFile bf, OpIterator tuples, double fillFactor)
+			throws DbException, IOException, TransactionAbortedException {
+		int[] keys = bf.keyFields();
+		boolean[] asc = new boolean[keys.length];
+		Arrays.fill(asc, true);
+		ExternalSort sort = new ExternalSort(bf.getTupleDesc(), new simpledb.TupleComparator(keys, asc));
+		try {
+			sort.addAll(tuples);
+			OpIterator sorted = sort.iterator();
+			sorted.open();
+			try {
+				bulkLoad(bf, sorted, fillFactor);
+			}
+			finally {
+				sorted.close();
+			}
+		}
+		finally {
+			sort.close();
+		}
+	}
+
+	/**
+	 * Builds the pages of a B+ tree from the bottom up for
+	 * {@link BTreeFileEncoder#bulkLoad}.
+	 * <p>
+	 * Tuples are buffered until there are enough to fill a leaf and still
+	 * leave a legal leaf behind, so that the last leaf never ends up less
+	 * than half full. Each new page gets the next page number, and is passed
+	 * with its separator key to the level above, which buffers its children
+	 * in the same way. A page is written once its parent is built and its
+	 * parent pointer is known; by then its right sibling has been built too.
+	 * <p>
+	 * Pages are filled by the bytes their tuples or entries take up, which
+	 * for prefix-compressed leaves and for keys in the variable-length format
+	 * of {@link BTreeInternalPage} depends on the keys; the separator keys
+	 * copied up from the leaves are shortened by {@link BTreeFile#separator}.
+	 */
+	private static class BulkLoader {
+		private final BTreeFile bf;
+		private final int tableid;
+		private final int keyField;
+		private final int numFields;
+		private final Type[] typeAr;
+		private final int npagebytes;
+		private final RandomAccessFile out;
+
+		// page sizes in bytes of tuples for leaves, and of entries for
+		// internal pages, with the size of the largest tuple and entry
+		private final int leafCapacity, leafTarget, leafMin, maxRecordSize;
+		private final int internalCapacity, internalTarget, internalMin, maxEntrySize;
+		// empty pages, to measure tuples and entries with
+		private final BTreeLeafPage leafSizer;
+		private final BTreeInternalPage sizer;
+
+		private int nextPageNo = 1;
+		private final ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		// the size of the buffered tuples
+		private int tupleBytes = 0;
+		private BTreeLeafPage lastLeaf = null;
+		private Field lastKey = null;
+		// children.get(h) are the pages of height h that have no parent yet,
+		// and keys.get(h) their separator keys
+		private final ArrayList<ArrayList<BTreePage>> children = new ArrayList<ArrayList<BTreePage>>();
+		private final ArrayList<ArrayList<Field>> keys = new ArrayList<ArrayList<Field>>();
+		// bytes.get(h) is the size of the entries for keys.get(h), but the first
+		private final ArrayList<Integer> bytes = new ArrayList<Integer>();
+
+		BulkLoader(BTreeFile bf, double fillFactor) throws IOException {
+			TupleDesc td = bf.getTupleDesc();
+			this.bf = bf;
+			this.tableid = bf.getId();
+			this.keyField = bf.keyField();
+			this.numFields = td.numFields();
+			this.typeAr = new Type[numFields];
+			for(int i = 0; i < numFields; i++) {
+				typeAr[i] = td.getFieldType(i);
+			}
+			this.npagebytes = BufferPool.getPageSize();
+
+			// a page is at least half full if its tuples or entries take up
+			// more than one less than half of the largest that fit
+			leafSizer = new BTreeLeafPage(new BTreePageId(tableid, 0, BTreePageId.LEAF),
+					BTreeLeafPage.createEmptyPageData(), keyField);
+			int ntuples = leafSizer.getMaxTuples();
+			maxRecordSize = leafSizer.getMaxRecordSize();
+			leafCapacity = ntuples * maxRecordSize;
+			leafMin = (Math.max(1, ntuples / 2) - 1) * maxRecordSize + 1;
+			leafTarget = Math.max(leafMin + maxRecordSize - 1, (int) (ntuples * fillFactor) * maxRecordSize);
+
+			sizer = new BTreeInternalPage(new BTreePageId(tableid, 0, BTreePageId.INTERNAL),
+					BTreeInternalPage.createEmptyPageData(), keyField);
+			int nentries = sizer.getMaxEntries();
+			maxEntrySize = sizer.getMaxEntrySize();
+			internalCapacity = nentries * maxEntrySize;
+			internalMin = (nentries / 2 - 1) * maxEntrySize + 1;
+			internalTarget = Math.max(internalMin + maxEntrySize - 1, (int) (nentries * fillFactor) * maxEntrySize);
+
+			this.out = new RandomAccessFile(bf.getFile(), "rw");
+		}
+
+		/**
+		 * Add the next tuple in key order
+		 */
+		void add(Tuple t) throws DbException, IOException {
+			Field prev = tuples.isEmpty() ? lastKey : bf.getKey(tuples.get(tuples.size() - 1));
+			if(prev != null && simpledb.TupleComparator.compareFields(bf.getKey(t), prev) < 0) {
+				throw new DbException("bulk load input is not sorted on the key field");
+			}
+			tuples.add(t);
+			tupleBytes += recordSize(tuples.size() - 1);
+			if(tupleBytes >= leafTarget + leafMin + maxRecordSize - 1) {
+				// fill a leaf with as many tuples as fit in the target
+				int n = 0;
+				for(int size = 0; size + recordSize(n) <= leafTarget; n++) {
+					size += recordSize(n);
+				}
+				addLeaf(tuples.subList(0, n));
+				// the first tuple left is now the first on its leaf
+				tupleBytes = 0;
+				for(int i = 0; i < tuples.size(); i++) {
+					tupleBytes += recordSize(i);
+				}
+			}
+		}
+
+		/**
+		 * @return the bytes the ith buffered tuple takes up on a leaf, after
+		 * the tuples before it
+		 */
+		private int recordSize(int i) {
+			return leafSizer.getRecordSize(i == 0 ? null : tuples.get(i - 1), tuples.get(i));
+		}
+
+		/**
+		 * Build the remaining pages of every level, then write the root and
+		 * the root pointer page
+		 */
+		void finish() throws DbException, IOException {
+			if(tuples.isEmpty() && lastLeaf == null) {
+				// an empty tree is an empty root leaf, as BTreeFile creates it
+				BTreePageId pid = new BTreePageId(tableid, nextPageNo++, BTreePageId.LEAF);
+				BTreeLeafPage root = new BTreeLeafPage(pid, BTreeLeafPage.createEmptyPageData(), keyField);
+				root.setParentId(BTreeRootPtrPage.getId(tableid));
+				write(root);
+				writeRootPtr(pid);
+				return;
+			}
+			// split what is left between one or two pages, each at least half full
+			if(tupleBytes <= leafCapacity) {
+				addLeaf(tuples);
+			}
+			else {
+				int n = 0;
+				for(int size = 0; size + recordSize(n) <= tupleBytes / 2; n++) {
+					size += recordSize(n);
+				}
+				addLeaf(tuples.subList(0, n));
+				addLeaf(tuples);
+			}
+			for(int h = 0; ; h++) {
+				ArrayList<BTreePage> pages = children.get(h);
+				if(pages.size() == 1 && children.size() == h + 1) {
+					// the only page at the highest level is the root
+					BTreePage root = pages.get(0);
+					root.setParentId(BTreeRootPtrPage.getId(tableid));
+					write(root);
+					writeRootPtr(root.getId());
+					return;
+				}
+				if(bytes.get(h) <= internalCapacity) {
+					addInternal(h, pages.size());
+				}
+				else {
+					// split the entries in half by their size
+					int half = bytes.get(h) / 2;
+					int n = 1;
+					for(int size = 0; size <= half; n++) {
+						size += sizer.getEntrySize(keys.get(h).get(n));
+					}
+					addInternal(h, n - 1);
+					addInternal(h, pages.size());
+				}
+			}
+		}
+
+		/**
+		 * Build a leaf from the given tuples and remove them from the buffer
+		 */
+		private void addLeaf(List<Tuple> ts) throws DbException, IOException {
+			BTreePageId pid = new BTreePageId(tableid, nextPageNo++, BTreePageId.LEAF);
+			BTreeLeafPage page;
+			if(bf.isPrefixCompressed()) {
+				// the records are encoded by the page, from copies of the tuples
+				page = new BTreeLeafPage(pid, BTreeLeafPage.createEmptyPageData(), keyField);
+				for(Tuple t : ts) {
+					Tuple copy = new Tuple(bf.getTupleDesc());
+					for(int i = 0; i < numFields; i++) {
+						copy.setField(i, t.getField(i));
+					}
+					page.insertTuple(copy);
+				}
+			}
+			else {
+				byte[] data = convertToLeafPage(new ArrayList<Tuple>(ts), npagebytes, numFields, typeAr, keyField);
+				page = new BTreeLeafPage(pid, data, keyField);
+			}
+			if(lastLeaf != null) {
+				page.setLeftSiblingId(lastLeaf.getId());
+				lastLeaf.setRightSiblingId(pid);
+			}
+			lastLeaf = page;
+			// the first key is copied up, or the shortest key between it and
+			// the last key of the previous leaf
+			Field key = bf.getKey(ts.get(0));
+			if(lastKey != null) {
+				key = BTreeFile.separator(lastKey, key);
+			}
+			lastKey = bf.getKey(ts.get(ts.size() - 1));
+			ts.clear();
+			addChild(0, key, page);
+		}
+
+		/**
+		 * Build a page of height h + 1 whose children are the first n pages
+		 * of height h without a parent, and write those children
+		 */
+		private void addInternal(int h, int n) throws DbException, IOException {
+			List<BTreePage> pages = children.get(h).subList(0, n);
+			List<Field> pageKeys = keys.get(h).subList(0, n);
+			BTreePageId pid = new BTreePageId(tableid, nextPageNo++, BTreePageId.INTERNAL);
+			BTreeInternalPage page = new BTreeInternalPage(pid, BTreeInternalPage.createEmptyPageData(), keyField);
+			for(int i = 1; i < n; i++) {
+				page.insertEntry(new BTreeEntry(pageKeys.get(i), pages.get(i - 1).getId(), pages.get(i).getId()));
+			}
+			// the entries of the page leave the level, and so does that of the
+			// next key, which is now the first
+			int size = 0;
+			for(int i = 1; i <= n && i < keys.get(h).size(); i++) {
+				size += sizer.getEntrySize(keys.get(h).get(i));
+			}
+			bytes.set(h, bytes.get(h) - size);
+			for(BTreePage child : pages) {
+				child.setParentId(pid);
+				write(child);
+			}
+			// the key before the first child is pushed up
+			Field key = pageKeys.get(0);
+			pages.clear();
+			pageKeys.clear();
+			addChild(h + 1, key, page);
+		}
+
+		private void addChild(int h, Field key, BTreePage page) throws DbException, IOException {
+			while(children.size() <= h) {
+				children.add(new ArrayList<BTreePage>());
+				keys.add(new ArrayList<Field>());
+				bytes.add(0);
+			}
+			if(!children.get(h).isEmpty()) {
+				bytes.set(h, bytes.get(h) + sizer.getEntrySize(key));
+			}
+			children.get(h).add(page);
+			keys.get(h).add(key);
+			if(bytes.get(h) >= internalTarget + internalMin + maxEntrySize) {
+				// fill a page with as many entries as fit in the target
+				int n = 1;
+				for(int size = 0; size + sizer.getEntrySize(keys.get(h).get(n)) <= internalTarget; n++) {
+					size += sizer.getEntrySize(keys.get(h).get(n));
+				}
+				addInternal(h, n);
+			}
+		}
+
+		private void write(BTreePage page) throws IOException {
+			out.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * npagebytes);
+			out.write(page.getPageData());
+		}
+
+		private void writeRootPtr(BTreePageId root) throws IOException {
+			out.seek(0);
+			out.write(convertToRootPtrPage(root.getPageNumber(), root.pgcateg(), 0));
+		}
+
+		void close() throws IOException {
+			out.close();
+		}
+	}
+
 	/**
 	 * Set all the right sibling pointers by following the left sibling pointers
 	 * 
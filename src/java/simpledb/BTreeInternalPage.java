@@ -18,6 +18,25 @@ public class BTreeInternalPage extends BTreePage {
 	private final Field keys[];
 	private final int children[];
 	private final int numSlots;
+	/**
+	 * The used key slots (from 1) in ascending order, which is also the order
+	 * of their keys: a sorted directory of the entries, kept up to date by
+	 * markSlotUsed, so that a key is found by binary search.
+	 */
+	private final int slots[];
+	private int numUsed;
+	/**
+	 * True if the entries are stored in the variable-length format, used for
+	 * keys with a string field or several fields: packed one after another,
+	 * each string cut to its length, rather than in fixed-size slots. A page
+	 * then has many more slots than the number of entries of the largest
+	 * possible keys it can hold, and how full it is depends on the bytes its
+	 * entries take up.
+	 */
+	private final boolean varKeys;
+	private final Type keyTypes[];
+	/** The bytes taken up by the keys and child pointers in slots 1.. */
+	private int usedBytes;
 	
 	private int childCategory; // either leaf or internal
 
@@ -37,7 +56,7 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		if (checkOccupancy && depth > 0) {
-			assert (getNumEntries() >= getMaxEntries() / 2);
+			assert (getMaxEntries() - getNumEmptySlots() >= getMaxEntries() / 2);
 		}
 	}
 	
@@ -57,6 +76,11 @@ public class BTreeInternalPage extends BTreePage {
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
 	 * <p>
+	 * Keys with a string field or several fields are stored in a variable-length
+	 * format instead: the header is followed by the child pointer and key of each
+	 * used slot in turn, each string stored as a length byte and its characters,
+	 * and each composite key preceded by its number of fields. The number of slots
+	 * is then computed as above for the shortest possible key.
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -67,7 +91,14 @@ public class BTreeInternalPage extends BTreePage {
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
 		super(id, key);
-		this.numSlots = getMaxEntries() + 1;
+		this.keyTypes = new Type[keyFields.length];
+		boolean strings = false;
+		for (int i=0; i<keyTypes.length; i++) {
+			keyTypes[i] = td.getFieldType(keyFields[i]);
+			strings |= keyTypes[i] == Type.STRING_TYPE;
+		}
+		this.varKeys = strings || keyFields.length > 1;
+		this.numSlots = getSlotsPerPage();
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent pointer
@@ -86,7 +117,19 @@ public class BTreeInternalPage extends BTreePage {
 		for (int i=0; i<header.length; i++)
 			header[i] = dis.readByte();
 
+		slots = new int[numSlots];
+		for (int i=1; i<numSlots; i++)
+			if (isSlotUsed(i))
+				slots[numUsed++] = i;
+
 		keys = new Field[numSlots];
+		children = new int[numSlots];
+		if (varKeys) {
+			readEntries(dis);
+			dis.close();
+			setBeforeImage();
+			return;
+		}
 		try{
 			// allocate and read the keys of this page
 			// start from 1 because the first key slot is not used
@@ -98,7 +141,6 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
-		children = new int[numSlots];
 		try{
 			// allocate and read the child pointers of this page
 			for (int i=0; i<children.length; i++)
@@ -106,15 +148,111 @@ public class BTreeInternalPage extends BTreePage {
 		}catch(NoSuchElementException e){
 			e.printStackTrace();
 		}
+		for (int i=0; i<numUsed; i++)
+			usedBytes += getEntrySize(keys[slots[i]]);
 		dis.close();
 
 		setBeforeImage();
 	}
 
+	/**
+	 * Read the entries of a page in the variable-length format.
+	 */
+	private void readEntries(DataInputStream dis) throws IOException {
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i)) {
+				children[i] = -1;
+				continue;
+			}
+			children[i] = dis.readInt();
+			if (i > 0) {
+				keys[i] = readKey(dis);
+				usedBytes += getEntrySize(keys[i]);
+			}
+		}
+	}
+
+	private Field readKey(DataInputStream dis) throws IOException {
+		if (keyTypes.length == 1)
+			return readCompactField(dis, keyTypes[0]);
+		Field[] fs = new Field[dis.readUnsignedByte()];
+		for (int i=0; i<fs.length; i++)
+			fs[i] = readCompactField(dis, keyTypes[i]);
+		return new CompositeField(fs);
+	}
+
+	private void writeKey(DataOutputStream dos, Field key) throws IOException {
+		if (keyTypes.length == 1) {
+			writeCompactField(dos, key);
+			return;
+		}
+		CompositeField c = (CompositeField) key;
+		dos.writeByte(c.numFields());
+		for (int i=0; i<c.numFields(); i++)
+			writeCompactField(dos, c.getField(i));
+	}
+
+	/**
+	 * @return the bytes taken up by an entry with the given key and its
+	 * right child pointer
+	 */
+	int getEntrySize(Field key) {
+		if (!varKeys)
+			return td.getFieldType(keyField).getLen() + INDEX_SIZE;
+		if (keyTypes.length == 1)
+			return getCompactFieldSize(key) + INDEX_SIZE;
+		CompositeField c = (CompositeField) key;
+		int size = 1 + INDEX_SIZE;
+		for (int i=0; i<c.numFields(); i++)
+			size += getCompactFieldSize(c.getField(i));
+		return size;
+	}
+
+	/**
+	 * @return the bytes taken up by an entry with the largest possible key
+	 */
+	int getMaxEntrySize() {
+		return varKeys ? getEntrySize(false) : td.getFieldType(keyField).getLen() + INDEX_SIZE;
+	}
+
+	/**
+	 * @return the size of the largest (or, if min is true, the smallest)
+	 * possible entry in the variable-length format
+	 */
+	private int getEntrySize(boolean min) {
+		int size = INDEX_SIZE + (keyTypes.length > 1 ? 1 : 0);
+		for (int i=0; i<(min ? 1 : keyTypes.length); i++)
+			size += keyTypes[i] == Type.STRING_TYPE ? (min ? 1 : 1 + Type.STRING_LEN) : keyTypes[i].getLen();
+		return size;
+	}
+
+	/**
+	 * @return the number of slots of this page, including the unused key slot 0
+	 */
+	private int getSlotsPerPage() {
+		if (!varKeys)
+			return getMaxEntries() + 1;
+		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1;
+		return (BufferPool.getPageSize()*8 - extraBits) / (getEntrySize(true) * 8 + 1) + 1;
+	}
+
+	/**
+	 * @return the bytes available to the entries in slots 1.., in the
+	 * variable-length format
+	 */
+	private int getEntryBytes() {
+		return BufferPool.getPageSize() - (2 * INDEX_SIZE + 1 + getHeaderSize());
+	}
+
 	/** 
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
+	 * In the variable-length format, this is the number of entries of the largest
+	 * possible keys that fit, less one, which leaves room for any key to replace
+	 * another on a full page; entries with shorter keys take up less of it.
  	 */
 	public int getMaxEntries() {        
+		if (varKeys)
+			return getEntryBytes() / getEntrySize(false) - 1;
 		int keySize = td.getFieldType(keyField).getLen();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
@@ -129,7 +267,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return the number of bytes in the header
 	 */
 	private int getHeaderSize() {        
-		int slotsPerPage = getMaxEntries() + 1;
+		int slotsPerPage = varKeys ? getSlotsPerPage() : getMaxEntries() + 1;
 		int hb = (slotsPerPage / 8);
 		if (hb * 8 < slotsPerPage) hb++;
 
@@ -262,6 +400,23 @@ public class BTreeInternalPage extends BTreePage {
 			}
 		}
 
+		if (varKeys) {
+			try {
+				for (int i=0; i<numSlots; i++) {
+					if (!isSlotUsed(i))
+						continue;
+					dos.writeInt(children[i]);
+					if (i > 0)
+						writeKey(dos, keys[i]);
+				}
+				dos.write(new byte[len - dos.size()]);
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return baos.toByteArray();
+		}
+
 		// create the keys
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -352,6 +507,7 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to delete entry on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to delete null entry.");
+		usedBytes -= getEntrySize(keys[rid.getTupleNumber()]);
 		if(deleteRightChild) {
 			markSlotUsed(rid.getTupleNumber(), false);
 		}
@@ -409,6 +565,10 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to update entry on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to update null entry.");
+		checkKey(e.getKey());
+		int size = usedBytes - getEntrySize(keys[rid.getTupleNumber()]) + getEntrySize(e.getKey());
+		if (size > getEntryBytes())
+			throw new DbException("no room on the page for the updated key " + e.getKey());
 		
 		for(int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
 			if(isSlotUsed(i)) {
@@ -431,6 +591,23 @@ public class BTreeInternalPage extends BTreePage {
 		}
 		children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
 		keys[rid.getTupleNumber()] = e.getKey();
+		usedBytes = size;
+	}
+
+	/**
+	 * @throws DbException if key is not a key of this index: a composite key of
+	 * at most as many fields as it is keyed on, if it is keyed on several, or
+	 * otherwise a single field
+	 */
+	private void checkKey(Field key) throws DbException {
+		if (keyTypes.length > 1) {
+			if (!(key instanceof CompositeField) || ((CompositeField) key).numFields() > keyTypes.length)
+				throw new DbException("key of a composite index must be a CompositeField of at most " +
+						keyTypes.length + " fields");
+		}
+		else if (key instanceof CompositeField) {
+			throw new DbException("composite key for an index on a single field");
+		}
 	}
 
 	/**
@@ -443,6 +620,9 @@ public class BTreeInternalPage extends BTreePage {
 	public void insertEntry(BTreeEntry e) throws DbException {
 		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
 			throw new DbException("key field type mismatch, in insertEntry");
+		checkKey(e.getKey());
+		if (usedBytes + getEntrySize(e.getKey()) > getEntryBytes())
+			throw new DbException("called insertEntry on page with no room for the entry.");
 
 		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
 			throw new DbException("table id mismatch in insertEntry");
@@ -463,6 +643,7 @@ public class BTreeInternalPage extends BTreePage {
 			keys[1] = e.getKey();
 			markSlotUsed(0, true);
 			markSlotUsed(1, true);
+			usedBytes += getEntrySize(e.getKey());
 			e.setRecordId(new RecordId(pid, 1));
 			return;
 		}
@@ -542,6 +723,7 @@ public class BTreeInternalPage extends BTreePage {
 		Debug.log(1, "BTreeLeafPage.insertEntry: new entry, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.getPageNumber(), goodSlot);
 		keys[goodSlot] = e.getKey();
 		children[goodSlot] = e.getRightChild().getPageNumber();
+		usedBytes += getEntrySize(e.getKey());
 		e.setRecordId(new RecordId(pid, goodSlot));
 	}
 
@@ -562,20 +744,58 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
+		return numUsed;
 	}
 	
 	/**
 	 * Returns the number of empty slots on this page.
+	 * In the variable-length format, this is the number of entries of the largest
+	 * possible keys that still fit within {@link #getMaxEntries()} of them, so a page
+	 * has an empty slot if any entry can be added to it, and is half full if its
+	 * entries take up half the room of getMaxEntries() largest ones.
 	 */
 	public int getNumEmptySlots() {
-		int cnt = 0;
-		// start from 1 because the first key slot is not used
+		// the first key slot is not used
 		// since a node with m keys has m+1 pointers
-		for(int i=1; i<numSlots; i++)
-			if(!isSlotUsed(i))
-				cnt++;
-		return cnt;
+		int empty = numSlots - 1 - numUsed;
+		if (!varKeys)
+			return empty;
+		int maxSize = getMaxEntrySize();
+		int used = (usedBytes + maxSize - 1) / maxSize;
+		return Math.max(0, Math.min(empty, getMaxEntries() - used));
+	}
+
+	/**
+	 * Returns true if the entries of this page take up more room than
+	 * {@link #getMaxEntries()} of the largest possible keys, which may happen when a
+	 * key is updated in the variable-length format. Such a page still fits on disk,
+	 * but must be split before any other key on it is updated.
+	 */
+	public boolean isOverfull() {
+		return varKeys && usedBytes > getMaxEntries() * getMaxEntrySize();
+	}
+
+	/**
+	 * Returns the number of entries to move to a new page when this page is split,
+	 * the key of the next one being pushed up to the parent: half of the entries, or,
+	 * in the variable-length format, those taking up half of the bytes.
+	 */
+	public int getSplitPoint() {
+		if (!varKeys || numUsed < 3)
+			return numUsed / 2;
+		int n = 0;
+		int bytes = getEntrySize(keys[slots[0]]);
+		while (bytes <= usedBytes / 2) {
+			bytes += getEntrySize(keys[slots[++n]]);
+		}
+		return Math.max(1, Math.min(n, numUsed - 2));
+	}
+
+	/**
+	 * Returns the index of the last slot of this page
+	 */
+	int getLastSlot() {
+		return numSlots - 1;
 	}
 
 	/**
@@ -595,10 +815,79 @@ public class BTreeInternalPage extends BTreePage {
 		int headerbyte = (i - headerbit) / 8;
 
 		Debug.log(1, "BTreeInternalPage.setSlot: setting slot %d to %b", i, value);
+		if (value == isSlotUsed(i))
+			return;
 		if(value)
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		if (i == 0)
+			return;
+
+		int pos = Arrays.binarySearch(slots, 0, numUsed, i);
+		if (value) {
+			pos = -pos - 1;
+			System.arraycopy(slots, pos, slots, pos + 1, numUsed - pos);
+			slots[pos] = i;
+			numUsed++;
+		}
+		else {
+			System.arraycopy(slots, pos + 1, slots, pos, numUsed - pos - 1);
+			numUsed--;
+		}
+	}
+
+	/**
+	 * Find the child page to descend into to reach the left-most leaf
+	 * possibly containing key f: the left child of the first entry with a
+	 * key greater than or equal to f, or the right child of the last entry if
+	 * there is none. The entries are binary searched, without creating
+	 * BTreeEntry objects.
+	 * @param f - the key to search for, or null for the left-most child
+	 * @return the id of the child page
+	 */
+	public BTreePageId findChild(Field f) {
+		int pos = 0;
+		int hi = f == null ? 0 : numUsed;
+		while (pos < hi) {
+			int mid = (pos + hi) >>> 1;
+			if (TupleComparator.compareFields(keys[slots[mid]], f) < 0)
+				pos = mid + 1;
+			else
+				hi = mid;
+		}
+		return childBefore(pos);
+	}
+
+	/**
+	 * Find the child page to descend into to reach the right-most leaf
+	 * possibly containing key f: the right child of the last entry with a
+	 * key less than or equal to f, or the left child of the first entry if
+	 * there is none.
+	 * @param f - the key to search for, or null for the right-most child
+	 * @return the id of the child page
+	 * @see #findChild(Field)
+	 */
+	public BTreePageId findReverseChild(Field f) {
+		int pos = 0;
+		int hi = numUsed;
+		if (f == null)
+			pos = hi;
+		while (pos < hi) {
+			int mid = (pos + hi) >>> 1;
+			if (TupleComparator.compareFields(keys[slots[mid]], f) <= 0)
+				pos = mid + 1;
+			else
+				hi = mid;
+		}
+		return childBefore(pos);
+	}
+
+	/**
+	 * @return the child between the entries at slots[pos - 1] and slots[pos]
+	 */
+	private BTreePageId childBefore(int pos) {
+		return new BTreePageId(pid.getTableId(), children[pos == 0 ? 0 : slots[pos - 1]], childCategory);
 	}
 
 	/**
@@ -741,7 +1030,7 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 
 	public BTreeInternalPageReverseIterator(BTreeInternalPage p) {
 		this.p = p;
-		this.curEntry = p.getMaxEntries();
+		this.curEntry = p.getLastSlot();
 		while(!p.isSlotUsed(curEntry) && curEntry > 0) {
 			--curEntry;
 		}
@@ -761,8 +1050,17 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key == null) {
+					continue;
+				}
+				// the left child is that of the previous used slot, which need
+				// not be the adjacent one
+				int prev = entry - 1;
+				while(!p.isSlotUsed(prev)) {
+					prev--;
+				}
+				BTreePageId childId = p.getChildId(prev);
+				if(childId != null) {
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
@@ -15,6 +15,25 @@ public class BTreeLeafPage extends BTreePage {
 	private final byte header[];
 	private final Tuple tuples[];
 	private final int numSlots;
+	/**
+	 * The used slots in ascending order, which is also the order of their
+	 * keys: a sorted directory of the records, kept up to date by
+	 * markSlotUsed, so that a key is found by binary search.
+	 */
+	private final int slots[];
+	private int numUsed;
+
+	/**
+	 * In the prefix-compressed format, the encoded key and the other fields of
+	 * the record in each used slot, and its key once decoded; the tuple itself
+	 * is only decoded when it is asked for. All null in the fixed-width format.
+	 */
+	private final boolean compressed;
+	private final byte keyBytes[][];
+	private final byte rest[][];
+	private final Field keys[];
+	private final int restFields[];
+	private int usedBytes;
 	
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
@@ -26,8 +45,9 @@ public class BTreeLeafPage extends BTreePage {
 		Iterator<Tuple> it = this.iterator();
 		while (it.hasNext()) {
 			Tuple t = it.next();
-			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, t.getField(fieldid)));
-			prev = t.getField(fieldid);
+			Field f = fieldid == keyField ? getKey(t) : t.getField(fieldid);
+			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, f));
+			prev = f;
 			assert(t.getRecordId().getPageId().equals(this.getId()));
 		}
 
@@ -36,7 +56,7 @@ public class BTreeLeafPage extends BTreePage {
 		}
 
 		if (checkoccupancy && depth > 0) {
-			assert(getNumTuples() >= getMaxTuples()/2);
+			assert(getMaxTuples() - getNumEmptySlots() >= getMaxTuples()/2);
 		}
 	}
 
@@ -53,9 +73,17 @@ public class BTreeLeafPage extends BTreePage {
 	 * <p>
 	 *      ceiling(no. tuple slots / 8)
 	 * <p>
+	 * If the BTreeFile is prefix-compressed, the pointers are followed by the
+	 * number of records and then the records in key order instead. Each key is
+	 * encoded as its fields in the compact format of {@link BTreePage}, but for
+	 * a string last field, which is just its characters. A record is the number
+	 * of bytes its key shares with the key before it, the number of bytes of
+	 * the key that follow, those bytes, and then the other fields of the tuple
+	 * in the compact format.
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
+	 * @see BTreeFile#isPrefixCompressed()
 	 * 
 	 * @param id - the id of this page
 	 * @param data - the raw data of this page
@@ -63,7 +91,20 @@ public class BTreeLeafPage extends BTreePage {
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
 		super(id, key);
-		this.numSlots = getMaxTuples();
+		DbFile file = Database.getCatalog().getDatabaseFile(id.getTableId());
+		this.compressed = file instanceof BTreeFile && ((BTreeFile) file).isPrefixCompressed();
+		ArrayList<Integer> others = new ArrayList<Integer>();
+		for (int i=0; i<td.numFields(); i++) {
+			boolean isKey = false;
+			for (int k : keyFields)
+				isKey |= k == i;
+			if (!isKey)
+				others.add(i);
+		}
+		this.restFields = new int[others.size()];
+		for (int i=0; i<restFields.length; i++)
+			restFields[i] = others.get(i);
+		this.numSlots = compressed ? getRecordBytes() / getRecordSize(true) : getMaxTuples();
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent and sibling pointers
@@ -88,12 +129,27 @@ public class BTreeLeafPage extends BTreePage {
 			e.printStackTrace();
 		}
 
-		// allocate and read the header slots of this page
 		header = new byte[getHeaderSize()];
+		slots = new int[numSlots];
+		tuples = new Tuple[numSlots];
+		keyBytes = compressed ? new byte[numSlots][] : null;
+		rest = compressed ? new byte[numSlots][] : null;
+		keys = compressed ? new Field[numSlots] : null;
+		if (compressed) {
+			readRecords(data, dis.readInt());
+			dis.close();
+			setBeforeImage();
+			return;
+		}
+
+		// read the header slots of this page
 		for (int i=0; i<header.length; i++)
 			header[i] = dis.readByte();
 
-		tuples = new Tuple[numSlots];
+		for (int i=0; i<numSlots; i++)
+			if (isSlotUsed(i))
+				slots[numUsed++] = i;
+
 		try{
 			// allocate and read the actual records of this page
 			for (int i=0; i<tuples.length; i++)
@@ -106,10 +162,251 @@ public class BTreeLeafPage extends BTreePage {
 		setBeforeImage();
 	}
 
+	/**
+	 * Read the records of a page in the prefix-compressed format into slots
+	 * 0 to n - 1; their tuples are decoded later, as they are needed.
+	 */
+	private void readRecords(byte[] data, int n) {
+		int start = 4 * INDEX_SIZE;
+		int p = start;
+		byte prev[] = null;
+		for (int i=0; i<n; i++) {
+			int shared = readLength(data, p);
+			int suffix = readLength(data, p + getLengthSize());
+			p += 2 * getLengthSize();
+			byte key[] = new byte[shared + suffix];
+			if (shared > 0)
+				System.arraycopy(prev, 0, key, 0, shared);
+			System.arraycopy(data, p, key, shared, suffix);
+			p += suffix;
+			int end = p;
+			for (int j : restFields) {
+				Type type = td.getFieldType(j);
+				end += type == Type.STRING_TYPE ? 1 + (data[end] & 0xFF) : type.getLen();
+			}
+			keyBytes[i] = key;
+			rest[i] = Arrays.copyOfRange(data, p, end);
+			markSlotUsed(i, true);
+			prev = key;
+			p = end;
+		}
+		usedBytes = p - start;
+	}
+
+	/**
+	 * Write the records of this page in the prefix-compressed format
+	 */
+	private void writeRecords(DataOutputStream dos) throws IOException {
+		dos.writeInt(numUsed);
+		byte prev[] = null;
+		for (int i=0; i<numUsed; i++) {
+			byte key[] = keyBytes[slots[i]];
+			int shared = sharedPrefix(prev, key);
+			writeLength(dos, shared);
+			writeLength(dos, key.length - shared);
+			dos.write(key, shared, key.length - shared);
+			dos.write(rest[slots[i]]);
+			prev = key;
+		}
+		dos.write(new byte[getRecordBytes() - usedBytes]);
+	}
+
+	private int readLength(byte[] data, int p) {
+		if (getLengthSize() == 1)
+			return data[p] & 0xFF;
+		return ((data[p] & 0xFF) << 8) | (data[p + 1] & 0xFF);
+	}
+
+	private void writeLength(DataOutputStream dos, int length) throws IOException {
+		if (getLengthSize() == 1)
+			dos.writeByte(length);
+		else
+			dos.writeShort(length);
+	}
+
+	/**
+	 * @return the number of bytes a length takes up in a record, enough for
+	 * the longest key
+	 */
+	private int getLengthSize() {
+		return getMaxKeySize() < 256 ? 1 : 2;
+	}
+
+	/**
+	 * @return the number of bytes of the longest possible encoded key
+	 */
+	private int getMaxKeySize() {
+		int size = 0;
+		for (int i=0; i<keyFields.length; i++) {
+			Type type = td.getFieldType(keyFields[i]);
+			if (type == Type.STRING_TYPE)
+				size += Type.STRING_LEN + (i < keyFields.length - 1 ? 1 : 0);
+			else
+				size += type.getLen();
+		}
+		return size;
+	}
+
+	/**
+	 * @return the bytes taken up by the largest (or, if min is true, the
+	 * smallest) possible record in the prefix-compressed format; the smallest
+	 * shares all of its key with the one before it
+	 */
+	private int getRecordSize(boolean min) {
+		int size = 2 * getLengthSize() + (min ? 0 : getMaxKeySize());
+		for (int j : restFields) {
+			Type type = td.getFieldType(j);
+			if (type == Type.STRING_TYPE)
+				size += 1 + (min ? 0 : Type.STRING_LEN);
+			else
+				size += type.getLen();
+		}
+		return size;
+	}
+
+	/**
+	 * @return the bytes taken up by a record in the prefix-compressed format,
+	 * given the encoded key of the record before it, or null if it is first
+	 */
+	private int getRecordSize(byte[] prev, byte[] key, byte[] other) {
+		return 2 * getLengthSize() + key.length - sharedPrefix(prev, key) + other.length;
+	}
+
+	/**
+	 * @return the bytes available to the records in the prefix-compressed
+	 * format, after the pointers and the number of records
+	 */
+	private int getRecordBytes() {
+		return BufferPool.getPageSize() - 4 * INDEX_SIZE;
+	}
+
+	/**
+	 * @return the number of leading bytes two encoded keys have in common
+	 */
+	private static int sharedPrefix(byte[] a, byte[] b) {
+		if (a == null)
+			return 0;
+		int n = Math.min(a.length, b.length);
+		int i = 0;
+		while (i < n && a[i] == b[i])
+			i++;
+		return i;
+	}
+
+	private byte[] encodeKey(Field key) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			for (int i=0; i<keyFields.length; i++) {
+				Field f = keyFields.length == 1 ? key : ((CompositeField) key).getField(i);
+				if (i == keyFields.length - 1 && f instanceof StringField)
+					dos.writeBytes(((StringField) f).getValue());
+				else
+					writeCompactField(dos, f);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	private Field decodeKey(byte[] key) throws NoSuchElementException {
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(key));
+		Field fs[] = new Field[keyFields.length];
+		try {
+			for (int i=0; i<fs.length; i++) {
+				Type type = td.getFieldType(keyFields[i]);
+				if (i == fs.length - 1 && type == Type.STRING_TYPE) {
+					byte bs[] = new byte[dis.available()];
+					dis.readFully(bs);
+					fs[i] = new StringField(new String(bs), Type.STRING_LEN);
+				}
+				else {
+					fs[i] = readCompactField(dis, type);
+				}
+			}
+		} catch (IOException e) {
+			throw new NoSuchElementException("parsing error!");
+		}
+		return fs.length == 1 ? fs[0] : new CompositeField(fs);
+	}
+
+	private byte[] encodeRest(Tuple t) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			for (int j : restFields)
+				writeCompactField(dos, t.getField(j));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Decode the tuple in slot i of a page in the prefix-compressed format
+	 */
+	private Tuple decodeTuple(int i) throws NoSuchElementException {
+		Tuple t = new Tuple(td);
+		Field key = keyAt(i);
+		if (keyFields.length == 1) {
+			t.setField(keyField, key);
+		}
+		else {
+			for (int k=0; k<keyFields.length; k++)
+				t.setField(keyFields[k], ((CompositeField) key).getField(k));
+		}
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(rest[i]));
+		try {
+			for (int j : restFields)
+				t.setField(j, readCompactField(dis, td.getFieldType(j)));
+		} catch (IOException e) {
+			throw new NoSuchElementException("parsing error!");
+		}
+		t.setRecordId(new RecordId(pid, i));
+		return t;
+	}
+
+	/**
+	 * @return the key of the record in slot i
+	 */
+	private Field keyAt(int i) {
+		if (!compressed)
+			return getKey(tuples[i]);
+		if (keys[i] == null)
+			keys[i] = decodeKey(keyBytes[i]);
+		return keys[i];
+	}
+
+	/**
+	 * Returns the bytes a tuple takes up on this page, if it follows the tuple
+	 * prev, or comes first if prev is null: the size of a tuple in the
+	 * fixed-width format, whatever the tuples.
+	 */
+	int getRecordSize(Tuple prev, Tuple t) {
+		if (!compressed)
+			return td.getSize();
+		return getRecordSize(prev == null ? null : encodeKey(getKey(prev)), encodeKey(getKey(t)), encodeRest(t));
+	}
+
+	/**
+	 * Returns the bytes taken up by the largest possible tuple
+	 * @see #getRecordSize(Tuple, Tuple)
+	 */
+	int getMaxRecordSize() {
+		return compressed ? getRecordSize(false) : td.getSize();
+	}
+
 	/** 
-	 * Retrieve the maximum number of tuples this page can hold.
+	 * Retrieve the maximum number of tuples this page can hold. In the
+	 * prefix-compressed format, this is the number of the largest possible
+	 * records that fit, less one, which leaves room for one record to be
+	 * inserted however it changes the record after it; smaller records take
+	 * up less of it.
 	 */
 	public int getMaxTuples() {        
+		if (compressed)
+			return getRecordBytes() / getRecordSize(false) - 1;
 		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
 		// extraBits are: left sibling pointer, right sibling pointer, parent pointer
 		int extraBits = 3 * INDEX_SIZE * 8; 
@@ -121,7 +418,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * Computes the number of bytes in the header of a page in a BTreeFile with each tuple occupying tupleSize bytes
 	 */
 	private int getHeaderSize() {        
-		int tuplesPerPage = getMaxTuples();
+		int tuplesPerPage = numSlots;
 		int hb = (tuplesPerPage / 8);
 		if (hb * 8 < tuplesPerPage) hb++;
 
@@ -223,6 +520,16 @@ public class BTreeLeafPage extends BTreePage {
 			e.printStackTrace();
 		}
 
+		if (compressed) {
+			try {
+				writeRecords(dos);
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return baos.toByteArray();
+		}
+
 		// create the header of the page
 		for (int i=0; i<header.length; i++) {
 			try {
@@ -294,6 +601,22 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("tried to delete tuple on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to delete null tuple.");
+		if (compressed) {
+			// the next record is now compressed against the one before this
+			int slot = rid.getTupleNumber();
+			int pos = Arrays.binarySearch(slots, 0, numUsed, slot);
+			byte prev[] = pos == 0 ? null : keyBytes[slots[pos - 1]];
+			usedBytes -= getRecordSize(prev, keyBytes[slot], rest[slot]);
+			if (pos + 1 < numUsed) {
+				int next = slots[pos + 1];
+				usedBytes += getRecordSize(prev, keyBytes[next], rest[next])
+						- getRecordSize(keyBytes[slot], keyBytes[next], rest[next]);
+			}
+			tuples[slot] = null;
+			keyBytes[slot] = null;
+			rest[slot] = null;
+			keys[slot] = null;
+		}
 		markSlotUsed(rid.getTupleNumber(), false);
 		t.setRecordId(null);
 	}
@@ -309,53 +632,158 @@ public class BTreeLeafPage extends BTreePage {
 	public void insertTuple(Tuple t) throws DbException {
 		if (!t.getTupleDesc().equals(td))
 			throw new DbException("type mismatch, in addTuple");
-
-		// find the first empty slot 
-		int emptySlot = -1;
-		for (int i=0; i<numSlots; i++) {
-			if (!isSlotUsed(i)) {
-				emptySlot = i;
-				break;
-			}
-		}
-
-		if (emptySlot == -1)
+		if (numUsed == numSlots)
 			throw new DbException("called addTuple on page with no empty slots.");
 
-		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
+		// the new record goes after the last key less than or equal to its
+		// key, i.e. between the records at slots[pos - 1] and slots[pos]
+		int pos = upperBound(getKey(t));
+		byte key[] = null, other[] = null;
+		if (compressed) {
+			// the record after the new one is now compressed against it
+			key = encodeKey(getKey(t));
+			other = encodeRest(t);
+			byte prev[] = pos == 0 ? null : keyBytes[slots[pos - 1]];
+			int size = getRecordSize(prev, key, other);
+			if (pos < numUsed) {
+				int next = slots[pos];
+				size += getRecordSize(key, keyBytes[next], rest[next])
+						- getRecordSize(prev, keyBytes[next], rest[next]);
 			}
+			if (usedBytes + size > getRecordBytes())
+				throw new DbException("called addTuple on page with no room for the tuple.");
+			usedBytes += size;
+		}
+		int low = pos == 0 ? 0 : slots[pos - 1] + 1;
+		int high = pos == numUsed ? numSlots - 1 : slots[pos] - 1;
+
+		// the records between the new one and the nearest empty slot on
+		// either side are shifted one slot towards it
+		int right = -1;
+		if (pos == numUsed || slots[pos] > low) {
+			if (low < numSlots)
+				right = low;
+		}
+		else {
+			int end = runEnd(pos);
+			if (slots[end] + 1 < numSlots)
+				right = slots[end] + 1;
+		}
+		int left = -1;
+		if (pos == 0 || slots[pos - 1] < high) {
+			if (high >= 0)
+				left = high;
+		}
+		else {
+			int start = runStart(pos - 1);
+			if (slots[start] > 0)
+				left = slots[start] - 1;
 		}
 
-		// shift records back or forward to fill empty slot and make room for new record
-		// while keeping records in sorted order
-		int goodSlot = -1;
-		if(emptySlot < lessOrEqKey) {
-			for(int i = emptySlot; i < lessOrEqKey; i++) {
-				moveRecord(i+1, i);
-			}
-			goodSlot = lessOrEqKey;
+		int goodSlot;
+		if (right != -1 && (left == -1 || right - low <= high - left)) {
+			goodSlot = low;
+			shiftRecords(low, low + 1, right - low);
+			markSlotUsed(right, true);
 		}
 		else {
-			for(int i = emptySlot; i > lessOrEqKey + 1; i--) {
-				moveRecord(i-1, i);
-			}
-			goodSlot = lessOrEqKey + 1;
+			goodSlot = high;
+			shiftRecords(left + 1, left, high - left);
+			markSlotUsed(left, true);
 		}
 
 		// insert new record into the correct spot in sorted order
-		markSlotUsed(goodSlot, true);
 		Debug.log(1, "BTreeLeafPage.insertTuple: new tuple, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.getPageNumber(), goodSlot);
 		RecordId rid = new RecordId(pid, goodSlot);
 		t.setRecordId(rid);
 		tuples[goodSlot] = t;
+		if (compressed) {
+			keyBytes[goodSlot] = key;
+			rest[goodSlot] = other;
+			keys[goodSlot] = getKey(t);
+		}
+	}
+
+	/**
+	 * Move the records in len adjacent slots starting at from to the slots
+	 * starting at to, and update their RecordIds
+	 */
+	private void shiftRecords(int from, int to, int len) {
+		System.arraycopy(tuples, from, tuples, to, len);
+		if (compressed) {
+			System.arraycopy(keyBytes, from, keyBytes, to, len);
+			System.arraycopy(rest, from, rest, to, len);
+			System.arraycopy(keys, from, keys, to, len);
+		}
+		for (int i = to; i < to + len; i++)
+			if (tuples[i] != null)
+				tuples[i].setRecordId(new RecordId(pid, i));
+	}
+
+	/**
+	 * @return the number of records with a key less than or equal to f,
+	 * which is the index in the slot directory of the first greater one
+	 */
+	private int upperBound(Field f) {
+		int lo = 0, hi = numUsed;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (TupleComparator.compareFields(keyAt(slots[mid]), f) <= 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * @return the number of records with a key less than f, which is the
+	 * index in the slot directory of the first one greater than or equal
+	 */
+	private int lowerBound(Field f) {
+		int lo = 0, hi = numUsed;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (TupleComparator.compareFields(keyAt(slots[mid]), f) < 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * @return the index in the slot directory of the last slot of the run of
+	 * adjacent used slots containing slots[i]. slots[j] - j never decreases,
+	 * and stays the same exactly within a run.
+	 */
+	private int runEnd(int i) {
+		int lo = i, hi = numUsed - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (slots[mid] - mid == slots[i] - i)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		return lo;
+	}
+
+	/**
+	 * @return the index in the slot directory of the first slot of the run
+	 * of adjacent used slots containing slots[i]
+	 * @see #runEnd(int)
+	 */
+	private int runStart(int i) {
+		int lo = 0, hi = i;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (slots[mid] - mid == slots[i] - i)
+				hi = mid;
+			else
+				lo = mid + 1;
+		}
+		return lo;
 	}
 
 	/**
@@ -438,18 +866,49 @@ public class BTreeLeafPage extends BTreePage {
 	 * Returns the number of tuples currently stored on this page
 	 */
 	public int getNumTuples() {
-		return numSlots - getNumEmptySlots();
+		return numUsed;
 	}
 
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. In the prefix-compressed
+	 * format, this is the number of the largest possible records that still
+	 * fit, out of {@link #getMaxTuples()}.
 	 */
 	public int getNumEmptySlots() {
-		int cnt = 0;
-		for(int i=0; i<numSlots; i++)
-			if(!isSlotUsed(i))
-				cnt++;
-		return cnt;
+		if (compressed) {
+			int size = getRecordSize(false);
+			return Math.max(0, Math.min(numSlots - numUsed, getMaxTuples() - (usedBytes + size - 1) / size));
+		}
+		return numSlots - numUsed;
+	}
+
+	/**
+	 * Returns the number of tuples to move to a new page when this page is
+	 * split: half of them, or, in the prefix-compressed format, those taking
+	 * up half of the bytes.
+	 */
+	public int getSplitPoint() {
+		if (!compressed || numUsed < 2)
+			return numUsed / 2;
+		int n = 0;
+		int bytes = 0;
+		byte prev[] = null;
+		while (n < numUsed - 1) {
+			int slot = slots[n];
+			bytes += getRecordSize(prev, keyBytes[slot], rest[slot]);
+			if (bytes > usedBytes / 2)
+				break;
+			prev = keyBytes[slot];
+			n++;
+		}
+		return Math.max(1, n);
+	}
+
+	/**
+	 * Returns the index of the last slot of this page
+	 */
+	int getLastSlot() {
+		return numSlots - 1;
 	}
 
 	/**
@@ -469,10 +928,24 @@ public class BTreeLeafPage extends BTreePage {
 		int headerbyte = (i - headerbit) / 8;
 
 		Debug.log(1, "BTreeLeafPage.setSlot: setting slot %d to %b", i, value);
+		if (value == isSlotUsed(i))
+			return;
 		if(value)
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+
+		int pos = Arrays.binarySearch(slots, 0, numUsed, i);
+		if (value) {
+			pos = -pos - 1;
+			System.arraycopy(slots, pos, slots, pos + 1, numUsed - pos);
+			slots[pos] = i;
+			numUsed++;
+		}
+		else {
+			System.arraycopy(slots, pos + 1, slots, pos, numUsed - pos - 1);
+			numUsed--;
+		}
 	}
 
 	/**
@@ -483,6 +956,77 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageIterator(this);
 	}
 
+	/**
+	 * @return an iterator over the tuples on this page, starting at the first
+	 * one with a key greater than or equal to f, found by binary search
+	 * @see #iterator()
+	 */
+	public Iterator<Tuple> iterator(Field f) {
+		int pos = lowerBound(f);
+		return new BTreeLeafPageIterator(this, pos == numUsed ? numSlots : slots[pos]);
+	}
+
+	/**
+	 * @return the number of tuples on this page with a key less than f, or
+	 * less than or equal to f if inclusive, found by binary search. The
+	 * tuples with keys in a range are those numbered from the count for the
+	 * lower bound up to the count for the upper bound, in key order.
+	 * @see #iterator(int, int)
+	 */
+	int countKeys(Field f, boolean inclusive) {
+		return inclusive ? upperBound(f) : lowerBound(f);
+	}
+
+	/**
+	 * @return an iterator over the tuples on this page numbered from
+	 * (inclusive) to to (exclusive) in key order
+	 * @see #countKeys(Field, boolean)
+	 */
+	Iterator<Tuple> iterator(final int from, final int to) {
+		return new Iterator<Tuple>() {
+			int i = from;
+
+			public boolean hasNext() {
+				return i < to;
+			}
+
+			public Tuple next() {
+				if (i >= to)
+					throw new NoSuchElementException();
+				return getTuple(slots[i++]);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * @return an iterator over the tuples on this page numbered from
+	 * (inclusive) to to (exclusive) in key order, from the last one down
+	 * @see #countKeys(Field, boolean)
+	 */
+	Iterator<Tuple> reverseIterator(final int from, final int to) {
+		return new Iterator<Tuple>() {
+			int i = to;
+
+			public boolean hasNext() {
+				return i > from;
+			}
+
+			public Tuple next() {
+				if (i <= from)
+					throw new NoSuchElementException();
+				return getTuple(slots[--i]);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
 	/**
 	 * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -509,6 +1053,8 @@ public class BTreeLeafPage extends BTreePage {
 			}
 
 			Debug.log(1, "BTreeLeafPage.getTuple: returning tuple %d", i);
+			if (tuples[i] == null && compressed)
+				tuples[i] = decodeTuple(i);
 			return tuples[i];
 
 		} catch (ArrayIndexOutOfBoundsException e) {
@@ -529,6 +1075,11 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 		this.p = p;
 	}
 
+	public BTreeLeafPageIterator(BTreeLeafPage p, int start) {
+		this.p = p;
+		this.curTuple = start;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
@@ -575,7 +1126,7 @@ class BTreeLeafPageReverseIterator implements Iterator<Tuple> {
 
 	public BTreeLeafPageReverseIterator(BTreeLeafPage p) {
 		this.p = p;
-		this.curTuple = p.getMaxTuples() - 1;
+		this.curTuple = p.getLastSlot();
 	}
 
 	public boolean hasNext() {
@@ -19,6 +19,11 @@ public abstract class BTreePage implements Page {
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
 	protected final int keyField;
+	/**
+	 * The fields the index is keyed on, most significant first; keyField is
+	 * the first of them
+	 */
+	protected final int keyFields[];
 
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
@@ -52,6 +57,65 @@ public abstract class BTreePage implements Page {
 		this.pid = id;
 		this.keyField = key;
 		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		DbFile f = Database.getCatalog().getDatabaseFile(id.getTableId());
+		this.keyFields = f instanceof BTreeFile ? ((BTreeFile) f).keyFields() : new int[] {key};
+	}
+
+	/**
+	 * @return the key of tuple t: its key field, or a {@link CompositeField}
+	 * of its key fields if the index is keyed on several
+	 */
+	protected Field getKey(Tuple t) {
+		if(keyFields.length == 1) {
+			return t.getField(keyField);
+		}
+		Field[] fs = new Field[keyFields.length];
+		for(int i = 0; i < fs.length; i++) {
+			fs[i] = t.getField(keyFields[i]);
+		}
+		return new CompositeField(fs);
+	}
+
+	/**
+	 * Read a field stored in the compact format of the variable-length pages:
+	 * a string as a length byte and its characters, and a field of any other
+	 * type as it serializes itself.
+	 */
+	protected static Field readCompactField(DataInputStream dis, Type type) throws IOException {
+		if (type == Type.STRING_TYPE) {
+			byte bs[] = new byte[dis.readUnsignedByte()];
+			dis.readFully(bs);
+			return new StringField(new String(bs), Type.STRING_LEN);
+		}
+		try {
+			return type.parse(dis);
+		} catch (java.text.ParseException e) {
+			throw new IOException("parsing error!");
+		}
+	}
+
+	/**
+	 * Write a field in the compact format
+	 * @see #readCompactField(DataInputStream, Type)
+	 */
+	protected static void writeCompactField(DataOutputStream dos, Field f) throws IOException {
+		if (f instanceof StringField) {
+			String s = ((StringField) f).getValue();
+			dos.writeByte(s.length());
+			dos.writeBytes(s);
+		}
+		else {
+			f.serialize(dos);
+		}
+	}
+
+	/**
+	 * @return the bytes taken up by a field in the compact format
+	 */
+	protected static int getCompactFieldSize(Field f) {
+		if (f instanceof StringField)
+			return 1 + ((StringField) f).getValue().length();
+		return f.getType().getLen();
 	}
 
 	/**
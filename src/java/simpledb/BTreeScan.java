@@ -4,7 +4,8 @@ import java.util.*;
 
 /**
  * BTreeScan is an operator which reads tuples in sorted order 
- * according to a predicate
+ * according to a predicate. Like {@link SeqScan}, it may be restricted to a
+ * subset of the table's columns.
  */
 public class BTreeScan implements OpIterator {
 
@@ -17,6 +18,9 @@ public class BTreeScan implements OpIterator {
 	private transient DbFileIterator it;
 	private String tablename;
 	private String alias;
+	private int tableid;
+	/** The table columns returned, or null for all of them. */
+	private int[] columns;
 
 	/**
 	 * Creates a B+ tree scan over the specified table as a part of the
@@ -38,11 +42,58 @@ public class BTreeScan implements OpIterator {
 	 *            in sorted order
 	 */
 	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred) {
+		this(tid, tableid, tableAlias, ipred, null);
+	}
+
+	/**
+	 * Creates a B+ tree scan that returns only some columns of the specified
+	 * table.
+	 * 
+	 * @param columns
+	 *            the indexes of the table columns to return, in the order
+	 *            they should appear in the returned tuples; null for all
+	 *            columns
+	 * @see #BTreeScan(TransactionId, int, String, IndexPredicate)
+	 */
+	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred,
+			int[] columns) {
 		this.tid = tid;
 		this.ipred = ipred;
+		this.columns = columns == null ? null : columns.clone();
 		reset(tableid,tableAlias);
 	}
 
+	/**
+	 * @return the id of the table this operator scans
+	 * */
+	public int getTableId() {
+		return tableid;
+	}
+
+	/**
+	 * @return the predicate on the key field that this scan returns the
+	 *         matching tuples of, or null if it returns all tuples
+	 */
+	public IndexPredicate getIndexPredicate() {
+		return ipred;
+	}
+
+	/**
+	 * @return the indexes of the table columns this scan returns, or null if
+	 *         it returns all of them
+	 */
+	public int[] getColumns() {
+		return columns == null ? null : columns.clone();
+	}
+
+	/**
+	 * @return the index in the table of the given field of this scan's
+	 *         tuples
+	 */
+	public int getTableField(int field) {
+		return columns == null ? field : columns[field];
+	}
+
 	/**
 	 * @return
 	 *       return the table name of the table the operator scans. This should
@@ -75,6 +126,7 @@ public class BTreeScan implements OpIterator {
 	public void reset(int tableid, String tableAlias) {
 		this.isOpen=false;
 		this.alias = tableAlias;
+		this.tableid = tableid;
 		this.tablename = Database.getCatalog().getTableName(tableid);
 		if(ipred == null) {
 			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
@@ -83,11 +135,12 @@ public class BTreeScan implements OpIterator {
 			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
 		}
 		myTd = Database.getCatalog().getTupleDesc(tableid);
-		String[] newNames = new String[myTd.numFields()];
-		Type[] newTypes = new Type[myTd.numFields()];
-		for (int i = 0; i < myTd.numFields(); i++) {
-			String name = myTd.getFieldName(i);
-			Type t = myTd.getFieldType(i);
+		int n = columns == null ? myTd.numFields() : columns.length;
+		String[] newNames = new String[n];
+		Type[] newTypes = new Type[n];
+		for (int i = 0; i < n; i++) {
+			String name = myTd.getFieldName(getTableField(i));
+			Type t = myTd.getFieldType(getTableField(i));
 
 			newNames[i] = tableAlias + "." + name;
 			newTypes[i] = t;
@@ -131,7 +184,14 @@ public class BTreeScan implements OpIterator {
 		if (!isOpen)
 			throw new IllegalStateException("iterator is closed");
 
-		return it.next();
+		Tuple t = it.next();
+		if (columns == null)
+			return t;
+		Tuple p = new Tuple(myTd);
+		for (int i = 0; i < columns.length; i++)
+			p.setField(i, t.getField(columns[i]));
+		p.setRecordId(t.getRecordId());
+		return p;
 	}
 
 	public void close() {
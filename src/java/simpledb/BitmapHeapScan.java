@@ -0,0 +1,222 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * BitmapHeapScan reads the tuples of a {@link HeapFile} that pass a
+ * condition, by combining the table's {@link BitmapIndex}es to find the
+ * tuples that may pass it, and reading only the pages those tuples are on,
+ * each once and in the order of the file. Every tuple read is checked
+ * against the whole condition, so terms the indexes cannot answer, and
+ * tuples changed by running transactions, are still filtered correctly.
+ * Like {@link SeqScan}, it may be restricted to a subset of the table's
+ * columns.
+ */
+public class BitmapHeapScan implements OpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TransactionId tid;
+    private final int tableid;
+    private final String alias;
+    private final Expression condition;
+    /** The table columns returned, or null for all of them. */
+    private final int[] columns;
+    private final TupleDesc td;
+    /** The table's fields, named alias.field like the condition's columns. */
+    private final TupleDesc aliasTd;
+    private transient Expression.Test test;
+
+    private transient RoaringBitmap candidates;
+    private transient PrimitiveIterator.OfInt positions;
+    /** The position last read, when every slot is a candidate. */
+    private transient int pos;
+    private transient HeapPage page;
+    private transient Tuple next;
+    private boolean isOpen = false;
+
+    /**
+     * Creates a scan of the tuples of a heap file that pass a condition.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan, which must be a {@link HeapFile}
+     * @param tableAlias
+     *            the alias of the table; the returned tupleDesc has fields
+     *            named tableAlias.fieldName, and so do the columns of the
+     *            condition
+     * @param condition
+     *            the condition the returned tuples pass
+     * @param columns
+     *            the indexes of the table columns to return, in the order
+     *            they should appear in the returned tuples; null for all
+     *            columns
+     */
+    public BitmapHeapScan(TransactionId tid, int tableid, String tableAlias, Expression condition,
+            int[] columns) {
+        if (!(Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile))
+            throw new IllegalArgumentException("table is not a heap file");
+        this.tid = tid;
+        this.tableid = tableid;
+        this.alias = tableAlias;
+        this.condition = condition;
+        this.columns = columns == null ? null : columns.clone();
+        TupleDesc tableTd = Database.getCatalog().getTupleDesc(tableid);
+        Type[] tableTypes = new Type[tableTd.numFields()];
+        String[] tableNames = new String[tableTd.numFields()];
+        for (int i = 0; i < tableTypes.length; i++) {
+            tableTypes[i] = tableTd.getFieldType(i);
+            tableNames[i] = tableAlias + "." + tableTd.getFieldName(i);
+        }
+        this.aliasTd = new TupleDesc(tableTypes, tableNames);
+        int n = columns == null ? tableTd.numFields() : columns.length;
+        Type[] types = new Type[n];
+        String[] names = new String[n];
+        for (int i = 0; i < n; i++) {
+            types[i] = tableTypes[getTableField(i)];
+            names[i] = tableNames[getTableField(i)];
+        }
+        this.td = new TupleDesc(types, names);
+        this.test = condition.compilePredicate(aliasTd);
+    }
+
+    /**
+     * @return the id of the table this operator scans
+     */
+    public int getTableId() {
+        return tableid;
+    }
+
+    /**
+     * @return the name of the table this operator scans in the catalog
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(tableid);
+    }
+
+    /**
+     * @return the alias of the table this operator scans
+     */
+    public String getAlias() {
+        return alias;
+    }
+
+    /**
+     * @return the condition the tuples this scan returns pass
+     */
+    public Expression getCondition() {
+        return condition;
+    }
+
+    /**
+     * @return the indexes of the table columns this scan returns, or null if
+     *         it returns all of them
+     */
+    public int[] getColumns() {
+        return columns == null ? null : columns.clone();
+    }
+
+    /**
+     * @return the index in the table of the given field of this scan's
+     *         tuples
+     */
+    public int getTableField(int field) {
+        return columns == null ? field : columns[field];
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the positions of the tuples that may pass the condition, by the
+     *         table's bitmap indexes, or null if they cannot narrow them down
+     */
+    public RoaringBitmap candidates() {
+        return BitmapIndex.candidates(tableid, condition, aliasTd);
+    }
+
+    /**
+     * @return the number of tuples the bitmap indexes say may pass the
+     *         condition, or -1 if they cannot narrow them down
+     */
+    public int estimateCardinality() {
+        RoaringBitmap c = candidates();
+        return c == null ? -1 : c.getCardinality();
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        if (isOpen)
+            throw new DbException("double open on one OpIterator.");
+        if (test == null)
+            test = condition.compilePredicate(aliasTd);
+        candidates = candidates();
+        positions = candidates == null ? null : candidates.iterator();
+        pos = -1;
+        page = null;
+        next = null;
+        isOpen = true;
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        if (next == null)
+            next = fetchNext();
+        return next != null;
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Tuple t = next;
+        next = null;
+        if (columns == null)
+            return t;
+        Tuple p = new Tuple(td);
+        for (int i = 0; i < columns.length; i++)
+            p.setField(i, t.getField(columns[i]));
+        p.setRecordId(t.getRecordId());
+        return p;
+    }
+
+    private Tuple fetchNext() throws DbException, TransactionAbortedException {
+        HeapFile f = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
+        int slotsPerPage = BufferPool.getPageSize() * 8 / (aliasTd.getSize() * 8 + 1);
+        int numPages = f.numPages();
+        while (true) {
+            // without an index to narrow them down, every slot is a candidate
+            if (positions != null) {
+                if (!positions.hasNext())
+                    return null;
+                pos = positions.nextInt();
+            } else {
+                pos++;
+            }
+            // positions ascend, so the rest are past the end of the file too
+            int pgNo = pos / slotsPerPage;
+            if (pgNo >= numPages)
+                return null;
+            if (page == null || page.getId().getPageNumber() != pgNo)
+                page = (HeapPage) Database.getBufferPool().getPage(tid,
+                        new HeapPageId(tableid, pgNo), Permissions.READ_ONLY);
+            Tuple t = page.getTuple(pos % slotsPerPage);
+            if (t != null && test.test(t))
+                return t;
+        }
+    }
+
+    public void close() {
+        candidates = null;
+        positions = null;
+        page = null;
+        next = null;
+        isOpen = false;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+}
@@ -0,0 +1,353 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * BitmapIndex indexes one field of a {@link HeapFile} with a compressed
+ * bitmap per distinct value of the field. The bits are the positions of the
+ * tuples in the file, pageNumber * slotsPerPage + slot, so that the set bits
+ * of a bitmap, in ascending order, name the tuples of a value in the order
+ * they are stored in the file.
+ * <p>
+ * Bitmaps of several indexes of a table combine with AND, OR and NOT, which
+ * answers a filter on several fields without reading any page of the table;
+ * {@link BitmapHeapScan} then reads only the pages holding a set bit.
+ * <p>
+ * The bitmaps are kept in memory, and built from the table by
+ * {@link #create}. Like {@link SecondaryIndex}, the index is kept up to date
+ * by {@link BufferPool#insertTuple} and {@link BufferPool#deleteTuple}; the
+ * changes each transaction made are undone when it aborts. Until a
+ * transaction completes, the positions it changed are reported by
+ * {@link #inFlux} so that a scan visits them and decides from the page.
+ */
+public class BitmapIndex {
+
+    private final int tableId;
+    private final int field;
+    private final int slotsPerPage;
+    private final TupleDesc valueTd;
+
+    private final Map<Field, RoaringBitmap> bitmaps = new HashMap<Field, RoaringBitmap>();
+    /** The positions of all tuples of the table. */
+    private final RoaringBitmap all = new RoaringBitmap();
+    /** The changes of each running transaction, in the order they were made. */
+    private final Map<TransactionId, List<Change>> changes = new HashMap<TransactionId, List<Change>>();
+
+    private static final class Change {
+        final Field value;
+        final int position;
+        final boolean added;
+
+        Change(Field value, int position, boolean added) {
+            this.value = value;
+            this.position = position;
+            this.added = added;
+        }
+    }
+
+    /**
+     * Create an empty bitmap index of a field of a table. Use {@link #create}
+     * to index the tuples the table already has.
+     *
+     * @param tableId the table to index, which must be a {@link HeapFile}
+     * @param field the indexed field, as an index into the table's tuples
+     */
+    public BitmapIndex(int tableId, int field) {
+        if (!(Database.getCatalog().getDatabaseFile(tableId) instanceof HeapFile))
+            throw new IllegalArgumentException("bitmap indexes need a heap file");
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+        this.tableId = tableId;
+        this.field = field;
+        this.slotsPerPage = BufferPool.getPageSize() * 8 / (td.getSize() * 8 + 1);
+        this.valueTd = new TupleDesc(new Type[] { td.getFieldType(field) });
+    }
+
+    /**
+     * Create a bitmap index of a field of a table, add it to the catalog, and
+     * index the tuples the table has, reading them in a transaction of its
+     * own.
+     *
+     * @return the new index
+     */
+    public static BitmapIndex create(int tableId, int field)
+            throws DbException, TransactionAbortedException {
+        BitmapIndex index = new BitmapIndex(tableId, field);
+        TransactionId tid = new TransactionId();
+        try {
+            DbFileIterator it = Database.getCatalog().getDatabaseFile(tableId).iterator(tid);
+            it.open();
+            while (it.hasNext())
+                index.add(it.next());
+            it.close();
+            Database.getCatalog().addBitmapIndex(index);
+        } finally {
+            try {
+                Database.getBufferPool().transactionComplete(tid);
+            } catch (java.io.IOException e) {
+                throw new DbException("could not complete index build: " + e);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @return the id of the table the index points to
+     */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /**
+     * @return the indexed field, as an index into the table's tuples
+     */
+    public int getField() {
+        return field;
+    }
+
+    /**
+     * @return the number of tuple slots on each page of the table, which
+     *         maps positions to pages
+     */
+    public int getSlotsPerPage() {
+        return slotsPerPage;
+    }
+
+    /**
+     * @return the position of a tuple of the table
+     */
+    public int position(RecordId rid) {
+        return rid.getPageId().getPageNumber() * slotsPerPage + rid.getTupleNumber();
+    }
+
+    private synchronized void add(Tuple t) {
+        int pos = position(t.getRecordId());
+        set(t.getField(field), pos, true);
+    }
+
+    private void set(Field value, int pos, boolean added) {
+        RoaringBitmap b = bitmaps.get(value);
+        if (added) {
+            if (b == null)
+                bitmaps.put(value, b = new RoaringBitmap());
+            b.add(pos);
+            all.add(pos);
+        } else {
+            if (b != null) {
+                b.remove(pos);
+                if (b.isEmpty())
+                    bitmaps.remove(value);
+            }
+            all.remove(pos);
+        }
+    }
+
+    private void log(TransactionId tid, Field value, int pos, boolean added) {
+        List<Change> list = changes.get(tid);
+        if (list == null)
+            changes.put(tid, list = new ArrayList<Change>());
+        list.add(new Change(value, pos, added));
+    }
+
+    /**
+     * Index a tuple that was just added to the table.
+     */
+    public synchronized void insert(TransactionId tid, Tuple t) {
+        int pos = position(t.getRecordId());
+        Field value = t.getField(field);
+        set(value, pos, true);
+        log(tid, value, pos, true);
+    }
+
+    /**
+     * Stop indexing a tuple that is about to be deleted from the table.
+     */
+    public synchronized void delete(TransactionId tid, Tuple t) {
+        int pos = position(t.getRecordId());
+        Field value = t.getField(field);
+        if (value == null || !bitmaps.containsKey(value) || !bitmaps.get(value).contains(pos)) {
+            // the tuple given is not the one indexed; find its value by position
+            value = null;
+            for (Map.Entry<Field, RoaringBitmap> e : bitmaps.entrySet()) {
+                if (e.getValue().contains(pos)) {
+                    value = e.getKey();
+                    break;
+                }
+            }
+            if (value == null)
+                return;
+        }
+        set(value, pos, false);
+        log(tid, value, pos, false);
+    }
+
+    /**
+     * Forget the changes of a transaction that committed, or undo them if it
+     * aborted.
+     */
+    public synchronized void transactionComplete(TransactionId tid, boolean commit) {
+        List<Change> list = changes.remove(tid);
+        if (list == null || commit)
+            return;
+        for (int i = list.size() - 1; i >= 0; i--) {
+            Change c = list.get(i);
+            set(c.value, c.position, !c.added);
+        }
+    }
+
+    /**
+     * @return the positions changed by transactions that have not completed
+     */
+    public synchronized RoaringBitmap inFlux() {
+        RoaringBitmap r = new RoaringBitmap();
+        for (List<Change> list : changes.values()) {
+            for (Change c : list)
+                r.add(c.position);
+        }
+        return r;
+    }
+
+    /**
+     * @return the positions of the tuples whose indexed field passes a test
+     *         of a tuple holding just that field
+     */
+    public synchronized RoaringBitmap lookup(Expression test) {
+        Expression.Test compiled = test.compilePredicate(valueTd);
+        RoaringBitmap r = new RoaringBitmap();
+        for (Map.Entry<Field, RoaringBitmap> e : bitmaps.entrySet()) {
+            Tuple t = new Tuple(valueTd);
+            t.setField(0, e.getKey());
+            if (compiled.test(t))
+                r = r.or(e.getValue());
+        }
+        return r;
+    }
+
+    /**
+     * @return the positions of all tuples of the table
+     */
+    public synchronized RoaringBitmap all() {
+        return all.or(new RoaringBitmap());
+    }
+
+    /**
+     * @return the number of distinct pages that the positions are on
+     */
+    public int countPages(RoaringBitmap positions) {
+        int n = 0, last = -1;
+        PrimitiveIterator.OfInt it = positions.iterator();
+        while (it.hasNext()) {
+            int page = it.nextInt() / slotsPerPage;
+            if (page != last)
+                n++;
+            last = page;
+        }
+        return n;
+    }
+
+    /**
+     * Find the tuples of a table that may pass a condition, using its bitmap
+     * indexes. The columns of the condition are named as the fields of td,
+     * which lists the fields of the table in order.
+     *
+     * @return the positions of the tuples that may pass the condition,
+     *         including those in flux, or null if the indexes cannot narrow
+     *         them down
+     */
+    public static RoaringBitmap candidates(int tableId, Expression condition, TupleDesc td) {
+        List<BitmapIndex> indexes = Database.getCatalog().getBitmapIndexes(tableId);
+        if (indexes.isEmpty())
+            return null;
+        Result r = evaluate(indexes, condition, td);
+        if (r == null)
+            return null;
+        RoaringBitmap positions = r.positions;
+        for (BitmapIndex index : indexes)
+            positions = positions.or(index.inFlux());
+        return positions;
+    }
+
+    /** The positions a condition evaluates to; exact if no term was skipped. */
+    private static final class Result {
+        final RoaringBitmap positions;
+        final boolean exact;
+
+        Result(RoaringBitmap positions, boolean exact) {
+            this.positions = positions;
+            this.exact = exact;
+        }
+    }
+
+    /**
+     * @return the positions that may pass e, or null if none of them can be
+     *         ruled out
+     */
+    private static Result evaluate(List<BitmapIndex> indexes, Expression e, TupleDesc td) {
+        try {
+            return evaluateTerm(indexes, e, td);
+        } catch (IllegalArgumentException x) {
+            // the comparison does not compile, e.g. a string constant for an int field
+            return null;
+        }
+    }
+
+    private static Result evaluateTerm(List<BitmapIndex> indexes, Expression e, TupleDesc td) {
+        if (e instanceof Expression.Comparison) {
+            Expression.Comparison c = (Expression.Comparison) e;
+            if (c.left instanceof Expression.Column && c.right instanceof Expression.Constant) {
+                BitmapIndex index = find(indexes, (Expression.Column) c.left, td);
+                if (index != null)
+                    return new Result(index.lookup(Expression.compare(c.op,
+                            Expression.column(0), c.right)), true);
+            } else if (c.left instanceof Expression.Constant && c.right instanceof Expression.Column) {
+                BitmapIndex index = find(indexes, (Expression.Column) c.right, td);
+                if (index != null)
+                    return new Result(index.lookup(Expression.compare(c.op,
+                            c.left, Expression.column(0))), true);
+            }
+            return null;
+        }
+        if (e instanceof Expression.Junction) {
+            Expression.Junction j = (Expression.Junction) e;
+            Result r = null;
+            boolean exact = true;
+            for (Expression term : j.terms) {
+                Result t = evaluate(indexes, term, td);
+                if (t == null) {
+                    // an unknown term of an AND only lets more tuples through
+                    if (!j.and)
+                        return null;
+                    exact = false;
+                    continue;
+                }
+                exact &= t.exact;
+                if (r == null)
+                    r = t;
+                else
+                    r = new Result(j.and ? r.positions.and(t.positions)
+                            : r.positions.or(t.positions), true);
+            }
+            return r == null ? null : new Result(r.positions, exact);
+        }
+        if (e instanceof Expression.Not) {
+            Result r = evaluate(indexes, ((Expression.Not) e).e, td);
+            if (r == null || !r.exact)
+                return null;
+            return new Result(indexes.get(0).all().andNot(r.positions), true);
+        }
+        return null;
+    }
+
+    private static BitmapIndex find(List<BitmapIndex> indexes, Expression.Column c, TupleDesc td) {
+        int i;
+        try {
+            i = c.resolve(td);
+        } catch (NoSuchElementException | IllegalArgumentException e) {
+            return null;
+        }
+        for (BitmapIndex index : indexes) {
+            if (index.field == i)
+                return index;
+        }
+        return null;
+    }
+}
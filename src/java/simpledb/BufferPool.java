@@ -4,6 +4,10 @@ import java.io.*;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -19,10 +23,24 @@ import java.util.concurrent.ConcurrentHashMap;
 public class BufferPool {
     private int numPages;
 
-    private HashMap<PageId,Page> pages;
+    private Map<PageId,Page> pages;
 
     private LockManager lockManager;
 
+    /** Pages being read ahead by {@link #prefetchPages}, until they are asked for. */
+    private final Map<PageId, Future<Page>> prefetched = new ConcurrentHashMap<>();
+    /** The pages each transaction asked to read ahead and has not asked for since, which it holds locks on. */
+    private final Map<TransactionId, Map<PageId, Future<Page>>> prefetchedBy = new HashMap<>();
+    /** Of those, the pages each transaction only locked to read them ahead. */
+    private final Map<TransactionId, Set<PageId>> lockedToPrefetch = new HashMap<>();
+
+    /** Reads pages ahead of time in the background, for every buffer pool. */
+    private static final ExecutorService prefetcher = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "simpledb-prefetch");
+        t.setDaemon(true);
+        return t;
+    });
+
     /** Bytes per page, including header. */
 
     private static final int DEFAULT_PAGE_SIZE = 4096;
@@ -34,6 +52,12 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
+    /** Default number of pages of working memory that a single operator
+    (hash table, sort run, ...) may use before it spills to disk. */
+    public static final int DEFAULT_OPERATOR_PAGES = 256;
+
+    private static int operatorMemoryPages = DEFAULT_OPERATOR_PAGES;
+
 
     public class Lock{
         public TransactionId tid;
@@ -121,6 +145,28 @@ public class BufferPool {
             }
             return false;
         }
+        /**
+         * Release every lock a transaction holds, including those on pages
+         * that have since been evicted or were only read ahead.
+         */
+        public synchronized void releaseAllLocks(TransactionId tid){
+            for(PageId pid : lockMap.keySet()){
+                releaseLock(pid,tid);
+            }
+        }
+        /**
+         * @return true if the transaction holds the write lock on the page
+         */
+        public synchronized boolean holdsExclusiveLock(PageId pid,TransactionId tid){
+            ArrayList<Lock> locks = lockMap.get(pid);
+            if(locks == null){
+                return false;
+            }
+            for (Lock lock : locks) {
+                if(lock.tid == tid)return !lock.isShared;
+            }
+            return false;
+        }
         public synchronized boolean holdsLock(PageId pid,TransactionId tid){
             if(lockMap.get(pid) == null){
                 return false;
@@ -139,7 +185,7 @@ public class BufferPool {
      */
     public BufferPool(int numPages) {
        this.numPages = numPages;
-           pages = new HashMap<>();
+           pages = new ConcurrentHashMap<>();
            lockManager = new LockManager();
     }
 
@@ -157,6 +203,38 @@ public class BufferPool {
     	BufferPool.pageSize = DEFAULT_PAGE_SIZE;
     }
 
+    /**
+     * @return the number of pages of working memory granted to each
+     *         memory-intensive operator (joins, aggregates, sorts)
+     */
+    public static int getOperatorMemoryPages() {
+        return operatorMemoryPages;
+    }
+
+    /**
+     * @return the working memory granted to each memory-intensive operator,
+     *         in bytes
+     */
+    public static long getOperatorMemoryBytes() {
+        return (long) operatorMemoryPages * pageSize;
+    }
+
+    /**
+     * Set the working memory granted to each memory-intensive operator.
+     * Operators whose state grows beyond this budget spill to temp files.
+     *
+     * @param pages the budget in pages; must be at least 1
+     */
+    public static void setOperatorMemoryPages(int pages) {
+        if (pages < 1)
+            throw new IllegalArgumentException("operator memory must be at least one page");
+        BufferPool.operatorMemoryPages = pages;
+    }
+
+    public static void resetOperatorMemoryPages() {
+        BufferPool.operatorMemoryPages = DEFAULT_OPERATOR_PAGES;
+    }
+
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
@@ -192,9 +270,17 @@ public class BufferPool {
 
         lockManager.acquireLock(pid,tid,isShared);
         if(tid == null)throw new TransactionAbortedException();
+        synchronized (prefetchedBy) {
+            // the lock is in use now, so it is kept if the scan stops
+            Map<PageId, Future<Page>> readAhead = prefetchedBy.get(tid);
+            if (readAhead != null && readAhead.remove(pid) != null)
+                lockedToPrefetch.get(tid).remove(pid);
+        }
         if (this.pages.containsKey(pid))return pages.get(pid);
         if(pages.size()>= numPages)evictPage();
-        Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        Page page = takePrefetched(pid);
+        if (page == null)
+            page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
         pages.put(pid,page);
         if(holdsLock(tid,pid)){
 
@@ -202,6 +288,98 @@ public class BufferPool {
         return page;
     }
 
+    /**
+     * Retrieve the specified page with the associated permissions, like
+     * {@link #getPage}, unless another transaction holds a conflicting lock
+     * on it.
+     *
+     * @return the page, or null if it could not be locked without waiting
+     */
+    public Page tryGetPage(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        if (!lockManager.acquireLock(pid, tid, perm == Permissions.READ_ONLY))
+            return null;
+        return getPage(tid, pid, perm);
+    }
+
+    /**
+     * Start reading pages that a transaction is about to ask for, so that
+     * {@link #getPage} finds them read. The pages are read in the
+     * background, in the order given, after taking a read lock on each for
+     * the transaction; pages that another transaction has write locked, or
+     * that are already in the buffer pool, are skipped. Reading ahead never
+     * evicts a page: it stops once the pages read and being read would fill
+     * the buffer pool.
+     *
+     * @param tid the transaction that will ask for the pages
+     * @param pids the pages to read
+     */
+    public void prefetchPages(TransactionId tid, List<? extends PageId> pids) {
+        for (PageId pid : pids) {
+            if (pages.containsKey(pid) || prefetched.containsKey(pid))
+                continue;
+            if (pages.size() + prefetched.size() >= numPages)
+                return;
+            // the read lock keeps writers out until the transaction completes,
+            // or gives up reading the page, so the page read stays current
+            boolean held = lockManager.holdsLock(pid, tid);
+            if (!lockManager.acquireLock(pid, tid, true))
+                continue;
+            Future<Page> page = prefetcher.submit(
+                    () -> Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid));
+            synchronized (prefetchedBy) {
+                prefetchedBy.computeIfAbsent(tid, t -> new HashMap<>()).put(pid, page);
+                Set<PageId> locked = lockedToPrefetch.computeIfAbsent(tid, t -> new HashSet<>());
+                if (!held)
+                    locked.add(pid);
+            }
+            prefetched.put(pid, page);
+        }
+    }
+
+    /**
+     * Give up reading ahead pages a transaction asked for with
+     * {@link #prefetchPages} and has not asked for since, because the scan
+     * that wanted them stopped first. Their read locks are released, unless
+     * the transaction held them before reading ahead, so writers need not
+     * wait for the transaction to complete to change pages it never read.
+     *
+     * @param tid the transaction that asked for the pages
+     * @param pids the pages it no longer needs
+     */
+    public void cancelPrefetch(TransactionId tid, Collection<? extends PageId> pids) {
+        synchronized (prefetchedBy) {
+            Map<PageId, Future<Page>> readAhead = prefetchedBy.get(tid);
+            if (readAhead == null)
+                return;
+            Set<PageId> locked = lockedToPrefetch.get(tid);
+            for (PageId pid : pids) {
+                Future<Page> page = readAhead.remove(pid);
+                if (page == null)
+                    continue;
+                // once unlocked the page may change, so the copy read is dropped
+                prefetched.remove(pid, page);
+                if (locked.remove(pid))
+                    lockManager.releaseLock(pid, tid);
+            }
+        }
+    }
+
+    /**
+     * @return the page read ahead for the given id, or null if there is
+     *         none or reading it failed
+     */
+    private Page takePrefetched(PageId pid) {
+        Future<Page> page = prefetched.remove(pid);
+        if (page == null)
+            return null;
+        try {
+            return page.get();
+        } catch (InterruptedException | ExecutionException e) {
+            return null;
+        }
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -242,7 +420,10 @@ public class BufferPool {
         else{
             for (PageId pid : pages.keySet()) {
                 Page page = pages.get(pid);
-                if (page.isDirty() == tid) {
+                // B+ tree splits and merges change the pages they lock for
+                // writing in place, and only mark them dirty once they are
+                // done, so a write-locked page may hold changes too
+                if (page.isDirty() == tid || lockManager.holdsExclusiveLock(pid, tid)) {
                     int tabId = pid.getTableId();
                     DbFile file =  Database.getCatalog().getDatabaseFile(tabId);
                     Page pageFromDisk = file.readPage(pid);
@@ -250,10 +431,21 @@ public class BufferPool {
                 }
             }
         }
-        for(PageId pid:pages.keySet()){
-            if(holdsLock(tid,pid))
-                releasePage(tid,pid);
+        for (BitmapIndex index : Database.getCatalog().getBitmapIndexes())
+            index.transactionComplete(tid, commit);
+        // pages read ahead but never asked for are dropped
+        Map<PageId, Future<Page>> readAhead;
+        synchronized (prefetchedBy) {
+            readAhead = prefetchedBy.remove(tid);
+            lockedToPrefetch.remove(tid);
         }
+        if (readAhead != null) {
+            for (Map.Entry<PageId, Future<Page>> e : readAhead.entrySet())
+                prefetched.remove(e.getKey(), e.getValue());
+        }
+        // a locked page may have been evicted, or only read ahead, so its
+        // lock is not found through the cached pages
+        lockManager.releaseAllLocks(tid);
     }
 
     /**
@@ -278,6 +470,10 @@ public class BufferPool {
             p.markDirty(true,tid);
             pages.put(p.getId(),p);
         }
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId))
+            index.insert(tid, t);
+        for (BitmapIndex index : Database.getCatalog().getBitmapIndexes(tableId))
+            index.insert(tid, t);
     }
     /**
      * Remove the specified tuple from the buffer pool.
@@ -294,13 +490,39 @@ public class BufferPool {
      */
     public  void deleteTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
-        ArrayList<Page> page = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId()).deleteTuple(tid, t);
+        int tableId = t.getRecordId().getPageId().getTableId();
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId))
+            index.delete(tid, t);
+        for (BitmapIndex index : Database.getCatalog().getBitmapIndexes(tableId))
+            index.delete(tid, t);
+        ArrayList<Page> page = Database.getCatalog().getDatabaseFile(tableId).deleteTuple(tid, t);
         for (Page p:page) {
             p.markDirty(true,tid);
             pages.put(p.getId(),p);
         }
     }
 
+    /**
+     * Rebalance the leaves of a B+ tree table that deletes have left less
+     * than half full, on behalf of transaction tid, as far as the pages can
+     * be locked without waiting. Marks the pages changed dirty, like
+     * {@link #deleteTuple}.
+     *
+     * @param tid the transaction rebalancing the table
+     * @param tableId the table, which must be a {@link BTreeFile}
+     * @see BTreeFile#compact
+     */
+    public void compactTable(TransactionId tid, int tableId)
+        throws DbException, IOException, TransactionAbortedException {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(file instanceof BTreeFile))
+            throw new DbException("only B+ tree files can be compacted");
+        for (Page p : ((BTreeFile) file).compact(tid)) {
+            p.markDirty(true,tid);
+            pages.put(p.getId(),p);
+        }
+    }
+
     /**
      * Flush all dirty pages to disk.
      * NB: Be careful using this routine -- it writes dirty data to disk so will
@@ -322,6 +544,7 @@ public class BufferPool {
     */
     public synchronized void discardPage(PageId pid) {
         pages.remove(pid);
+        prefetched.remove(pid);
     }
 
     /**
@@ -329,8 +552,12 @@ public class BufferPool {
      * @param pid an ID indicating the page to flush
      */
     private synchronized void flushPage(PageId pid) throws IOException {
-        if(pages.get(pid).isDirty() != null)
-            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(pages.get(pid));
+        Page page = pages.get(pid);
+        if(page.isDirty() != null) {
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+            // the page now matches the disk, so it may be evicted
+            page.markDirty(false, null);
+        }
     }
 
     /** Write all pages of the specified transaction to disk.
@@ -28,12 +28,18 @@ public class Catalog {
         }
     }
     List<Table> tables;
+    /** Secondary indexes by the id of the table they point to. */
+    Map<Integer, List<SecondaryIndex>> indexes;
+    /** Bitmap indexes by the id of the table they index. */
+    Map<Integer, List<BitmapIndex>> bitmapIndexes;
     /**
      * Constructor.
      * Creates a new, empty catalog.
      */
     public Catalog() {
         tables = new ArrayList<>();
+        indexes = new ConcurrentHashMap<>();
+        bitmapIndexes = new ConcurrentHashMap<>();
     }
 
     /**
@@ -48,6 +54,8 @@ public class Catalog {
     public void addTable(DbFile file, String name, String pkeyField) {
         for (int i = 0; i < tables.size(); i++) {
             if(name.equals(tables.get(i).name)||file.getId()==tables.get(i).file.getId()){
+                indexes.remove(tables.get(i).file.getId());
+                bitmapIndexes.remove(tables.get(i).file.getId());
                 tables.remove(i);
             }
         }
@@ -123,9 +131,63 @@ public class Catalog {
         return null;
     }
 
+    /**
+     * Add a secondary index of a table in the catalog. The file holding the
+     * index entries is added as a table of its own, named after the indexed
+     * table and field, so that the buffer pool can find its pages.
+     * The index is kept up to date by {@link BufferPool#insertTuple} and
+     * {@link BufferPool#deleteTuple} from now on.
+     */
+    public void addIndex(SecondaryIndex index) {
+        addTable(index.getFile(), index.getName());
+        List<SecondaryIndex> list = new ArrayList<>(getIndexes(index.getTableId()));
+        list.add(index);
+        indexes.put(index.getTableId(), list);
+    }
+
+    /**
+     * @return the secondary indexes of the specified table; empty if it has
+     *     none
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        List<SecondaryIndex> list = indexes.get(tableid);
+        return list == null ? Collections.<SecondaryIndex>emptyList() : list;
+    }
+
+    /**
+     * Add a bitmap index of a table in the catalog. The index is kept up to
+     * date by {@link BufferPool#insertTuple} and {@link BufferPool#deleteTuple}
+     * from now on.
+     */
+    public void addBitmapIndex(BitmapIndex index) {
+        List<BitmapIndex> list = new ArrayList<>(getBitmapIndexes(index.getTableId()));
+        list.add(index);
+        bitmapIndexes.put(index.getTableId(), list);
+    }
+
+    /**
+     * @return the bitmap indexes of the specified table; empty if it has none
+     */
+    public List<BitmapIndex> getBitmapIndexes(int tableid) {
+        List<BitmapIndex> list = bitmapIndexes.get(tableid);
+        return list == null ? Collections.<BitmapIndex>emptyList() : list;
+    }
+
+    /**
+     * @return the bitmap indexes of all tables
+     */
+    public List<BitmapIndex> getBitmapIndexes() {
+        List<BitmapIndex> all = new ArrayList<>();
+        for (List<BitmapIndex> list : bitmapIndexes.values())
+            all.addAll(list);
+        return all;
+    }
+
     public Iterator<Integer> tableIdIterator() {
-        Iterator iterator= tables.iterator();
-        return  iterator;
+        List<Integer> ids = new ArrayList<>();
+        for (Table table : tables)
+            ids.add(table.file.getId());
+        return ids.iterator();
     }
 
     public String getTableName(int id) {
@@ -143,10 +205,19 @@ public class Catalog {
         for (int i = 0; i < size; i++) {
             tables.remove(i);
         }
+        indexes.clear();
+        bitmapIndexes.clear();
     }
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * A field may be annotated with "pk" to make it the primary key and with
+     * "index" to give the table a secondary index on it, stored in
+     * table.field.idx next to the table and built when that file is missing.
+     * The index entries can also store other fields of the table, which are
+     * listed after the annotation, e.g. "index+f2+f3". A field annotated with
+     * "bitmap" gets a {@link BitmapIndex}, which is held in memory and built
+     * each time the schema is loaded.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -164,6 +235,9 @@ public class Catalog {
                 ArrayList<String> names = new ArrayList<String>();
                 ArrayList<Type> types = new ArrayList<Type>();
                 String primaryKey = "";
+                List<Integer> indexed = new ArrayList<Integer>();
+                List<String[]> included = new ArrayList<String[]>();
+                List<Integer> bitmapped = new ArrayList<Integer>();
                 for (String e : els) {
                     String[] els2 = e.trim().split(" ");
                     names.add(els2[0].trim());
@@ -175,11 +249,18 @@ public class Catalog {
                         System.out.println("Unknown type " + els2[1]);
                         System.exit(0);
                     }
-                    if (els2.length == 3) {
-                        if (els2[2].trim().equals("pk"))
+                    for (int i = 2; i < els2.length; i++) {
+                        String[] annotation = els2[i].trim().split("\\+");
+                        if (els2[i].trim().equals("pk"))
                             primaryKey = els2[0].trim();
+                        else if (annotation[0].equals("index")) {
+                            indexed.add(names.size() - 1);
+                            included.add(Arrays.copyOfRange(annotation, 1, annotation.length));
+                        }
+                        else if (els2[i].trim().equals("bitmap"))
+                            bitmapped.add(names.size() - 1);
                         else {
-                            System.out.println("Unknown annotation " + els2[2]);
+                            System.out.println("Unknown annotation " + els2[i]);
                             System.exit(0);
                         }
                     }
@@ -190,11 +271,30 @@ public class Catalog {
                 HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
+                for (int k = 0; k < indexed.size(); k++) {
+                    int field = indexed.get(k);
+                    int[] include = new int[included.get(k).length];
+                    for (int i = 0; i < include.length; i++)
+                        include[i] = t.fieldNameToIndex(included.get(k)[i]);
+                    File f = new File(baseFolder + "/" + name + "." + namesAr[field] + ".idx");
+                    if (f.exists())
+                        addIndex(new SecondaryIndex(tabHf.getId(), field, include, f));
+                    else
+                        SecondaryIndex.create(tabHf.getId(), field, include, f);
+                    System.out.println("Added index on " + name + "." + namesAr[field]);
+                }
+                for (int field : bitmapped) {
+                    BitmapIndex.create(tabHf.getId(), field);
+                    System.out.println("Added bitmap index on " + name + "." + namesAr[field]);
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(0);
-        } catch (IndexOutOfBoundsException e) {
+        } catch (DbException | TransactionAbortedException e) {
+            e.printStackTrace();
+            System.exit(0);
+        } catch (IndexOutOfBoundsException | NoSuchElementException e) {
             System.out.println ("Invalid catalog entry : " + line);
             System.exit(0);
         }
@@ -0,0 +1,137 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Instance of Field that stores the key of a B+ tree keyed on several
+ * columns: a sequence of component fields, compared lexicographically.
+ * <p>
+ * A composite field may hold fewer components than the key it is compared
+ * to; only the components both have are compared, so a prefix of a key
+ * compares as equal to it. A predicate on the leading columns of a
+ * composite key is therefore written with a shorter composite field, or
+ * just the field of the first column, and separator keys in the internal
+ * pages of a B+ tree may drop the components that are not needed to tell
+ * their children apart.
+ *
+ * @see BTreeFile#getKey(Tuple)
+ */
+public class CompositeField implements Field {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Field[] fields;
+
+    /**
+     * Constructor.
+     *
+     * @param fields The components of this field, most significant first.
+     */
+    public CompositeField(Field[] fields) {
+        if (fields.length == 0)
+            throw new IllegalArgumentException("a composite field needs a component");
+        this.fields = fields.clone();
+    }
+
+    /**
+     * @return the number of components of this field
+     */
+    public int numFields() {
+        return fields.length;
+    }
+
+    /**
+     * @return the ith component of this field
+     */
+    public Field getField(int i) {
+        return fields[i];
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(fields[i]);
+        }
+        return sb.append(")").toString();
+    }
+
+    public int hashCode() {
+        return Arrays.hashCode(fields);
+    }
+
+    public boolean equals(Object field) {
+        return field instanceof CompositeField && Arrays.equals(fields, ((CompositeField) field).fields);
+    }
+
+    /**
+     * Writes the components one after another, in the format of their types.
+     */
+    public void serialize(DataOutputStream dos) throws IOException {
+        for (Field f : fields)
+            f.serialize(dos);
+    }
+
+    /**
+     * Compare two keys, either of which may be composite; a field that is
+     * not composite is compared as a composite field of one component.
+     *
+     * @return a negative number, zero or a positive number as a is less
+     *         than, a prefix of or prefixed by, or greater than b
+     */
+    public static int compare(Field a, Field b) {
+        int na = a instanceof CompositeField ? ((CompositeField) a).fields.length : 1;
+        int nb = b instanceof CompositeField ? ((CompositeField) b).fields.length : 1;
+        for (int i = 0; i < Math.min(na, nb); i++) {
+            Field fa = a instanceof CompositeField ? ((CompositeField) a).fields[i] : a;
+            Field fb = b instanceof CompositeField ? ((CompositeField) b).fields[i] : b;
+            int c = TupleComparator.compareFields(fa, fb);
+            if (c != 0)
+                return c;
+        }
+        return 0;
+    }
+
+    /**
+     * Compare the specified field to the value of this Field.
+     * Return semantics are as specified by Field.compare
+     *
+     * @see #compare(Field, Field)
+     * @see Field#compare
+     */
+    public boolean compare(Predicate.Op op, Field val) {
+        int c = compare(this, val);
+
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return c == 0;
+        case NOT_EQUALS:
+            return c != 0;
+
+        case GREATER_THAN:
+            return c > 0;
+
+        case GREATER_THAN_OR_EQ:
+            return c >= 0;
+
+        case LESS_THAN:
+            return c < 0;
+
+        case LESS_THAN_OR_EQ:
+            return c <= 0;
+        }
+
+        return false;
+    }
+
+    /**
+     * Return the Type of this field, which is that of its first component.
+     * @return the type of the first component
+     */
+    public Type getType() {
+        return fields[0].getType();
+    }
+}
@@ -0,0 +1,200 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Distinct removes duplicate tuples from its child, returning the first
+ * occurrence of each distinct tuple as soon as it is read.
+ * <p>
+ * Tuples already returned are remembered in a {@link RowKeyHashTable}. If
+ * the child is known to be ordered on some column (see
+ * {@link SortMergeJoin#isSortedOn}), duplicates can only occur among the
+ * tuples sharing a value of that column, so the table is emptied whenever
+ * the value changes; on a sorted single-column input this is the usual
+ * streaming comparison with the previous tuple. Once the table outgrows the
+ * operator memory budget, tuples it does not hold are hash partitioned into
+ * spill files, and each partition is deduplicated after the input is
+ * consumed.
+ */
+public class Distinct extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Approximate bytes of table state per remembered tuple. */
+    private static final int ROW_OVERHEAD = 40;
+
+    private OpIterator child;
+    private final int depth;
+    /** Column the child is ordered on, or -1. */
+    private int runField;
+
+    transient private RowKeyHashTable<Void> seen;
+    transient private int maxRows;
+    transient private Field run;
+    transient private boolean inputDone;
+    /** Spilled tuples by partition, or null if none spilled. */
+    transient private SpillFile[] partitions;
+    transient private int partition;
+    transient private Distinct sub;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The OpIterator that is feeding us tuples.
+     */
+    public Distinct(OpIterator child) {
+        this(child, 0);
+    }
+
+    private Distinct(OpIterator child, int depth) {
+        this.child = child;
+        this.depth = depth;
+        init();
+    }
+
+    private void init() {
+        runField = -1;
+        TupleDesc td = child.getTupleDesc();
+        for (int i = 0; i < td.numFields() && runField < 0; i++) {
+            if (SortMergeJoin.isSortedOn(child, i, true)
+                    || SortMergeJoin.isSortedOn(child, i, false))
+                runField = i;
+        }
+    }
+
+    /**
+     * @return true if the child is ordered on a column, so that only the
+     *         tuples sharing its current value are remembered
+     */
+    public boolean isStreaming() {
+        return runField >= 0;
+    }
+
+    /**
+     * @return true if the output is in the given order on the given field.
+     *         Tuples are returned in the child's order unless some were
+     *         spilled, which cannot happen to a single-column input ordered
+     *         on that column.
+     */
+    boolean isSortedOn(int field, boolean asc) {
+        return getTupleDesc().numFields() == 1 && SortMergeJoin.isSortedOn(child, field, asc);
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        start();
+        super.open();
+    }
+
+    private void start() {
+        maxRows = depth >= HashEquiJoin.MAX_DEPTH ? Integer.MAX_VALUE
+                : (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+                        BufferPool.getOperatorMemoryBytes() / (ROW_OVERHEAD + getTupleDesc().getSize())));
+        seen = new RowKeyHashTable<Void>();
+        run = null;
+        inputDone = false;
+        partition = 0;
+    }
+
+    private void release() {
+        if (sub != null)
+            sub.close();
+        sub = null;
+        if (partitions != null) {
+            for (SpillFile f : partitions) {
+                if (f != null)
+                    f.delete();
+            }
+        }
+        partitions = null;
+        seen = null;
+    }
+
+    public void close() {
+        super.close();
+        release();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        release();
+        child.rewind();
+        start();
+    }
+
+    /**
+     * Returns the next tuple of the child that was not returned before, or
+     * null if there are no more.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        int n = getTupleDesc().numFields();
+        while (!inputDone && child.hasNext()) {
+            Tuple t = child.next();
+            if (runField >= 0) {
+                Field v = t.getField(runField);
+                if (run == null || !v.equals(run)) {
+                    seen.clear();
+                    run = v;
+                }
+            }
+            Field[] row = new Field[n];
+            for (int i = 0; i < n; i++)
+                row[i] = t.getField(i);
+            if (seen.find(row) != KeyHashTable.NONE)
+                continue;
+            if (seen.size() >= maxRows) {
+                spill(row, t);
+                continue;
+            }
+            seen.findOrInsert(row);
+            return t;
+        }
+        inputDone = true;
+        while (true) {
+            if (sub != null && sub.hasNext())
+                return sub.next();
+            if (sub != null) {
+                sub.close();
+                sub = null;
+                partitions[partition - 1].delete();
+                partitions[partition - 1] = null;
+            }
+            while (partitions != null && partition < partitions.length
+                    && partitions[partition] == null)
+                partition++;
+            if (partitions == null || partition == partitions.length)
+                return null;
+            sub = new Distinct(partitions[partition].iterator(), depth + 1);
+            partition++;
+            sub.open();
+        }
+    }
+
+    private void spill(Field[] row, Tuple t) throws DbException {
+        if (partitions == null)
+            partitions = new SpillFile[Math.max(2, Math.min(HashEquiJoin.MAX_FANOUT,
+                    BufferPool.getOperatorMemoryPages()))];
+        int p = RowKeyHashTable.partition(row, depth, partitions.length);
+        if (partitions[p] == null)
+            partitions[p] = new SpillFile(getTupleDesc());
+        partitions[p].add(t);
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+        init();
+    }
+
+}
@@ -0,0 +1,514 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Expression is a scalar expression over the fields of a tuple: columns,
+ * constants, integer arithmetic, comparisons, and AND / OR / NOT.
+ * <p>
+ * Expressions are not interpreted tuple by tuple. {@link #compilePredicate}
+ * (and {@link #compileInt} / {@link #compileString} for value expressions)
+ * resolve column names and types against a {@link TupleDesc} once, and
+ * return a tree of small lambdas, each specialized for its operator and
+ * operand types: a comparison of an integer column with a constant, for
+ * instance, becomes a single <code>getValue() &lt; k</code> on the column,
+ * with no switch on the operator and no call through {@link Field#compare}.
+ * Every lambda site is spun into its own class by the JVM's lambda
+ * metafactory, so the calls between the nodes of one compiled expression
+ * stay monomorphic and can be inlined by the JIT.
+ */
+public abstract class Expression implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** A compiled boolean expression. */
+    public interface Test {
+        boolean test(Tuple t);
+    }
+
+    /** A compiled INT_TYPE expression. */
+    public interface IntValue {
+        int eval(Tuple t);
+    }
+
+    /** A compiled STRING_TYPE expression. */
+    public interface StringValue {
+        String eval(Tuple t);
+    }
+
+    /** Integer arithmetic operators. */
+    public enum ArithOp {
+        PLUS("+"), MINUS("-"), TIMES("*"), DIVIDE("/"), MOD("%");
+
+        private final String symbol;
+
+        ArithOp(String symbol) {
+            this.symbol = symbol;
+        }
+
+        public String toString() {
+            return symbol;
+        }
+    }
+
+    /**
+     * @return the type of the value of this expression over tuples of the
+     *         given schema, or null for a boolean expression, or if the
+     *         type depends on a schema that is not given (td is null)
+     */
+    public abstract Type getType(TupleDesc td);
+
+    /**
+     * Compile a boolean expression.
+     *
+     * @param td
+     *            the schema of the tuples it will be evaluated over; may be
+     *            null if every column is given by index and compared to a
+     *            constant
+     * @throws IllegalArgumentException
+     *             if this is not a boolean expression, or its operand types
+     *             do not match
+     * @throws NoSuchElementException
+     *             if a column name is not in td
+     */
+    public Test compilePredicate(TupleDesc td) {
+        throw new IllegalArgumentException(this + " is not a boolean expression");
+    }
+
+    /**
+     * Compile an INT_TYPE expression.
+     *
+     * @see #compilePredicate
+     */
+    public IntValue compileInt(TupleDesc td) {
+        throw new IllegalArgumentException(this + " is not an integer expression");
+    }
+
+    /**
+     * Compile a STRING_TYPE expression.
+     *
+     * @see #compilePredicate
+     */
+    public StringValue compileString(TupleDesc td) {
+        throw new IllegalArgumentException(this + " is not a string expression");
+    }
+
+    /**
+     * Add the names of the columns referenced by name to the given
+     * collection.
+     */
+    public void collectColumns(Collection<String> names) {
+    }
+
+    // ------------------------------------------------------------------
+    // factories
+
+    /**
+     * @return the column with the given index
+     */
+    public static Expression column(int index) {
+        return new Column(index, null);
+    }
+
+    /**
+     * @return the column with the given name, resolved when compiled
+     */
+    public static Expression column(String name) {
+        return new Column(-1, name);
+    }
+
+    public static Expression constant(Field value) {
+        return new Constant(value);
+    }
+
+    public static Expression constant(int value) {
+        return new Constant(new IntField(value));
+    }
+
+    public static Expression arith(ArithOp op, Expression left, Expression right) {
+        return new Arithmetic(op, left, right);
+    }
+
+    public static Expression compare(Predicate.Op op, Expression left, Expression right) {
+        return new Comparison(op, left, right);
+    }
+
+    /**
+     * @return the expression equivalent to the given predicate
+     */
+    public static Expression of(Predicate p) {
+        return compare(p.getOp(), column(p.getField()), constant(p.getOperand()));
+    }
+
+    public static Expression and(Expression... terms) {
+        return new Junction(true, terms);
+    }
+
+    public static Expression or(Expression... terms) {
+        return new Junction(false, terms);
+    }
+
+    public static Expression not(Expression e) {
+        return new Not(e);
+    }
+
+    /**
+     * If this expression is a comparison of a column given by index with a
+     * constant, return it as a {@link Predicate}.
+     *
+     * @return the predicate, or null
+     */
+    public Predicate asPredicate() {
+        return null;
+    }
+
+    // ------------------------------------------------------------------
+    // nodes
+
+    static final class Column extends Expression {
+        private static final long serialVersionUID = 1L;
+        final int index;
+        final String name;
+
+        Column(int index, String name) {
+            this.index = index;
+            this.name = name;
+        }
+
+        int resolve(TupleDesc td) {
+            if (index >= 0)
+                return index;
+            if (td == null)
+                throw new IllegalArgumentException("column " + name + " needs a schema");
+            return td.fieldNameToIndex(name);
+        }
+
+        public Type getType(TupleDesc td) {
+            return td == null ? null : td.getFieldType(resolve(td));
+        }
+
+        public IntValue compileInt(TupleDesc td) {
+            final int i = resolve(td);
+            return t -> ((IntField) t.getField(i)).getValue();
+        }
+
+        public StringValue compileString(TupleDesc td) {
+            final int i = resolve(td);
+            return t -> ((StringField) t.getField(i)).getValue();
+        }
+
+        public void collectColumns(Collection<String> names) {
+            if (name != null)
+                names.add(name);
+        }
+
+        public String toString() {
+            return name != null ? name : "$" + index;
+        }
+    }
+
+    static final class Constant extends Expression {
+        private static final long serialVersionUID = 1L;
+        final Field value;
+
+        Constant(Field value) {
+            this.value = value;
+        }
+
+        public Type getType(TupleDesc td) {
+            return value.getType();
+        }
+
+        public IntValue compileInt(TupleDesc td) {
+            final int v = ((IntField) value).getValue();
+            return t -> v;
+        }
+
+        public StringValue compileString(TupleDesc td) {
+            final String v = ((StringField) value).getValue();
+            return t -> v;
+        }
+
+        public String toString() {
+            return value.getType() == Type.STRING_TYPE ? "'" + value + "'" : value.toString();
+        }
+    }
+
+    static final class Arithmetic extends Expression {
+        private static final long serialVersionUID = 1L;
+        final ArithOp op;
+        final Expression left, right;
+
+        Arithmetic(ArithOp op, Expression left, Expression right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        public Type getType(TupleDesc td) {
+            return Type.INT_TYPE;
+        }
+
+        public IntValue compileInt(TupleDesc td) {
+            final IntValue a = left.compileInt(td);
+            if (right instanceof Constant) {
+                final int k = ((IntField) ((Constant) right).value).getValue();
+                switch (op) {
+                case PLUS:
+                    return t -> a.eval(t) + k;
+                case MINUS:
+                    return t -> a.eval(t) - k;
+                case TIMES:
+                    return t -> a.eval(t) * k;
+                case DIVIDE:
+                    return t -> a.eval(t) / k;
+                default:
+                    return t -> a.eval(t) % k;
+                }
+            }
+            final IntValue b = right.compileInt(td);
+            switch (op) {
+            case PLUS:
+                return t -> a.eval(t) + b.eval(t);
+            case MINUS:
+                return t -> a.eval(t) - b.eval(t);
+            case TIMES:
+                return t -> a.eval(t) * b.eval(t);
+            case DIVIDE:
+                return t -> a.eval(t) / b.eval(t);
+            default:
+                return t -> a.eval(t) % b.eval(t);
+            }
+        }
+
+        public void collectColumns(Collection<String> names) {
+            left.collectColumns(names);
+            right.collectColumns(names);
+        }
+
+        public String toString() {
+            return "(" + left + op + right + ")";
+        }
+    }
+
+    static final class Comparison extends Expression {
+        private static final long serialVersionUID = 1L;
+        final Predicate.Op op;
+        final Expression left, right;
+
+        Comparison(Predicate.Op op, Expression left, Expression right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        public Type getType(TupleDesc td) {
+            return null;
+        }
+
+        public Predicate asPredicate() {
+            if (left instanceof Column && ((Column) left).index >= 0 && right instanceof Constant)
+                return new Predicate(((Column) left).index, op, ((Constant) right).value);
+            return null;
+        }
+
+        public Test compilePredicate(TupleDesc td) {
+            Type lt = left.getType(td);
+            Type rt = right.getType(td);
+            Type type = lt != null ? lt : rt;
+            if (type == null || (lt != null && rt != null && lt != rt))
+                throw new IllegalArgumentException("cannot compare " + left + " and " + right);
+            if (type == Type.STRING_TYPE)
+                return compileStrings(td);
+            if (left instanceof Column && right instanceof Constant)
+                return columnConstant(op, ((Column) left).resolve(td),
+                        ((IntField) ((Constant) right).value).getValue());
+            if (left instanceof Constant && right instanceof Column)
+                return columnConstant(flip(op), ((Column) right).resolve(td),
+                        ((IntField) ((Constant) left).value).getValue());
+            final IntValue a = left.compileInt(td);
+            final IntValue b = right.compileInt(td);
+            switch (op) {
+            case EQUALS:
+            case LIKE:
+                return t -> a.eval(t) == b.eval(t);
+            case NOT_EQUALS:
+                return t -> a.eval(t) != b.eval(t);
+            case GREATER_THAN:
+                return t -> a.eval(t) > b.eval(t);
+            case GREATER_THAN_OR_EQ:
+                return t -> a.eval(t) >= b.eval(t);
+            case LESS_THAN:
+                return t -> a.eval(t) < b.eval(t);
+            default:
+                return t -> a.eval(t) <= b.eval(t);
+            }
+        }
+
+        /**
+         * @return the operator with its operands swapped: k < x is x > k
+         */
+        private static Predicate.Op flip(Predicate.Op op) {
+            switch (op) {
+            case LESS_THAN:
+                return Predicate.Op.GREATER_THAN;
+            case LESS_THAN_OR_EQ:
+                return Predicate.Op.GREATER_THAN_OR_EQ;
+            case GREATER_THAN:
+                return Predicate.Op.LESS_THAN;
+            case GREATER_THAN_OR_EQ:
+                return Predicate.Op.LESS_THAN_OR_EQ;
+            default:
+                return op;
+            }
+        }
+
+        /**
+         * The common case of an integer column compared to a constant reads
+         * the column directly.
+         */
+        private static Test columnConstant(Predicate.Op op, final int i, final int k) {
+            switch (op) {
+            case EQUALS:
+            case LIKE:
+                return t -> ((IntField) t.getField(i)).getValue() == k;
+            case NOT_EQUALS:
+                return t -> ((IntField) t.getField(i)).getValue() != k;
+            case GREATER_THAN:
+                return t -> ((IntField) t.getField(i)).getValue() > k;
+            case GREATER_THAN_OR_EQ:
+                return t -> ((IntField) t.getField(i)).getValue() >= k;
+            case LESS_THAN:
+                return t -> ((IntField) t.getField(i)).getValue() < k;
+            default:
+                return t -> ((IntField) t.getField(i)).getValue() <= k;
+            }
+        }
+
+        private Test compileStrings(TupleDesc td) {
+            final StringValue a = left.compileString(td);
+            final StringValue b = right.compileString(td);
+            switch (op) {
+            case EQUALS:
+                return t -> a.eval(t).equals(b.eval(t));
+            case NOT_EQUALS:
+                return t -> !a.eval(t).equals(b.eval(t));
+            case GREATER_THAN:
+                return t -> a.eval(t).compareTo(b.eval(t)) > 0;
+            case GREATER_THAN_OR_EQ:
+                return t -> a.eval(t).compareTo(b.eval(t)) >= 0;
+            case LESS_THAN:
+                return t -> a.eval(t).compareTo(b.eval(t)) < 0;
+            case LESS_THAN_OR_EQ:
+                return t -> a.eval(t).compareTo(b.eval(t)) <= 0;
+            default:
+                return t -> a.eval(t).indexOf(b.eval(t)) >= 0;
+            }
+        }
+
+        public void collectColumns(Collection<String> names) {
+            left.collectColumns(names);
+            right.collectColumns(names);
+        }
+
+        public String toString() {
+            return left.toString() + op + right;
+        }
+    }
+
+    /** AND (conjunction) or OR (disjunction) of any number of terms. */
+    static final class Junction extends Expression {
+        private static final long serialVersionUID = 1L;
+        final boolean and;
+        final Expression[] terms;
+
+        Junction(boolean and, Expression[] terms) {
+            if (terms.length == 0)
+                throw new IllegalArgumentException("empty " + (and ? "AND" : "OR"));
+            // flatten nested junctions of the same kind
+            List<Expression> flat = new ArrayList<Expression>();
+            for (Expression e : terms) {
+                if (e instanceof Junction && ((Junction) e).and == and)
+                    flat.addAll(Arrays.asList(((Junction) e).terms));
+                else
+                    flat.add(e);
+            }
+            this.and = and;
+            this.terms = flat.toArray(new Expression[flat.size()]);
+        }
+
+        public Type getType(TupleDesc td) {
+            return null;
+        }
+
+        public Test compilePredicate(TupleDesc td) {
+            final Test[] tests = new Test[terms.length];
+            for (int i = 0; i < tests.length; i++)
+                tests[i] = terms[i].compilePredicate(td);
+            if (tests.length == 1)
+                return tests[0];
+            final Test a = tests[0];
+            final Test b = tests[1];
+            if (tests.length == 2)
+                return and ? (t -> a.test(t) && b.test(t)) : (t -> a.test(t) || b.test(t));
+            if (and) {
+                return t -> {
+                    for (Test x : tests) {
+                        if (!x.test(t))
+                            return false;
+                    }
+                    return true;
+                };
+            }
+            return t -> {
+                for (Test x : tests) {
+                    if (x.test(t))
+                        return true;
+                }
+                return false;
+            };
+        }
+
+        public void collectColumns(Collection<String> names) {
+            for (Expression e : terms)
+                e.collectColumns(names);
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder("(");
+            for (int i = 0; i < terms.length; i++) {
+                if (i > 0)
+                    sb.append(and ? " AND " : " OR ");
+                sb.append(terms[i]);
+            }
+            return sb.append(")").toString();
+        }
+    }
+
+    static final class Not extends Expression {
+        private static final long serialVersionUID = 1L;
+        final Expression e;
+
+        Not(Expression e) {
+            this.e = e;
+        }
+
+        public Type getType(TupleDesc td) {
+            return null;
+        }
+
+        public Test compilePredicate(TupleDesc td) {
+            final Test a = e.compilePredicate(td);
+            return t -> !a.test(t);
+        }
+
+        public void collectColumns(Collection<String> names) {
+            e.collectColumns(names);
+        }
+
+        public String toString() {
+            return "NOT " + e;
+        }
+    }
+}
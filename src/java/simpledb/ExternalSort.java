@@ -0,0 +1,226 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * ExternalSort sorts a stream of tuples that may be larger than memory.
+ * <p>
+ * Tuples passed to {@link #add} are buffered until the buffer reaches the
+ * operator memory budget ({@link BufferPool#getOperatorMemoryBytes()}). Each
+ * full buffer is sorted in memory and written to a {@link SpillFile} as a
+ * sorted run. {@link #iterator()} then merges the runs, together with the
+ * last buffer, which stays in memory, using a loser tree. If there are more
+ * runs than can be merged at once (one input page per run), runs are first
+ * merged into longer runs. Input that fits in memory is never written to
+ * disk.
+ */
+public class ExternalSort {
+
+    private final TupleDesc td;
+    private final Comparator<Tuple> comparator;
+    private final int maxTuples;
+    private final int fanIn;
+
+    private ArrayList<Tuple> buffer = new ArrayList<Tuple>();
+    private final ArrayList<SpillFile> runs = new ArrayList<SpillFile>();
+    private boolean sorted = false;
+
+    /**
+     * @param td the schema of the tuples to sort
+     * @param comparator the sort order
+     */
+    public ExternalSort(TupleDesc td, Comparator<Tuple> comparator) {
+        this.td = td;
+        this.comparator = comparator;
+        this.maxTuples = (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+                BufferPool.getOperatorMemoryBytes() / td.getSize()));
+        this.fanIn = Math.max(2, BufferPool.getOperatorMemoryPages() - 1);
+    }
+
+    /**
+     * Add a tuple to the sort input.
+     */
+    public void add(Tuple t) throws DbException {
+        if (sorted)
+            throw new DbException("cannot add tuples after the sort has been read");
+        buffer.add(t);
+        if (buffer.size() >= maxTuples)
+            spillBuffer();
+    }
+
+    /**
+     * Add every tuple of an open iterator to the sort input.
+     */
+    public void addAll(OpIterator it) throws DbException, TransactionAbortedException {
+        while (it.hasNext())
+            add(it.next());
+    }
+
+    /**
+     * @return the number of sorted runs written to disk so far
+     */
+    public int numRuns() {
+        return runs.size();
+    }
+
+    private void spillBuffer() throws DbException {
+        Collections.sort(buffer, comparator);
+        SpillFile run = new SpillFile(td);
+        for (Tuple t : buffer)
+            run.add(t);
+        run.finish();
+        runs.add(run);
+        buffer = new ArrayList<Tuple>();
+    }
+
+    /**
+     * Finish the input and return the tuples in sorted order. No tuples can
+     * be added afterwards. The returned iterator supports rewind.
+     */
+    public OpIterator iterator() throws DbException, TransactionAbortedException {
+        if (!sorted) {
+            sorted = true;
+            Collections.sort(buffer, comparator);
+            // leave room for the in-memory run in the final merge
+            while (runs.size() + 1 > fanIn)
+                mergeRuns();
+        }
+        ArrayList<OpIterator> sources = new ArrayList<OpIterator>();
+        for (SpillFile run : runs)
+            sources.add(run.iterator());
+        if (!buffer.isEmpty() || sources.isEmpty())
+            sources.add(new TupleIterator(td, buffer));
+        if (sources.size() == 1)
+            return sources.get(0);
+        return new MergeIterator(sources);
+    }
+
+    /**
+     * Merge the first fanIn runs into a single longer run.
+     */
+    private void mergeRuns() throws DbException, TransactionAbortedException {
+        List<SpillFile> merging = new ArrayList<SpillFile>(runs.subList(0, fanIn));
+        runs.subList(0, fanIn).clear();
+        ArrayList<OpIterator> sources = new ArrayList<OpIterator>();
+        for (SpillFile run : merging)
+            sources.add(run.iterator());
+        MergeIterator merge = new MergeIterator(sources);
+        SpillFile out = new SpillFile(td);
+        merge.open();
+        while (merge.hasNext())
+            out.add(merge.next());
+        merge.close();
+        out.finish();
+        for (SpillFile run : merging)
+            run.delete();
+        runs.add(out);
+    }
+
+    /**
+     * Delete all sorted runs and drop the in-memory buffer.
+     */
+    public void close() {
+        for (SpillFile run : runs)
+            run.delete();
+        runs.clear();
+        buffer = new ArrayList<Tuple>();
+    }
+
+    /**
+     * K-way merge of sorted inputs with a loser tree: each output tuple costs
+     * log2(k) comparisons, against one path from a leaf to the root.
+     */
+    private class MergeIterator implements OpIterator {
+
+        private static final long serialVersionUID = 1L;
+        private final List<OpIterator> sources;
+        private final int k;
+        /** Current tuple of each source; null once the source is exhausted. */
+        private final Tuple[] heads;
+        /** tree[0] is the winner, tree[1..k-1] the loser at each node. */
+        private final int[] tree;
+        private boolean open = false;
+
+        MergeIterator(List<OpIterator> sources) {
+            this.sources = sources;
+            this.k = sources.size();
+            this.heads = new Tuple[k];
+            this.tree = new int[k];
+        }
+
+        /**
+         * @return true if source a's head sorts before source b's. Index k
+         *         is a virtual source smaller than everything, used only
+         *         while the tree is being built; exhausted sources sort last.
+         */
+        private boolean beats(int a, int b) {
+            if (a == k)
+                return true;
+            if (b == k)
+                return false;
+            if (heads[a] == null)
+                return false;
+            if (heads[b] == null)
+                return true;
+            int c = comparator.compare(heads[a], heads[b]);
+            return c < 0 || (c == 0 && a < b);
+        }
+
+        private void adjust(int s) {
+            for (int t = (s + k) / 2; t > 0; t /= 2) {
+                if (beats(tree[t], s)) {
+                    int winner = tree[t];
+                    tree[t] = s;
+                    s = winner;
+                }
+            }
+            tree[0] = s;
+        }
+
+        private Tuple advance(int i) throws DbException, TransactionAbortedException {
+            OpIterator src = sources.get(i);
+            return src.hasNext() ? src.next() : null;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            for (int i = 0; i < k; i++) {
+                sources.get(i).open();
+                heads[i] = advance(i);
+            }
+            Arrays.fill(tree, k);
+            for (int i = k - 1; i >= 0; i--)
+                adjust(i);
+            open = true;
+        }
+
+        public boolean hasNext() {
+            return open && heads[tree[0]] != null;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            int w = tree[0];
+            Tuple t = heads[w];
+            heads[w] = advance(w);
+            adjust(w);
+            return t;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            for (OpIterator src : sources)
+                src.close();
+            Arrays.fill(heads, null);
+            open = false;
+        }
+    }
+}
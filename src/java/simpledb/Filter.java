@@ -3,12 +3,17 @@ package simpledb;
 import java.util.*;
 
 /**
- * Filter is an operator that implements a relational select.
+ * Filter is an operator that implements a relational select, either on a
+ * single {@link Predicate} or on an arbitrary boolean {@link Expression}.
+ * The condition is compiled against the child's schema when the filter is
+ * opened.
  */
 public class Filter extends Operator {
 
     Predicate p;
+    Expression expr;
     OpIterator child;
+    private transient Expression.Test test;
     private static final long serialVersionUID = 1L;
 
     /**
@@ -22,19 +27,53 @@ public class Filter extends Operator {
      */
     public Filter(Predicate p, OpIterator child) {
         this.p = p;
+        this.expr = Expression.of(p);
         this.child = child;
     }
 
+    /**
+     * Constructor accepts a boolean expression over the child's fields.
+     * 
+     * @param e
+     *            The expression to filter tuples with
+     * @param child
+     *            The child operator
+     */
+    public Filter(Expression e, OpIterator child) {
+        this.p = e.asPredicate();
+        this.expr = e;
+        this.child = child;
+    }
+
+    /**
+     * @return the predicate of this filter, or null if its condition is an
+     *         expression other than a comparison of a field with a constant
+     */
     public Predicate getPredicate() {
         return p;
     }
 
+    public Expression getExpression() {
+        return expr;
+    }
+
+    /**
+     * @return true if the tuple, of the child's schema, satisfies the
+     *         condition of this filter
+     */
+    public boolean matches(Tuple t) {
+        if (test == null)
+            test = expr.compilePredicate(child.getTupleDesc());
+        return test.test(t);
+    }
+
     public TupleDesc getTupleDesc() {
         return child.getTupleDesc();
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
+        test = expr.compilePredicate(child.getTupleDesc());
         child.open();
         super.open();
     }
@@ -62,7 +101,7 @@ public class Filter extends Operator {
             TransactionAbortedException, DbException {
         while (child.hasNext()){
             Tuple t = child.next();
-            if (p.filter(t)) return t;
+            if (test.test(t)) return t;
             }
         return null;
         }
@@ -78,6 +117,7 @@ public class Filter extends Operator {
     @Override
     public void setChildren(OpIterator[] children) {
         child = children[0];
+        test = null;
     }
 
 }
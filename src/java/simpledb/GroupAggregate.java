@@ -0,0 +1,395 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * GroupAggregate computes any number of aggregates over the groups defined by
+ * any number of grouping columns, in a single pass over its child, e.g. for
+ * <tt>SELECT a, b, SUM(c), MAX(d) ... GROUP BY a, b</tt>. With no grouping
+ * columns every tuple belongs to one group.
+ * <p>
+ * The output has the grouping columns first, in the order given, followed by
+ * one INT_TYPE column per aggregate. COUNT accepts a column of any type; the
+ * other aggregates need an INT_TYPE column.
+ * <p>
+ * Groups are hashed into a {@link RowKeyHashTable} whose ordinals index the
+ * accumulator arrays. If the child is known to be ordered on one of the
+ * grouping columns (see {@link SortMergeJoin#isSortedOn}), the groups of one
+ * value of that column are complete as soon as the value changes, so the
+ * table only ever holds one run of them and results are returned as the
+ * input streams by. Groups that outgrow the operator memory budget are hash
+ * partitioned into spill files and aggregated after the input is consumed,
+ * as in {@link IntegerAggregator}.
+ */
+public class GroupAggregate extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Approximate bytes of table and bookkeeping state per group. */
+    private static final int GROUP_OVERHEAD = 40;
+
+    private OpIterator child;
+    private final int[] gfields;
+    private final int[] afields;
+    private final Aggregator.Op[] aops;
+    private final int depth;
+    private TupleDesc td;
+    /** Index into gfields of the column the child is ordered on, or -1. */
+    private int runField;
+
+    transient private RowKeyHashTable<Void> groups;
+    /** Running value of each aggregate per group ordinal; see result(). */
+    transient private long[][] values;
+    transient private int[] counts;
+    transient private int maxGroups;
+    transient private Field[] probe;
+    /** Next group ordinal to return, and the number ready to return. */
+    transient private int emitPos, emitLimit;
+    /** First tuple of the next run when streaming. */
+    transient private Tuple pending;
+    transient private boolean inputDone;
+    /** Spilled (group fields, aggregate fields) tuples by partition, or null. */
+    transient private SpillFile[] partitions;
+    transient private TupleDesc spillTd;
+    transient private int partition;
+    transient private GroupAggregate sub;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The OpIterator that is feeding us tuples.
+     * @param gfields
+     *            The columns to group by; empty for a single group
+     * @param afields
+     *            The column each aggregate is computed over
+     * @param aops
+     *            The aggregation operator of each aggregate; one of MIN, MAX,
+     *            SUM, AVG or COUNT
+     * @throws IllegalArgumentException
+     *             if an operator is not supported on its column
+     */
+    public GroupAggregate(OpIterator child, int[] gfields, int[] afields, Aggregator.Op[] aops) {
+        this(child, gfields, afields, aops, 0);
+    }
+
+    private GroupAggregate(OpIterator child, int[] gfields, int[] afields,
+            Aggregator.Op[] aops, int depth) {
+        if (afields.length != aops.length)
+            throw new IllegalArgumentException("need one operator per aggregate field");
+        TupleDesc ctd = child.getTupleDesc();
+        for (int i = 0; i < aops.length; i++) {
+            switch (aops[i]) {
+            case COUNT:
+                break;
+            case MIN:
+            case MAX:
+            case SUM:
+            case AVG:
+                if (ctd.getFieldType(afields[i]) != Type.INT_TYPE)
+                    throw new IllegalArgumentException(aops[i] + " needs an integer column, not "
+                            + ctd.getFieldName(afields[i]));
+                break;
+            default:
+                throw new IllegalArgumentException("unsupported aggregate " + aops[i]);
+            }
+        }
+        this.child = child;
+        this.gfields = gfields.clone();
+        this.afields = afields.clone();
+        this.aops = aops.clone();
+        this.depth = depth;
+        init();
+    }
+
+    private void init() {
+        TupleDesc ctd = child.getTupleDesc();
+        int n = gfields.length + afields.length;
+        Type[] types = new Type[n];
+        String[] names = new String[n];
+        for (int i = 0; i < gfields.length; i++) {
+            types[i] = ctd.getFieldType(gfields[i]);
+            names[i] = ctd.getFieldName(gfields[i]);
+        }
+        for (int i = 0; i < afields.length; i++) {
+            types[gfields.length + i] = Type.INT_TYPE;
+            names[gfields.length + i] = aops[i] + "(" + ctd.getFieldName(afields[i]) + ")";
+        }
+        td = new TupleDesc(types, names);
+        runField = -1;
+        for (int i = 0; i < gfields.length && runField < 0; i++) {
+            if (SortMergeJoin.isSortedOn(child, gfields[i], true)
+                    || SortMergeJoin.isSortedOn(child, gfields[i], false))
+                runField = i;
+        }
+    }
+
+    /**
+     * @return the grouping columns, as indexes into the child's tuples
+     */
+    public int[] getGroupFields() {
+        return gfields.clone();
+    }
+
+    /**
+     * @return the aggregated columns, as indexes into the child's tuples
+     */
+    public int[] getAggregateFields() {
+        return afields.clone();
+    }
+
+    public Aggregator.Op[] getAggregateOps() {
+        return aops.clone();
+    }
+
+    /**
+     * @return true if the child is ordered on a grouping column, so that
+     *         groups are returned as soon as they are complete
+     */
+    public boolean isStreaming() {
+        return runField >= 0;
+    }
+
+    /**
+     * @return true if the output is in the given order on the given field:
+     *         when streaming by a single grouping column, the groups come
+     *         out in the child's order
+     */
+    boolean isSortedOn(int field, boolean asc) {
+        return gfields.length == 1 && field == 0 && isStreaming()
+                && SortMergeJoin.isSortedOn(child, gfields[0], asc);
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws NoSuchElementException, DbException,
+            TransactionAbortedException {
+        child.open();
+        start();
+        super.open();
+    }
+
+    private void start() {
+        int groupSize = GROUP_OVERHEAD + 8 * afields.length;
+        for (int f : gfields)
+            groupSize += child.getTupleDesc().getFieldType(f).getLen();
+        maxGroups = depth >= HashEquiJoin.MAX_DEPTH ? Integer.MAX_VALUE
+                : (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+                        BufferPool.getOperatorMemoryBytes() / groupSize));
+        groups = new RowKeyHashTable<Void>();
+        values = new long[afields.length][16];
+        counts = new int[16];
+        probe = new Field[gfields.length];
+        emitPos = emitLimit = 0;
+        pending = null;
+        inputDone = false;
+        partition = 0;
+    }
+
+    private void release() {
+        if (sub != null)
+            sub.close();
+        sub = null;
+        if (partitions != null) {
+            for (SpillFile f : partitions) {
+                if (f != null)
+                    f.delete();
+            }
+        }
+        partitions = null;
+        groups = null;
+        values = null;
+        counts = null;
+        pending = null;
+    }
+
+    public void close() {
+        super.close();
+        release();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        release();
+        child.rewind();
+        start();
+    }
+
+    /**
+     * Merge a tuple into the accumulators of its group.
+     */
+    private void merge(Tuple t) throws DbException {
+        for (int i = 0; i < gfields.length; i++)
+            probe[i] = t.getField(gfields[i]);
+        int group = groups.find(probe);
+        if (group == KeyHashTable.NONE) {
+            if (groups.size() >= maxGroups) {
+                spill(t);
+                return;
+            }
+            group = groups.findOrInsert(probe.clone());
+            if (group == counts.length) {
+                counts = Arrays.copyOf(counts, group * 2);
+                for (int a = 0; a < values.length; a++)
+                    values[a] = Arrays.copyOf(values[a], group * 2);
+            }
+            counts[group] = 1;
+            for (int a = 0; a < afields.length; a++) {
+                Field f = t.getField(afields[a]);
+                values[a][group] = f instanceof IntField ? ((IntField) f).getValue() : 0;
+            }
+            return;
+        }
+        counts[group]++;
+        for (int a = 0; a < afields.length; a++) {
+            if (aops[a] == Aggregator.Op.COUNT)
+                continue;
+            int value = ((IntField) t.getField(afields[a])).getValue();
+            switch (aops[a]) {
+            case MIN:
+                if (value < values[a][group])
+                    values[a][group] = value;
+                break;
+            case MAX:
+                if (value > values[a][group])
+                    values[a][group] = value;
+                break;
+            default:
+                values[a][group] += value;
+                break;
+            }
+        }
+    }
+
+    private void spill(Tuple t) throws DbException {
+        if (partitions == null) {
+            partitions = new SpillFile[Math.max(2, Math.min(HashEquiJoin.MAX_FANOUT,
+                    BufferPool.getOperatorMemoryPages()))];
+            TupleDesc ctd = child.getTupleDesc();
+            Type[] types = new Type[gfields.length + afields.length];
+            for (int i = 0; i < gfields.length; i++)
+                types[i] = ctd.getFieldType(gfields[i]);
+            for (int i = 0; i < afields.length; i++)
+                types[gfields.length + i] = ctd.getFieldType(afields[i]);
+            spillTd = new TupleDesc(types);
+        }
+        int p = RowKeyHashTable.partition(probe, depth, partitions.length);
+        if (partitions[p] == null)
+            partitions[p] = new SpillFile(spillTd);
+        Tuple s = new Tuple(spillTd);
+        for (int i = 0; i < gfields.length; i++)
+            s.setField(i, probe[i]);
+        for (int i = 0; i < afields.length; i++)
+            s.setField(gfields.length + i, t.getField(afields[i]));
+        partitions[p].add(s);
+    }
+
+    /**
+     * Consume the next run of the child: all of it when hashing, or the
+     * tuples sharing one value of the ordered grouping column when
+     * streaming.
+     */
+    private void consume() throws DbException, TransactionAbortedException {
+        groups.clear();
+        if (runField < 0) {
+            while (child.hasNext())
+                merge(child.next());
+            inputDone = true;
+        } else {
+            if (pending == null && child.hasNext())
+                pending = child.next();
+            if (pending != null) {
+                Field run = pending.getField(gfields[runField]);
+                merge(pending);
+                pending = null;
+                while (child.hasNext()) {
+                    Tuple t = child.next();
+                    if (!t.getField(gfields[runField]).equals(run)) {
+                        pending = t;
+                        break;
+                    }
+                    merge(t);
+                }
+            }
+            inputDone = pending == null;
+        }
+        emitPos = 0;
+        emitLimit = groups.size();
+    }
+
+    /**
+     * @return the final value of an aggregate for a group
+     */
+    private int result(int a, int group) {
+        switch (aops[a]) {
+        case COUNT:
+            return counts[group];
+        case AVG:
+            return (int) (values[a][group] / counts[group]);
+        default:
+            return (int) values[a][group];
+        }
+    }
+
+    /**
+     * Returns the next group: its grouping column values followed by its
+     * aggregate values, or null if there are no more groups.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (emitPos < emitLimit) {
+                Tuple t = new Tuple(td);
+                Field[] key = groups.getKeyRow(emitPos);
+                for (int i = 0; i < key.length; i++)
+                    t.setField(i, key[i]);
+                for (int a = 0; a < afields.length; a++)
+                    t.setField(gfields.length + a, new IntField(result(a, emitPos)));
+                emitPos++;
+                return t;
+            }
+            if (!inputDone) {
+                consume();
+                continue;
+            }
+            if (sub != null && sub.hasNext())
+                return sub.next();
+            if (sub != null) {
+                sub.close();
+                sub = null;
+                partitions[partition - 1].delete();
+                partitions[partition - 1] = null;
+            }
+            while (partitions != null && partition < partitions.length
+                    && partitions[partition] == null)
+                partition++;
+            if (partitions == null || partition == partitions.length)
+                return null;
+            sub = new GroupAggregate(partitions[partition].iterator(),
+                    range(0, gfields.length), range(gfields.length, afields.length),
+                    aops, depth + 1);
+            partition++;
+            sub.open();
+        }
+    }
+
+    private static int[] range(int from, int n) {
+        int[] r = new int[n];
+        for (int i = 0; i < n; i++)
+            r[i] = from + i;
+        return r;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+        init();
+    }
+
+}
@@ -0,0 +1,301 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Each instance of HashBucketPage stores the tuples of one bucket of a
+ * HashFile, or of one overflow page of a bucket, and implements the Page
+ * interface that is used by BufferPool.
+ *
+ * @see HashFile
+ * @see BufferPool
+ */
+public class HashBucketPage implements Page {
+
+    final static int HEADER_SIZE = 2 * Type.INT_TYPE.getLen();
+
+    private final HashPageId pid;
+    private final TupleDesc td;
+    private final byte header[];
+    private final Tuple tuples[];
+    private final int numSlots;
+
+    private int localDepth;
+    private int nextPage;
+
+    private boolean dirty = false;
+    private TransactionId dirtier = null;
+    private byte[] oldData;
+    private final Byte oldDataLock = new Byte((byte) 0);
+
+    /**
+     * Create a HashBucketPage from a set of bytes of data read from disk.
+     * The format of a HashBucketPage is an integer for the local depth of
+     * the bucket, the number of low-order bits of the hash that all its keys
+     * share, then an integer for the page number of the next overflow page
+     * of the bucket (0 if there is none), then, as in a {@link HeapPage}, a
+     * set of header bytes indicating the slots of the page that are in use
+     * and the tuple slots.
+     *
+     * @see #getMaxTuples()
+     */
+    public HashBucketPage(HashPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.numSlots = getMaxTuples();
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+
+        localDepth = dis.readInt();
+        nextPage = dis.readInt();
+        header = new byte[getHeaderSize()];
+        for (int i = 0; i < header.length; i++)
+            header[i] = dis.readByte();
+        tuples = new Tuple[numSlots];
+        try {
+            for (int i = 0; i < tuples.length; i++)
+                tuples[i] = readNextTuple(dis, i);
+        } catch (NoSuchElementException e) {
+            e.printStackTrace();
+        }
+        dis.close();
+
+        setBeforeImage();
+    }
+
+    /**
+     * @return the number of tuples a bucket page has room for
+     */
+    public int getMaxTuples() {
+        return (BufferPool.getPageSize() - HEADER_SIZE) * 8 / (td.getSize() * 8 + 1);
+    }
+
+    private int getHeaderSize() {
+        return (getMaxTuples() + 7) / 8;
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HashPageId getId() {
+        return pid;
+    }
+
+    /**
+     * @return the number of low-order bits of the hash values that the keys
+     *         of this bucket share
+     */
+    public int getLocalDepth() {
+        return localDepth;
+    }
+
+    public void setLocalDepth(int localDepth) {
+        this.localDepth = localDepth;
+    }
+
+    /**
+     * @return the id of the next overflow page of this bucket, or null if
+     *         this is the last page of the bucket
+     */
+    public HashPageId getNextPageId() {
+        if (nextPage == 0)
+            return null;
+        return new HashPageId(pid.getTableId(), nextPage, HashPageId.BUCKET);
+    }
+
+    /**
+     * Set the id of the next overflow page of this bucket
+     * @param id - the id of the next page, or null if there is none
+     */
+    public void setNextPageId(HashPageId id) throws DbException {
+        if (id == null) {
+            nextPage = 0;
+            return;
+        }
+        if (id.getTableId() != pid.getTableId() || id.pgcateg() != HashPageId.BUCKET)
+            throw new DbException("next page is not a bucket page of this table");
+        nextPage = id.getPageNumber();
+    }
+
+    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
+        // if associated bit is not set, read forward to the next tuple, and
+        // return null.
+        if (!isSlotUsed(slotId)) {
+            try {
+                dis.skipBytes(td.getSize());
+            } catch (IOException e) {
+                throw new NoSuchElementException("error reading empty tuple");
+            }
+            return null;
+        }
+
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slotId));
+        try {
+            for (int j = 0; j < td.numFields(); j++)
+                t.setField(j, td.getFieldType(j).parse(dis));
+        } catch (java.text.ParseException e) {
+            e.printStackTrace();
+            throw new NoSuchElementException("parsing error!");
+        }
+        return t;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page.
+     * Used to serialize this page to disk.
+     * <p>
+     * The invariant here is that it should be possible to pass the byte
+     * array generated by getPageData to the HashBucketPage constructor and
+     * have it produce an identical HashBucketPage object.
+     *
+     * @return A byte array correspond to the bytes of this page.
+     */
+    public byte[] getPageData() {
+        int len = BufferPool.getPageSize();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeInt(localDepth);
+            dos.writeInt(nextPage);
+            dos.write(header);
+            for (int i = 0; i < tuples.length; i++) {
+                if (!isSlotUsed(i)) {
+                    dos.write(new byte[td.getSize()]);
+                    continue;
+                }
+                for (int j = 0; j < td.numFields(); j++)
+                    tuples[i].getField(j).serialize(dos);
+            }
+            dos.write(new byte[len - HEADER_SIZE - header.length - td.getSize() * tuples.length]);
+            dos.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to an empty
+     * HashBucketPage, of local depth 0 and with no overflow page.
+     *
+     * @return The returned ByteArray.
+     */
+    public static byte[] createEmptyPageData() {
+        int len = BufferPool.getPageSize();
+        return new byte[len]; //all 0
+    }
+
+    /**
+     * Delete the specified tuple from the page
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     * @param t The tuple to delete
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !rid.getPageId().equals(pid))
+            throw new DbException("tuple is not on this page");
+        int slot = rid.getTupleNumber();
+        if (slot < 0 || slot >= numSlots || !isSlotUsed(slot))
+            throw new DbException("tuple slot is already empty");
+        tuples[slot] = null;
+        markSlotUsed(slot, false);
+    }
+
+    /**
+     * Adds the specified tuple to the page; the tuple is updated to reflect
+     * that it is now stored on this page.
+     * @throws DbException if the page is full (no empty slots) or tupledesc
+     *         is mismatch.
+     * @param t The tuple to add.
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (!td.equals(t.getTupleDesc()))
+            throw new DbException("tupleDesc is mismatch");
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                t.setRecordId(new RecordId(pid, i));
+                tuples[i] = t;
+                markSlotUsed(i, true);
+                return;
+            }
+        }
+        throw new DbException("the page is full");
+    }
+
+    /**
+     * Returns the number of empty slots on this page.
+     */
+    public int getNumEmptySlots() {
+        int count = 0;
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i))
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int i) {
+        return (header[i / 8] >> (i % 8) & 1) == 1;
+    }
+
+    private void markSlotUsed(int i, boolean value) {
+        if (value)
+            header[i / 8] = (byte) (header[i / 8] | (1 << (i % 8)));
+        else
+            header[i / 8] = (byte) (header[i / 8] & ~(1 << (i % 8)));
+    }
+
+    /**
+     * @return an iterator over all tuples on this page (calling remove on
+     *         this iterator throws an UnsupportedOperationException)
+     */
+    public Iterator<Tuple> iterator() {
+        List<Tuple> used = new ArrayList<Tuple>();
+        for (int i = 0; i < numSlots; i++) {
+            if (isSlotUsed(i))
+                used.add(tuples[i]);
+        }
+        return Collections.unmodifiableList(used).iterator();
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public HashBucketPage getBeforeImage() {
+        try {
+            byte[] oldDataRef = null;
+            synchronized (oldDataLock) {
+                oldDataRef = oldData;
+            }
+            return new HashBucketPage(pid, oldDataRef);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = getPageData().clone();
+        }
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        if (dirty)
+            this.dirtier = tid;
+    }
+
+    public TransactionId isDirty() {
+        if (this.dirty)
+            return this.dirtier;
+        else
+            return null;
+    }
+}
@@ -0,0 +1,208 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * HashDirectoryPage stores the directory of an extendible hash file: the
+ * bucket page holding the tuples whose key hashes to each value of the
+ * low-order bits of the hash, and implements the Page interface that is
+ * used by BufferPool.
+ *
+ * @see HashFile
+ * @see BufferPool
+ */
+public class HashDirectoryPage implements Page {
+
+    private final HashPageId pid;
+    private boolean dirty = false;
+    private TransactionId dirtier = null;
+
+    private int globalDepth;
+    private int[] buckets;
+
+    private byte[] oldData;
+    private final Byte oldDataLock = new Byte((byte) 0);
+
+    /**
+     * Create a HashDirectoryPage from a set of bytes of data read from disk.
+     * The format of a HashDirectoryPage is an integer for the global depth d
+     * of the directory, followed by 2^d integers, the page numbers of the
+     * buckets of the hash values whose low-order d bits are 0, 1, 2, and so
+     * on. Several entries share a bucket whose local depth is less than d.
+     * An entry of 0 means that the file has no buckets yet.
+     *
+     * @see #getMaxDepth()
+     */
+    public HashDirectoryPage(HashPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        globalDepth = dis.readInt();
+        buckets = new int[1 << globalDepth];
+        for (int i = 0; i < buckets.length; i++)
+            buckets[i] = dis.readInt();
+        dis.close();
+
+        setBeforeImage();
+    }
+
+    /**
+     * @return the largest global depth a directory page has room for
+     */
+    public static int getMaxDepth() {
+        int entries = (BufferPool.getPageSize() - Type.INT_TYPE.getLen()) / Type.INT_TYPE.getLen();
+        return 31 - Integer.numberOfLeadingZeros(entries);
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HashPageId getId() {
+        return pid;
+    }
+
+    /**
+     * There is only one directory page per table, the first page of the file.
+     * This static method is separate from getId() in order to maintain the
+     * Page interface
+     * @param tableid - the tableid of this table
+     * @return the directory page id for the given table
+     */
+    public static HashPageId getId(int tableid) {
+        return new HashPageId(tableid, 0, HashPageId.DIRECTORY);
+    }
+
+    /**
+     * @return the number of low-order bits of the hash values that select
+     *         an entry of this directory
+     */
+    public int getGlobalDepth() {
+        return globalDepth;
+    }
+
+    /**
+     * @return the number of entries of this directory, 2^getGlobalDepth()
+     */
+    public int getNumEntries() {
+        return buckets.length;
+    }
+
+    /**
+     * @return the index of the entry of the given hash value
+     */
+    public int getEntry(int hash) {
+        return hash & (buckets.length - 1);
+    }
+
+    /**
+     * @return the id of the bucket page that holds the tuples whose keys have
+     *         the given hash value, or null if the file has no buckets yet
+     */
+    public HashPageId getBucketId(int hash) {
+        int bucket = buckets[getEntry(hash)];
+        if (bucket == 0)
+            return null;
+        return new HashPageId(pid.getTableId(), bucket, HashPageId.BUCKET);
+    }
+
+    /**
+     * Point an entry of this directory at a bucket page
+     *
+     * @param entry - the index of the entry
+     * @param id - the id of the bucket page
+     */
+    public void setBucketId(int entry, HashPageId id) throws DbException {
+        if (id.getTableId() != pid.getTableId() || id.pgcateg() != HashPageId.BUCKET)
+            throw new DbException("bucket is not a bucket page of this table");
+        buckets[entry] = id.getPageNumber();
+    }
+
+    /**
+     * Double the number of entries of this directory. Entry i + 2^d, where d
+     * is the old global depth, points at the same bucket as entry i.
+     *
+     * @throws DbException if the directory is already as large as a page
+     *         allows
+     */
+    public void doubleDirectory() throws DbException {
+        if (globalDepth >= getMaxDepth())
+            throw new DbException("hash directory is full");
+        int[] doubled = new int[buckets.length * 2];
+        System.arraycopy(buckets, 0, doubled, 0, buckets.length);
+        System.arraycopy(buckets, 0, doubled, buckets.length, buckets.length);
+        buckets = doubled;
+        globalDepth++;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page.
+     * Used to serialize this page to disk.
+     * <p>
+     * The invariant here is that it should be possible to pass the byte
+     * array generated by getPageData to the HashDirectoryPage constructor and
+     * have it produce an identical HashDirectoryPage object.
+     *
+     * @return A byte array correspond to the bytes of this page.
+     */
+    public byte[] getPageData() {
+        int len = BufferPool.getPageSize();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeInt(globalDepth);
+            for (int b : buckets)
+                dos.writeInt(b);
+            dos.write(new byte[len - (buckets.length + 1) * Type.INT_TYPE.getLen()]);
+            dos.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to an empty
+     * HashDirectoryPage, a directory of one entry and no buckets.
+     *
+     * @return The returned ByteArray.
+     */
+    public static byte[] createEmptyPageData() {
+        int len = BufferPool.getPageSize();
+        return new byte[len]; //all 0
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public HashDirectoryPage getBeforeImage() {
+        try {
+            byte[] oldDataRef = null;
+            synchronized (oldDataLock) {
+                oldDataRef = oldData;
+            }
+            return new HashDirectoryPage(pid, oldDataRef);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = getPageData().clone();
+        }
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        if (dirty)
+            this.dirtier = tid;
+    }
+
+    public TransactionId isDirty() {
+        if (this.dirty)
+            return this.dirtier;
+        else
+            return null;
+    }
+}
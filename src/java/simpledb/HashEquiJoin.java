@@ -50,57 +50,312 @@ public class HashEquiJoin extends Operator {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
     
-    HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
-    public final static int MAP_SIZE = 20000;
+    /** Maximum number of partitions each input is split into per pass. */
+    public final static int MAX_FANOUT = 32;
+    /**
+     * Maximum partitioning depth. Partitions still too large at this depth
+     * (typically a single heavily duplicated key) are joined chunk by chunk.
+     */
+    public final static int MAX_DEPTH = 4;
+
+    transient KeyHashTable<Tuple> map = null;
+    transient private int mapCount;
+    transient private int maxBuildTuples;
+    transient private int fanout;
+
+    /**
+     * One build/probe pair to be joined. The top-level pass reads the
+     * children directly; later passes read spilled partitions.
+     */
+    private static class Pass {
+        final OpIterator build, probe;
+        final SpillFile buildFile, probeFile;
+        final int depth;
+
+        Pass(OpIterator build, OpIterator probe, int depth) {
+            this.build = build;
+            this.probe = probe;
+            this.buildFile = null;
+            this.probeFile = null;
+            this.depth = depth;
+        }
+
+        Pass(SpillFile buildFile, SpillFile probeFile, int depth) throws DbException {
+            this.build = buildFile.iterator();
+            this.probe = probeFile.iterator();
+            this.buildFile = buildFile;
+            this.probeFile = probeFile;
+            this.depth = depth;
+        }
+
+        boolean spilled() {
+            return buildFile != null;
+        }
+    }
+
+    transient private Pass pass = null;
+    transient private Deque<Pass> pending = new ArrayDeque<Pass>();
+    /** Partition files of the current pass, or null if it was not partitioned. */
+    transient private SpillFile[] buildParts = null, probeParts = null;
+    /** True while partition 0 of a partitioned pass is kept in memory. */
+    transient private boolean resident;
+    /** True if the current pass joins its build side one chunk at a time. */
+    transient private boolean chunked;
+
+    /**
+     * Summary of the build keys, handed to the probe side once the build
+     * side has been read; see {@link #pushRuntimeFilter}.
+     */
+    transient private RuntimeFilter runtimeFilter = null;
+    /** The probe-side scan the runtime filter was pushed into, if any. */
+    transient private SeqScan filteredScan = null;
+    /** True if probe tuples have to be checked against the filter here. */
+    transient private boolean filterHere = false;
+
+    /**
+     * Read the next build tuple of the current pass. Keys of the top-level
+     * build side are added to the runtime filter.
+     */
+    private Tuple nextBuild() throws DbException, TransactionAbortedException {
+        Tuple t = pass.build.next();
+        if (pass.depth == 0)
+            runtimeFilter.add(t.getField(pred.getField1()));
+        return t;
+    }
+
+    /**
+     * Hand the runtime filter of the build keys to the probe side. If the
+     * probe side is a scan, possibly under filters, the scan drops probe
+     * tuples that cannot match; otherwise they are dropped here, before they
+     * are hashed or written to a partition.
+     */
+    private void pushRuntimeFilter() {
+        if (!runtimeFilter.isSelective())
+            return;
+        OpIterator it = child2;
+        while (it instanceof Filter)
+            it = ((Filter) it).getChildren()[0];
+        if (it instanceof SeqScan) {
+            filteredScan = (SeqScan) it;
+            filteredScan.addRuntimeFilter(runtimeFilter);
+        } else {
+            filterHere = true;
+        }
+    }
 
+    private void removeRuntimeFilter() {
+        if (filteredScan != null)
+            filteredScan.removeRuntimeFilter(runtimeFilter);
+        filteredScan = null;
+        filterHere = false;
+    }
+
+    /**
+     * Start the top-level pass, which reads the whole build side, and push
+     * down the runtime filter it produces.
+     */
+    private void startJoin() throws DbException, TransactionAbortedException {
+        removeRuntimeFilter();
+        runtimeFilter = new RuntimeFilter(pred.getField2(), maxBuildTuples);
+        startPass(new Pass(child1, child2, 0));
+        if (!child1.hasNext())
+            pushRuntimeFilter();
+    }
+
+    private void addToMap(Tuple t) {
+        map.add(t.getField(pred.getField1()), t);
+        mapCount++;
+    }
+
+    /**
+     * Load build tuples of the current pass into the hash table until it is
+     * full or the build side is exhausted.
+     * 
+     * @return true if the build side was exhausted
+     */
     private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
         map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
-            if (list == null) {
-                list = new ArrayList<Tuple>();
-                map.put(t1.getField(pred.getField1()), list);
+        mapCount = 0;
+        while (mapCount < maxBuildTuples && pass.build.hasNext())
+            addToMap(nextBuild());
+        return !pass.build.hasNext();
+    }
+
+    /**
+     * Split the rest of the build side of the current pass into partitions.
+     * Partition 0 stays in the hash table for as long as it fits; all the
+     * others are written to spill files.
+     */
+    private void partitionBuild() throws DbException, TransactionAbortedException {
+        TupleDesc td1 = child1.getTupleDesc();
+        TupleDesc td2 = child2.getTupleDesc();
+        buildParts = new SpillFile[fanout];
+        probeParts = new SpillFile[fanout];
+        for (int i = 0; i < fanout; i++) {
+            buildParts[i] = new SpillFile(td1);
+            probeParts[i] = new SpillFile(td2);
+        }
+        resident = true;
+
+        ArrayList<Tuple> loaded = new ArrayList<Tuple>(mapCount);
+        for (int e = 0; e < map.payloadCount(); e++)
+            loaded.add(map.getPayload(e));
+        map.clear();
+        mapCount = 0;
+        for (Tuple t : loaded)
+            addToPartition(t);
+        while (pass.build.hasNext())
+            addToPartition(nextBuild());
+    }
+
+    private void addToPartition(Tuple t) throws DbException {
+        int p = KeyHashTable.partition(t.getField(pred.getField1()), pass.depth, fanout);
+        if (p != 0 || !resident) {
+            buildParts[p].add(t);
+        } else if (mapCount < maxBuildTuples) {
+            addToMap(t);
+        } else {
+            // partition 0 outgrew memory too: spill it like the others
+            for (int e = 0; e < map.payloadCount(); e++)
+                buildParts[0].add(map.getPayload(e));
+            map.clear();
+            mapCount = 0;
+            resident = false;
+            buildParts[0].add(t);
+        }
+    }
+
+    private void startPass(Pass next) throws DbException, TransactionAbortedException {
+        pass = next;
+        if (pass.spilled()) {
+            pass.build.open();
+            pass.probe.open();
+        }
+        buildParts = probeParts = null;
+        chunked = false;
+        if (!loadMap()) {
+            if (pass.depth < MAX_DEPTH)
+                partitionBuild();
+            else
+                chunked = true;
+        }
+    }
+
+    /**
+     * Finish the current pass: queue its partition pairs and release its
+     * spill files.
+     */
+    private void endPass() throws DbException {
+        if (buildParts != null) {
+            for (int i = fanout - 1; i >= 0; i--) {
+                boolean joined = i == 0 && resident;
+                if (joined || buildParts[i].size() == 0 || probeParts[i].size() == 0) {
+                    buildParts[i].delete();
+                    probeParts[i].delete();
+                } else {
+                    pending.push(new Pass(buildParts[i], probeParts[i], pass.depth + 1));
+                }
             }
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+            buildParts = probeParts = null;
         }
-        return cnt > 0;
+        releasePass(pass);
+        pass = null;
+        map.clear();
+        mapCount = 0;
+    }
 
+    private static void releasePass(Pass p) {
+        if (p != null && p.spilled()) {
+            p.build.close();
+            p.probe.close();
+            p.buildFile.delete();
+            p.probeFile.delete();
+        }
+    }
+
+    private void releaseAll() {
+        if (buildParts != null) {
+            for (int i = 0; i < fanout; i++) {
+                buildParts[i].delete();
+                probeParts[i].delete();
+            }
+            buildParts = probeParts = null;
+        }
+        releasePass(pass);
+        pass = null;
+        while (!pending.isEmpty())
+            releasePass(pending.pop());
+        if (map != null)
+            map.clear();
+        mapCount = 0;
+        entry = KeyHashTable.NONE;
+        t1 = null;
+        t2 = null;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        maxBuildTuples = (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+                BufferPool.getOperatorMemoryBytes() / child1.getTupleDesc().getSize()));
+        fanout = Math.max(2, Math.min(MAX_FANOUT, BufferPool.getOperatorMemoryPages()));
+        map = KeyHashTable.create(child1.getTupleDesc().getFieldType(pred.getField1()));
+        startJoin();
         super.open();
     }
 
     public void close() {
         super.close();
+        releaseAll();
+        removeRuntimeFilter();
         child2.close();
         child1.close();
-        this.t1=null;
-        this.t2=null;
-        this.listIt=null;
-        this.map.clear();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        releaseAll();
         child1.rewind();
         child2.rewind();
+        startJoin();
     }
 
-    transient Iterator<Tuple> listIt = null;
+    /** Next payload entry of the build tuples matching t2. */
+    transient int entry = KeyHashTable.NONE;
+
+    private Tuple processList() throws TransactionAbortedException, DbException {
+        t1 = map.getPayload(entry);
+        entry = map.nextPayload(entry);
+
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+
+        // set fields in combined tuple
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+
+    }
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
-     * satisfies the join predicate. There are many possible implementations;
-     * the simplest is a nested loops join.
+     * satisfies the join predicate.
+     * <p>
+     * This is a hybrid hash join. Tuples of child1 are loaded into a hash
+     * table sized by {@link BufferPool#getOperatorMemoryBytes()}. If child1
+     * does not fit, both children are hash partitioned on the join key into
+     * spill files, keeping the first partition in memory when possible, and
+     * each pair of partitions is then joined recursively. Every input tuple
+     * is therefore read and written a bounded number of times, instead of
+     * child2 being rescanned once per chunk of child1.
+     * <p>
+     * Once child1 has been read, a {@link RuntimeFilter} of its join keys is
+     * pushed into the scan under child2, so that child2 tuples without a
+     * matching key are dropped as they are scanned.
      * <p>
      * Note that the tuples returned from this particular implementation of Join
      * are simply the concatenation of joining tuples from the left and right
@@ -114,48 +369,39 @@ public class HashEquiJoin extends Operator {
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
-    private Tuple processList() throws TransactionAbortedException, DbException {
-        t1 = listIt.next();
-
-        int td1n = t1.getTupleDesc().numFields();
-        int td2n = t2.getTupleDesc().numFields();
-
-        // set fields in combined tuple
-        Tuple t = new Tuple(comboTD);
-        for (int i = 0; i < td1n; i++)
-            t.setField(i, t1.getField(i));
-        for (int i = 0; i < td2n; i++)
-            t.setField(td1n + i, t2.getField(i));
-        return t;
-
-    }
-
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
+        while (pass != null) {
+            if (entry != KeyHashTable.NONE)
+                return processList();
 
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
-
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
+            if (pass.probe.hasNext()) {
+                t2 = pass.probe.next();
+                Field key = t2.getField(pred.getField2());
+                if (filterHere && pass.depth == 0 && !runtimeFilter.mightContain(key))
+                    continue;
+                if (buildParts != null) {
+                    int p = KeyHashTable.partition(key, pass.depth, fanout);
+                    if (p != 0 || !resident) {
+                        // no build tuple in an empty partition can match
+                        if (buildParts[p].size() > 0)
+                            probeParts[p].add(t2);
+                        continue;
+                    }
+                }
+                entry = map.firstPayload(map.find(key));
                 continue;
-            listIt = l.iterator();
-
-            return processList();
-
-        }
+            }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+            // probe side is done: join the next chunk, or move on
+            if (chunked && pass.build.hasNext()) {
+                loadMap();
+                pass.probe.rewind();
+                continue;
+            }
+            endPass();
+            if (!pending.isEmpty())
+                startPass(pending.pop());
         }
-
         return null;
     }
 
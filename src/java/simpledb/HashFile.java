@@ -0,0 +1,541 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+import simpledb.Predicate.Op;
+
+/**
+ * HashFile is an implementation of a DbFile that stores its tuples in an
+ * extendible hash table on one key field, so that the tuples with a given key
+ * are found by reading a single bucket page. The first page of the file is a
+ * directory mapping the low-order bits of the hash of a key to the bucket
+ * page holding the key; every other page is a bucket page. HashFile works
+ * closely with HashDirectoryPage and HashBucketPage, whose formats are
+ * described in their constructors.
+ * <p>
+ * When a bucket is full, it is split in two on the next bit of the hash,
+ * doubling the directory if the bucket was already selected by all its
+ * bits. Keys that no split can separate, such as many copies of one key or
+ * any keys once the directory is as large as a page allows, go to overflow
+ * pages chained to the bucket. Buckets are never merged: pages emptied by
+ * deletions stay in their bucket for later insertions.
+ *
+ * @see simpledb.HashDirectoryPage#HashDirectoryPage
+ * @see simpledb.HashBucketPage#HashBucketPage
+ */
+public class HashFile implements DbFile {
+
+    private final File f;
+    private final TupleDesc td;
+    private final int tableid;
+    private final int keyField;
+
+    /**
+     * Constructs a hash file backed by the specified file.
+     *
+     * @param f - the file that stores the on-disk backing store for this
+     *            hash file.
+     * @param key - the field which the file is hashed on
+     * @param td - the tuple descriptor of tuples in the file
+     */
+    public HashFile(File f, int key, TupleDesc td) {
+        this.f = f;
+        this.tableid = f.getAbsoluteFile().hashCode();
+        this.keyField = key;
+        this.td = td;
+    }
+
+    /**
+     * Returns the File backing this HashFile on disk.
+     */
+    public File getFile() {
+        return f;
+    }
+
+    /**
+     * Returns an ID uniquely identifying this HashFile, the hash of the
+     * absolute name of its file.
+     */
+    public int getId() {
+        return tableid;
+    }
+
+    /**
+     * Returns the TupleDesc of the table stored in this DbFile.
+     *
+     * @return TupleDesc of this DbFile.
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * Returns the index of the field that this file is hashed on
+     */
+    public int keyField() {
+        return keyField;
+    }
+
+    /**
+     * Returns the number of pages in this HashFile, including its directory.
+     */
+    public int numPages() {
+        return (int) (f.length() / BufferPool.getPageSize());
+    }
+
+    /**
+     * @return the hash of a key. The directory selects buckets by the
+     *         low-order bits of the hash, so the bits of the key's hash code
+     *         are mixed into them.
+     */
+    public static int hash(Field key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private int hashOf(Tuple t) {
+        return hash(t.getField(keyField));
+    }
+
+    /**
+     * Read a page from the file on disk. This should not be called directly
+     * but should be called from the BufferPool via getPage()
+     *
+     * @param pid - the id of the page to read from disk
+     * @return the page constructed from the contents on disk
+     */
+    public Page readPage(PageId pid) {
+        HashPageId id = (HashPageId) pid;
+        byte[] data = new byte[BufferPool.getPageSize()];
+        try {
+            RandomAccessFile rf = new RandomAccessFile(f, "r");
+            try {
+                rf.seek((long) id.getPageNumber() * BufferPool.getPageSize());
+                rf.readFully(data);
+            } finally {
+                rf.close();
+            }
+            Debug.log(1, "HashFile.readPage: read page %d", id.getPageNumber());
+            if (id.pgcateg() == HashPageId.DIRECTORY)
+                return new HashDirectoryPage(id, data);
+            return new HashBucketPage(id, data);
+        } catch (EOFException e) {
+            throw new IllegalArgumentException("Read past end of table");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Write a page to disk.  This should not be called directly but should
+     * be called from the BufferPool when pages are flushed to disk
+     *
+     * @param page - the page to write to disk
+     */
+    public void writePage(Page page) throws IOException {
+        RandomAccessFile rf = new RandomAccessFile(f, "rw");
+        try {
+            rf.seek((long) page.getId().getPageNumber() * BufferPool.getPageSize());
+            rf.write(page.getPageData());
+        } finally {
+            rf.close();
+        }
+    }
+
+    /**
+     * Method to encapsulate the process of locking/fetching a page.  First
+     * the method checks the local cache ("dirtypages"), and if it can't find
+     * the requested page there, it fetches it from the buffer pool. It also
+     * adds pages to the dirtypages cache if they are fetched with read-write
+     * permission, since presumably they will soon be dirtied by this
+     * transaction.
+     *
+     * @param tid - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     * @param pid - the id of the requested page
+     * @param perm - the requested permissions on the page
+     * @return the requested page
+     */
+    Page getPage(TransactionId tid, HashMap<PageId, Page> dirtypages, HashPageId pid, Permissions perm)
+            throws DbException, TransactionAbortedException {
+        if (dirtypages.containsKey(pid))
+            return dirtypages.get(pid);
+        Page p = Database.getBufferPool().getPage(tid, pid, perm);
+        if (perm == Permissions.READ_WRITE)
+            dirtypages.put(pid, p);
+        return p;
+    }
+
+    /**
+     * Get the directory page of this file, creating it if the file is empty
+     *
+     * @param tid - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     * @param perm - the requested permissions on the page
+     */
+    HashDirectoryPage getDirectoryPage(TransactionId tid, HashMap<PageId, Page> dirtypages, Permissions perm)
+            throws DbException, IOException, TransactionAbortedException {
+        synchronized (this) {
+            if (f.length() == 0) {
+                FileOutputStream fos = new FileOutputStream(f, true);
+                fos.write(HashDirectoryPage.createEmptyPageData());
+                fos.close();
+            }
+        }
+        return (HashDirectoryPage) getPage(tid, dirtypages, HashDirectoryPage.getId(tableid), perm);
+    }
+
+    /**
+     * Lock and return the first page of the bucket holding the keys with the
+     * given hash. The directory is only locked until the bucket is, unless
+     * the transaction already held it: a bucket cannot be split while it is
+     * locked, so the directory entry read stays valid.
+     *
+     * @return the first page of the bucket, or null if the file has no
+     *         buckets yet
+     */
+    private HashBucketPage findBucket(TransactionId tid, HashMap<PageId, Page> dirtypages, int hash,
+            Permissions perm) throws DbException, IOException, TransactionAbortedException {
+        HashPageId dirId = HashDirectoryPage.getId(tableid);
+        boolean held = dirtypages.containsKey(dirId) || Database.getBufferPool().holdsLock(tid, dirId);
+        HashDirectoryPage dir = getDirectoryPage(tid, dirtypages, Permissions.READ_ONLY);
+        HashPageId bucketId = dir.getBucketId(hash);
+        HashBucketPage bucket = null;
+        if (bucketId != null)
+            bucket = (HashBucketPage) getPage(tid, dirtypages, bucketId, perm);
+        if (!held)
+            Database.getBufferPool().releasePage(tid, dirId);
+        return bucket;
+    }
+
+    /**
+     * Append an empty bucket page to the file, and return it locked with
+     * read-write permission
+     *
+     * @param tid - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     */
+    private HashBucketPage getEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages)
+            throws DbException, IOException, TransactionAbortedException {
+        int emptyPageNo;
+        synchronized (this) {
+            FileOutputStream fos = new FileOutputStream(f, true);
+            fos.write(HashBucketPage.createEmptyPageData());
+            fos.close();
+            emptyPageNo = numPages() - 1;
+        }
+        HashPageId pid = new HashPageId(tableid, emptyPageNo, HashPageId.BUCKET);
+        Database.getBufferPool().discardPage(pid);
+        dirtypages.remove(pid);
+        return (HashBucketPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+    }
+
+    /**
+     * Insert a tuple into the bucket of its key, splitting the bucket or
+     * chaining an overflow page to it if it is full.
+     *
+     * @param tid - the transaction id
+     * @param t - the tuple to insert
+     * @return a list of all pages that were dirtied by this operation
+     * @see #splitBucket(TransactionId, HashMap, List)
+     */
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        if (!td.equals(t.getTupleDesc()))
+            throw new DbException("tupleDesc is mismatch");
+        HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+        int hash = hashOf(t);
+
+        while (true) {
+            HashBucketPage bucket = findBucket(tid, dirtypages, hash, Permissions.READ_WRITE);
+            if (bucket == null) {
+                // the file has no buckets yet; create the first one, unless
+                // another transaction did so since the directory was read
+                HashDirectoryPage dir = getDirectoryPage(tid, dirtypages, Permissions.READ_WRITE);
+                if (dir.getBucketId(hash) == null)
+                    dir.setBucketId(0, getEmptyPage(tid, dirtypages).getId());
+                continue;
+            }
+
+            // look for a page of the bucket with an empty slot
+            List<HashBucketPage> chain = new ArrayList<HashBucketPage>();
+            HashBucketPage page = bucket;
+            chain.add(page);
+            while (page.getNumEmptySlots() == 0 && page.getNextPageId() != null) {
+                page = (HashBucketPage) getPage(tid, dirtypages, page.getNextPageId(), Permissions.READ_WRITE);
+                chain.add(page);
+            }
+            if (page.getNumEmptySlots() > 0) {
+                page.insertTuple(t);
+                break;
+            }
+
+            if (canSplit(chain, hash)) {
+                splitBucket(tid, dirtypages, chain);
+                continue;
+            }
+            HashBucketPage overflow = getEmptyPage(tid, dirtypages);
+            overflow.setLocalDepth(bucket.getLocalDepth());
+            page.setNextPageId(overflow.getId());
+            overflow.insertTuple(t);
+            break;
+        }
+
+        return new ArrayList<Page>(dirtypages.values());
+    }
+
+    /**
+     * @return true if splitting a full bucket, possibly several times, would
+     *         separate its keys and the key of the given hash
+     */
+    private boolean canSplit(List<HashBucketPage> chain, int hash) {
+        int depth = chain.get(0).getLocalDepth();
+        int maxDepth = HashDirectoryPage.getMaxDepth();
+        if (depth >= maxDepth)
+            return false;
+        // the bits that further splits of the bucket would look at
+        int bits = ((1 << maxDepth) - 1) & ~((1 << depth) - 1);
+        for (HashBucketPage page : chain) {
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext()) {
+                if (((hashOf(it.next()) ^ hash) & bits) != 0)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Split a bucket in two on bit d of the hash, where d is the local depth
+     * of the bucket: the keys with that bit set move to a new bucket, and the
+     * directory entries of the bucket with that bit set point at it. If the
+     * bucket was selected by all the bits of the directory, the directory is
+     * doubled first. The pages of the bucket's overflow chain are reused for
+     * both buckets.
+     *
+     * @param tid - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     * @param chain - the pages of the bucket, all locked with read-write
+     *            permission, starting with its first page
+     */
+    protected void splitBucket(TransactionId tid, HashMap<PageId, Page> dirtypages, List<HashBucketPage> chain)
+            throws DbException, IOException, TransactionAbortedException {
+        HashBucketPage bucket = chain.get(0);
+        HashDirectoryPage dir = getDirectoryPage(tid, dirtypages, Permissions.READ_WRITE);
+        int depth = bucket.getLocalDepth();
+        if (depth == dir.getGlobalDepth())
+            dir.doubleDirectory();
+
+        HashBucketPage sibling = getEmptyPage(tid, dirtypages);
+        int bit = 1 << depth;
+        bucket.setLocalDepth(depth + 1);
+        sibling.setLocalDepth(depth + 1);
+        for (int i = 0; i < dir.getNumEntries(); i++) {
+            if ((i & bit) != 0 && bucket.getId().equals(dir.getBucketId(i)))
+                dir.setBucketId(i, sibling.getId());
+        }
+
+        List<Tuple> stay = new ArrayList<Tuple>();
+        List<Tuple> move = new ArrayList<Tuple>();
+        for (HashBucketPage page : chain) {
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                page.deleteTuple(t);
+                if ((hashOf(t) & bit) != 0)
+                    move.add(t);
+                else
+                    stay.add(t);
+            }
+        }
+
+        // the two buckets need at most one page more than the old one had;
+        // pages left over stay at the end of the old bucket
+        LinkedList<HashBucketPage> spare = new LinkedList<HashBucketPage>(chain.subList(1, chain.size()));
+        HashBucketPage last = fill(bucket, stay, spare);
+        fill(sibling, move, spare);
+        for (HashBucketPage page : spare) {
+            last.setNextPageId(page.getId());
+            last = page;
+        }
+        last.setNextPageId(null);
+    }
+
+    /**
+     * Insert tuples into a chain of empty pages starting at the given page,
+     * taking the next page from spare whenever a page is full
+     *
+     * @return the last page of the chain
+     */
+    private HashBucketPage fill(HashBucketPage page, List<Tuple> tuples, LinkedList<HashBucketPage> spare)
+            throws DbException {
+        for (Tuple t : tuples) {
+            if (page.getNumEmptySlots() == 0) {
+                HashBucketPage next = spare.removeFirst();
+                page.setNextPageId(next.getId());
+                page = next;
+            }
+            page.insertTuple(t);
+        }
+        page.setNextPageId(null);
+        return page;
+    }
+
+    /**
+     * Delete a tuple from this HashFile. Its page is not otherwise changed:
+     * buckets are never merged, and empty overflow pages stay in their
+     * bucket.
+     *
+     * @param tid - the transaction id
+     * @param t - the tuple to delete
+     * @return a list of all pages that were dirtied by this operation
+     */
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !(rid.getPageId() instanceof HashPageId) || rid.getPageId().getTableId() != tableid)
+            throw new DbException("tuple is not in this file");
+        HashPageId pid = (HashPageId) rid.getPageId();
+        if (pid.pgcateg() != HashPageId.BUCKET)
+            throw new DbException("tuple is not in this file");
+        HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+        HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+        page.deleteTuple(t);
+        return new ArrayList<Page>(dirtypages.values());
+    }
+
+    /**
+     * Get a read lock on the bucket of the given key and return an iterator
+     * over its tuples with that key. The directory is only locked while the
+     * bucket is looked up, so a lookup reads the directory page, which
+     * usually stays in the buffer pool, and the pages of one bucket.
+     *
+     * @param tid - the transaction id
+     * @param ipred - the predicate to match, which must be an equality
+     * @return an iterator for the tuples whose key equals the predicate's
+     */
+    public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+        if (ipred.getOp() != Op.EQUALS)
+            throw new IllegalArgumentException("a hash file can only be searched for equal keys");
+        return new HashSearchIterator(this, tid, ipred);
+    }
+
+    /**
+     * Get an iterator for all tuples in this HashFile, in no particular order
+     *
+     * @param tid - the transaction id
+     * @return an iterator for all the tuples in this file
+     */
+    public DbFileIterator iterator(TransactionId tid) {
+        return new HashFileIterator(this, tid);
+    }
+
+    /**
+     * Helper class that implements the DbFileIterator for all tuples of a
+     * HashFile: it reads the bucket pages in the order of the file.
+     */
+    private static class HashFileIterator extends AbstractDbFileIterator {
+
+        private final HashFile f;
+        private final TransactionId tid;
+        private int pgNo;
+        private Iterator<Tuple> it;
+
+        HashFileIterator(HashFile f, TransactionId tid) {
+            this.f = f;
+            this.tid = tid;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            pgNo = 0;
+            it = Collections.<Tuple>emptyList().iterator();
+        }
+
+        @Override
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (it == null)
+                return null;
+            while (!it.hasNext()) {
+                if (++pgNo >= f.numPages())
+                    return null;
+                HashBucketPage page = (HashBucketPage) Database.getBufferPool().getPage(tid,
+                        new HashPageId(f.getId(), pgNo, HashPageId.BUCKET), Permissions.READ_ONLY);
+                it = page.iterator();
+            }
+            return it.next();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            it = null;
+        }
+    }
+
+    /**
+     * Helper class that implements the DbFileIterator for the tuples of a
+     * HashFile with a given key: it reads the pages of the key's bucket.
+     */
+    private static class HashSearchIterator extends AbstractDbFileIterator {
+
+        private final HashFile f;
+        private final TransactionId tid;
+        private final IndexPredicate ipred;
+        private HashBucketPage curp;
+        private Iterator<Tuple> it;
+
+        HashSearchIterator(HashFile f, TransactionId tid, IndexPredicate ipred) {
+            this.f = f;
+            this.tid = tid;
+            this.ipred = ipred;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            try {
+                curp = f.findBucket(tid, new HashMap<PageId, Page>(), hash(ipred.getField()),
+                        Permissions.READ_ONLY);
+            } catch (IOException e) {
+                throw new DbException(e.toString());
+            }
+            it = curp == null ? null : curp.iterator();
+        }
+
+        @Override
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            while (it != null) {
+                while (it.hasNext()) {
+                    Tuple t = it.next();
+                    if (t.getField(f.keyField()).compare(Op.EQUALS, ipred.getField()))
+                        return t;
+                }
+                HashPageId next = curp.getNextPageId();
+                if (next == null)
+                    return null;
+                curp = (HashBucketPage) Database.getBufferPool().getPage(tid, next, Permissions.READ_ONLY);
+                it = curp.iterator();
+            }
+            return null;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            curp = null;
+            it = null;
+        }
+    }
+}
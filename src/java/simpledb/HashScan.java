@@ -0,0 +1,172 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * HashScan reads the tuples of a {@link HashFile} whose key equals a value,
+ * by reading the bucket of that value only. Like {@link SeqScan}, it may be
+ * restricted to a subset of the table's columns.
+ * <p>
+ * As an {@link IndexOpIterator}, the scan may be opened or rewound with a
+ * new predicate, to look up another key without building a new operator.
+ */
+public class HashScan implements IndexOpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TransactionId tid;
+    private final int tableid;
+    private final String alias;
+    private IndexPredicate ipred;
+    /** The table columns returned, or null for all of them. */
+    private final int[] columns;
+    private final TupleDesc td;
+
+    private transient DbFileIterator it;
+    private boolean isOpen = false;
+
+    /**
+     * Creates a scan of the tuples of a hash file whose key matches a
+     * predicate.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan, which must be a {@link HashFile}
+     * @param tableAlias
+     *            the alias of the table; the returned tupleDesc has fields
+     *            named tableAlias.fieldName
+     * @param ipred
+     *            the equality predicate on the key field, or null to return
+     *            all tuples in no particular order
+     * @param columns
+     *            the indexes of the table columns to return, in the order
+     *            they should appear in the returned tuples; null for all
+     *            columns
+     */
+    public HashScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred,
+            int[] columns) {
+        if (!(Database.getCatalog().getDatabaseFile(tableid) instanceof HashFile))
+            throw new IllegalArgumentException("table is not a hash file");
+        checkPredicate(ipred);
+        this.tid = tid;
+        this.tableid = tableid;
+        this.alias = tableAlias;
+        this.ipred = ipred;
+        this.columns = columns == null ? null : columns.clone();
+        TupleDesc tableTd = Database.getCatalog().getTupleDesc(tableid);
+        int n = columns == null ? tableTd.numFields() : columns.length;
+        Type[] types = new Type[n];
+        String[] names = new String[n];
+        for (int i = 0; i < n; i++) {
+            types[i] = tableTd.getFieldType(getTableField(i));
+            names[i] = tableAlias + "." + tableTd.getFieldName(getTableField(i));
+        }
+        this.td = new TupleDesc(types, names);
+    }
+
+    private static void checkPredicate(IndexPredicate ipred) {
+        if (ipred != null && ipred.getOp() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("a hash scan can only look up equal keys");
+    }
+
+    /**
+     * @return the id of the table this operator scans
+     */
+    public int getTableId() {
+        return tableid;
+    }
+
+    /**
+     * @return the name of the table this operator scans in the catalog
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(tableid);
+    }
+
+    /**
+     * @return the alias of the table this operator scans
+     */
+    public String getAlias() {
+        return alias;
+    }
+
+    /**
+     * @return the predicate on the key field that this scan returns the
+     *         matching tuples of, or null if it returns all tuples
+     */
+    public IndexPredicate getIndexPredicate() {
+        return ipred;
+    }
+
+    /**
+     * @return the indexes of the table columns this scan returns, or null if
+     *         it returns all of them
+     */
+    public int[] getColumns() {
+        return columns == null ? null : columns.clone();
+    }
+
+    /**
+     * @return the index in the table of the given field of this scan's
+     *         tuples
+     */
+    public int getTableField(int field) {
+        return columns == null ? field : columns[field];
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        if (isOpen)
+            throw new DbException("double open on one OpIterator.");
+        HashFile f = (HashFile) Database.getCatalog().getDatabaseFile(tableid);
+        it = ipred == null ? f.iterator(tid) : f.indexIterator(tid, ipred);
+        it.open();
+        isOpen = true;
+    }
+
+    public void open(IndexPredicate ipred) throws DbException, TransactionAbortedException {
+        checkPredicate(ipred);
+        this.ipred = ipred;
+        open();
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        return it.hasNext();
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        Tuple t = it.next();
+        if (columns == null)
+            return t;
+        Tuple p = new Tuple(td);
+        for (int i = 0; i < columns.length; i++)
+            p.setField(i, t.getField(columns[i]));
+        p.setRecordId(t.getRecordId());
+        return p;
+    }
+
+    public void close() {
+        if (it != null)
+            it.close();
+        it = null;
+        isOpen = false;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    public void rewind(IndexPredicate ipred) throws DbException, TransactionAbortedException {
+        close();
+        open(ipred);
+    }
+}
@@ -0,0 +1,245 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * HashSemiJoin implements the semi-join and the anti-join of two inputs on
+ * an equality predicate: it returns each tuple of child1 exactly once if
+ * some tuple of child2 has an equal key (semi-join, used for IN and EXISTS)
+ * or if none does (anti-join, used for NOT IN and NOT EXISTS). The output
+ * has the schema of child1, and no child2 fields.
+ * <p>
+ * Only the distinct keys of child2 are kept, in a {@link KeyHashTable}, and
+ * child1 is streamed past them; child1 tuples are never duplicated. If the
+ * distinct keys outgrow the operator memory budget, the remaining keys and
+ * the child1 tuples that may match them are hash partitioned into spill
+ * files, and each pair of partitions is joined in turn.
+ * <p>
+ * A null predicate makes this an existence test: every child1 tuple is
+ * returned if child2 is not empty (or, for the anti-join, if it is).
+ */
+public class HashSemiJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private JoinPredicate pred;
+    private OpIterator child1, child2;
+    private final boolean anti;
+    private final int depth;
+
+    transient private KeyHashTable<Void> keys;
+    transient private int maxKeys;
+    transient private boolean innerEmpty;
+    /** Spilled child2 keys and child1 tuples by partition, or null. */
+    transient private SpillFile[] keyParts, outerParts;
+    transient private int partition;
+    /** Join of the spilled partition currently being read. */
+    transient private HashSemiJoin sub;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The equality predicate between a field of child1 and a field
+     *            of child2, or null for an existence test
+     * @param child1
+     *            Iterator for the relation whose tuples are returned
+     * @param child2
+     *            Iterator for the relation the child1 keys are looked up in
+     * @param anti
+     *            true for an anti-join, which returns the tuples without a
+     *            match
+     */
+    public HashSemiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, boolean anti) {
+        this(p, child1, child2, anti, 0);
+    }
+
+    private HashSemiJoin(JoinPredicate p, OpIterator child1, OpIterator child2,
+            boolean anti, int depth) {
+        if (p != null && p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("semi-joins need an equality predicate");
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.anti = anti;
+        this.depth = depth;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    /**
+     * @return true if this is an anti-join
+     */
+    public boolean isAnti() {
+        return anti;
+    }
+
+    public String getJoinField1Name() {
+        return pred == null ? null : child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return pred == null ? null : child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child1.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        build();
+        super.open();
+    }
+
+    /**
+     * Read the keys of child2 into the hash table, spilling the keys that
+     * do not fit.
+     */
+    private void build() throws DbException, TransactionAbortedException {
+        if (pred == null) {
+            innerEmpty = !child2.hasNext();
+            return;
+        }
+        Type keyType = child2.getTupleDesc().getFieldType(pred.getField2());
+        keys = KeyHashTable.create(keyType);
+        maxKeys = depth >= HashEquiJoin.MAX_DEPTH ? Integer.MAX_VALUE
+                : (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+                        BufferPool.getOperatorMemoryBytes() / (keyType.getLen() + 16)));
+        TupleDesc keyTd = new TupleDesc(new Type[]{keyType});
+        while (child2.hasNext()) {
+            Field key = child2.next().getField(pred.getField2());
+            if (keys.find(key) != KeyHashTable.NONE)
+                continue;
+            if (keys.size() < maxKeys) {
+                keys.findOrInsert(key);
+                continue;
+            }
+            if (keyParts == null) {
+                int fanout = Math.max(2, Math.min(HashEquiJoin.MAX_FANOUT,
+                        BufferPool.getOperatorMemoryPages()));
+                keyParts = new SpillFile[fanout];
+                outerParts = new SpillFile[fanout];
+            }
+            int p = KeyHashTable.partition(key, depth, keyParts.length);
+            if (keyParts[p] == null)
+                keyParts[p] = new SpillFile(keyTd);
+            Tuple t = new Tuple(keyTd);
+            t.setField(0, key);
+            keyParts[p].add(t);
+        }
+        partition = 0;
+    }
+
+    private void release() {
+        if (sub != null)
+            sub.close();
+        sub = null;
+        if (keyParts != null) {
+            for (int i = 0; i < keyParts.length; i++) {
+                if (keyParts[i] != null)
+                    keyParts[i].delete();
+                if (outerParts[i] != null)
+                    outerParts[i].delete();
+            }
+        }
+        keyParts = outerParts = null;
+        if (keys != null)
+            keys.clear();
+    }
+
+    public void close() {
+        super.close();
+        release();
+        child2.close();
+        child1.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        release();
+        child1.rewind();
+        child2.rewind();
+        build();
+    }
+
+    /**
+     * Returns the next child1 tuple that has a match in child2 (or, for an
+     * anti-join, that has none), or null if there are no more.
+     *
+     * @return The next tuple of child1 to return.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (child1.hasNext()) {
+            Tuple t = child1.next();
+            if (pred == null) {
+                if (innerEmpty == anti)
+                    return t;
+                continue;
+            }
+            Field key = t.getField(pred.getField1());
+            if (keys.find(key) != KeyHashTable.NONE) {
+                if (!anti)
+                    return t;
+                continue;
+            }
+            if (keyParts != null) {
+                int p = KeyHashTable.partition(key, depth, keyParts.length);
+                if (keyParts[p] != null) {
+                    // the key may be in a spilled partition: decide later
+                    if (outerParts[p] == null)
+                        outerParts[p] = new SpillFile(child1.getTupleDesc());
+                    outerParts[p].add(t);
+                    continue;
+                }
+            }
+            if (anti)
+                return t;
+        }
+        return nextSpilled();
+    }
+
+    /**
+     * Join the spilled partitions, one pair at a time.
+     */
+    private Tuple nextSpilled() throws TransactionAbortedException, DbException {
+        if (keyParts == null)
+            return null;
+        while (true) {
+            if (sub != null && sub.hasNext())
+                return sub.next();
+            if (sub != null) {
+                sub.close();
+                sub = null;
+                keyParts[partition - 1].delete();
+                keyParts[partition - 1] = null;
+                outerParts[partition - 1].delete();
+                outerParts[partition - 1] = null;
+            }
+            while (partition < keyParts.length
+                    && (keyParts[partition] == null || outerParts[partition] == null))
+                partition++;
+            if (partition == keyParts.length)
+                return null;
+            JoinPredicate p = new JoinPredicate(pred.getField1(), Predicate.Op.EQUALS, 0);
+            sub = new HashSemiJoin(p, outerParts[partition].iterator(),
+                    keyParts[partition].iterator(), anti, depth + 1);
+            partition++;
+            sub.open();
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+}
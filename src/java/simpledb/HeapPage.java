@@ -308,6 +308,15 @@ public class HeapPage implements Page {
         return false;
     }
 
+    /**
+     * @return the tuple in the given slot, or null if the slot is empty
+     */
+    Tuple getTuple(int i) {
+        if (i < 0 || i >= tuples.length || !isSlotUsed(i))
+            return null;
+        return tuples[i];
+    }
+
     /**
      * Abstraction to fill or clear a slot on this page.
      */
@@ -0,0 +1,212 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexNestedLoopJoin joins each outer tuple with the inner tuples found by
+ * probing a B+ tree on the inner join field, rather than by scanning the
+ * inner relation.
+ * <p>
+ * The inner child must be a {@link SeqScan} of a {@link BTreeFile} keyed on
+ * the join field, optionally under {@link Filter}s (see {@link #canProbe}).
+ * The child describes the inner relation but is never opened: for every
+ * outer tuple the join opens {@link BTreeFile#indexIterator} with an
+ * {@link IndexPredicate} built from the outer key, and applies the
+ * conditions of the filters to the tuples it returns. A selective join
+ * therefore reads a root-to-leaf path and the matching leaf pages per outer
+ * tuple instead of the whole inner table.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private JoinPredicate pred;
+    private OpIterator child1, child2;
+    private TupleDesc comboTD;
+
+    transient private SeqScan scan;
+    transient private BTreeFile index;
+    transient private TransactionId tid;
+    /** The filters over the inner scan. */
+    transient private List<Filter> filters;
+    transient private Predicate.Op probeOp;
+    transient private DbFileIterator probe;
+    transient private Tuple t1;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join them
+     * on
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            The inner relation; must satisfy {@link #canProbe} for the
+     *            second field and the operator of p
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (!canProbe(child2, p.getField2(), p.getOperator()))
+            throw new IllegalArgumentException("inner relation has no B+ tree on the join field");
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    /**
+     * Determine whether the inner side of a join can be probed through an
+     * index: it has to be a scan of a B+ tree file keyed on the join field,
+     * possibly under filters, and the join operator has to be one an
+     * {@link IndexPredicate} can evaluate.
+     *
+     * @param inner
+     *            the inner relation of the join
+     * @param field
+     *            the index of the join field in the output of inner
+     * @param op
+     *            the join operator
+     */
+    public static boolean canProbe(OpIterator inner, int field, Predicate.Op op) {
+        if (op == Predicate.Op.NOT_EQUALS || op == Predicate.Op.LIKE)
+            return false;
+        while (inner instanceof Filter)
+            inner = ((Filter) inner).getChildren()[0];
+        if (!(inner instanceof SeqScan))
+            return false;
+        SeqScan scan = (SeqScan) inner;
+        DbFile f = Database.getCatalog().getDatabaseFile(scan.getTableId());
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == scan.getTableField(field);
+    }
+
+    /**
+     * @return the operator to probe the inner index with: the join predicate
+     *         <code>t1.f1 op t2.f2</code> seen from the inner side
+     */
+    static Predicate.Op probeOp(Predicate.Op op) {
+        switch (op) {
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        default:
+            return op;
+        }
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        filters = new ArrayList<Filter>();
+        OpIterator inner = child2;
+        while (inner instanceof Filter) {
+            filters.add((Filter) inner);
+            inner = ((Filter) inner).getChildren()[0];
+        }
+        scan = (SeqScan) inner;
+        index = (BTreeFile) Database.getCatalog().getDatabaseFile(scan.getTableId());
+        tid = scan.getTransactionId();
+        probeOp = probeOp(pred.getOperator());
+        child1.open();
+        t1 = null;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        closeProbe();
+        child1.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        closeProbe();
+        child1.rewind();
+    }
+
+    private void closeProbe() {
+        if (probe != null)
+            probe.close();
+        probe = null;
+        t1 = null;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. For each outer tuple, the inner B+ tree is searched for
+     * the keys that satisfy the join predicate; only those leaf pages are
+     * read.
+     * <p>
+     * As with {@link Join}, each result is the concatenation of the joining
+     * tuples from the left and right relation.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (probe != null) {
+                while (probe.hasNext()) {
+                    Tuple t2 = scan.project(probe.next());
+                    if (passesFilters(t2))
+                        return merge(t1, t2);
+                }
+                closeProbe();
+            }
+            if (!child1.hasNext())
+                return null;
+            t1 = child1.next();
+            probe = index.indexIterator(tid,
+                    new IndexPredicate(probeOp, t1.getField(pred.getField1())));
+            probe.open();
+        }
+    }
+
+    private boolean passesFilters(Tuple t) {
+        for (Filter f : filters) {
+            if (!f.matches(t))
+                return false;
+        }
+        return true;
+    }
+
+    private Tuple merge(Tuple left, Tuple right) {
+        int td1n = left.getTupleDesc().numFields();
+        int td2n = right.getTupleDesc().numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, left.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, right.getField(i));
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+}
@@ -0,0 +1,104 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * A {@link KeyHashTable} for INT_TYPE keys. Keys live unboxed in a slot
+ * array probed linearly, next to the ordinal each slot maps to.
+ */
+public class IntKeyHashTable<V> extends KeyHashTable<V> {
+
+    private int[] slotKeys = new int[INITIAL_CAPACITY * 2];
+    private int[] slotOrdinals = new int[INITIAL_CAPACITY * 2];
+    private int mask = INITIAL_CAPACITY * 2 - 1;
+
+    /** Key of each ordinal. */
+    private int[] keys = new int[INITIAL_CAPACITY];
+
+    public IntKeyHashTable() {
+        Arrays.fill(slotOrdinals, NONE);
+    }
+
+    /**
+     * @return the ordinal of the given key, or {@link #NONE} if it is not in
+     *         the table
+     */
+    public int find(int key) {
+        int slot = mix(key) & mask;
+        int ordinal;
+        while ((ordinal = slotOrdinals[slot]) != NONE) {
+            if (slotKeys[slot] == key)
+                return ordinal;
+            slot = (slot + 1) & mask;
+        }
+        return NONE;
+    }
+
+    /**
+     * @return the ordinal of the given key, adding it to the table if it is
+     *         not there yet
+     */
+    public int findOrInsert(int key) {
+        int slot = mix(key) & mask;
+        int ordinal;
+        while ((ordinal = slotOrdinals[slot]) != NONE) {
+            if (slotKeys[slot] == key)
+                return ordinal;
+            slot = (slot + 1) & mask;
+        }
+        ordinal = newOrdinal();
+        keys[ordinal] = key;
+        slotKeys[slot] = key;
+        slotOrdinals[slot] = ordinal;
+        if (size * 2 > mask)
+            rehash();
+        return ordinal;
+    }
+
+    /**
+     * @return the key with the given ordinal
+     */
+    public int getIntKey(int ordinal) {
+        return keys[ordinal];
+    }
+
+    public int find(Field key) {
+        return find(((IntField) key).getValue());
+    }
+
+    public int findOrInsert(Field key) {
+        return findOrInsert(((IntField) key).getValue());
+    }
+
+    public Field getKey(int ordinal) {
+        return new IntField(keys[ordinal]);
+    }
+
+    void clearSlots(int n) {
+        for (int ordinal = 0; ordinal < n; ordinal++) {
+            int slot = mix(keys[ordinal]) & mask;
+            while (slotOrdinals[slot] != ordinal)
+                slot = (slot + 1) & mask;
+            slotOrdinals[slot] = NONE;
+        }
+    }
+
+    void growOrdinals(int capacity) {
+        keys = Arrays.copyOf(keys, capacity);
+    }
+
+    private void rehash() {
+        int cap = slotOrdinals.length * 2;
+        slotKeys = new int[cap];
+        slotOrdinals = new int[cap];
+        Arrays.fill(slotOrdinals, NONE);
+        mask = cap - 1;
+        for (int ordinal = 0; ordinal < size; ordinal++) {
+            int slot = mix(keys[ordinal]) & mask;
+            while (slotOrdinals[slot] != NONE)
+                slot = (slot + 1) & mask;
+            slotKeys[slot] = keys[ordinal];
+            slotOrdinals[slot] = ordinal;
+        }
+    }
+}
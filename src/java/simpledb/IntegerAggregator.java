@@ -1,10 +1,19 @@
 package simpledb;
 
-import java.io.InputStream;
 import java.util.*;
 
 /**
  * Knows how to compute some aggregate over a set of IntFields.
+ * <p>
+ * Groups are kept in a {@link KeyHashTable}, whose ordinals index primitive
+ * accumulator arrays, so merging a tuple costs one hash probe. AVG keeps a
+ * running sum and count per group rather than every value.
+ * <p>
+ * If the number of groups outgrows the operator memory budget (see
+ * {@link BufferPool#getOperatorMemoryBytes()}), tuples of groups that are
+ * not already in memory are hash partitioned into spill files. The iterator
+ * returns the in-memory groups first and then aggregates each spilled
+ * partition in turn, partitioning again if one is still too large.
  */
 public class IntegerAggregator implements Aggregator {
 
@@ -12,11 +21,29 @@ public class IntegerAggregator implements Aggregator {
     Type gbfieldtype;
     int afield;
     Op what;
-    Map<Field,Integer> groupPairMap;
-    Map<Field,List<Integer>> countForAve;
-    List<Tuple> tupleList;
+    /** Group key to group ordinal; null if there is no grouping. */
+    KeyHashTable<Void> groups;
+    /**
+     * Per-group accumulators, indexed by ordinal: the running value for
+     * MIN, MAX and SUM (and the sum for AVG), and the number of tuples
+     * merged for COUNT and AVG.
+     */
+    long[] values;
+    int[] counts;
+    int numGroups;
+
+    /** Maximum number of groups held in memory before spilling. */
+    private final int maxGroups;
+    /** Partitioning level; seeds the partition hash of spilled groups. */
+    private final int depth;
+    /** Spilled (group, value) pairs by partition, or null if none spilled. */
+    private SpillFile[] partitions = null;
+    private TupleDesc spillTd = null;
     private static final long serialVersionUID = 1L;
 
+    /** Approximate bytes of table and accumulator state per group. */
+    private static final int GROUP_OVERHEAD = 40;
+
     /**
      * Aggregate constructor
      *
@@ -33,13 +60,22 @@ public class IntegerAggregator implements Aggregator {
      */
 
     public IntegerAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
+        this(gbfield, gbfieldtype, afield, what, 0);
+    }
+
+    private IntegerAggregator(int gbfield, Type gbfieldtype, int afield, Op what, int depth) {
         this.gbfield = gbfield;
         this.gbfieldtype = gbfieldtype;
         this.afield = afield;
         this.what = what;
-        groupPairMap = new HashMap<>();
-        countForAve = new HashMap<>();
-        tupleList = new ArrayList<>();
+        this.depth = depth;
+        groups = gbfield == NO_GROUPING ? null : KeyHashTable.<Void>create(gbfieldtype);
+        values = new long[16];
+        counts = new int[16];
+        numGroups = 0;
+        int groupSize = GROUP_OVERHEAD + (gbfieldtype == null ? 0 : gbfieldtype.getLen());
+        maxGroups = (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+                BufferPool.getOperatorMemoryBytes() / groupSize));
     }
 
     /**
@@ -49,60 +85,93 @@ public class IntegerAggregator implements Aggregator {
      * @param tup
      *            the Tuple containing an aggregate field and a group-by field
      */
-    public void mergeTupleIntoGroup(Tuple tup) {
-        Field groupValue = this.gbfield == NO_GROUPING ? null : tup.getField(this.gbfield);
-        int aggregateValue = Integer.parseInt(tup.getField(afield).toString());
-        switch (what) {
-            case SUM:
-                int sum = aggregateValue;
-                for (Map.Entry<Field, Integer> entry : groupPairMap.entrySet()) {
-                    if(entry.getKey().equals(groupValue)){
-                        sum += entry.getValue();
-                    }
+    public void mergeTupleIntoGroup(Tuple tup) throws DbException {
+        int value = ((IntField) tup.getField(afield)).getValue();
+        int group;
+        if (groups == null) {
+            group = 0;
+        } else {
+            Field groupValue = tup.getField(gbfield);
+            group = groups.find(groupValue);
+            if (group == KeyHashTable.NONE) {
+                if (numGroups >= maxGroups) {
+                    spill(groupValue, value);
+                    return;
                 }
-                groupPairMap.put(groupValue, sum);
-                break;
+                group = groups.findOrInsert(groupValue);
+            }
+        }
+        if (group == numGroups) {
+            if (group == values.length) {
+                values = Arrays.copyOf(values, group * 2);
+                counts = Arrays.copyOf(counts, group * 2);
+            }
+            values[group] = value;
+            counts[group] = 1;
+            numGroups++;
+            return;
+        }
+        switch (what) {
             case MIN:
-                int min = aggregateValue;
-                for (Map.Entry<Field, Integer> entry : groupPairMap.entrySet()) {
-                    if(entry.getKey().equals(groupValue)){
-                        if(min > entry.getValue())min = entry.getValue();
-                    }
-                }
-                groupPairMap.put(groupValue, min);
+                if (value < values[group])
+                    values[group] = value;
                 break;
             case MAX:
-                int max = aggregateValue;
-                for (Map.Entry<Field, Integer> entry : groupPairMap.entrySet()) {
-                    if(entry.getKey().equals(groupValue)){
-                        if(max < entry.getValue())max = entry.getValue();
-                    }
-                }
-                groupPairMap.put(groupValue, max);
+                if (value > values[group])
+                    values[group] = value;
                 break;
+            case SUM:
             case AVG:
-                if(!countForAve.containsKey(groupValue)){
-                    countForAve.put(groupValue,new ArrayList<>());
-                    countForAve.get(groupValue).add(aggregateValue);
-            }
-                else countForAve.get(groupValue).add(aggregateValue);
-                List<Integer> integers = countForAve.get(groupValue);
-                int sum1 = 0;
-                for (int i = 0; i < integers.size(); i++) {
-                    sum1 += integers.get(i);
-                }
-                groupPairMap.put(groupValue,sum1/integers.size());
+                values[group] += value;
                 break;
-            case COUNT:
-                if(!groupPairMap.containsKey(groupValue)){
-                    groupPairMap.put(groupValue,1);
-                }
-                else groupPairMap.put(groupValue,groupPairMap.get(groupValue) + 1);
+            default:
                 break;
-            default:break;
         }
+        counts[group]++;
     }
 
+    private void spill(Field groupValue, int value) throws DbException {
+        if (partitions == null) {
+            partitions = new SpillFile[Math.max(2, Math.min(HashEquiJoin.MAX_FANOUT,
+                    BufferPool.getOperatorMemoryPages()))];
+            spillTd = new TupleDesc(new Type[]{gbfieldtype, Type.INT_TYPE});
+        }
+        int p = KeyHashTable.partition(groupValue, depth, partitions.length);
+        if (partitions[p] == null)
+            partitions[p] = new SpillFile(spillTd);
+        Tuple t = new Tuple(spillTd);
+        t.setField(0, groupValue);
+        t.setField(1, new IntField(value));
+        partitions[p].add(t);
+    }
+
+    /**
+     * Delete the files groups were spilled to. Only the groups held in memory
+     * are returned by iterators opened afterwards.
+     */
+    public void release() {
+        if (partitions != null) {
+            for (SpillFile f : partitions) {
+                if (f != null)
+                    f.delete();
+            }
+        }
+        partitions = null;
+    }
+
+    /**
+     * @return the final aggregate value of the given group
+     */
+    private int result(int group) {
+        switch (what) {
+            case COUNT:
+                return counts[group];
+            case AVG:
+                return (int) (values[group] / counts[group]);
+            default:
+                return (int) values[group];
+        }
+    }
 
     /**
      * Create a OpIterator over group aggregate results.
@@ -113,59 +182,114 @@ public class IntegerAggregator implements Aggregator {
      *         the constructor.
      */
     public OpIterator iterator() {
-        TupleDesc td1 = new TupleDesc(new Type[]{gbfieldtype,Type.INT_TYPE},
-                new String[]{"groupVal","aggregateVal"});
-        TupleDesc td2 = new TupleDesc(new Type[]{Type.INT_TYPE},
-                new String[]{"aggregateVal"});
-        for(Map.Entry<Field, Integer> entry : groupPairMap.entrySet()) {
-                if(entry.getKey() !=null){
-                Tuple tuple = new Tuple(td1);
-                tuple.setField(0,entry.getKey());
-                tuple.setField(1,new IntField(entry.getValue()));
-                tupleList.add(tuple);
+        final TupleDesc td = groups == null
+                ? new TupleDesc(new Type[]{Type.INT_TYPE}, new String[]{"aggregateVal"})
+                : new TupleDesc(new Type[]{gbfieldtype, Type.INT_TYPE},
+                        new String[]{"groupVal", "aggregateVal"});
+        return new OpIterator() {
+            private static final long serialVersionUID = 1L;
+            private boolean isOpen;
+            /** Groups visible to this iteration, fixed at open. */
+            private int limit;
+            private int group;
+            private int partition;
+            /** The aggregator of the spilled partition being returned. */
+            private IntegerAggregator subAgg;
+            private OpIterator sub;
+
+            @Override
+            public void open() throws DbException, TransactionAbortedException {
+                // reopening without closing first drops the partition being read
+                closeSub();
+                isOpen = true;
+                limit = numGroups;
+                group = 0;
+                partition = 0;
             }
-            else{
-                Tuple tuple = new Tuple(td2);
-                tuple.setField(0,new IntField(entry.getValue()));
-                tupleList.add(tuple);
+
+            @Override
+            public boolean hasNext() throws DbException, TransactionAbortedException {
+                if (!isOpen)
+                    return false;
+                if (group < limit)
+                    return true;
+                while (sub == null || !sub.hasNext()) {
+                    closeSub();
+                    sub = nextPartition();
+                    if (sub == null)
+                        return false;
+                }
+                return true;
             }
-        }
-       return new OpIterator() {
-           private boolean isOpen;
-           Iterator<Tuple> it;
-           @Override
-           public void open() throws DbException, TransactionAbortedException {
-                isOpen = true;
-                it = tupleList.iterator();
-           }
-
-           @Override
-           public boolean hasNext() throws DbException, TransactionAbortedException {
-               return isOpen && it.hasNext();
-           }
-
-           @Override
-           public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
-               if(!isOpen) throw new DbException("Not open");
-               return it.next();
-           }
-
-           @Override
-           public void rewind() throws DbException, TransactionAbortedException {
+
+            /**
+             * Aggregate the next non-empty spilled partition.
+             */
+            private OpIterator nextPartition() throws DbException, TransactionAbortedException {
+                while (partitions != null && partition < partitions.length) {
+                    SpillFile f = partitions[partition++];
+                    if (f == null)
+                        continue;
+                    subAgg = new IntegerAggregator(0, gbfieldtype, 1, what, depth + 1);
+                    OpIterator in = f.iterator();
+                    in.open();
+                    while (in.hasNext())
+                        subAgg.mergeTupleIntoGroup(in.next());
+                    in.close();
+                    OpIterator it = subAgg.iterator();
+                    it.open();
+                    return it;
+                }
+                return null;
+            }
+
+            /**
+             * Close the iterator over a spilled partition, and delete the
+             * files its aggregator partitioned it into again.
+             */
+            private void closeSub() {
+                if (sub != null)
+                    sub.close();
+                sub = null;
+                if (subAgg != null)
+                    subAgg.release();
+                subAgg = null;
+            }
+
+            @Override
+            public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+                if (!isOpen) throw new DbException("Not open");
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                if (group >= limit)
+                    return sub.next();
+                Tuple tuple = new Tuple(td);
+                if (groups != null) {
+                    tuple.setField(0, groups.getKey(group));
+                    tuple.setField(1, new IntField(result(group)));
+                } else {
+                    tuple.setField(0, new IntField(result(group)));
+                }
+                group++;
+                return tuple;
+            }
+
+            @Override
+            public void rewind() throws DbException, TransactionAbortedException {
                 close();
                 open();
-           }
+            }
 
-           @Override
-           public TupleDesc getTupleDesc() {
-               return tupleList.get(0).getTupleDesc();
-           }
+            @Override
+            public TupleDesc getTupleDesc() {
+                return td;
+            }
 
-           @Override
-           public void close() {
+            @Override
+            public void close() {
                 isOpen = false;
-                it = null;
-           }
-       };
+                closeSub();
+            }
+        };
     }
 }
@@ -9,9 +9,17 @@ public class Join extends Operator {
     private JoinPredicate p;
     private OpIterator child1;
     private OpIterator child2;
-    private Tuple t1;
+    private TupleDesc comboTD;
     private static final long serialVersionUID = 1L;
 
+    /** The current block of outer tuples. */
+    transient private Tuple[] block;
+    transient private int blockSize;
+    /** Next block tuple to compare with the current inner tuple t2. */
+    transient private int blockPos;
+    transient private Tuple t2;
+    transient private boolean lastBlock;
+
     /**
      * Constructor. Accepts two children to join and the predicate to join them
      * on
@@ -27,7 +35,7 @@ public class Join extends Operator {
         this.p = p;
         this.child1 = child1;
         this.child2 = child2;
-        t1 = null;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -57,13 +65,18 @@ public class Join extends Operator {
      *      implementation logic.
      */
     public TupleDesc getTupleDesc() {
-        return TupleDesc.merge(child1.getTupleDesc(),child2.getTupleDesc());
+        return comboTD;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
+        int maxBlock = (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+                BufferPool.getOperatorMemoryBytes() / child1.getTupleDesc().getSize()));
+        block = new Tuple[maxBlock];
+        lastBlock = false;
+        loadBlock();
         super.open();
     }
 
@@ -71,18 +84,44 @@ public class Join extends Operator {
         super.close();
         child1.close();
         child2.close();
+        block = null;
+        t2 = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         child1.rewind();
         child2.rewind();
+        lastBlock = false;
+        loadBlock();
+    }
+
+    /**
+     * Read the next block of outer tuples, as many as fit in the operator
+     * memory budget.
+     *
+     * @return true if the block is not empty
+     */
+    private boolean loadBlock() throws DbException, TransactionAbortedException {
+        Arrays.fill(block, 0, blockSize, null);
+        blockSize = 0;
+        while (blockSize < block.length && child1.hasNext())
+            block[blockSize++] = child1.next();
+        lastBlock = !child1.hasNext();
+        t2 = null;
+        blockPos = blockSize;
+        return blockSize > 0;
     }
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
-     * satisfies the join predicate. There are many possible implementations;
-     * the simplest is a nested loops join.
+     * satisfies the join predicate.
+     * <p>
+     * This is a block nested loops join. Tuples of child1 are read in blocks
+     * sized by {@link BufferPool#getOperatorMemoryBytes()}, and child2 is
+     * scanned once per block rather than once per outer tuple, with each
+     * inner tuple compared to every tuple of the block. It evaluates any
+     * join predicate, including NOT_EQUALS and LIKE.
      * <p>
      * Note that the tuples returned from this particular implementation of Join
      * are simply the concatenation of joining tuples from the left and right
@@ -97,29 +136,33 @@ public class Join extends Operator {
      * @see JoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        while(child1.hasNext() || t1!= null){
-            if(child1.hasNext() && t1 == null){
-                t1 = child1.next();
+        while (blockSize > 0) {
+            while (blockPos < blockSize) {
+                Tuple t1 = block[blockPos++];
+                if (p.filter(t1, t2))
+                    return merge(t1, t2);
             }
-            while (child2.hasNext()&&t1!=null){
-                Tuple t2 = child2.next();
-                if(p.filter(t1,t2)){
-                    Tuple union = new Tuple(getTupleDesc());
-                    int i = 0;
-                    for (; i < t1.datas.size(); i++) {
-                        union.setField(i,t1.datas.get(i));
-                    }
-                    int j = 0;
-                    for (; j < t2.datas.size(); j++) {
-                        union.setField(i + j,t2.datas.get(j));
-                    }
-                    return union;
-                }
+            if (child2.hasNext()) {
+                t2 = child2.next();
+                blockPos = 0;
+                continue;
             }
+            // the inner scan for this block is done
+            if (lastBlock || !loadBlock())
+                break;
             child2.rewind();
-            t1 = null;
-            }
-            return null;
+        }
+        return null;
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        Tuple union = new Tuple(comboTD);
+        int n1 = t1.getTupleDesc().numFields();
+        for (int i = 0; i < n1; i++)
+            union.setField(i, t1.getField(i));
+        for (int i = 0; i < t2.getTupleDesc().numFields(); i++)
+            union.setField(n1 + i, t2.getField(i));
+        return union;
     }
 
     @Override
@@ -131,6 +174,7 @@ public class Join extends Operator {
     public void setChildren(OpIterator[] children) {
         child1 = children[0];
         child2 = children[1];
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
 }
@@ -48,6 +48,11 @@ public class JoinOptimizer {
         int t1id = 0, t2id = 0;
         OpIterator j;
 
+        if (lj instanceof LogicalSubplanJoinNode
+                && ((LogicalSubplanJoinNode) lj).getKind() != LogicalSubplanJoinNode.Kind.JOIN) {
+            return instantiateSemiJoin((LogicalSubplanJoinNode) lj, plan1, plan2);
+        }
+
         try {
             t1id = plan1.getTupleDesc().fieldNameToIndex(lj.f1QuantifiedName);
         } catch (NoSuchElementException e) {
@@ -68,12 +73,49 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        boolean sorted = SortMergeJoin.isSortedOn(plan1, t1id, true)
+                && SortMergeJoin.isSortedOn(plan2, t2id, true);
+        if (lj.indexJoin && IndexNestedLoopJoin.canProbe(plan2, t2id, lj.p)) {
+            // orderJoins found probing the inner index cheaper than reading
+            // the whole inner table
+            j = new IndexNestedLoopJoin(p, plan1, plan2);
+        } else if (lj.p == Predicate.Op.EQUALS && sorted) {
+            // inputs already ordered on the join keys are merged in one pass
+            j = new SortMergeJoin(p, plan1, plan2);
+        } else if (lj.p == Predicate.Op.EQUALS) {
+            j = new HashEquiJoin(p, plan1, plan2);
+        } else if (SortMergeJoin.supports(lj.p)) {
+            j = new SortMergeJoin(p, plan1, plan2);
+        } else {
+            j = new Join(p, plan1, plan2);
+        }
 
         return j;
 
     }
 
+    /**
+     * Create the semi-join or anti-join of an IN, NOT IN, EXISTS or NOT
+     * EXISTS subquery; an EXISTS test has no join field.
+     */
+    private static OpIterator instantiateSemiJoin(LogicalSubplanJoinNode lj,
+            OpIterator plan1, OpIterator plan2) throws ParsingException {
+        boolean anti = lj.getKind() == LogicalSubplanJoinNode.Kind.ANTI;
+        if (lj.f1PureName == null)
+            return new HashSemiJoin(null, plan1, plan2, anti);
+        int t1id;
+        try {
+            t1id = plan1.getTupleDesc().fieldNameToIndex(lj.f1QuantifiedName);
+        } catch (NoSuchElementException e) {
+            throw new ParsingException("Unknown field " + lj.f1QuantifiedName);
+        }
+        if (plan1.getTupleDesc().getFieldType(t1id) != plan2.getTupleDesc().getFieldType(0))
+            throw new ParsingException("Type mismatch between " + lj.f1QuantifiedName
+                    + " and its subquery");
+        return new HashSemiJoin(new JoinPredicate(t1id, Predicate.Op.EQUALS, 0),
+                plan1, plan2, anti);
+    }
+
     /**
      * Estimate the cost of a join.
      * 
@@ -103,18 +145,81 @@ public class JoinOptimizer {
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
         if (j instanceof LogicalSubplanJoinNode) {
-            // A LogicalSubplanJoinNode represents a subquery.
-            // You do not need to implement proper support for these for Lab 3.
+            // A LogicalSubplanJoinNode represents a subquery. IN and
+            // EXISTS subqueries are hashed once and probed by each outer
+            // tuple (see HashSemiJoin)
             return card1 + cost1 + cost2;
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return -1.0;
+            return Math.min(estimateScanJoinCost(j, card1, card2, cost1, cost2),
+                    estimateIndexJoinCost(j, card1, card2, cost1, cost2));
         }
     }
 
+    /**
+     * Estimate the cost of a join that reads all of the inner input, as
+     * {@link #instantiateJoin} builds it when it does not probe an index.
+     */
+    private double estimateScanJoinCost(LogicalJoinNode j, int card1,
+            int card2, double cost1, double cost2) {
+        if (j.p == Predicate.Op.EQUALS) {
+            // hash join: scan both inputs once, building a hash table on
+            // one and probing it with each tuple of the other
+            return cost1 + cost2 + card1 + card2;
+        }
+        // nested loops: scan the outer once and the inner once per outer
+        // tuple, applying the predicate to every pair
+        return cost1 + card1 * cost2 + (double) card1 * card2;
+    }
+
+    /**
+     * Estimate the cost of joining by probing a B+ tree on the inner join
+     * field once per outer tuple (see {@link IndexNestedLoopJoin}). Each
+     * probe descends the tree and reads the leaf pages holding its matches.
+     * 
+     * @return the estimated cost, or {@link Double#POSITIVE_INFINITY} if the
+     *         inner table has no B+ tree on the join field
+     */
+    private double estimateIndexJoinCost(LogicalJoinNode j, int card1,
+            int card2, double cost1, double cost2) {
+        if (j.t2Alias == null || j.p == Predicate.Op.NOT_EQUALS
+                || j.p == Predicate.Op.LIKE)
+            return Double.POSITIVE_INFINITY;
+        Integer tableId = p.getTableId(j.t2Alias);
+        if (tableId == null)
+            return Double.POSITIVE_INFINITY;
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(f instanceof BTreeFile))
+            return Double.POSITIVE_INFINITY;
+        BTreeFile bf = (BTreeFile) f;
+        TupleDesc td = bf.getTupleDesc();
+        int key;
+        try {
+            key = td.fieldNameToIndex(j.f2PureName);
+        } catch (NoSuchElementException e) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (key != bf.keyField())
+            return Double.POSITIVE_INFINITY;
+
+        int pages = Math.max(1, bf.numPages());
+        double pageCost = cost2 / pages;
+        int fanout = Math.max(2, BufferPool.getPageSize()
+                / (td.getFieldType(key).getLen() + Type.INT_TYPE.getLen()));
+        int height = 1 + (int) Math.ceil(Math.log(pages) / Math.log(fanout));
+        int tuplesPerPage = Math.max(1, BufferPool.getPageSize() * 8
+                / (td.getSize() * 8 + 1));
+
+        double matches;
+        if (j.p == Predicate.Op.EQUALS)
+            matches = isPkey(j.t2Alias, j.f2PureName) ? 1.0
+                    : Math.max(1.0, (double) card2 / Math.max(1, Math.min(card1, card2)));
+        else
+            matches = 0.3 * card2;
+        double probe = (height + Math.ceil(matches / tuplesPerPage)) * pageCost
+                + matches;
+        return cost1 + card1 * probe;
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -221,9 +326,74 @@ public class JoinOptimizer {
 
         // some code goes here
         //Replace the following
+        chooseJoinMethods(joins, stats, filterSelectivities);
         return joins;
     }
 
+    /**
+     * Decide, for each join of a left-deep order, whether it probes an index
+     * on its inner table, by comparing the same estimates that
+     * {@link #estimateJoinCost} takes the cheaper of. The decision is
+     * recorded in {@link LogicalJoinNode#indexJoin}, which
+     * {@link #instantiateJoin} follows, so the operator built is the one
+     * costed.
+     */
+    private void chooseJoinMethods(Vector<LogicalJoinNode> order,
+            HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities) throws ParsingException {
+        // the cost and cardinality of the subplan each table is part of
+        Map<String, CostCard> subplans = new HashMap<String, CostCard>();
+        for (LogicalJoinNode j : order) {
+            j.indexJoin = false;
+            if (j instanceof LogicalSubplanJoinNode)
+                continue;
+            CostCard left = subplans.containsKey(j.t1Alias) ? subplans.get(j.t1Alias)
+                    : baseCostCard(j.t1Alias, stats, filterSelectivities);
+            boolean innerIsBase = !subplans.containsKey(j.t2Alias);
+            CostCard right = innerIsBase ? baseCostCard(j.t2Alias, stats, filterSelectivities)
+                    : subplans.get(j.t2Alias);
+            if (left == null || right == null)
+                continue;
+
+            double scanCost = estimateScanJoinCost(j, left.card, right.card, left.cost, right.cost);
+            // only a base table can be probed through its index
+            double indexCost = innerIsBase
+                    ? estimateIndexJoinCost(j, left.card, right.card, left.cost, right.cost)
+                    : Double.POSITIVE_INFINITY;
+            j.indexJoin = indexCost < scanCost;
+
+            CostCard joined = new CostCard();
+            joined.cost = Math.min(scanCost, indexCost);
+            joined.card = estimateJoinCardinality(j, left.card, right.card,
+                    isPkey(j.t1Alias, j.f1PureName), isPkey(j.t2Alias, j.f2PureName), stats);
+            for (Map.Entry<String, CostCard> e : subplans.entrySet()) {
+                if (e.getValue() == left || e.getValue() == right)
+                    e.setValue(joined);
+            }
+            subplans.put(j.t1Alias, joined);
+            subplans.put(j.t2Alias, joined);
+        }
+    }
+
+    /**
+     * @return the cost and cardinality of a filtered scan of a base table,
+     *         or null if there are no statistics for it
+     */
+    private CostCard baseCostCard(String alias, HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities) {
+        Integer tableId = p.getTableId(alias);
+        if (tableId == null)
+            return null;
+        TableStats s = stats.get(Database.getCatalog().getTableName(tableId));
+        if (s == null)
+            return null;
+        Double selectivity = filterSelectivities.get(alias);
+        CostCard cc = new CostCard();
+        cc.cost = s.estimateScanCost();
+        cc.card = s.estimateTableCardinality(selectivity == null ? 1.0 : selectivity);
+        return cc;
+    }
+
     // ===================== Private Methods =================================
 
     /**
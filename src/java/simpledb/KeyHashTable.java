@@ -0,0 +1,194 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * KeyHashTable is an open-addressing hash table used by the hash join and
+ * hash aggregation operators in place of <code>HashMap&lt;Field, ...&gt;</code>.
+ * <p>
+ * Every distinct key is assigned a dense <i>ordinal</i> (0, 1, 2, ... in
+ * insertion order), which callers can use to index their own primitive
+ * arrays, e.g. aggregate accumulators. In addition each key may own a chain
+ * of payloads (the build tuples of a hash join, for instance); chains are
+ * stored in flat arrays and walked with {@link #firstPayload},
+ * {@link #nextPayload} and {@link #getPayload}, so no per-key list objects
+ * are allocated.
+ * <p>
+ * Subclasses specialize the slot array for one key type; use
+ * {@link #create(Type)} to get the right one.
+ *
+ * @param <V> the type of the payloads
+ */
+public abstract class KeyHashTable<V> {
+
+    /** Returned by lookups and payload walks when there is nothing to return. */
+    public static final int NONE = -1;
+
+    static final int INITIAL_CAPACITY = 64;
+
+    /** Number of distinct keys. */
+    int size = 0;
+
+    /** Head and tail of the payload chain of each ordinal. */
+    int[] chainHead = new int[INITIAL_CAPACITY];
+    int[] chainTail = new int[INITIAL_CAPACITY];
+
+    /** Payload entries, chained through payloadNext. */
+    Object[] payloads = new Object[INITIAL_CAPACITY];
+    int[] payloadNext = new int[INITIAL_CAPACITY];
+    int payloadCount = 0;
+
+    /**
+     * @return a new, empty table for keys of the given type
+     */
+    public static <V> KeyHashTable<V> create(Type keyType) {
+        switch (keyType) {
+        case INT_TYPE:
+            return new IntKeyHashTable<V>();
+        case STRING_TYPE:
+            return new StringKeyHashTable<V>();
+        default:
+            throw new IllegalArgumentException("unsupported key type " + keyType);
+        }
+    }
+
+    /**
+     * @return the ordinal of the given key, or {@link #NONE} if it is not in
+     *         the table
+     */
+    public abstract int find(Field key);
+
+    /**
+     * @return the ordinal of the given key, adding it to the table if it is
+     *         not there yet
+     */
+    public abstract int findOrInsert(Field key);
+
+    /**
+     * @return the key with the given ordinal
+     */
+    public abstract Field getKey(int ordinal);
+
+    /**
+     * Remove every key and payload, keeping the allocated arrays. Only the
+     * slots of the keys in the table are reset, so that clearing a table
+     * that once grew large costs as much as the keys it holds now.
+     */
+    public void clear() {
+        clearSlots(size);
+        size = 0;
+        Arrays.fill(payloads, 0, payloadCount, null);
+        payloadCount = 0;
+    }
+
+    /**
+     * Empty the slots of the keys with ordinals 0 .. n-1. A slot emptied
+     * earlier may lie on the probe path of a later key, so each key's slot
+     * is found by walking to its ordinal rather than to the first empty
+     * slot.
+     */
+    abstract void clearSlots(int n);
+
+    /**
+     * @return the number of distinct keys in the table
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of payloads in the table, over all keys
+     */
+    public int payloadCount() {
+        return payloadCount;
+    }
+
+    /**
+     * Append a payload to the chain of the given key, adding the key if
+     * needed.
+     *
+     * @return the ordinal of the key
+     */
+    public int add(Field key, V payload) {
+        int ordinal = findOrInsert(key);
+        if (payloadCount == payloads.length) {
+            int cap = payloads.length * 2;
+            payloads = Arrays.copyOf(payloads, cap);
+            payloadNext = Arrays.copyOf(payloadNext, cap);
+        }
+        int entry = payloadCount++;
+        payloads[entry] = payload;
+        payloadNext[entry] = NONE;
+        if (chainHead[ordinal] == NONE)
+            chainHead[ordinal] = entry;
+        else
+            payloadNext[chainTail[ordinal]] = entry;
+        chainTail[ordinal] = entry;
+        return ordinal;
+    }
+
+    /**
+     * @return the first payload entry of the key with the given ordinal, or
+     *         {@link #NONE} if the key has no payloads
+     */
+    public int firstPayload(int ordinal) {
+        return ordinal == NONE ? NONE : chainHead[ordinal];
+    }
+
+    /**
+     * @return the payload entry following the given one in its key's chain,
+     *         or {@link #NONE} at the end of the chain
+     */
+    public int nextPayload(int entry) {
+        return payloadNext[entry];
+    }
+
+    /**
+     * @return the payload stored in the given entry. Entries are numbered
+     *         0 .. payloadCount()-1 in insertion order.
+     */
+    @SuppressWarnings("unchecked")
+    public V getPayload(int entry) {
+        return (V) payloads[entry];
+    }
+
+    /**
+     * Register a new ordinal, growing the per-ordinal arrays if needed.
+     */
+    int newOrdinal() {
+        if (size == chainHead.length) {
+            int cap = chainHead.length * 2;
+            chainHead = Arrays.copyOf(chainHead, cap);
+            chainTail = Arrays.copyOf(chainTail, cap);
+            growOrdinals(cap);
+        }
+        chainHead[size] = NONE;
+        chainTail[size] = NONE;
+        return size++;
+    }
+
+    abstract void growOrdinals(int capacity);
+
+    /**
+     * Pick the spill partition of a key. Operators that partition
+     * recursively pass a different seed at each level, so that keys which
+     * collided in one partition are spread out again in the next.
+     *
+     * @return a partition number in [0, fanout)
+     */
+    public static int partition(Field key, int seed, int fanout) {
+        return (mix(key.hashCode() + seed * 0x9E3779B9) & 0x7fffffff) % fanout;
+    }
+
+    /**
+     * Scramble a hash code so that sequential keys spread over the table.
+     */
+    static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
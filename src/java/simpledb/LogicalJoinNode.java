@@ -23,6 +23,12 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** Whether the join probes a B+ tree on t2.f2 once per outer tuple
+     * (see {@link IndexNestedLoopJoin}) rather than reading all of t2. The
+     * {@link JoinOptimizer} sets it when it orders the joins, to the
+     * cheaper of the two. */
+    public boolean indexJoin;
+
     public LogicalJoinNode() {
     }
 
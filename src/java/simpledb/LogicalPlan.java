@@ -1,7 +1,12 @@
 package simpledb;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
@@ -25,16 +30,21 @@ public class LogicalPlan {
     private Vector<LogicalJoinNode> joins;
     private Vector<LogicalScanNode> tables;
     private Vector<LogicalFilterNode> filters;
+    /** Filters on general expressions, and the tables each one reads. */
+    private Vector<Expression> exprFilters;
+    private Vector<Set<String>> exprFilterTables;
     private HashMap<String, OpIterator> subplanMap;
     private HashMap<String,Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private Vector<String> groupByFields;
+    /** The aggregates computed by the query, in the order they were added. */
+    private Vector<LogicalSelectListNode> aggregates;
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
+    private boolean distinct = false;
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
+    private int limit = -1, offset = 0;
     private String query;
 //    private Query owner;
 
@@ -42,11 +52,15 @@ public class LogicalPlan {
     public LogicalPlan() {
         joins = new Vector<LogicalJoinNode>();
         filters = new Vector<LogicalFilterNode>();
+        exprFilters = new Vector<Expression>();
+        exprFilterTables = new Vector<Set<String>>();
         tables = new Vector<LogicalScanNode>();
         subplanMap = new HashMap<String, OpIterator>();
         tableMap = new HashMap<String,Integer>();
 
         selectList = new Vector<LogicalSelectListNode>();
+        groupByFields = new Vector<String>();
+        aggregates = new Vector<LogicalSelectListNode>();
         this.query = "";
     }
 
@@ -105,6 +119,27 @@ public class LogicalPlan {
         filters.addElement(lf);
     }
 
+    /** Add a filter on a boolean expression, e.g. an OR of comparisons or
+     *  a comparison of arithmetic expressions. The expression is applied
+     *  to the scan of its table if it reads a single table, and after the
+     *  joins otherwise.
+     *  @param e the expression; its columns must be referenced by
+     *  qualified name (alias.field)
+     *  @throws ParsingException if a column is not in one of the tables
+     *  added via {@link #addScan}
+     */
+    public void addFilter(Expression e) throws ParsingException {
+        List<String> columns = new ArrayList<String>();
+        e.collectColumns(columns);
+        Set<String> tables = new HashSet<String>();
+        for (String c : columns) {
+            String table = disambiguateName(c).split("[.]")[0];
+            tables.add(table);
+        }
+        exprFilters.addElement(e);
+        exprFilterTables.addElement(tables);
+    }
+
     /** Add a join between two fields of two different tables.  
      *  @param joinField1 The name of the first join field; this can
      *  be a fully qualified name (e.g., tableName.field or
@@ -156,6 +191,44 @@ public class LogicalPlan {
         joins.addElement(lj);
     }
 
+    /** Add a semi-join or anti-join between a field and a subquery, for
+     *  <tt>field IN (subquery)</tt> or <tt>field NOT IN (subquery)</tt>.
+     *  Each row of the field's table is kept at most once.
+     *  @param joinField1 The name of the field looked up in the
+     *  subquery; resolved as in {@link #addJoin(String, OpIterator, Predicate.Op)}
+     *  @param subplan the subquery; its first field is matched
+     *  @param anti true for NOT IN
+     *  @throws ParsingException if the field is ambiguous or unknown
+     */
+    public void addSemiJoin(String joinField1, OpIterator subplan, boolean anti) throws ParsingException {
+        joinField1 = disambiguateName(joinField1);
+
+        String table1 = joinField1.split("[.]")[0];
+        String pureField = joinField1.split("[.]")[1];
+
+        LogicalSubplanJoinNode lj = new LogicalSubplanJoinNode(table1, pureField, subplan,
+                Predicate.Op.EQUALS, anti ? LogicalSubplanJoinNode.Kind.ANTI : LogicalSubplanJoinNode.Kind.SEMI);
+        System.out.println("Added " + (anti ? "anti" : "semi") + "-join on " + joinField1);
+        joins.addElement(lj);
+    }
+
+    /** Add an EXISTS or NOT EXISTS test of a subquery. Without correlated
+     *  subqueries the test keeps either every row or none, so it is
+     *  attached to the first table of the FROM clause.
+     *  @param subplan the subquery
+     *  @param anti true for NOT EXISTS
+     *  @throws ParsingException if the query has no tables
+     */
+    public void addExists(OpIterator subplan, boolean anti) throws ParsingException {
+        if (tables.isEmpty())
+            throw new ParsingException("EXISTS needs a table in the FROM clause");
+        String table1 = tables.get(0).alias;
+        LogicalSubplanJoinNode lj = new LogicalSubplanJoinNode(table1, null, subplan,
+                Predicate.Op.EQUALS, anti ? LogicalSubplanJoinNode.Kind.ANTI : LogicalSubplanJoinNode.Kind.SEMI);
+        System.out.println("Added " + (anti ? "NOT EXISTS" : "EXISTS") + " test");
+        joins.addElement(lj);
+    }
+
     /** Add a scan to the plan. One scan node needs to be added for each alias of a table
         accessed by the plan.
         @param table the id of the table accessed by the plan (can be resolved to a DbFile using {@link Catalog#getDatabaseFile}
@@ -186,23 +259,42 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.  A query may compute several aggregates, over the
+        groups of several GROUP BY fields; all of them are computed by a
+        single {@link GroupAggregate}.
         @param op the aggregation operator
         @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param gfield a field to group by, or null
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
         afield=disambiguateName(afield);
         if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+            addGroupBy(gfield);
+        aggregates.addElement(new LogicalSelectListNode(op, afield));
+        hasAgg = true;
+    }
+
+    /** Add a GROUP BY field to the query. Fields are grouped on in the
+        order they are added; adding a field twice has no effect.
+        @param field the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupBy(String field) throws ParsingException {
+        field=disambiguateName(field);
+        if (!groupByFields.contains(field))
+            groupByFields.addElement(field);
         hasAgg = true;
     }
 
+    /** Remove duplicate rows from the output of the query, as for SELECT
+        DISTINCT.  An ORDER BY field must then appear in the select list.
+        @param distinct true to remove duplicates
+    */
+    public void setDistinct(boolean distinct) {
+        this.distinct = distinct;
+    }
+
     /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
         a single ORDER BY field.
         @param field the field to order by
@@ -216,6 +308,31 @@ public class LogicalPlan {
         hasOrderBy = true;
     }
 
+    /** Add a LIMIT clause: return at most limit tuples after skipping the first offset.
+        When combined with ORDER BY, the sort and the limit are fused into a single
+        {@link TopN} operator.
+        @param limit the maximum number of tuples to return
+        @param offset the number of leading tuples to skip
+     * @throws ParsingException if limit or offset is negative
+    */
+    public void addLimit(int limit, int offset) throws ParsingException {
+        if (limit < 0 || offset < 0)
+            throw new ParsingException("LIMIT and OFFSET must not be negative");
+        this.limit = limit;
+        this.offset = offset;
+    }
+
+    /** Compile a filter expression once to check its columns and types. */
+    private static void checkFilter(Expression e, TupleDesc td) throws ParsingException {
+        try {
+            e.compilePredicate(td);
+        } catch (IllegalArgumentException ex) {
+            throw new ParsingException("Invalid filter " + e + ": " + ex.getMessage());
+        } catch (NoSuchElementException ex) {
+            throw new ParsingException("Invalid filter " + e + ": unknown field");
+        }
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -258,6 +375,19 @@ public class LogicalPlan {
 
     }
 
+    /**
+     * @return the position of an aggregate of the select list among the
+     *         aggregates of the query, or -1
+     */
+    private int indexOfAggregate(LogicalSelectListNode si) {
+        for (int i = 0; i < aggregates.size(); i++) {
+            LogicalSelectListNode a = aggregates.elementAt(i);
+            if (a.fname.equals(si.fname) && a.aggOp.equalsIgnoreCase(si.aggOp))
+                return i;
+        }
+        return -1;
+    }
+
     /** Convert the aggregate operator name s into an Aggregator.op operation.
      *  @throws ParsingException if s is not a valid operator name 
      */
@@ -271,6 +401,303 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** @return the qualified names of the fields the query reads, or null if
+     *   it reads all fields of every table (SELECT *). A name of the form
+     *   alias.* stands for all fields of one table.
+     */
+    private Set<String> usedFields() throws ParsingException {
+        Set<String> used = new HashSet<String>();
+        List<String> names = new ArrayList<String>();
+        for (LogicalSelectListNode si : selectList)
+            names.add(si.fname);
+        for (LogicalSelectListNode si : aggregates)
+            names.add(si.fname);
+        names.addAll(groupByFields);
+        if (hasOrderBy)
+            names.add(oByField);
+        for (LogicalFilterNode lf : filters)
+            names.add(lf.fieldQuantifiedName);
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.f1QuantifiedName);
+            if (!(lj instanceof LogicalSubplanJoinNode))
+                names.add(lj.f2QuantifiedName);
+        }
+        for (Expression e : exprFilters)
+            e.collectColumns(names);
+        for (String name : names) {
+            if (name == null)
+                continue;
+            if (name.equals("*") || name.equals("null.*"))
+                return null;
+            used.add(disambiguateName(name));
+        }
+        return used;
+    }
+
+    /** @return the columns of a table the query reads, as indexes into the
+     *   table's tuples, or null if it reads all of them
+     */
+    private static int[] scanColumns(LogicalScanNode table, Set<String> usedFields) {
+        List<Integer> columns = usedColumns(table, usedFields);
+        if (columns == null
+                || columns.size() == Database.getCatalog().getTupleDesc(table.t).numFields())
+            return null;
+        if (columns.isEmpty())
+            columns.add(0); // e.g. COUNT(*); a tuple needs at least one field
+        return toArray(columns);
+    }
+
+    /** @return the columns of a table the query reads, if the index stores
+     *   them all, or null if it does not. A query that reads no column of the
+     *   table, such as COUNT(*), reads the indexed field.
+     */
+    private static int[] coveredColumns(LogicalScanNode table, Set<String> usedFields,
+            SecondaryIndex index) {
+        List<Integer> columns = usedColumns(table, usedFields);
+        if (columns == null)
+            return null;
+        if (columns.isEmpty())
+            columns.add(index.getField());
+        int[] result = toArray(columns);
+        return index.covers(result) ? result : null;
+    }
+
+    /** @return the indexes of the columns of a table the query uses, or
+     *   null if it uses all of them through a wildcard
+     */
+    private static List<Integer> usedColumns(LogicalScanNode table, Set<String> usedFields) {
+        if (usedFields == null || usedFields.contains(table.alias + ".*"))
+            return null;
+        TupleDesc td = Database.getCatalog().getTupleDesc(table.t);
+        List<Integer> columns = new ArrayList<Integer>();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (usedFields.contains(table.alias + "." + td.getFieldName(i)))
+                columns.add(i);
+        }
+        return columns;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] result = new int[list.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = list.get(i);
+        return result;
+    }
+
+    private static Field filterConstant(LogicalFilterNode lf, Type type) throws ParsingException {
+        if (type == Type.STRING_TYPE)
+            return new StringField(lf.c, Type.STRING_LEN);
+        try {
+            return new IntField(Integer.parseInt(lf.c));
+        } catch (NumberFormatException e) {
+            throw new ParsingException("Invalid integer constant " + lf.c + " in filter on " + lf.fieldQuantifiedName);
+        }
+    }
+
+    /** Replace the scan of a table with an index scan if one of the filters
+     *   on the table makes reading the matching tuples through an index
+     *   cheaper than reading the whole table. A table stored in a
+     *   {@link BTreeFile} can be read over a key range with a
+     *   {@link BTreeScan}, and a table stored in a {@link HashFile} can
+     *   be searched for a key with a {@link HashScan}; any table can be
+     *   read through one of its
+     *   {@link SecondaryIndex}es with a {@link SecondaryIndexScan}, which
+     *   need not read the table at all if the index stores every column the
+     *   query uses. Such a covering index may also replace the scan of the
+     *   whole table. A table stored in a {@link HeapFile} with
+     *   {@link BitmapIndex}es can be read with a {@link BitmapHeapScan},
+     *   which combines the bitmaps of all the filters on the table and reads
+     *   only the pages that may hold matching tuples. The cheapest choice,
+     *   by the table's statistics, wins, and its filter, if any, becomes the
+     *   scan's {@link IndexPredicate}, or all the filters on the table
+     *   become the bitmap scan's condition.
+     *  @param answeredExprs the single-table expression filters answered by
+     *   bitmap scans are added to this set
+     *  @return the filters answered by index scans
+     */
+    private Set<LogicalFilterNode> chooseIndexScans(TransactionId tid,
+            Map<String,TableStats> statsMap, Set<String> usedFields,
+            Set<Expression> answeredExprs) throws ParsingException {
+        Set<LogicalFilterNode> chosen = new HashSet<LogicalFilterNode>();
+        for (LogicalScanNode table : tables) {
+            DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+            TableStats stats = statsMap.get(Database.getCatalog().getTableName(table.t));
+            if (stats == null)
+                continue;
+            TupleDesc td = file.getTupleDesc();
+            double bestCost = stats.estimateScanCost();
+            Collection<LogicalFilterNode> best = Collections.emptySet();
+            OpIterator bestScan = null;
+            for (LogicalFilterNode lf : filters) {
+                if (!lf.tableAlias.equals(table.alias)
+                        || lf.p == Predicate.Op.NOT_EQUALS || lf.p == Predicate.Op.LIKE)
+                    continue;
+                int field;
+                try {
+                    field = td.fieldNameToIndex(lf.fieldPureName);
+                } catch (NoSuchElementException e) {
+                    continue;
+                }
+                Field c = filterConstant(lf, td.getFieldType(field));
+                double sel = stats.estimateSelectivity(field, lf.p, c);
+                if (file instanceof BTreeFile && ((BTreeFile) file).keyField() == field) {
+                    double cost = indexScanCost(stats, (BTreeFile) file, sel);
+                    if (cost < bestCost) {
+                        bestCost = cost;
+                        best = Collections.singleton(lf);
+                        bestScan = new BTreeScan(tid, table.t, table.alias,
+                                new IndexPredicate(lf.p, c), scanColumns(table, usedFields));
+                    }
+                }
+                if (file instanceof HashFile && ((HashFile) file).keyField() == field
+                        && lf.p == Predicate.Op.EQUALS) {
+                    double cost = hashScanCost(stats, (HashFile) file, sel);
+                    if (cost < bestCost) {
+                        bestCost = cost;
+                        best = Collections.singleton(lf);
+                        bestScan = new HashScan(tid, table.t, table.alias,
+                                new IndexPredicate(lf.p, c), scanColumns(table, usedFields));
+                    }
+                }
+                for (SecondaryIndex index : Database.getCatalog().getIndexes(table.t)) {
+                    if (index.getField() != field)
+                        continue;
+                    int[] covered = coveredColumns(table, usedFields, index);
+                    double cost = secondaryIndexScanCost(stats, file, index, sel, covered != null);
+                    if (cost < bestCost) {
+                        bestCost = cost;
+                        best = Collections.singleton(lf);
+                        bestScan = new SecondaryIndexScan(tid, index, table.alias, new IndexPredicate(lf.p, c),
+                                covered != null ? covered : scanColumns(table, usedFields));
+                    }
+                }
+            }
+            for (SecondaryIndex index : Database.getCatalog().getIndexes(table.t)) {
+                int[] covered = coveredColumns(table, usedFields, index);
+                if (covered == null)
+                    continue;
+                double cost = secondaryIndexScanCost(stats, file, index, 1.0, true);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    best = Collections.emptySet();
+                    bestScan = new SecondaryIndexScan(tid, index, table.alias, null, covered);
+                }
+            }
+            List<Expression> bitmapExprs = new ArrayList<Expression>();
+            if (file instanceof HeapFile && !Database.getCatalog().getBitmapIndexes(table.t).isEmpty()) {
+                // every filter on the table is part of the condition, to be
+                // answered from the bitmaps where they can and checked on the
+                // tuples read where they cannot
+                List<LogicalFilterNode> bitmapFilters = new ArrayList<LogicalFilterNode>();
+                List<Expression> terms = new ArrayList<Expression>();
+                for (LogicalFilterNode lf : filters) {
+                    if (!lf.tableAlias.equals(table.alias))
+                        continue;
+                    int field;
+                    try {
+                        field = td.fieldNameToIndex(lf.fieldPureName);
+                    } catch (NoSuchElementException e) {
+                        continue;
+                    }
+                    bitmapFilters.add(lf);
+                    terms.add(Expression.compare(lf.p, Expression.column(lf.fieldQuantifiedName),
+                            Expression.constant(filterConstant(lf, td.getFieldType(field)))));
+                }
+                for (int i = 0; i < exprFilters.size(); i++) {
+                    Set<String> aliases = exprFilterTables.elementAt(i);
+                    if (aliases.size() == 1 && aliases.contains(table.alias)) {
+                        bitmapExprs.add(exprFilters.elementAt(i));
+                        terms.add(exprFilters.elementAt(i));
+                    }
+                }
+                if (!terms.isEmpty()) {
+                    Expression condition = terms.size() == 1 ? terms.get(0)
+                            : Expression.and(terms.toArray(new Expression[terms.size()]));
+                    BitmapHeapScan scan = new BitmapHeapScan(tid, table.t, table.alias, condition,
+                            scanColumns(table, usedFields));
+                    RoaringBitmap candidates = scan.candidates();
+                    if (candidates != null) {
+                        int pagesRead = Database.getCatalog().getBitmapIndexes(table.t).get(0)
+                                .countPages(candidates);
+                        double cost = bitmapScanCost(stats, (HeapFile) file, pagesRead);
+                        if (cost < bestCost) {
+                            bestCost = cost;
+                            best = bitmapFilters;
+                            bestScan = scan;
+                        } else {
+                            bitmapExprs.clear();
+                        }
+                    } else {
+                        bitmapExprs.clear();
+                    }
+                }
+            }
+            if (bestScan == null)
+                continue;
+            subplanMap.put(table.alias, bestScan);
+            chosen.addAll(best);
+            if (bestScan instanceof BitmapHeapScan)
+                answeredExprs.addAll(bitmapExprs);
+        }
+        return chosen;
+    }
+
+    /** Estimate the cost of reading the tuples of a key range of a B+ tree:
+     *   one page per level from the root down to the first leaf, then the
+     *   fraction sel of the table's pages.
+     */
+    static double indexScanCost(TableStats stats, BTreeFile index, double sel) {
+        double scanCost = stats.estimateScanCost();
+        int pages = Math.max(1, index.numPages());
+        return scanCost / pages * (treeHeight(index, pages) + pages * sel);
+    }
+
+    /** Estimate the cost of reading the tuples with a given key from a
+     *   hash file: the pages of the key's bucket, at least one. The
+     *   directory page is not counted, as it stays in the buffer pool.
+     */
+    static double hashScanCost(TableStats stats, HashFile file, double sel) {
+        double scanCost = stats.estimateScanCost();
+        int pages = Math.max(1, file.numPages());
+        return scanCost / pages * Math.max(1, Math.ceil(pages * sel));
+    }
+
+    /** Estimate the cost of reading some pages of a heap file with a
+     *   bitmap scan: each page once. The bitmaps are in memory and cost
+     *   nothing to read.
+     */
+    static double bitmapScanCost(TableStats stats, HeapFile file, int pagesRead) {
+        double scanCost = stats.estimateScanCost();
+        int pages = Math.max(1, file.numPages());
+        return scanCost / pages * pagesRead;
+    }
+
+    /** Estimate the cost of reading the tuples matching a predicate of
+     *   selectivity sel through a secondary index: the index is read like a
+     *   key range of a B+ tree, then, unless the index covers the query,
+     *   each matching tuple costs a page read of the table, as its
+     *   neighbours in the index are not its neighbours in the table.
+     */
+    static double secondaryIndexScanCost(TableStats stats, DbFile table, SecondaryIndex index,
+            double sel, boolean covering) {
+        int tablePages = 1;
+        if (table instanceof HeapFile)
+            tablePages = ((HeapFile) table).numPages();
+        else if (table instanceof BTreeFile)
+            tablePages = ((BTreeFile) table).numPages();
+        double perPage = stats.estimateScanCost() / Math.max(1, tablePages);
+        int indexPages = Math.max(1, index.getFile().numPages());
+        return perPage * (treeHeight(index.getFile(), indexPages) + indexPages * sel
+                + (covering ? 0 : stats.estimateTableCardinality(sel)));
+    }
+
+    private static double treeHeight(BTreeFile tree, int pages) {
+        Type keyType = tree.getTupleDesc().getFieldType(tree.keyField());
+        // an internal page holds a key and a child pointer per entry
+        int fanout = Math.max(2, BufferPool.getPageSize() / (keyType.getLen() + BTreePage.INDEX_SIZE));
+        return 1 + Math.ceil(Math.log(pages) / Math.log(fanout));
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -289,12 +716,14 @@ public class LogicalPlan {
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        Set<String> usedFields = usedFields();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
             SeqScan ss = null;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias,
+                         scanColumns(table, usedFields));
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
@@ -306,6 +735,9 @@ public class LogicalPlan {
 
         }
 
+        Set<Expression> indexExprs = new HashSet<Expression>();
+        Set<LogicalFilterNode> indexFilters = chooseIndexScans(t, statsMap, usedFields, indexExprs);
+
         Iterator<LogicalFilterNode> filterIt = filters.iterator();        
         while (filterIt.hasNext()) {
             LogicalFilterNode lf = filterIt.next();
@@ -323,32 +755,51 @@ public class LogicalPlan {
             } catch (java.util.NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c).intValue());
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            f = filterConstant(lf, ftyp);
 
-            Predicate p = null;
-            try {
-                p = new Predicate(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p,f);
-            } catch (NoSuchElementException e) {
-                throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
+            // a filter answered by an index scan is not applied again
+            if (!indexFilters.contains(lf)) {
+                Predicate p = null;
+                try {
+                    p = new Predicate(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p,f);
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
+                }
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
-            double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            // statistics are kept by column of the table, not of the scan
+            int tableField = Database.getCatalog().getTupleDesc(this.getTableId(lf.tableAlias))
+                    .fieldNameToIndex(lf.fieldPureName);
+            double sel= s.estimateSelectivity(tableField, lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
+
+        for (int i = 0; i < exprFilters.size(); i++) {
+            Set<String> tables = exprFilterTables.elementAt(i);
+            if (tables.size() != 1)
+                continue;
+            String alias = tables.iterator().next();
+            OpIterator subplan = subplanMap.get(alias);
+            // an expression answered by a bitmap scan is not applied again
+            if (!indexExprs.contains(exprFilters.elementAt(i))) {
+                checkFilter(exprFilters.elementAt(i), subplan.getTupleDesc());
+                subplanMap.put(alias, new Filter(exprFilters.elementAt(i), subplan));
+            }
+            // there are no statistics for general expressions
+            filterSelectivities.put(alias, filterSelectivities.get(alias) / 3);
+        }
         
         if (!joins.isEmpty()) {
             JoinOptimizer jo = new JoinOptimizer(this,joins);
 
             joins = jo.orderJoins(statsMap,filterSelectivities,explain);
 
+            Set<Integer> pushedFilters = new HashSet<Integer>();
             Iterator<LogicalJoinNode> joinIt = joins.iterator();
             while (joinIt.hasNext()) {
                 LogicalJoinNode lj = joinIt.next();
@@ -400,6 +851,25 @@ public class LogicalPlan {
                         
                     // subplanMap.put(lj.t2, j);
                 }
+
+                // apply each expression over several tables as soon as
+                // all of them have been joined
+                for (int i = 0; i < exprFilters.size(); i++) {
+                    Set<String> tables = exprFilterTables.elementAt(i);
+                    if (tables.size() < 2 || pushedFilters.contains(i))
+                        continue;
+                    boolean covered = true;
+                    for (String alias : tables) {
+                        String name = equivMap.get(alias) != null ? equivMap.get(alias) : alias;
+                        covered &= name.equals(t1name);
+                    }
+                    if (covered) {
+                        checkFilter(exprFilters.elementAt(i), j.getTupleDesc());
+                        subplanMap.put(t1name, new Filter(exprFilters.elementAt(i), j));
+                        j = subplanMap.get(t1name);
+                        pushedFilters.add(i);
+                    }
+                }
             }
         }
 
@@ -409,13 +879,26 @@ public class LogicalPlan {
         
         OpIterator node =  (OpIterator)(subplanMap.entrySet().iterator().next().getValue());
 
+        // expressions over no table apply to the joined result
+        for (int i = 0; i < exprFilters.size(); i++) {
+            if (exprFilterTables.elementAt(i).isEmpty()) {
+                checkFilter(exprFilters.elementAt(i), node.getTupleDesc());
+                node = new Filter(exprFilters.elementAt(i), node);
+            }
+        }
+
         //walk the select list, to determine order in which to project output fields
         ArrayList<Integer> outFields = new ArrayList<Integer>();
         ArrayList<Type> outTypes = new ArrayList<Type>();
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
+                // aggregates follow the GROUP BY fields in the output of
+                // the GroupAggregate
+                int k = indexOfAggregate(si);
+                if (k < 0)
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") is not computed by the query");
+                outFields.add(groupByFields.size() + k);
                 TupleDesc td = node.getTupleDesc();
 //                int  id;
                 try {
@@ -427,16 +910,17 @@ public class LogicalPlan {
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int g = groupByFields.indexOf(si.fname);
+                    if (g < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(g);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -461,12 +945,18 @@ public class LogicalPlan {
 
         if (hasAgg) {
             TupleDesc td = node.getTupleDesc();
-            Aggregate aggNode;
+            int[] gfields = new int[groupByFields.size()];
+            int[] afields = new int[aggregates.size()];
+            Aggregator.Op[] aops = new Aggregator.Op[aggregates.size()];
+            GroupAggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                for (int i = 0; i < gfields.length; i++)
+                    gfields[i] = td.fieldNameToIndex(groupByFields.elementAt(i));
+                for (int i = 0; i < afields.length; i++) {
+                    afields[i] = td.fieldNameToIndex(aggregates.elementAt(i).fname);
+                    aops[i] = getAggOp(aggregates.elementAt(i).aggOp);
+                }
+                aggNode = new GroupAggregate(node, gfields, afields, aops);
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
@@ -475,8 +965,30 @@ public class LogicalPlan {
             node = aggNode;
         }
 
-        if (hasOrderBy) {
+        if (distinct) {
+            // duplicates are defined on the output columns, so DISTINCT
+            // goes above the projection, and ORDER BY and LIMIT above it
+            node = new Distinct(new Project(outFields, outTypes, node));
+            try {
+                if (hasOrderBy && limit >= 0)
+                    node = new TopN(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, limit, offset, node);
+                else if (hasOrderBy)
+                    node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+                else if (limit >= 0)
+                    node = new Limit(limit, offset, node);
+            } catch (NoSuchElementException e) {
+                throw new ParsingException("ORDER BY field " + oByField + " must appear in the SELECT DISTINCT list");
+            }
+            return node;
+        }
+
+        // the limit goes below the projection, which never changes the number of tuples
+        if (hasOrderBy && limit >= 0) {
+            node = new TopN(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, limit, offset, node);
+        } else if (hasOrderBy) {
             node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+        } else if (limit >= 0) {
+            node = new Limit(limit, offset, node);
         }
 
         return new Project(outFields, outTypes, node);
@@ -5,24 +5,51 @@ package simpledb;
  * {@link LogicalJoinNode}; t2 and f2 should always be null
  */
 public class LogicalSubplanJoinNode extends LogicalJoinNode {
-    
+
+    /** How the rows of the table are matched against the subplan. */
+    public enum Kind {
+        /** a plain join, e.g. for <tt>t.a = (SELECT ...)</tt> */
+        JOIN,
+        /** each row once if it has a match: IN and EXISTS */
+        SEMI,
+        /** each row once if it has no match: NOT IN and NOT EXISTS */
+        ANTI
+    }
+
     /** The subplan (used on the inner) of the join */
     OpIterator subPlan;
-    
+
+    Kind kind = Kind.JOIN;
+
     public LogicalSubplanJoinNode(String table1, String joinField1, OpIterator sp, Predicate.Op pred) {
         t1Alias = table1;
-        String[] tmps = joinField1.split("[.]");
-        if (tmps.length>1)
-            f1PureName = tmps[tmps.length-1];
-        else
-            f1PureName=joinField1;
-        f1QuantifiedName=t1Alias+"."+f1PureName;
+        if (joinField1 != null) {
+            String[] tmps = joinField1.split("[.]");
+            if (tmps.length>1)
+                f1PureName = tmps[tmps.length-1];
+            else
+                f1PureName=joinField1;
+            f1QuantifiedName=t1Alias+"."+f1PureName;
+        }
         subPlan = sp;
         p = pred;
     }
-    
+
+    /**
+     * @param joinField1 the field of table1 looked up in the subplan, or
+     *        null for EXISTS, which only tests whether the subplan is empty
+     */
+    public LogicalSubplanJoinNode(String table1, String joinField1, OpIterator sp, Predicate.Op pred, Kind kind) {
+        this(table1, joinField1, sp, pred);
+        this.kind = kind;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
     @Override public int hashCode() {
-        return t1Alias.hashCode() + f1PureName.hashCode() + subPlan.hashCode();
+        return t1Alias.hashCode() + (f1PureName == null ? 0 : f1PureName.hashCode()) + subPlan.hashCode();
     }
     
     @Override public boolean equals(Object o) {
@@ -30,11 +57,12 @@ public class LogicalSubplanJoinNode extends LogicalJoinNode {
         if (!(o instanceof LogicalSubplanJoinNode))
             return false;
         
-        return (j2.t1Alias.equals(t1Alias)  && j2.f1PureName.equals(f1PureName) && ((LogicalSubplanJoinNode)o).subPlan.equals(subPlan));
+        return (j2.t1Alias.equals(t1Alias) && (j2.f1PureName == null ? f1PureName == null : j2.f1PureName.equals(f1PureName))
+                && ((LogicalSubplanJoinNode)o).subPlan.equals(subPlan) && ((LogicalSubplanJoinNode)o).kind == kind);
     }
     
     public LogicalSubplanJoinNode swapInnerOuter() {
-        LogicalSubplanJoinNode j2 = new LogicalSubplanJoinNode(t1Alias,f1PureName,subPlan, p);
+        LogicalSubplanJoinNode j2 = new LogicalSubplanJoinNode(t1Alias,f1PureName,subPlan, p, kind);
         return j2;
     }
 
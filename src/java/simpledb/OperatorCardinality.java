@@ -32,6 +32,9 @@ public class OperatorCardinality {
         } else if (o instanceof Aggregate) {
             return updateAggregateCardinality((Aggregate) o, tableAliasToId,
                     tableStats);
+        } else if (o instanceof GroupAggregate) {
+            return updateGroupAggregateCardinality((GroupAggregate) o,
+                    tableAliasToId, tableStats);
         } else {
             OpIterator[] children = o.getChildren();
             int childC = 1;
@@ -41,10 +44,8 @@ public class OperatorCardinality {
                     hasJoinPK = updateOperatorCardinality(
                             (Operator) children[0], tableAliasToId, tableStats);
                     childC = ((Operator) children[0]).getEstimatedCardinality();
-                } else if (children[0] instanceof SeqScan) {
-                    childC = tableStats.get(
-                            ((SeqScan) children[0]).getTableName())
-                            .estimateTableCardinality(1.0);
+                } else if (isScan(children[0])) {
+                    childC = scanCardinality(children[0], tableStats);
                 }
             }
             o.setEstimatedCardinality(childC);
@@ -52,11 +53,85 @@ public class OperatorCardinality {
         }
     }
 
+    /**
+     * @return true if the iterator reads a base table, through a sequential
+     *         or an index scan
+     */
+    private static boolean isScan(OpIterator it) {
+        return it instanceof SeqScan || it instanceof BTreeScan
+                || it instanceof SecondaryIndexScan || it instanceof HashScan
+                || it instanceof BitmapHeapScan;
+    }
+
+    /**
+     * @return the estimated number of tuples a scan returns; an index scan
+     *         returns those matching its index predicate, and a bitmap scan
+     *         those its bitmaps say may pass its condition
+     */
+    private static int scanCardinality(OpIterator scan,
+            Map<String, TableStats> tableStats) {
+        if (scan instanceof BTreeScan) {
+            BTreeScan s = (BTreeScan) scan;
+            TableStats stats = tableStats.get(s.getTableName());
+            IndexPredicate ipred = s.getIndexPredicate();
+            if (ipred == null)
+                return stats.estimateTableCardinality(1.0);
+            int key = ((BTreeFile) Database.getCatalog().getDatabaseFile(
+                    s.getTableId())).keyField();
+            return stats.estimateTableCardinality(stats.estimateSelectivity(
+                    key, ipred.getOp(), ipred.getField()));
+        }
+        if (scan instanceof SecondaryIndexScan) {
+            SecondaryIndexScan s = (SecondaryIndexScan) scan;
+            TableStats stats = tableStats.get(s.getTableName());
+            IndexPredicate ipred = s.getIndexPredicate();
+            if (ipred == null)
+                return stats.estimateTableCardinality(1.0);
+            return stats.estimateTableCardinality(stats.estimateSelectivity(
+                    s.getIndex().getField(), ipred.getOp(), ipred.getField()));
+        }
+        if (scan instanceof HashScan) {
+            HashScan s = (HashScan) scan;
+            TableStats stats = tableStats.get(s.getTableName());
+            IndexPredicate ipred = s.getIndexPredicate();
+            if (ipred == null)
+                return stats.estimateTableCardinality(1.0);
+            int key = ((HashFile) Database.getCatalog().getDatabaseFile(
+                    s.getTableId())).keyField();
+            return stats.estimateTableCardinality(stats.estimateSelectivity(
+                    key, ipred.getOp(), ipred.getField()));
+        }
+        if (scan instanceof BitmapHeapScan) {
+            BitmapHeapScan s = (BitmapHeapScan) scan;
+            int card = s.estimateCardinality();
+            if (card < 0)
+                return tableStats.get(s.getTableName()).estimateTableCardinality(1.0);
+            return card;
+        }
+        return tableStats.get(((SeqScan) scan).getTableName())
+                .estimateTableCardinality(1.0);
+    }
+
     private static boolean updateFilterCardinality(Filter f,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
         OpIterator child = f.getChildren()[0];
         Predicate pred = f.getPredicate();
+        if (pred == null) {
+            // no statistics for general expressions: assume the filter
+            // keeps a third of its input
+            int childCard = 1;
+            boolean hasJoinPK = false;
+            if (child instanceof Operator) {
+                hasJoinPK = updateOperatorCardinality((Operator) child,
+                        tableAliasToId, tableStats);
+                childCard = ((Operator) child).getEstimatedCardinality();
+            } else if (isScan(child)) {
+                childCard = scanCardinality(child, tableStats);
+            }
+            f.setEstimatedCardinality(childCard / 3 + 1);
+            return hasJoinPK;
+        }
         String[] tmp = child.getTupleDesc().getFieldName(pred.getField())
                 .split("[.]");
         String tableAlias = tmp[0];
@@ -77,10 +152,8 @@ public class OperatorCardinality {
                 f.setEstimatedCardinality((int) (oChild
                         .getEstimatedCardinality() * selectivity) + 1);
                 return hasJoinPK;
-            } else if (child instanceof SeqScan) {
-                f.setEstimatedCardinality((int) (tableStats.get(
-                        ((SeqScan) child).getTableName())
-                        .estimateTableCardinality(1.0) * selectivity) + 1);
+            } else if (isScan(child)) {
+                f.setEstimatedCardinality((int) (scanCardinality(child, tableStats) * selectivity) + 1);
                 return false;
             }
         }
@@ -120,9 +193,8 @@ public class OperatorCardinality {
             child1HasJoinPK = pk || child1HasJoinPK;
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
-        } else if (child1 instanceof SeqScan) {
-            child1Card = (int) (tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (isScan(child1)) {
+            child1Card = scanCardinality(child1, tableStats);
         }
 
         if (child2 instanceof Operator) {
@@ -132,9 +204,8 @@ public class OperatorCardinality {
             child2HasJoinPK = pk || child2HasJoinPK;
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
-        } else if (child2 instanceof SeqScan) {
-            child2Card = (int) (tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (isScan(child2)) {
+            child2Card = scanCardinality(child2, tableStats);
         }
 
         j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
@@ -177,9 +248,8 @@ public class OperatorCardinality {
             child1HasJoinPK = pk || child1HasJoinPK;
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
-        } else if (child1 instanceof SeqScan) {
-            child1Card = (int) (tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (isScan(child1)) {
+            child1Card = scanCardinality(child1, tableStats);
         }
 
         if (child2 instanceof Operator) {
@@ -189,9 +259,8 @@ public class OperatorCardinality {
             child2HasJoinPK = pk || child2HasJoinPK;
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
-        } else if (child2 instanceof SeqScan) {
-            child2Card = (int) (tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (isScan(child2)) {
+            child2Card = scanCardinality(child2, tableStats);
         }
 
         j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
@@ -219,9 +288,8 @@ public class OperatorCardinality {
             return hasJoinPK;
         }
 
-        if (child instanceof SeqScan) {
-            childCard = (int) (tableStats.get(((SeqScan) child).getTableName())
-                    .estimateTableCardinality(1.0));
+        if (isScan(child)) {
+            childCard = scanCardinality(child, tableStats);
         }
 
         String[] tmp = a.groupFieldName().split("[.]");
@@ -244,4 +312,49 @@ public class OperatorCardinality {
         a.setEstimatedCardinality(childCard);
         return hasJoinPK;
     }
+
+    /**
+     * The number of groups of several columns is estimated as the product
+     * of the number of distinct values of each, but no more than the
+     * number of input tuples.
+     */
+    private static boolean updateGroupAggregateCardinality(GroupAggregate a,
+            Map<String, Integer> tableAliasToId,
+            Map<String, TableStats> tableStats) {
+        OpIterator child = a.getChildren()[0];
+        int childCard = 1;
+        boolean hasJoinPK = false;
+        if (child instanceof Operator) {
+            Operator oChild = (Operator) child;
+            hasJoinPK = updateOperatorCardinality(oChild, tableAliasToId,
+                    tableStats);
+            childCard = oChild.getEstimatedCardinality();
+        } else if (isScan(child)) {
+            childCard = scanCardinality(child, tableStats);
+        }
+
+        int[] gfields = a.getGroupFields();
+        if (gfields.length == 0) {
+            a.setEstimatedCardinality(1);
+            return hasJoinPK;
+        }
+
+        double groups = 1.0;
+        for (int g : gfields) {
+            String[] tmp = child.getTupleDesc().getFieldName(g).split("[.]");
+            Integer tableId = tmp.length > 1 ? tableAliasToId.get(tmp[0]) : null;
+            if (tableId == null) {
+                groups = childCard;
+                break;
+            }
+            double sel = tableStats.get(Database.getCatalog().getTableName(tableId))
+                    .avgSelectivity(Database.getCatalog().getTupleDesc(tableId)
+                            .fieldNameToIndex(tmp[1]), Predicate.Op.EQUALS);
+            groups *= 1.0 / sel;
+            if (groups >= childCard)
+                break;
+        }
+        a.setEstimatedCardinality((int) Math.min(childCard, groups));
+        return hasJoinPK;
+    }
 }
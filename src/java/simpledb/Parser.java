@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -47,9 +49,15 @@ public class Parser {
                 processExpression(tid, newWx, lp);
 
             }
-        } else if (wx.getOperator().equals("OR")) {
-            throw new simpledb.ParsingException(
-                    "OR expressions currently unsupported.");
+        } else if (isSubqueryTest(wx)) {
+            processSubqueryTest(tid, wx, lp, false);
+        } else if (wx.getOperator().equals("NOT") && wx.nbOperands() == 1
+                && wx.getOperand(0) instanceof ZExpression
+                && isSubqueryTest((ZExpression) wx.getOperand(0))) {
+            processSubqueryTest(tid, (ZExpression) wx.getOperand(0), lp, true);
+        } else if (!isSimpleComparison(wx)) {
+            // OR, NOT, IN lists and comparisons of arithmetic expressions
+            lp.addFilter(toExpression(wx, lp));
         } else {
             // this is a binary expression comparing two constants
             @SuppressWarnings("unchecked")
@@ -132,8 +140,166 @@ public class Parser {
 
     }
 
+    /**
+     * @return true if the expression is <tt>field [NOT] IN (subquery)</tt>
+     *         or <tt>[NOT] EXISTS (subquery)</tt>
+     */
+    private static boolean isSubqueryTest(ZExpression wx) {
+        String op = wx.getOperator();
+        if (op.equals("IN") || op.equals("NOT IN"))
+            return wx.nbOperands() == 2 && wx.getOperand(0) instanceof ZConstant
+                    && wx.getOperand(1) instanceof ZQuery;
+        if (op.equals("EXISTS") || op.equals("NOT EXISTS"))
+            return wx.nbOperands() == 1 && wx.getOperand(0) instanceof ZQuery;
+        return false;
+    }
+
+    /**
+     * @return true if the expression compares two fields, constants or
+     *         subqueries, and can be planned as a filter or join
+     */
+    private static boolean isSimpleComparison(ZExpression wx) {
+        if (wx.nbOperands() != 2)
+            return false;
+        try {
+            getOp(wx.getOperator());
+        } catch (simpledb.ParsingException e) {
+            return false;
+        }
+        return !(wx.getOperand(0) instanceof ZExpression)
+                && !(wx.getOperand(1) instanceof ZExpression);
+    }
+
+    /**
+     * Translate a WHERE clause expression into an {@link Expression}, with
+     * its column names qualified by table alias.
+     */
+    Expression toExpression(ZExp e, LogicalPlan lp) throws simpledb.ParsingException {
+        if (e instanceof ZConstant) {
+            ZConstant c = (ZConstant) e;
+            switch (c.getType()) {
+            case ZConstant.COLUMNNAME:
+                return Expression.column(lp.disambiguateName(c.getValue()));
+            case ZConstant.NUMBER:
+                try {
+                    return Expression.constant(Integer.parseInt(c.getValue()));
+                } catch (NumberFormatException ex) {
+                    throw new simpledb.ParsingException("Only integer constants are supported, not " + c);
+                }
+            case ZConstant.STRING:
+                return Expression.constant(new StringField(c.getValue(), Type.STRING_LEN));
+            default:
+                throw new simpledb.ParsingException("Unsupported constant " + c);
+            }
+        }
+        if (!(e instanceof ZExpression))
+            throw new simpledb.ParsingException("Nested queries are only supported in IN and EXISTS tests, not in " + e);
+        ZExpression wx = (ZExpression) e;
+        String op = wx.getOperator();
+        int n = wx.nbOperands();
+        Expression[] ops = new Expression[op.endsWith("IN") ? 1 : n];
+        for (int i = 0; i < ops.length; i++)
+            ops[i] = toExpression(wx.getOperand(i), lp);
+        if (op.equals("AND"))
+            return Expression.and(ops);
+        if (op.equals("OR"))
+            return Expression.or(ops);
+        if (op.equals("NOT") && n == 1)
+            return Expression.not(ops[0]);
+        if (op.equals("-") && n == 1)
+            return Expression.arith(Expression.ArithOp.MINUS, Expression.constant(0), ops[0]);
+        if (op.equals("IN") || op.equals("NOT IN")) {
+            // a list of values; Zql makes them the operands after the first
+            if (n < 2)
+                throw new simpledb.ParsingException("Unsupported IN test " + wx);
+            Expression[] terms = new Expression[n - 1];
+            for (int i = 0; i < terms.length; i++)
+                terms[i] = Expression.compare(Predicate.Op.EQUALS, ops[0],
+                        toExpression(wx.getOperand(i + 1), lp));
+            Expression in = Expression.or(terms);
+            return op.equals("IN") ? in : Expression.not(in);
+        }
+        if (n != 2)
+            throw new simpledb.ParsingException("Unsupported expression " + wx);
+        for (Expression.ArithOp a : Expression.ArithOp.values()) {
+            if (a.toString().equals(op))
+                return Expression.arith(a, ops[0], ops[1]);
+        }
+        return Expression.compare(getOp(op), ops[0], ops[1]);
+    }
+
+    /**
+     * Plan an IN or EXISTS subquery as a semi-join of the outer query with
+     * the subquery, and NOT IN or NOT EXISTS as an anti-join, so that each
+     * outer row is returned at most once.
+     *
+     * @param negate
+     *            true if the test is wrapped in a NOT
+     */
+    private void processSubqueryTest(TransactionId tid, ZExpression wx,
+            LogicalPlan lp, boolean negate) throws simpledb.ParsingException {
+        boolean anti = wx.getOperator().startsWith("NOT") != negate;
+        ZQuery sub = (ZQuery) wx.getOperand(wx.nbOperands() - 1);
+        OpIterator pp;
+        try {
+            LogicalPlan sublp = parseQueryLogicalPlan(tid, sub);
+            pp = sublp.physicalPlan(tid, TableStats.getStatsMap(), explain);
+        } catch (IOException e) {
+            throw new simpledb.ParsingException("Invalid subquery " + sub);
+        } catch (Zql.ParseException e) {
+            throw new simpledb.ParsingException("Invalid subquery " + sub);
+        }
+        if (wx.nbOperands() == 1) {
+            lp.addExists(pp, anti);
+            return;
+        }
+        ZConstant field = (ZConstant) wx.getOperand(0);
+        if (field.getType() != ZConstant.COLUMNNAME)
+            throw new simpledb.ParsingException("IN subqueries must test a field, not " + field);
+        if (pp.getTupleDesc().numFields() != 1)
+            throw new simpledb.ParsingException("IN subqueries must return one column");
+        lp.addSemiJoin(field.getValue(), pp, anti);
+    }
+
+    /**
+     * Zql does not know LIMIT, so a trailing "LIMIT n [OFFSET m]" is cut off
+     * the statement before it is parsed and applied to its logical plan.
+     */
+    private static final Pattern LIMIT_CLAUSE = Pattern.compile(
+            "\\s+LIMIT\\s+(\\d+)(?:\\s+OFFSET\\s+(\\d+))?\\s*(;?)\\s*$",
+            Pattern.CASE_INSENSITIVE);
+
+    private int limit = -1, offset = 0;
+
+    /**
+     * Remove a trailing LIMIT clause from a statement, remembering its values
+     * for the next call to {@link #parseQueryLogicalPlan}.
+     *
+     * @return the statement without its LIMIT clause
+     */
+    String stripLimit(String s) throws simpledb.ParsingException {
+        limit = -1;
+        offset = 0;
+        Matcher m = LIMIT_CLAUSE.matcher(s);
+        if (!m.find())
+            return s;
+        try {
+            limit = Integer.parseInt(m.group(1));
+            if (m.group(2) != null)
+                offset = Integer.parseInt(m.group(2));
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("LIMIT value out of range");
+        }
+        return s.substring(0, m.start()) + m.group(3);
+    }
+
     public LogicalPlan parseQueryLogicalPlan(TransactionId tid, ZQuery q)
             throws IOException, Zql.ParseException, simpledb.ParsingException {
+        // claim the LIMIT clause before any subquery is parsed
+        int limit = this.limit, offset = this.offset;
+        this.limit = -1;
+        this.offset = 0;
+
         @SuppressWarnings("unchecked")
         Vector<ZFromItem> from = q.getFrom();
         LogicalPlan lp = new LogicalPlan();
@@ -182,23 +348,20 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        Vector<String> groupByFields = new Vector<String>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             Vector<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.elementAt(0);
+            for (ZExp gbe : gbs) {
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
+                String groupByField = ((ZConstant) gbe).getValue();
                 System.out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.addElement(groupByField);
+                lp.addGroupBy(groupByField);
             }
 
         }
@@ -207,8 +370,6 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         Vector<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.elementAt(i);
@@ -218,20 +379,17 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggFun = si.getAggregate();
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
                 lp.addProjectField(aggField, aggFun);
+                lp.addAggregate(aggFun, aggField, null);
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                                + si.getColumn()) || groupByField.equals(si
+                if (!groupByFields.isEmpty()
+                        && !(groupByFields.contains(si.getTable() + "."
+                                + si.getColumn()) || groupByFields.contains(si
                                 .getColumn()))) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
@@ -241,13 +399,7 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
-            throw new simpledb.ParsingException("GROUP BY without aggregation.");
-        }
-
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
-        }
+        lp.setDistinct(q.isDistinct());
         // sort the data
 
         if (q.getOrderBy() != null) {
@@ -267,6 +419,8 @@ public class Parser {
             lp.addOrderBy(f.getValue(), oby.getAscOrder());
 
         }
+        if (limit >= 0)
+            lp.addLimit(limit, offset);
         return lp;
     }
 
@@ -465,7 +619,7 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        ByteArrayInputStream bis = new ByteArrayInputStream(stripLimit(s).getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
@@ -503,7 +657,13 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = is.read(buf)) > 0)
+                bos.write(buf, 0, n);
+            String stmt = stripLimit(bos.toString("UTF-8"));
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(stmt.getBytes("UTF-8")));
             ZStatement s = p.readStatement();
 
             Query query = null;
@@ -581,7 +741,7 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "order by", "limit", "offset" };
 
     public static void main(String argv[]) throws IOException {
 
@@ -10,6 +10,8 @@ public class Predicate implements Serializable {
     private int field;
     private Op op;
     private Field operand;
+    /** The comparison compiled for the operand's type; built on first use. */
+    private transient Expression.Test test;
     private static final long serialVersionUID = 1L;
 
     /** Constants used for return codes in Field.compare */
@@ -90,15 +92,18 @@ public class Predicate implements Serializable {
     /**
      * Compares the field number of t specified in the constructor to the
      * operand field specified in the constructor using the operator specific in
-     * the constructor. The comparison can be made through Field's compare
-     * method.
+     * the constructor. The comparison is compiled once into a test specialized
+     * for the operator and the operand's type (see {@link Expression}), with
+     * the same results as Field's compare method.
      * 
      * @param t
      *            The tuple to compare against
      * @return true if the comparison is true, false otherwise.
      */
     public boolean filter(Tuple t) {
-        return t.getField(field).compare(op,operand);
+        if (test == null)
+            test = Expression.of(this).compilePredicate(null);
+        return test.test(t);
     }
 
     /**
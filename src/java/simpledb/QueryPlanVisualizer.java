@@ -9,12 +9,18 @@ public class QueryPlanVisualizer {
 
     static final String JOIN = "⨝";
     static final String HASH_JOIN = "⨝(hash)";
+    static final String MERGE_JOIN = "⨝(merge)";
+    static final String INDEX_JOIN = "⨝(index)";
+    static final String SEMI_JOIN = "⋉";
+    static final String ANTI_JOIN = "▷";
     static final String SELECT = "σ";
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
     static final String ORDERBY = "o";
     static final String GROUPBY = "g";
+    static final String DISTINCT = "δ";
+    static final String LIMIT = "limit";
     static final String SPACE = "  ";
 
     private int calculateQueryPlanTreeDepth(OpIterator root) {
@@ -26,7 +32,7 @@ public class QueryPlanVisualizer {
         Operator o = (Operator) root;
         OpIterator[] children = o.getChildren();
 
-        if (o instanceof Join || o instanceof HashEquiJoin) {
+        if (o instanceof Join || joinSymbol(o) != null) {
             int d1 = this.calculateQueryPlanTreeDepth(children[0]);
             int d2 = this.calculateQueryPlanTreeDepth(children[1]);
             return Math.max(d1, d2) + 3;
@@ -39,6 +45,34 @@ public class QueryPlanVisualizer {
         return 2;
     }
 
+    /**
+     * @return the symbol of a join operator other than {@link Join}, or null
+     *         if the operator is not one
+     */
+    private static String joinSymbol(OpIterator o) {
+        if (o instanceof HashEquiJoin)
+            return HASH_JOIN;
+        if (o instanceof SortMergeJoin)
+            return MERGE_JOIN;
+        if (o instanceof IndexNestedLoopJoin)
+            return INDEX_JOIN;
+        if (o instanceof HashSemiJoin)
+            return ((HashSemiJoin) o).isAnti() ? ANTI_JOIN : SEMI_JOIN;
+        return null;
+    }
+
+    private static JoinPredicate joinPredicate(OpIterator o) {
+        if (o instanceof HashEquiJoin)
+            return ((HashEquiJoin) o).getJoinPredicate();
+        if (o instanceof SortMergeJoin)
+            return ((SortMergeJoin) o).getJoinPredicate();
+        if (o instanceof IndexNestedLoopJoin)
+            return ((IndexNestedLoopJoin) o).getJoinPredicate();
+        if (o instanceof HashSemiJoin)
+            return ((HashSemiJoin) o).getJoinPredicate();
+        return null;
+    }
+
     private static class SubTreeDescriptor {
         int width;
         int upBarPosition;
@@ -65,17 +99,57 @@ public class QueryPlanVisualizer {
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null, null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
+        if (queryPlan instanceof SeqScan || queryPlan instanceof BTreeScan
+                || queryPlan instanceof SecondaryIndexScan || queryPlan instanceof HashScan
+                || queryPlan instanceof BitmapHeapScan) {
+            String tableName, alias, range = "";
+            if (queryPlan instanceof SeqScan) {
+                SeqScan s = (SeqScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+            } else if (queryPlan instanceof SecondaryIndexScan) {
+                SecondaryIndexScan s = (SecondaryIndexScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                IndexPredicate ipred = s.getIndexPredicate();
+                String field = Database.getCatalog().getTupleDesc(s.getTableId())
+                        .getFieldName(s.getIndex().getField());
+                range = (s.isCovering() ? ", index only " : ", index ") + field
+                        + (ipred == null ? "" : ipred.getOp() + "" + ipred.getField());
+            } else if (queryPlan instanceof HashScan) {
+                HashScan s = (HashScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                IndexPredicate ipred = s.getIndexPredicate();
+                if (ipred != null) {
+                    HashFile f = (HashFile) Database.getCatalog().getDatabaseFile(s.getTableId());
+                    range = ", hash " + f.getTupleDesc().getFieldName(f.keyField())
+                            + ipred.getOp() + ipred.getField();
+                }
+            } else if (queryPlan instanceof BitmapHeapScan) {
+                BitmapHeapScan s = (BitmapHeapScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                range = ", bitmap " + s.getCondition();
+            } else {
+                // an index scan shows the key range it reads
+                BTreeScan s = (BTreeScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                IndexPredicate ipred = s.getIndexPredicate();
+                if (ipred != null) {
+                    BTreeFile f = (BTreeFile) Database.getCatalog().getDatabaseFile(s.getTableId());
+                    range = ", " + f.getTupleDesc().getFieldName(f.keyField())
+                            + ipred.getOp() + ipred.getField();
+                }
+            }
 //            TupleDesc td = s.getTupleDesc();
             if (!tableName.equals(alias))
                 alias = " " + alias;
             else
                 alias = "";
             thisNode.text = String
-                    .format("%1$s(%2$s)", SCAN, tableName + alias);
+                    .format("%1$s(%2$s)", SCAN, tableName + alias + range);
             if (SCAN.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
@@ -136,18 +210,23 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = left;
                 thisNode.rightChild = right;
                 thisNode.height = currentDepth;
-            } else if (plan instanceof HashEquiJoin) {
-                HashEquiJoin j = (HashEquiJoin) plan;
-                JoinPredicate jp = j.getJoinPredicate();
-                TupleDesc td = j.getTupleDesc();
-                String field1 = td.getFieldName(jp.getField1());
-                String field2 = td.getFieldName(jp.getField2()
-                        + children[0].getTupleDesc().numFields());
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", HASH_JOIN, field1
-                        + jp.getOperator() + field2,j.getEstimatedCardinality());
+            } else if (joinSymbol(plan) != null) {
+                String symbol = joinSymbol(plan);
+                JoinPredicate jp = joinPredicate(plan);
+                String cond;
+                if (jp == null) {
+                    // an EXISTS test of the right subtree
+                    cond = "exists";
+                } else {
+                    cond = children[0].getTupleDesc().getFieldName(jp.getField1())
+                            + jp.getOperator()
+                            + children[1].getTupleDesc().getFieldName(jp.getField2());
+                }
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", symbol, cond,
+                        plan.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
-                if (HASH_JOIN.length() / 2 > parentUpperBarStartShift)
-                    upBarShift = HASH_JOIN.length() / 2;
+                if (symbol.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = symbol.length() / 2;
                 SubTreeDescriptor left = this.buildTree(queryPlanDepth,
                         currentDepth + 3 + adjustDepth, children[0],
                         currentStartPosition, upBarShift);
@@ -156,7 +235,7 @@ public class QueryPlanVisualizer {
                         currentStartPosition + left.width + SPACE.length(), 0);
                 thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - HASH_JOIN.length() / 2;
+                        - symbol.length() / 2;
                 thisNode.width = Math.max(
                         left.width + right.width + SPACE.length(),
                         thisNode.textStartPosition + thisNode.text.length()
@@ -196,13 +275,59 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
+            } else if (plan instanceof GroupAggregate || plan instanceof Distinct) {
+                String symbol;
+                if (plan instanceof GroupAggregate) {
+                    GroupAggregate a = (GroupAggregate) plan;
+                    TupleDesc td = a.getTupleDesc();
+                    int ngroups = a.getGroupFields().length;
+                    String groups = "";
+                    String aggs = "";
+                    for (int i = 0; i < td.numFields(); i++) {
+                        if (i < ngroups)
+                            groups += (i > 0 ? "," : "") + td.getFieldName(i);
+                        else
+                            aggs += (i > ngroups ? ", " : "") + td.getFieldName(i);
+                    }
+                    if (ngroups == 0) {
+                        symbol = td.getFieldName(0);
+                        thisNode.text = String.format("%1$s,card:%2$d", aggs,
+                                a.getEstimatedCardinality());
+                    } else {
+                        symbol = GROUPBY;
+                        thisNode.text = String.format("%1$s(%2$s)%3$s%4$s,card:%5$d",
+                                a.isStreaming() ? GROUPBY + "[stream]" : GROUPBY, groups,
+                                aggs.isEmpty() ? "" : ", ", aggs, a.getEstimatedCardinality());
+                    }
+                } else {
+                    Distinct d = (Distinct) plan;
+                    symbol = DISTINCT;
+                    thisNode.text = String.format("%1$s,card:%2$d",
+                            d.isStreaming() ? DISTINCT + "[stream]" : DISTINCT,
+                            d.getEstimatedCardinality());
+                }
+                int upBarShift = parentUpperBarStartShift;
+                if (symbol.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = symbol.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - symbol.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
             } else if (plan instanceof Filter) {
                 Filter f = (Filter) plan;
                 Predicate p = f.getPredicate();
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", SELECT, children[0]
-                        .getTupleDesc().getFieldName(p.getField())
-                        + p.getOp()
-                        + p.getOperand(),f.getEstimatedCardinality());
+                String cond = p == null ? f.getExpression().toString()
+                        : children[0].getTupleDesc().getFieldName(p.getField())
+                                + p.getOp() + p.getOperand();
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", SELECT, cond,
+                        f.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
                 if (SELECT.length() / 2 > parentUpperBarStartShift)
                     upBarShift = SELECT.length() / 2;
@@ -238,6 +363,34 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
+            } else if (plan instanceof TopN || plan instanceof Limit) {
+                String symbol;
+                if (plan instanceof TopN) {
+                    TopN o = (TopN) plan;
+                    symbol = ORDERBY;
+                    thisNode.text = String.format("%1$s(%2$s),%3$s %4$d,card:%5$d",
+                            ORDERBY, o.getOrderFieldName(), LIMIT, o.getLimit(),
+                            o.getEstimatedCardinality());
+                } else {
+                    Limit l = (Limit) plan;
+                    symbol = LIMIT;
+                    thisNode.text = String.format("%1$s(%2$d),card:%3$d",
+                            LIMIT, l.getLimit(), l.getEstimatedCardinality());
+                }
+                int upBarShift = parentUpperBarStartShift;
+                if (symbol.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = symbol.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - symbol.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
             } else if (plan instanceof Project) {
                 Project p = (Project) plan;
                 String fields = "";
@@ -0,0 +1,463 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * RoaringBitmap is a compressed set of non-negative ints, in the style of
+ * Roaring bitmaps. The ints are split by their high 16 bits into chunks, and
+ * each chunk is stored in the container that suits its density: a sorted
+ * array of the low 16 bits while it has at most {@link #ARRAY_MAX} members,
+ * and a bitmap of 2^16 bits otherwise. Neither takes more than 8KB, and a
+ * sparse chunk takes two bytes per member.
+ * <p>
+ * The set operations work chunk by chunk, and only on the chunks both
+ * operands have where that is enough: intersecting a sparse set with a
+ * dense one costs about the size of the sparse one. They return new
+ * bitmaps and leave their operands unchanged.
+ */
+public class RoaringBitmap {
+
+    /** Chunks with more members than this are stored as bitmaps. */
+    static final int ARRAY_MAX = 4096;
+
+    /** The high 16 bits of the members of each chunk, ascending. */
+    private char[] keys = new char[4];
+    private Container[] containers = new Container[4];
+    private int size = 0;
+
+    /**
+     * Add an int to this set.
+     *
+     * @throws IllegalArgumentException if x is negative
+     */
+    public void add(int x) {
+        if (x < 0)
+            throw new IllegalArgumentException("negative member " + x);
+        int i = find((char) (x >>> 16));
+        if (i < 0) {
+            i = -i - 1;
+            insertChunk(i, (char) (x >>> 16), new ArrayContainer());
+        }
+        containers[i] = containers[i].add((char) x);
+    }
+
+    /**
+     * Remove an int from this set, if it is a member.
+     */
+    public void remove(int x) {
+        if (x < 0)
+            return;
+        int i = find((char) (x >>> 16));
+        if (i < 0)
+            return;
+        Container c = containers[i].remove((char) x);
+        if (c.cardinality() == 0) {
+            System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+            System.arraycopy(containers, i + 1, containers, i, size - i - 1);
+            containers[--size] = null;
+        } else {
+            containers[i] = c;
+        }
+    }
+
+    /**
+     * @return true if x is a member of this set
+     */
+    public boolean contains(int x) {
+        if (x < 0)
+            return false;
+        int i = find((char) (x >>> 16));
+        return i >= 0 && containers[i].contains((char) x);
+    }
+
+    /**
+     * @return the number of members of this set
+     */
+    public int getCardinality() {
+        int n = 0;
+        for (int i = 0; i < size; i++)
+            n += containers[i].cardinality();
+        return n;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the members of both this set and o
+     */
+    public RoaringBitmap and(RoaringBitmap o) {
+        RoaringBitmap r = new RoaringBitmap();
+        int i = 0, j = 0;
+        while (i < size && j < o.size) {
+            if (keys[i] < o.keys[j]) {
+                i++;
+            } else if (keys[i] > o.keys[j]) {
+                j++;
+            } else {
+                r.append(keys[i], containers[i].and(o.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * @return the members of this set, of o, or of both
+     */
+    public RoaringBitmap or(RoaringBitmap o) {
+        RoaringBitmap r = new RoaringBitmap();
+        int i = 0, j = 0;
+        while (i < size || j < o.size) {
+            if (j == o.size || (i < size && keys[i] < o.keys[j])) {
+                r.append(keys[i], containers[i].copy());
+                i++;
+            } else if (i == size || keys[i] > o.keys[j]) {
+                r.append(o.keys[j], o.containers[j].copy());
+                j++;
+            } else {
+                r.append(keys[i], containers[i].or(o.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * @return the members of this set that are not members of o
+     */
+    public RoaringBitmap andNot(RoaringBitmap o) {
+        RoaringBitmap r = new RoaringBitmap();
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            while (j < o.size && o.keys[j] < keys[i])
+                j++;
+            if (j < o.size && o.keys[j] == keys[i])
+                r.append(keys[i], containers[i].andNot(o.containers[j]));
+            else
+                r.append(keys[i], containers[i].copy());
+        }
+        return r;
+    }
+
+    /**
+     * @return an iterator over the members of this set, in ascending order
+     */
+    public PrimitiveIterator.OfInt iterator() {
+        return new PrimitiveIterator.OfInt() {
+            private int chunk = -1;
+            private PrimitiveIterator.OfInt low = null;
+
+            public boolean hasNext() {
+                while (low == null || !low.hasNext()) {
+                    if (++chunk >= size)
+                        return false;
+                    low = containers[chunk].iterator();
+                }
+                return true;
+            }
+
+            public int nextInt() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return keys[chunk] << 16 | low.nextInt();
+            }
+        };
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        PrimitiveIterator.OfInt it = iterator();
+        while (it.hasNext()) {
+            sb.append(it.nextInt());
+            if (it.hasNext())
+                sb.append(", ");
+        }
+        return sb.append("}").toString();
+    }
+
+    private int find(char key) {
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    private void insertChunk(int i, char key, Container c) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(containers, i, containers, i + 1, size - i);
+        keys[i] = key;
+        containers[i] = c;
+        size++;
+    }
+
+    /** Add a chunk after all the others, unless it is empty. */
+    private void append(char key, Container c) {
+        if (c.cardinality() > 0)
+            insertChunk(size, key, c);
+    }
+
+    /**
+     * The low 16 bits of the members of one chunk. Adding to or removing from
+     * a container may change its kind, so the container to keep is returned.
+     */
+    private static abstract class Container {
+        abstract Container add(char x);
+
+        abstract Container remove(char x);
+
+        abstract boolean contains(char x);
+
+        abstract int cardinality();
+
+        abstract Container and(Container o);
+
+        abstract Container or(Container o);
+
+        abstract Container andNot(Container o);
+
+        abstract Container copy();
+
+        abstract PrimitiveIterator.OfInt iterator();
+    }
+
+    /** A sparse chunk: its members, sorted. */
+    private static final class ArrayContainer extends Container {
+        private char[] values;
+        private int n;
+
+        ArrayContainer() {
+            this(new char[4], 0);
+        }
+
+        ArrayContainer(char[] values, int n) {
+            this.values = values;
+            this.n = n;
+        }
+
+        Container add(char x) {
+            int i = Arrays.binarySearch(values, 0, n, x);
+            if (i >= 0)
+                return this;
+            if (n == ARRAY_MAX)
+                return toBitmap().add(x);
+            i = -i - 1;
+            if (n == values.length)
+                values = Arrays.copyOf(values, Math.min(ARRAY_MAX, n * 2));
+            System.arraycopy(values, i, values, i + 1, n - i);
+            values[i] = x;
+            n++;
+            return this;
+        }
+
+        Container remove(char x) {
+            int i = Arrays.binarySearch(values, 0, n, x);
+            if (i >= 0) {
+                System.arraycopy(values, i + 1, values, i, n - i - 1);
+                n--;
+            }
+            return this;
+        }
+
+        boolean contains(char x) {
+            return Arrays.binarySearch(values, 0, n, x) >= 0;
+        }
+
+        int cardinality() {
+            return n;
+        }
+
+        Container and(Container o) {
+            char[] out = new char[n];
+            int k = 0;
+            for (int i = 0; i < n; i++) {
+                if (o.contains(values[i]))
+                    out[k++] = values[i];
+            }
+            return new ArrayContainer(out, k);
+        }
+
+        Container or(Container o) {
+            if (o instanceof BitmapContainer)
+                return o.or(this);
+            ArrayContainer a = (ArrayContainer) o;
+            char[] out = new char[n + a.n];
+            int i = 0, j = 0, k = 0;
+            while (i < n || j < a.n) {
+                if (j == a.n || (i < n && values[i] < a.values[j]))
+                    out[k++] = values[i++];
+                else if (i == n || values[i] > a.values[j])
+                    out[k++] = a.values[j++];
+                else {
+                    out[k++] = values[i++];
+                    j++;
+                }
+            }
+            ArrayContainer r = new ArrayContainer(out, k);
+            return k > ARRAY_MAX ? r.toBitmap() : r;
+        }
+
+        Container andNot(Container o) {
+            char[] out = new char[n];
+            int k = 0;
+            for (int i = 0; i < n; i++) {
+                if (!o.contains(values[i]))
+                    out[k++] = values[i];
+            }
+            return new ArrayContainer(out, k);
+        }
+
+        Container copy() {
+            return new ArrayContainer(Arrays.copyOf(values, Math.max(n, 1)), n);
+        }
+
+        BitmapContainer toBitmap() {
+            BitmapContainer b = new BitmapContainer();
+            for (int i = 0; i < n; i++)
+                b.add(values[i]);
+            return b;
+        }
+
+        PrimitiveIterator.OfInt iterator() {
+            return new PrimitiveIterator.OfInt() {
+                private int i = 0;
+
+                public boolean hasNext() {
+                    return i < n;
+                }
+
+                public int nextInt() {
+                    if (i >= n)
+                        throw new NoSuchElementException();
+                    return values[i++];
+                }
+            };
+        }
+    }
+
+    /** A dense chunk: one bit per possible member. */
+    private static final class BitmapContainer extends Container {
+        private final long[] words = new long[1 << 10];
+        private int card = 0;
+
+        Container add(char x) {
+            long bit = 1L << x;
+            if ((words[x >>> 6] & bit) == 0) {
+                words[x >>> 6] |= bit;
+                card++;
+            }
+            return this;
+        }
+
+        Container remove(char x) {
+            long bit = 1L << x;
+            if ((words[x >>> 6] & bit) != 0) {
+                words[x >>> 6] &= ~bit;
+                card--;
+            }
+            return shrink();
+        }
+
+        boolean contains(char x) {
+            return (words[x >>> 6] & (1L << x)) != 0;
+        }
+
+        int cardinality() {
+            return card;
+        }
+
+        Container and(Container o) {
+            if (o instanceof ArrayContainer)
+                return o.and(this);
+            BitmapContainer r = new BitmapContainer();
+            long[] other = ((BitmapContainer) o).words;
+            for (int i = 0; i < words.length; i++)
+                r.words[i] = words[i] & other[i];
+            return r.recount().shrink();
+        }
+
+        Container or(Container o) {
+            BitmapContainer r = (BitmapContainer) copy();
+            if (o instanceof ArrayContainer) {
+                PrimitiveIterator.OfInt it = o.iterator();
+                while (it.hasNext())
+                    r.add((char) it.nextInt());
+                return r;
+            }
+            long[] other = ((BitmapContainer) o).words;
+            for (int i = 0; i < words.length; i++)
+                r.words[i] |= other[i];
+            return r.recount();
+        }
+
+        Container andNot(Container o) {
+            BitmapContainer r = (BitmapContainer) copy();
+            if (o instanceof ArrayContainer) {
+                PrimitiveIterator.OfInt it = o.iterator();
+                while (it.hasNext()) {
+                    int x = it.nextInt();
+                    r.words[x >>> 6] &= ~(1L << x);
+                }
+            } else {
+                long[] other = ((BitmapContainer) o).words;
+                for (int i = 0; i < words.length; i++)
+                    r.words[i] &= ~other[i];
+            }
+            return r.recount().shrink();
+        }
+
+        Container copy() {
+            BitmapContainer r = new BitmapContainer();
+            System.arraycopy(words, 0, r.words, 0, words.length);
+            r.card = card;
+            return r;
+        }
+
+        private BitmapContainer recount() {
+            card = 0;
+            for (long w : words)
+                card += Long.bitCount(w);
+            return this;
+        }
+
+        /** @return an array container of the same members, if they are few enough */
+        private Container shrink() {
+            if (card > ARRAY_MAX)
+                return this;
+            char[] values = new char[Math.max(card, 1)];
+            int k = 0;
+            PrimitiveIterator.OfInt it = iterator();
+            while (it.hasNext())
+                values[k++] = (char) it.nextInt();
+            return new ArrayContainer(values, k);
+        }
+
+        PrimitiveIterator.OfInt iterator() {
+            return new PrimitiveIterator.OfInt() {
+                private int word = 0;
+                private long bits = words[0];
+
+                public boolean hasNext() {
+                    while (bits == 0) {
+                        if (++word >= words.length)
+                            return false;
+                        bits = words[word];
+                    }
+                    return true;
+                }
+
+                public int nextInt() {
+                    if (!hasNext())
+                        throw new NoSuchElementException();
+                    int x = word << 6 | Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                    return x;
+                }
+            };
+        }
+    }
+}
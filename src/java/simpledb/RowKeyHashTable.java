@@ -0,0 +1,136 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * A {@link KeyHashTable} whose keys are rows of fields, e.g. the values of
+ * several GROUP BY columns or every column of a tuple for DISTINCT. Slots
+ * hold the full hash code of their row, so probes only compare the fields
+ * of rows whose hashes already match. A row may have no fields at all, in
+ * which case the table holds at most one key.
+ * <p>
+ * The single-field methods of {@link KeyHashTable} treat a field as a row
+ * of one.
+ */
+public class RowKeyHashTable<V> extends KeyHashTable<V> {
+
+    private int[] slotHashes = new int[INITIAL_CAPACITY * 2];
+    private int[] slotOrdinals = new int[INITIAL_CAPACITY * 2];
+    private int mask = INITIAL_CAPACITY * 2 - 1;
+
+    /** Key and hash code of each ordinal. */
+    private Field[][] keys = new Field[INITIAL_CAPACITY][];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+
+    public RowKeyHashTable() {
+        Arrays.fill(slotOrdinals, NONE);
+    }
+
+    /**
+     * @return the hash code of a row, combining those of its fields
+     */
+    public static int hash(Field[] key) {
+        int h = 1;
+        for (Field f : key)
+            h = 31 * h + f.hashCode();
+        return mix(h);
+    }
+
+    /**
+     * Pick the spill partition of a row; see
+     * {@link KeyHashTable#partition(Field, int, int)}.
+     *
+     * @return a partition number in [0, fanout)
+     */
+    public static int partition(Field[] key, int seed, int fanout) {
+        return (mix(hash(key) + seed * 0x9E3779B9) & 0x7fffffff) % fanout;
+    }
+
+    /**
+     * @return the ordinal of the given row, or {@link #NONE} if it is not in
+     *         the table
+     */
+    public int find(Field[] key) {
+        int hash = hash(key);
+        int slot = hash & mask;
+        int ordinal;
+        while ((ordinal = slotOrdinals[slot]) != NONE) {
+            if (slotHashes[slot] == hash && Arrays.equals(keys[ordinal], key))
+                return ordinal;
+            slot = (slot + 1) & mask;
+        }
+        return NONE;
+    }
+
+    /**
+     * @return the ordinal of the given row, adding it to the table if it is
+     *         not there yet. The table keeps a reference to the array.
+     */
+    public int findOrInsert(Field[] key) {
+        int hash = hash(key);
+        int slot = hash & mask;
+        int ordinal;
+        while ((ordinal = slotOrdinals[slot]) != NONE) {
+            if (slotHashes[slot] == hash && Arrays.equals(keys[ordinal], key))
+                return ordinal;
+            slot = (slot + 1) & mask;
+        }
+        ordinal = newOrdinal();
+        keys[ordinal] = key;
+        hashes[ordinal] = hash;
+        slotHashes[slot] = hash;
+        slotOrdinals[slot] = ordinal;
+        if (size * 2 > mask)
+            rehash();
+        return ordinal;
+    }
+
+    /**
+     * @return the row with the given ordinal
+     */
+    public Field[] getKeyRow(int ordinal) {
+        return keys[ordinal];
+    }
+
+    public int find(Field key) {
+        return find(new Field[]{key});
+    }
+
+    public int findOrInsert(Field key) {
+        return findOrInsert(new Field[]{key});
+    }
+
+    public Field getKey(int ordinal) {
+        return keys[ordinal][0];
+    }
+
+    void clearSlots(int n) {
+        for (int ordinal = 0; ordinal < n; ordinal++) {
+            int slot = hashes[ordinal] & mask;
+            while (slotOrdinals[slot] != ordinal)
+                slot = (slot + 1) & mask;
+            slotOrdinals[slot] = NONE;
+        }
+        Arrays.fill(keys, 0, n, null);
+    }
+
+    void growOrdinals(int capacity) {
+        keys = Arrays.copyOf(keys, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+    }
+
+    private void rehash() {
+        int cap = slotOrdinals.length * 2;
+        slotHashes = new int[cap];
+        slotOrdinals = new int[cap];
+        Arrays.fill(slotOrdinals, NONE);
+        mask = cap - 1;
+        for (int ordinal = 0; ordinal < size; ordinal++) {
+            int slot = hashes[ordinal] & mask;
+            while (slotOrdinals[slot] != NONE)
+                slot = (slot + 1) & mask;
+            slotHashes[slot] = hashes[ordinal];
+            slotOrdinals[slot] = ordinal;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * RuntimeFilter summarizes the join keys of the build side of a hash join
+ * so that probe tuples which cannot match can be dropped early, at the scan
+ * that produces them, instead of flowing through the join.
+ * <p>
+ * It is a Bloom filter over the keys, plus the minimum and maximum key for
+ * integer keys. {@link #mightContain} never rejects a key that was added,
+ * but may accept a few keys that were not.
+ */
+public class RuntimeFilter implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of bits set per key. */
+    static final int NUM_HASHES = 3;
+    /** Bits per expected key; with three hashes, about 3% false positives. */
+    static final int BITS_PER_KEY = 8;
+    static final int MAX_BITS = 1 << 23;
+
+    private final int field;
+    private final long[] bits;
+    private final int mask;
+    private int count = 0;
+    private boolean hasRange = true;
+    private int min = Integer.MAX_VALUE;
+    private int max = Integer.MIN_VALUE;
+
+    /**
+     * @param field
+     *            the index of the key in the tuples the filter is applied to
+     * @param expectedKeys
+     *            the number of keys the filter is sized for
+     */
+    public RuntimeFilter(int field, int expectedKeys) {
+        this.field = field;
+        long want = Math.max(64L, (long) expectedKeys * BITS_PER_KEY);
+        int n = 64;
+        while (n < want && n < MAX_BITS)
+            n <<= 1;
+        bits = new long[n >>> 6];
+        mask = n - 1;
+    }
+
+    /**
+     * @return the index of the key in the tuples the filter is applied to
+     */
+    public int getField() {
+        return field;
+    }
+
+    /**
+     * @return the number of keys added to the filter
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Add a build-side key.
+     */
+    public void add(Field key) {
+        int h1 = KeyHashTable.mix(key.hashCode());
+        int h2 = KeyHashTable.mix(h1 ^ 0x5bd1e995) | 1;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int b = (h1 + i * h2) & mask;
+            bits[b >>> 6] |= 1L << b;
+        }
+        if (key instanceof IntField) {
+            int v = ((IntField) key).getValue();
+            if (v < min)
+                min = v;
+            if (v > max)
+                max = v;
+        } else {
+            hasRange = false;
+        }
+        count++;
+    }
+
+    /**
+     * @return false if no key equal to the given one was added
+     */
+    public boolean mightContain(Field key) {
+        if (count == 0)
+            return false;
+        if (hasRange && key instanceof IntField) {
+            int v = ((IntField) key).getValue();
+            if (v < min || v > max)
+                return false;
+        }
+        int h1 = KeyHashTable.mix(key.hashCode());
+        int h2 = KeyHashTable.mix(h1 ^ 0x5bd1e995) | 1;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int b = (h1 + i * h2) & mask;
+            if ((bits[b >>> 6] & (1L << b)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the tuple's key might have been added
+     */
+    public boolean accepts(Tuple t) {
+        return mightContain(t.getField(field));
+    }
+
+    /**
+     * @return true if the filter still rejects a useful fraction of keys,
+     *         i.e. it was not filled far beyond the size it was built for
+     */
+    public boolean isSelective() {
+        return (long) count * BITS_PER_KEY / 4 <= (long) bits.length * 64;
+    }
+}
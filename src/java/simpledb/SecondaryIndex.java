@@ -0,0 +1,438 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * SecondaryIndex is a B+ tree on one field of a table, kept in its own
+ * {@link BTreeFile}, that points to the tuples of the table rather than
+ * storing them. A table can have any number of secondary indexes besides
+ * its own storage order.
+ * <p>
+ * For a {@link HeapFile} table, each index entry holds a key and the page
+ * number and slot of the tuple's {@link RecordId}. Tuples of a
+ * {@link BTreeFile} table move between pages when the tree splits or merges,
+ * so for those an entry holds the key and the tuple's primary key (the
+ * tree's key field) instead, and the tuple is found through the table's own
+ * tree.
+ * <p>
+ * An index may also store copies of other fields of the table in its
+ * entries, between the key and the tuple's location. Queries that only need
+ * the key and these included fields can be answered from the index alone
+ * (see {@link #covers} and {@link #coveringIterator}), without reading the
+ * table.
+ * <p>
+ * The index file is registered in the {@link Catalog} as a table of its own,
+ * so that its pages go through the {@link BufferPool} like any other: they
+ * are locked, logged and written back by the transactions that read and
+ * update the index. {@link BufferPool#insertTuple} and
+ * {@link BufferPool#deleteTuple} keep every index of a table up to date.
+ */
+public class SecondaryIndex {
+
+    private final int tableId;
+    private final int field;
+    /** Fields of the table stored in the entries after the key. */
+    private final int[] include;
+    private final BTreeFile tree;
+    /** True if entries hold primary keys rather than record ids. */
+    private final boolean byPrimaryKey;
+
+    /**
+     * Open the secondary index stored in the given file. An empty file is
+     * an empty index; see {@link #create} to fill a new index from the
+     * table.
+     *
+     * @param tableId
+     *            the table the index points to
+     * @param field
+     *            the indexed field of the table
+     * @param f
+     *            the file holding the index entries
+     */
+    public SecondaryIndex(int tableId, int field, File f) {
+        this(tableId, field, new int[0], f);
+    }
+
+    /**
+     * Open the secondary index stored in the given file, whose entries also
+     * hold copies of the given fields of the table.
+     *
+     * @param tableId
+     *            the table the index points to
+     * @param field
+     *            the indexed field of the table
+     * @param include
+     *            the other fields of the table stored in the entries
+     * @param f
+     *            the file holding the index entries
+     */
+    public SecondaryIndex(int tableId, int field, int[] include, File f) {
+        this.tableId = tableId;
+        this.field = field;
+        this.include = include.clone();
+        DbFile table = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(table instanceof HeapFile) && !(table instanceof BTreeFile))
+            throw new IllegalArgumentException("cannot index a " + table.getClass().getSimpleName());
+        this.byPrimaryKey = table instanceof BTreeFile;
+        TupleDesc td = table.getTupleDesc();
+        List<Type> types = new ArrayList<Type>();
+        List<String> names = new ArrayList<String>();
+        types.add(td.getFieldType(field));
+        names.add("key");
+        for (int i : include) {
+            types.add(td.getFieldType(i));
+            names.add(td.getFieldName(i));
+        }
+        if (byPrimaryKey) {
+            types.add(td.getFieldType(((BTreeFile) table).keyField()));
+            names.add("pkey");
+        } else {
+            types.add(Type.INT_TYPE);
+            names.add("page");
+            types.add(Type.INT_TYPE);
+            names.add("slot");
+        }
+        this.tree = new BTreeFile(f, 0, new TupleDesc(types.toArray(new Type[0]),
+                names.toArray(new String[0])));
+    }
+
+    /**
+     * Create a secondary index in the given (new or truncated) file, add it
+     * to the catalog, and enter the tuples the table already has. The
+     * entries are sorted externally and bulk loaded into the index file (see
+     * {@link BTreeFileEncoder#bulkLoad}), rather than inserted one at a time.
+     *
+     * @return the new index
+     */
+    public static SecondaryIndex create(int tableId, int field, File f)
+            throws IOException, DbException, TransactionAbortedException {
+        return create(tableId, field, new int[0], f);
+    }
+
+    /**
+     * Create a secondary index whose entries also hold copies of the given
+     * fields of the table, as {@link #create(int, int, File)} does.
+     *
+     * @return the new index
+     */
+    public static SecondaryIndex create(int tableId, int field, int[] include, File f)
+            throws IOException, DbException, TransactionAbortedException {
+        new java.io.FileOutputStream(f).close();
+        SecondaryIndex index = new SecondaryIndex(tableId, field, include, f);
+        Database.getCatalog().addIndex(index);
+        TransactionId tid = new TransactionId();
+        ExternalSort sort = new ExternalSort(index.tree.getTupleDesc(),
+                new BTreeFileEncoder.TupleComparator(0));
+        try {
+            DbFileIterator it = Database.getCatalog().getDatabaseFile(tableId).iterator(tid);
+            it.open();
+            while (it.hasNext())
+                sort.add(index.entry(it.next()));
+            it.close();
+            OpIterator sorted = sort.iterator();
+            sorted.open();
+            BTreeFileEncoder.bulkLoad(index.tree, sorted, BTreeFileEncoder.DEFAULT_FILL_FACTOR);
+            sorted.close();
+        } finally {
+            sort.close();
+            Database.getBufferPool().transactionComplete(tid);
+        }
+        return index;
+    }
+
+    /**
+     * @return the id of the table the index points to
+     */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /**
+     * @return the indexed field, as an index into the table's tuples
+     */
+    public int getField() {
+        return field;
+    }
+
+    /**
+     * @return the other fields of the table stored in the entries
+     */
+    public int[] getIncludedFields() {
+        return include.clone();
+    }
+
+    /**
+     * @return the position in the entries of a field of the table, or -1 if
+     *         the entries do not store it
+     */
+    public int entryField(int tableField) {
+        if (tableField == field)
+            return 0;
+        for (int i = 0; i < include.length; i++) {
+            if (include[i] == tableField)
+                return 1 + i;
+        }
+        if (byPrimaryKey && tableField == ((BTreeFile) Database.getCatalog()
+                .getDatabaseFile(tableId)).keyField())
+            return 1 + include.length;
+        return -1;
+    }
+
+    /**
+     * @return true if the entries store all the given fields of the table,
+     *         so that {@link #coveringIterator} can return them
+     */
+    public boolean covers(int[] columns) {
+        for (int c : columns) {
+            if (entryField(c) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the file holding the index entries
+     */
+    public BTreeFile getFile() {
+        return tree;
+    }
+
+    /**
+     * @return the name the index file is registered under in the catalog
+     */
+    public String getName() {
+        String table = Database.getCatalog().getTableName(tableId);
+        return table + "_" + Database.getCatalog().getTupleDesc(tableId).getFieldName(field) + "_idx";
+    }
+
+    /**
+     * Add the entry of a tuple that was just inserted into the table.
+     *
+     * @param t
+     *            the tuple, with the record id it was stored at
+     */
+    public void insert(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        Database.getBufferPool().insertTuple(tid, tree.getId(), entry(t));
+    }
+
+    /**
+     * Remove the entry of a tuple that is about to be deleted from the
+     * table.
+     *
+     * @param t
+     *            the tuple; only its record id is used, as the tuple may be
+     *            a projection of the stored one
+     */
+    public void delete(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        Tuple stored = fetch(tid, t.getRecordId());
+        if (stored == null)
+            return;
+        Tuple want = entry(stored);
+        DbFileIterator it = tree.indexIterator(tid,
+                new IndexPredicate(Predicate.Op.EQUALS, want.getField(0)));
+        Tuple found = null;
+        it.open();
+        while (found == null && it.hasNext()) {
+            Tuple e = it.next();
+            if (sameEntry(e, want))
+                found = e;
+        }
+        it.close();
+        if (found != null)
+            Database.getBufferPool().deleteTuple(tid, found);
+    }
+
+    private static boolean sameEntry(Tuple a, Tuple b) {
+        for (int i = 0; i < a.getTupleDesc().numFields(); i++) {
+            if (!a.getField(i).equals(b.getField(i)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the index entry of a stored tuple of the table
+     */
+    private Tuple entry(Tuple t) {
+        Tuple e = new Tuple(tree.getTupleDesc());
+        e.setField(0, t.getField(field));
+        for (int i = 0; i < include.length; i++)
+            e.setField(1 + i, t.getField(include[i]));
+        int loc = 1 + include.length;
+        if (byPrimaryKey) {
+            e.setField(loc, t.getField(((BTreeFile) Database.getCatalog()
+                    .getDatabaseFile(tableId)).keyField()));
+        } else {
+            e.setField(loc, new IntField(t.getRecordId().getPageId().getPageNumber()));
+            e.setField(loc + 1, new IntField(t.getRecordId().getTupleNumber()));
+        }
+        return e;
+    }
+
+    /**
+     * @return the record id of the tuple an entry of a heap file's index
+     *         points to
+     */
+    private RecordId recordId(Tuple e) {
+        int loc = 1 + include.length;
+        return new RecordId(new HeapPageId(tableId, ((IntField) e.getField(loc)).getValue()),
+                ((IntField) e.getField(loc + 1)).getValue());
+    }
+
+    /**
+     * @return the tuple of the table stored at the given record id, or null
+     */
+    private Tuple fetch(TransactionId tid, RecordId rid)
+            throws DbException, TransactionAbortedException {
+        Page p = Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_ONLY);
+        if (p instanceof HeapPage)
+            return ((HeapPage) p).getTuple(rid.getTupleNumber());
+        if (p instanceof BTreeLeafPage)
+            return ((BTreeLeafPage) p).getTuple(rid.getTupleNumber());
+        return null;
+    }
+
+    /**
+     * Return the tuples of the table whose indexed field satisfies a
+     * predicate, in ascending order of that field.
+     *
+     * @param ipred
+     *            the predicate, or null for all tuples
+     */
+    public DbFileIterator iterator(TransactionId tid, IndexPredicate ipred) {
+        return new SecondaryIndexIterator(tid, ipred);
+    }
+
+    /**
+     * Return the given fields of the tuples of the table whose indexed field
+     * satisfies a predicate, in ascending order of that field, read from the
+     * index entries alone. Tuples of a heap file keep their record ids.
+     *
+     * @param ipred
+     *            the predicate, or null for all tuples
+     * @param columns
+     *            the fields to return, which the index must {@link #covers
+     *            cover}
+     */
+    public DbFileIterator coveringIterator(TransactionId tid, IndexPredicate ipred, int[] columns) {
+        if (!covers(columns))
+            throw new IllegalArgumentException("index " + getName() + " does not store all the columns");
+        TupleDesc tableTd = Database.getCatalog().getTupleDesc(tableId);
+        Type[] types = new Type[columns.length];
+        String[] names = new String[columns.length];
+        final int[] positions = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            types[i] = tableTd.getFieldType(columns[i]);
+            names[i] = tableTd.getFieldName(columns[i]);
+            positions[i] = entryField(columns[i]);
+        }
+        final TupleDesc td = new TupleDesc(types, names);
+        final DbFileIterator entries = ipred == null ? tree.iterator(tid) : tree.indexIterator(tid, ipred);
+        return new AbstractDbFileIterator() {
+            public void open() throws DbException, TransactionAbortedException {
+                entries.open();
+            }
+
+            protected Tuple readNext() throws DbException, TransactionAbortedException {
+                if (!entries.hasNext())
+                    return null;
+                Tuple e = entries.next();
+                Tuple t = new Tuple(td);
+                for (int i = 0; i < positions.length; i++)
+                    t.setField(i, e.getField(positions[i]));
+                if (!byPrimaryKey)
+                    t.setRecordId(recordId(e));
+                return t;
+            }
+
+            public void rewind() throws DbException, TransactionAbortedException {
+                close();
+                open();
+            }
+
+            public void close() {
+                super.close();
+                entries.close();
+            }
+        };
+    }
+
+    private class SecondaryIndexIterator extends AbstractDbFileIterator {
+        private final TransactionId tid;
+        private final IndexPredicate ipred;
+        private DbFileIterator entries;
+        /** Tuples of the table found through the current entry. */
+        private DbFileIterator matches;
+        private Field matchKey;
+        /** Primary keys already looked up for the current key. */
+        private Set<Field> seen;
+
+        SecondaryIndexIterator(TransactionId tid, IndexPredicate ipred) {
+            this.tid = tid;
+            this.ipred = ipred;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            entries = ipred == null ? tree.iterator(tid) : tree.indexIterator(tid, ipred);
+            entries.open();
+            seen = new HashSet<Field>();
+            matchKey = null;
+        }
+
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (entries == null)
+                return null;
+            while (true) {
+                if (matches != null) {
+                    while (matches.hasNext()) {
+                        Tuple t = matches.next();
+                        if (t.getField(field).equals(matchKey))
+                            return t;
+                    }
+                    matches.close();
+                    matches = null;
+                }
+                if (!entries.hasNext())
+                    return null;
+                Tuple e = entries.next();
+                if (!byPrimaryKey) {
+                    Tuple t = fetch(tid, recordId(e));
+                    if (t != null)
+                        return t;
+                    continue;
+                }
+                // every tuple with this primary key is found at once, so
+                // later entries for the same key and primary key are skipped
+                Field pkey = e.getField(1 + include.length);
+                if (matchKey == null || !e.getField(0).equals(matchKey))
+                    seen.clear();
+                matchKey = e.getField(0);
+                if (!seen.add(pkey))
+                    continue;
+                BTreeFile table = (BTreeFile) Database.getCatalog().getDatabaseFile(tableId);
+                matches = table.indexIterator(tid,
+                        new IndexPredicate(Predicate.Op.EQUALS, pkey));
+                matches.open();
+            }
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            if (matches != null)
+                matches.close();
+            matches = null;
+            if (entries != null)
+                entries.close();
+            entries = null;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * SecondaryIndexScan reads the tuples of a table whose indexed field matches
+ * a predicate, through a {@link SecondaryIndex}, in ascending order of that
+ * field. Like {@link SeqScan}, it may be restricted to a subset of the
+ * table's columns.
+ * <p>
+ * If the index stores every column the scan returns, the scan is covering:
+ * it reads the index entries alone and never touches the table. A scan of
+ * whole tuples always reads them from the table, as it may feed a
+ * {@link Delete}, which needs the tuples as stored.
+ */
+public class SecondaryIndexScan implements OpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TransactionId tid;
+    private final SecondaryIndex index;
+    private final String alias;
+    private final IndexPredicate ipred;
+    /** The table columns returned, or null for all of them. */
+    private final int[] columns;
+    private final TupleDesc td;
+    private final boolean covering;
+
+    private transient DbFileIterator it;
+    private boolean isOpen = false;
+
+    /**
+     * Creates a scan of the tuples of the indexed table matching a predicate
+     * on the indexed field.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param index
+     *            the index to read
+     * @param tableAlias
+     *            the alias of the table; the returned tupleDesc has fields
+     *            named tableAlias.fieldName
+     * @param ipred
+     *            the predicate on the indexed field, or null to return all
+     *            tuples in the order of that field
+     * @param columns
+     *            the indexes of the table columns to return, in the order
+     *            they should appear in the returned tuples; null for all
+     *            columns
+     */
+    public SecondaryIndexScan(TransactionId tid, SecondaryIndex index, String tableAlias,
+            IndexPredicate ipred, int[] columns) {
+        this.tid = tid;
+        this.index = index;
+        this.alias = tableAlias;
+        this.ipred = ipred;
+        this.columns = columns == null ? null : columns.clone();
+        TupleDesc tableTd = Database.getCatalog().getTupleDesc(index.getTableId());
+        int n = columns == null ? tableTd.numFields() : columns.length;
+        Type[] types = new Type[n];
+        String[] names = new String[n];
+        for (int i = 0; i < n; i++) {
+            types[i] = tableTd.getFieldType(getTableField(i));
+            names[i] = tableAlias + "." + tableTd.getFieldName(getTableField(i));
+        }
+        this.td = new TupleDesc(types, names);
+        this.covering = columns != null && index.covers(columns);
+    }
+
+    /**
+     * @return the id of the table this operator scans
+     */
+    public int getTableId() {
+        return index.getTableId();
+    }
+
+    /**
+     * @return the name of the table this operator scans in the catalog
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(index.getTableId());
+    }
+
+    /**
+     * @return the alias of the table this operator scans
+     */
+    public String getAlias() {
+        return alias;
+    }
+
+    /**
+     * @return the index this scan reads
+     */
+    public SecondaryIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the predicate on the indexed field, or null if this scan
+     *         returns all tuples
+     */
+    public IndexPredicate getIndexPredicate() {
+        return ipred;
+    }
+
+    /**
+     * @return true if this scan reads only the index, not the table
+     */
+    public boolean isCovering() {
+        return covering;
+    }
+
+    /**
+     * @return the indexes of the table columns this scan returns, or null if
+     *         it returns all of them
+     */
+    public int[] getColumns() {
+        return columns == null ? null : columns.clone();
+    }
+
+    /**
+     * @return the index in the table of the given field of this scan's
+     *         tuples
+     */
+    public int getTableField(int field) {
+        return columns == null ? field : columns[field];
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        if (isOpen)
+            throw new DbException("double open on one OpIterator.");
+        it = covering ? index.coveringIterator(tid, ipred, columns) : index.iterator(tid, ipred);
+        it.open();
+        isOpen = true;
+    }
+
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        return it.hasNext();
+    }
+
+    public Tuple next() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        Tuple t = it.next();
+        if (columns == null)
+            return t;
+        Tuple p = new Tuple(td);
+        for (int i = 0; i < columns.length; i++)
+            p.setField(i, t.getField(covering ? i : columns[i]));
+        p.setRecordId(t.getRecordId());
+        return p;
+    }
+
+    public void close() {
+        if (it != null)
+            it.close();
+        isOpen = false;
+    }
+
+    public void rewind() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        close();
+        open();
+    }
+}
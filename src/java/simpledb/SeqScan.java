@@ -1,17 +1,30 @@
 package simpledb;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.*;
 
 /**
  * SeqScan is an implementation of a sequential scan access method that reads
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
+ * <p>
+ * A scan may be restricted to a subset of the table's columns, in which case
+ * its tuples carry only those columns, in the order given, so that the
+ * operators above it (and in particular the tuples that joins build and
+ * buffer) hold only the fields the query uses.
  */
 public class SeqScan implements OpIterator {
     private int tableId;
     private String tableAlias;
     private TransactionId tid;
     private DbFileIterator iterator;
+    /** The table columns returned, or null for all of them. */
+    private int[] columns;
+    private transient TupleDesc td;
+    /** Filters pushed down by joins above this scan; see {@link RuntimeFilter}. */
+    private transient List<RuntimeFilter> runtimeFilters = new ArrayList<RuntimeFilter>();
+    private transient Tuple lookahead;
     private static final long serialVersionUID = 1L;
 
     /**
@@ -37,13 +50,58 @@ public class SeqScan implements OpIterator {
         this.iterator = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
     }
 
+    /**
+     * Creates a sequential scan that returns only some columns of the
+     * specified table.
+     *
+     * @param columns
+     *            the indexes of the table columns to return, in the order
+     *            they should appear in the returned tuples; null for all
+     *            columns
+     * @see #SeqScan(TransactionId, int, String)
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int[] columns) {
+        this(tid, tableid, tableAlias);
+        this.columns = columns == null ? null : columns.clone();
+    }
+
+    /**
+     * @return the indexes of the table columns this scan returns, or null if
+     *         it returns all of them
+     */
+    public int[] getColumns() {
+        return columns == null ? null : columns.clone();
+    }
+
+    /**
+     * @return the index in the table of the given field of this scan's
+     *         tuples
+     */
+    public int getTableField(int field) {
+        return columns == null ? field : columns[field];
+    }
+
+    /**
+     * Restrict a tuple of the table to the columns of this scan. The record
+     * id is kept, so that the result can still be deleted or updated.
+     */
+    Tuple project(Tuple t) {
+        if (columns == null)
+            return t;
+        Tuple p = new Tuple(getTupleDesc());
+        for (int i = 0; i < columns.length; i++)
+            p.setField(i, t.getField(columns[i]));
+        p.setRecordId(t.getRecordId());
+        return p;
+    }
+
     /**
      * @return
      *       return the table name of the table the operator scans. This should
      *       be the actual name of the table in the catalog of the database
      * */
     public String getTableName() {
-        return null;
+        return Database.getCatalog().getTableName(tableId);
     }
 
     /**
@@ -54,6 +112,20 @@ public class SeqScan implements OpIterator {
         return tableAlias;
     }
 
+    /**
+     * @return the id of the table this operator scans
+     * */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /**
+     * @return the transaction this scan is running as a part of
+     * */
+    public TransactionId getTransactionId() {
+        return tid;
+    }
+
     /**
      * Reset the tableid, and tableAlias of this operator.
      * @param tableid
@@ -69,13 +141,37 @@ public class SeqScan implements OpIterator {
     public void reset(int tableid, String tableAlias) {
         this.tableId = tableid;
         this.tableAlias = tableAlias;
+        this.td = null;
     }
 
     public SeqScan(TransactionId tid, int tableId) {
         this(tid, tableId, Database.getCatalog().getTableName(tableId));
     }
 
+    /**
+     * Drop tuples rejected by the given runtime filter from now on.
+     */
+    public void addRuntimeFilter(RuntimeFilter f) {
+        runtimeFilters.add(f);
+    }
+
+    public void removeRuntimeFilter(RuntimeFilter f) {
+        runtimeFilters.remove(f);
+    }
+
+    public List<RuntimeFilter> getRuntimeFilters() {
+        return runtimeFilters;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        // runtime filters belong to the joins of a running plan, which add
+        // them again when they are opened
+        runtimeFilters = new ArrayList<RuntimeFilter>();
+    }
+
     public void open() throws DbException, TransactionAbortedException {
+        lookahead = null;
         iterator.open();
     }
 
@@ -87,27 +183,63 @@ public class SeqScan implements OpIterator {
      * (e.g., "alias.fieldName").
      *
      * @return the TupleDesc with field names from the underlying HeapFile,
-     *         prefixed with the tableAlias string from the constructor.
+     *         prefixed with the tableAlias string from the constructor, and
+     *         restricted to the columns of this scan.
      */
     public TupleDesc getTupleDesc() {
-       return Database.getCatalog().getTupleDesc(tableId);
+        if (td != null)
+            return td;
+        TupleDesc tableTd = Database.getCatalog().getTupleDesc(tableId);
+        int n = columns == null ? tableTd.numFields() : columns.length;
+        Type[] types = new Type[n];
+        String[] names = new String[n];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = tableTd.getFieldType(getTableField(i));
+            names[i] = tableAlias + "." + tableTd.getFieldName(getTableField(i));
+        }
+        td = new TupleDesc(types, names);
+        return td;
     }
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
-        return iterator.hasNext();
+        if (runtimeFilters.isEmpty())
+            return lookahead != null || iterator.hasNext();
+        while (lookahead == null && iterator.hasNext()) {
+            Tuple t = project(iterator.next());
+            if (acceptedByRuntimeFilters(t))
+                lookahead = t;
+        }
+        return lookahead != null;
+    }
+
+    private boolean acceptedByRuntimeFilters(Tuple t) {
+        for (RuntimeFilter f : runtimeFilters) {
+            if (!f.accepts(t))
+                return false;
+        }
+        return true;
     }
 
     public Tuple next() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        return iterator.next();
+        if (!runtimeFilters.isEmpty() && !hasNext())
+            throw new NoSuchElementException();
+        if (lookahead != null) {
+            Tuple t = lookahead;
+            lookahead = null;
+            return t;
+        }
+        return project(iterator.next());
     }
 
     public void close() {
+        lookahead = null;
         iterator.close();
     }
 
     public void rewind() throws DbException, NoSuchElementException,
             TransactionAbortedException {
+        lookahead = null;
         iterator.rewind();
     }
 }
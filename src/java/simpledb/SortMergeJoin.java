@@ -0,0 +1,351 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * SortMergeJoin joins two inputs by sorting them on their join fields and
+ * merging the sorted streams. It supports equality and the range predicates
+ * (<, <=, >, >=) of {@link JoinPredicate}.
+ * <p>
+ * Inputs are sorted with {@link ExternalSort}, within the operator memory
+ * budget, unless they already arrive in the needed order (see
+ * {@link #isSortedOn}); a join of two B+ tree files on their key fields is
+ * therefore a single merge pass over both files.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private JoinPredicate pred;
+    private OpIterator child1, child2;
+    private TupleDesc comboTD;
+
+    /** The sorted inputs: the children themselves or sorted copies of them. */
+    transient private OpIterator in1, in2;
+    /** Sorts of child1 and child2, or null if the child was already sorted. */
+    transient ExternalSort sort1, sort2;
+
+    transient private Tuple t1;
+    /** Lookahead tuple of the inner input for an equality merge. */
+    transient private Tuple t2;
+    /** Inner tuples matching the current join key, and the cursor over them. */
+    transient private ArrayList<Tuple> group;
+    transient private SpillFile groupFile;
+    transient private OpIterator groupIt;
+    transient private Field groupKey;
+    transient private int maxGroupTuples;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join them
+     * on
+     *
+     * @param p
+     *            The predicate to use to join the children; any operator
+     *            except NOT_EQUALS and LIKE
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (!supports(p.getOperator()))
+            throw new IllegalArgumentException("sort-merge join does not support " + p.getOperator());
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return true if a sort-merge join can evaluate the given join operator
+     */
+    public static boolean supports(Predicate.Op op) {
+        return op != Predicate.Op.NOT_EQUALS && op != Predicate.Op.LIKE;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    /**
+     * Determine whether an operator tree returns its tuples ordered on a
+     * field. This recognizes scans of B+ tree files on their key field,
+     * sorts, the operators that preserve the order of their child, and
+     * streaming grouping and duplicate elimination over a sorted column.
+     *
+     * @param it
+     *            the operator tree
+     * @param field
+     *            the index of the field in the output of it
+     * @param asc
+     *            true to ask for ascending order, false for descending
+     * @return true if it is known to return tuples in that order
+     */
+    public static boolean isSortedOn(OpIterator it, int field, boolean asc) {
+        if (it instanceof SeqScan)
+            return asc && isKeyField(((SeqScan) it).getTableId(), ((SeqScan) it).getTableField(field));
+        if (it instanceof BTreeScan)
+            return asc && isKeyField(((BTreeScan) it).getTableId(), ((BTreeScan) it).getTableField(field));
+        if (it instanceof SecondaryIndexScan) {
+            SecondaryIndexScan s = (SecondaryIndexScan) it;
+            return asc && s.getTableField(field) == s.getIndex().getField();
+        }
+        if (it instanceof BTreeReverseScan)
+            return !asc && isKeyField(tableId(((BTreeReverseScan) it).getTableName()), field);
+        if (it instanceof OrderBy) {
+            OrderBy o = (OrderBy) it;
+            return o.getOrderByField() == field && o.isASC() == asc;
+        }
+        if (it instanceof TopN) {
+            TopN o = (TopN) it;
+            return o.getOrderByField() == field && o.isASC() == asc;
+        }
+        if (it instanceof Filter || it instanceof Limit)
+            return isSortedOn(((Operator) it).getChildren()[0], field, asc);
+        if (it instanceof GroupAggregate)
+            return ((GroupAggregate) it).isSortedOn(field, asc);
+        if (it instanceof Distinct)
+            return ((Distinct) it).isSortedOn(field, asc);
+        if (it instanceof SortMergeJoin) {
+            // an equality merge returns its output in ascending key order
+            SortMergeJoin j = (SortMergeJoin) it;
+            int n1 = j.child1.getTupleDesc().numFields();
+            return asc && j.pred.getOperator() == Predicate.Op.EQUALS
+                    && (field == j.pred.getField1() || field == n1 + j.pred.getField2());
+        }
+        return false;
+    }
+
+    private static int tableId(String tableName) {
+        return Database.getCatalog().getTableId(tableName);
+    }
+
+    private static boolean isKeyField(int tableId, int field) {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+    }
+
+    /**
+     * @return true if the inner input must be in ascending order on its join
+     *         field. For an equality merge both inputs are ascending. For a
+     *         range predicate the inner input is ordered so that the tuples
+     *         matching any outer tuple form a prefix of it.
+     */
+    private boolean innerAscending() {
+        switch (pred.getOperator()) {
+        case LESS_THAN:
+        case LESS_THAN_OR_EQ:
+            return false;
+        default:
+            return true;
+        }
+    }
+
+    private boolean isEquality() {
+        return pred.getOperator() == Predicate.Op.EQUALS;
+    }
+
+    /**
+     * Sort an open child on a field, unless it is already in that order.
+     *
+     * @return the sort of the child, or null if no sort is needed
+     */
+    private ExternalSort sortIfNeeded(OpIterator child, int field, boolean asc)
+            throws DbException, TransactionAbortedException {
+        if (isSortedOn(child, field, asc))
+            return null;
+        ExternalSort sort = new ExternalSort(child.getTupleDesc(), new TupleComparator(field, asc));
+        sort.addAll(child);
+        return sort;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        // the outer input only needs to be sorted for an equality merge
+        sort1 = isEquality() ? sortIfNeeded(child1, pred.getField1(), true) : null;
+        sort2 = sortIfNeeded(child2, pred.getField2(), innerAscending());
+        in1 = sort1 == null ? child1 : sort1.iterator();
+        in2 = sort2 == null ? child2 : sort2.iterator();
+        if (sort1 != null)
+            in1.open();
+        if (sort2 != null)
+            in2.open();
+        maxGroupTuples = (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+                BufferPool.getOperatorMemoryBytes() / child2.getTupleDesc().getSize()));
+        group = new ArrayList<Tuple>();
+        start();
+        super.open();
+    }
+
+    private void start() throws DbException, TransactionAbortedException {
+        clearGroup();
+        t1 = null;
+        t2 = isEquality() && in2.hasNext() ? in2.next() : null;
+    }
+
+    private void clearGroup() {
+        if (groupIt != null)
+            groupIt.close();
+        groupIt = null;
+        if (groupFile != null)
+            groupFile.delete();
+        groupFile = null;
+        if (group != null)
+            group.clear();
+        groupKey = null;
+    }
+
+    public void close() {
+        super.close();
+        clearGroup();
+        if (sort1 != null) {
+            in1.close();
+            sort1.close();
+        }
+        if (sort2 != null) {
+            in2.close();
+            sort2.close();
+        }
+        sort1 = sort2 = null;
+        in1 = in2 = null;
+        child2.close();
+        child1.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        in1.rewind();
+        in2.rewind();
+        start();
+    }
+
+    /**
+     * Collect the inner tuples whose key equals the given key, starting at
+     * the lookahead tuple, and position the group cursor at its start. A
+     * group larger than the operator memory budget is written to a spill
+     * file.
+     */
+    private void loadGroup(Field key) throws DbException, TransactionAbortedException {
+        clearGroup();
+        groupKey = key;
+        while (t2 != null && TupleComparator.compareFields(t2.getField(pred.getField2()), key) == 0) {
+            if (groupFile != null) {
+                groupFile.add(t2);
+            } else if (group.size() < maxGroupTuples) {
+                group.add(t2);
+            } else {
+                groupFile = new SpillFile(child2.getTupleDesc());
+                for (Tuple t : group)
+                    groupFile.add(t);
+                group.clear();
+                groupFile.add(t2);
+            }
+            t2 = in2.hasNext() ? in2.next() : null;
+        }
+        if (groupFile != null) {
+            groupFile.finish();
+            groupIt = groupFile.iterator();
+        } else {
+            groupIt = new TupleIterator(child2.getTupleDesc(), group);
+        }
+        groupIt.open();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples.
+     * <p>
+     * For an equality predicate both inputs are in ascending key order. The
+     * inner tuples sharing the current outer key are held as a group, which
+     * is replayed for every outer tuple with that key; inner tuples with
+     * smaller keys are skipped without being compared to the outer tuple.
+     * <p>
+     * For a range predicate, the inner input is ordered so that the tuples
+     * matching an outer tuple come first (ascending for t1 > t2, descending
+     * for t1 < t2). Each outer tuple therefore scans the inner input only up
+     * to the first tuple that fails the predicate.
+     * <p>
+     * As with {@link Join}, each result is the concatenation of the joining
+     * tuples from the left and right relation.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        return isEquality() ? nextEqual() : nextRange();
+    }
+
+    private Tuple nextEqual() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (t1 != null && groupIt != null && groupIt.hasNext())
+                return merge(t1, groupIt.next());
+            if (!in1.hasNext())
+                return null;
+            t1 = in1.next();
+            Field key = t1.getField(pred.getField1());
+            if (groupKey != null && TupleComparator.compareFields(key, groupKey) == 0) {
+                groupIt.rewind();
+                continue;
+            }
+            while (t2 != null && TupleComparator.compareFields(t2.getField(pred.getField2()), key) < 0)
+                t2 = in2.hasNext() ? in2.next() : null;
+            if (t2 == null) {
+                // no inner tuple is left for this or any later key
+                clearGroup();
+                return null;
+            }
+            loadGroup(key);
+        }
+    }
+
+    private Tuple nextRange() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (t1 != null && in2.hasNext()) {
+                Tuple t = in2.next();
+                if (pred.filter(t1, t))
+                    return merge(t1, t);
+            }
+            // the inner prefix matching t1 is done
+            if (!in1.hasNext())
+                return null;
+            t1 = in1.next();
+            in2.rewind();
+        }
+    }
+
+    private Tuple merge(Tuple left, Tuple right) {
+        int td1n = left.getTupleDesc().numFields();
+        int td2n = right.getTupleDesc().numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, left.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, right.getField(i));
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+}
@@ -0,0 +1,167 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.NoSuchElementException;
+
+/**
+ * SpillFile is an append-only temporary file of fixed-width tuples. Operators
+ * that run out of working memory (see
+ * {@link BufferPool#getOperatorMemoryPages()}) write their overflow here and
+ * read it back later, sequentially, through {@link #iterator()}.
+ * <p>
+ * Tuples are stored with {@link Field#serialize} in the same layout used by
+ * heap pages, so every record is exactly {@link TupleDesc#getSize()} bytes.
+ * Spill files do not go through the BufferPool and are never logged; they
+ * only live as long as the operator that created them, which removes them
+ * with {@link #delete()}.
+ */
+public class SpillFile {
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private long count = 0;
+
+    /**
+     * Create a new, empty spill file for tuples of the given schema.
+     *
+     * @param td the schema of the tuples that will be added
+     */
+    public SpillFile(TupleDesc td) throws DbException {
+        this.td = td;
+        try {
+            file = File.createTempFile("spill", ".dat");
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file), BufferPool.getPageSize()));
+        } catch (IOException e) {
+            throw new DbException("could not create spill file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the schema of the tuples in this file
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of tuples added to this file
+     */
+    public long size() {
+        return count;
+    }
+
+    /**
+     * Append a tuple to the end of this file.
+     *
+     * @param t the tuple to add; its schema must match this file's
+     */
+    public void add(Tuple t) throws DbException {
+        if (out == null)
+            throw new DbException("spill file is closed for writing");
+        try {
+            for (int i = 0; i < td.numFields(); i++)
+                t.getField(i).serialize(out);
+        } catch (IOException e) {
+            throw new DbException("could not write spill file: " + e.getMessage());
+        }
+        count++;
+    }
+
+    /**
+     * Flush any buffered tuples and stop accepting new ones.
+     */
+    public void finish() throws DbException {
+        if (out == null)
+            return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new DbException("could not write spill file: " + e.getMessage());
+        }
+        out = null;
+    }
+
+    /**
+     * Close the file and remove it from disk.
+     */
+    public void delete() {
+        try {
+            if (out != null)
+                out.close();
+        } catch (IOException e) {
+            // the file is going away anyway
+        }
+        out = null;
+        file.delete();
+    }
+
+    /**
+     * @return an iterator over the tuples in this file, in insertion order.
+     *         Each time the iterator is opened it returns the tuples added
+     *         up to that point; tuples may still be appended in between.
+     */
+    public OpIterator iterator() throws DbException {
+        return new SpillFileIterator();
+    }
+
+    private class SpillFileIterator implements OpIterator {
+
+        private static final long serialVersionUID = 1L;
+        private DataInputStream in = null;
+        private long read = 0;
+        private long limit = 0;
+
+        public void open() throws DbException {
+            try {
+                if (out != null)
+                    out.flush();
+                limit = count;
+                in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(file), BufferPool.getPageSize()));
+            } catch (IOException e) {
+                throw new DbException("could not read spill file: " + e.getMessage());
+            }
+            read = 0;
+        }
+
+        public boolean hasNext() {
+            return in != null && read < limit;
+        }
+
+        public Tuple next() throws DbException, NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++)
+                    t.setField(i, td.getFieldType(i).parse(in));
+            } catch (ParseException e) {
+                throw new DbException("corrupt spill file: " + e.getMessage());
+            }
+            read++;
+            return t;
+        }
+
+        public void rewind() throws DbException {
+            close();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            try {
+                if (in != null)
+                    in.close();
+            } catch (IOException e) {
+                // nothing useful to do on a read-only temp file
+            }
+            in = null;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * A {@link KeyHashTable} for STRING_TYPE keys. Slots hold the full hash code
+ * of their key, so probes only compare strings whose hashes already match.
+ */
+public class StringKeyHashTable<V> extends KeyHashTable<V> {
+
+    private int[] slotHashes = new int[INITIAL_CAPACITY * 2];
+    private int[] slotOrdinals = new int[INITIAL_CAPACITY * 2];
+    private int mask = INITIAL_CAPACITY * 2 - 1;
+
+    /** Key and hash code of each ordinal. */
+    private String[] keys = new String[INITIAL_CAPACITY];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+
+    public StringKeyHashTable() {
+        Arrays.fill(slotOrdinals, NONE);
+    }
+
+    /**
+     * @return the ordinal of the given key, or {@link #NONE} if it is not in
+     *         the table
+     */
+    public int find(String key) {
+        int hash = mix(key.hashCode());
+        int slot = hash & mask;
+        int ordinal;
+        while ((ordinal = slotOrdinals[slot]) != NONE) {
+            if (slotHashes[slot] == hash && keys[ordinal].equals(key))
+                return ordinal;
+            slot = (slot + 1) & mask;
+        }
+        return NONE;
+    }
+
+    /**
+     * @return the ordinal of the given key, adding it to the table if it is
+     *         not there yet
+     */
+    public int findOrInsert(String key) {
+        int hash = mix(key.hashCode());
+        int slot = hash & mask;
+        int ordinal;
+        while ((ordinal = slotOrdinals[slot]) != NONE) {
+            if (slotHashes[slot] == hash && keys[ordinal].equals(key))
+                return ordinal;
+            slot = (slot + 1) & mask;
+        }
+        ordinal = newOrdinal();
+        keys[ordinal] = key;
+        hashes[ordinal] = hash;
+        slotHashes[slot] = hash;
+        slotOrdinals[slot] = ordinal;
+        if (size * 2 > mask)
+            rehash();
+        return ordinal;
+    }
+
+    public int find(Field key) {
+        return find(((StringField) key).getValue());
+    }
+
+    public int findOrInsert(Field key) {
+        return findOrInsert(((StringField) key).getValue());
+    }
+
+    public Field getKey(int ordinal) {
+        return new StringField(keys[ordinal], Type.STRING_LEN);
+    }
+
+    void clearSlots(int n) {
+        for (int ordinal = 0; ordinal < n; ordinal++) {
+            int slot = hashes[ordinal] & mask;
+            while (slotOrdinals[slot] != ordinal)
+                slot = (slot + 1) & mask;
+            slotOrdinals[slot] = NONE;
+        }
+        Arrays.fill(keys, 0, n, null);
+    }
+
+    void growOrdinals(int capacity) {
+        keys = Arrays.copyOf(keys, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+    }
+
+    private void rehash() {
+        int cap = slotOrdinals.length * 2;
+        slotHashes = new int[cap];
+        slotOrdinals = new int[cap];
+        Arrays.fill(slotOrdinals, NONE);
+        mask = cap - 1;
+        for (int ordinal = 0; ordinal < size; ordinal++) {
+            int slot = hashes[ordinal] & mask;
+            while (slotOrdinals[slot] != NONE)
+                slot = (slot + 1) & mask;
+            slotHashes[slot] = hashes[ordinal];
+            slotOrdinals[slot] = ordinal;
+        }
+    }
+}
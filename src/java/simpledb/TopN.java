@@ -0,0 +1,155 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopN implements ORDER BY ... LIMIT ... OFFSET in a single pass over its
+ * child. It keeps only the best <code>offset + limit</code> tuples seen so
+ * far in a bounded heap, so memory is proportional to the requested rows
+ * rather than to the input.
+ * <p>
+ * If <code>offset + limit</code> tuples would not fit in the operator memory
+ * budget, TopN falls back to a full {@link ExternalSort}.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private final TupleDesc td;
+    private final int orderByField;
+    private final String orderByFieldName;
+    private final boolean asc;
+    private final int limit;
+    private final int offset;
+    transient private ExternalSort sort;
+    transient private OpIterator it;
+    transient private int returned;
+
+    /**
+     * @param orderbyField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param limit
+     *            the maximum number of tuples to return
+     * @param offset
+     *            the number of leading tuples, in sort order, to skip
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int orderbyField, boolean asc, int limit, int offset, OpIterator child) {
+        if (limit < 0 || offset < 0)
+            throw new IllegalArgumentException("LIMIT and OFFSET must not be negative");
+        this.child = child;
+        this.td = child.getTupleDesc();
+        this.orderByField = orderbyField;
+        this.orderByFieldName = td.getFieldName(orderbyField);
+        this.asc = asc;
+        this.limit = limit;
+        this.offset = offset;
+    }
+
+    public boolean isASC() {
+        return this.asc;
+    }
+
+    public int getOrderByField() {
+        return this.orderByField;
+    }
+
+    public String getOrderFieldName() {
+        return this.orderByFieldName;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        Comparator<Tuple> cmp = new TupleComparator(orderByField, asc);
+        long keep = (long) limit + offset;
+        if (keep * td.getSize() > BufferPool.getOperatorMemoryBytes()) {
+            sort = new ExternalSort(td, cmp);
+            sort.addAll(child);
+            it = sort.iterator();
+        } else {
+            it = new TupleIterator(td, topTuples(cmp, (int) keep));
+        }
+        it.open();
+        super.open();
+        skipOffset();
+    }
+
+    /**
+     * @return the first <code>keep</code> tuples of the child in sort order
+     */
+    private List<Tuple> topTuples(Comparator<Tuple> cmp, int keep)
+            throws DbException, TransactionAbortedException {
+        // max-heap on the sort order: the head is the worst tuple kept
+        PriorityQueue<Tuple> heap = new PriorityQueue<Tuple>(Math.max(1, keep),
+                Collections.reverseOrder(cmp));
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (heap.size() < keep) {
+                heap.add(t);
+            } else if (keep > 0 && cmp.compare(t, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(t);
+            }
+        }
+        ArrayList<Tuple> top = new ArrayList<Tuple>(heap);
+        Collections.sort(top, cmp);
+        return top;
+    }
+
+    private void skipOffset() throws DbException, TransactionAbortedException {
+        returned = 0;
+        for (int i = 0; i < offset && it.hasNext(); i++)
+            it.next();
+    }
+
+    public void close() {
+        super.close();
+        if (it != null)
+            it.close();
+        it = null;
+        if (sort != null)
+            sort.close();
+        sort = null;
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        it.rewind();
+        skipOffset();
+    }
+
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (returned >= limit || !it.hasNext())
+            return null;
+        returned++;
+        return it.next();
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+
+}
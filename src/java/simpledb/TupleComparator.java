@@ -0,0 +1,73 @@
+package simpledb;
+
+import java.util.Comparator;
+
+/**
+ * Orders tuples on one or more fields, each ascending or descending.
+ * <p>
+ * Int and string fields are compared directly on their values rather than
+ * through {@link Field#compare(Predicate.Op, Field)}, which would take two
+ * virtual calls and two switches per key.
+ */
+public class TupleComparator implements Comparator<Tuple> {
+    int[] fields;
+    boolean[] asc;
+
+    /**
+     * @param field the field to sort on
+     * @param asc true for ascending order
+     */
+    public TupleComparator(int field, boolean asc) {
+        this(new int[]{field}, new boolean[]{asc});
+    }
+
+    /**
+     * @param fields the fields to sort on, most significant first
+     * @param asc for each field, true for ascending order
+     */
+    public TupleComparator(int[] fields, boolean[] asc) {
+        if (fields.length != asc.length)
+            throw new IllegalArgumentException("need one direction per sort field");
+        this.fields = fields;
+        this.asc = asc;
+    }
+
+    /**
+     * @return the fields this comparator sorts on, most significant first
+     */
+    public int[] getFields() {
+        return fields;
+    }
+
+    /**
+     * @return for each sort field, true if it is sorted ascending
+     */
+    public boolean[] getAscending() {
+        return asc;
+    }
+
+    /**
+     * Compare two field values in ascending order.
+     */
+    public static int compareFields(Field f1, Field f2) {
+        if (f1 instanceof CompositeField || f2 instanceof CompositeField)
+            return CompositeField.compare(f1, f2);
+        if (f1 instanceof IntField)
+            return Integer.compare(((IntField) f1).getValue(), ((IntField) f2).getValue());
+        if (f1 instanceof StringField)
+            return ((StringField) f1).getValue().compareTo(((StringField) f2).getValue());
+        if (f1.compare(Predicate.Op.EQUALS, f2))
+            return 0;
+        return f1.compare(Predicate.Op.GREATER_THAN, f2) ? 1 : -1;
+    }
+
+    public int compare(Tuple o1, Tuple o2) {
+        for (int i = 0; i < fields.length; i++) {
+            int c = compareFields(o1.getField(fields[i]), o2.getField(fields[i]));
+            if (c != 0)
+                return asc[i] ? c : -c;
+        }
+        return 0;
+    }
+
+}
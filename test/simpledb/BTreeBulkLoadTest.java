@@ -0,0 +1,241 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeBulkLoadTest extends SimpleDbTestBase {
+	private TransactionId tid;
+
+	/**
+	 * Set up initial resources for each unit test, with small pages so that
+	 * the trees have several levels.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		BufferPool.setPageSize(256);
+		Database.reset();
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
+		BufferPool.resetOperatorMemoryPages();
+		Database.reset();
+	}
+
+	private static BTreeFile emptyFile() throws Exception {
+		File f = File.createTempFile("bulk", ".dat");
+		f.deleteOnExit();
+		return BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+	}
+
+	private static ArrayList<Tuple> tuples(int[] keys) {
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for(int i = 0; i < keys.length; i++) {
+			tuples.add(BTreeUtility.getBTreeTuple(new int[] {keys[i], i}));
+		}
+		return tuples;
+	}
+
+	private static OpIterator open(List<Tuple> tuples) throws Exception {
+		OpIterator it = new TupleIterator(Utility.getTupleDesc(2), tuples);
+		it.open();
+		return it;
+	}
+
+	/**
+	 * Check the parent pointers and occupancy of the subtree under pid, and
+	 * count its pages
+	 */
+	private int checkSubtree(BTreeFile bf, BTreePageId pid, BTreePageId parent, boolean root)
+			throws Exception {
+		BTreePage page = (BTreePage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+		assertEquals(parent, page.getParentId());
+		if(pid.pgcateg() == BTreePageId.LEAF) {
+			BTreeLeafPage leaf = (BTreeLeafPage) page;
+			if(!root) {
+				assertTrue(leaf.getNumTuples() >= leaf.getMaxTuples() / 2);
+			}
+			return 1;
+		}
+		BTreeInternalPage internal = (BTreeInternalPage) page;
+		if(!root) {
+			assertTrue(internal.getNumEntries() >= internal.getMaxEntries() / 2);
+		}
+		int pages = 1;
+		Iterator<BTreeEntry> it = internal.iterator();
+		BTreeEntry e = null;
+		while(it.hasNext()) {
+			e = it.next();
+			pages += checkSubtree(bf, e.getLeftChild(), pid, false);
+		}
+		return pages + checkSubtree(bf, e.getRightChild(), pid, false);
+	}
+
+	private void checkTree(BTreeFile bf, int[] sortedKeys) throws Exception {
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		assertNull(rootPtr.getHeaderId());
+		// every page of the file is in the tree, so there are no header pages
+		assertEquals(bf.numPages(), checkSubtree(bf, rootPtr.getRootId(), rootPtr.getId(), true));
+
+		// the leaves are linked in key order
+
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		for(int k : sortedKeys) {
+			assertTrue(it.hasNext());
+			assertEquals(new IntField(k), it.next().getField(0));
+		}
+		assertFalse(it.hasNext());
+		it.close();
+	}
+
+	@Test
+	public void testSortedInput() throws Exception {
+		int[] keys = new int[20000];
+		for(int i = 0; i < keys.length; i++) {
+			keys[i] = i / 3;
+		}
+		for(double fill : new double[] {0.5, BTreeFileEncoder.DEFAULT_FILL_FACTOR, 1.0}) {
+			BTreeFile bf = emptyFile();
+			OpIterator it = open(tuples(keys));
+			BTreeFileEncoder.bulkLoad(bf, it, fill);
+			it.close();
+			checkTree(bf, keys);
+
+			// the leaves are filled to the fill factor
+			int perLeaf = BTreeUtility.getNumTuplesPerPage(2);
+			int leaves = (int) Math.ceil(keys.length / (double) Math.max(perLeaf / 2, (int) (perLeaf * fill)));
+			BTreeLeafPage first = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+					new BTreePageId(bf.getId(), 1, BTreePageId.LEAF), Permissions.READ_ONLY);
+			assertEquals(Math.max(perLeaf / 2, (int) (perLeaf * fill)), first.getNumTuples());
+			assertTrue(bf.numPages() >= leaves && bf.numPages() < leaves * 1.2);
+
+			// equality searches find every duplicate, across leaf boundaries
+			DbFileIterator search = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(4321)));
+			search.open();
+			int found = 0;
+			while(search.hasNext()) {
+				assertEquals(new IntField(4321), search.next().getField(0));
+				found++;
+			}
+			search.close();
+			assertEquals(3, found);
+		}
+	}
+
+	@Test
+	public void testSmallInputs() throws Exception {
+		for(int n : new int[] {0, 1, BTreeUtility.getNumTuplesPerPage(2),
+				BTreeUtility.getNumTuplesPerPage(2) + 1}) {
+			int[] keys = new int[n];
+			for(int i = 0; i < n; i++) {
+				keys[i] = i;
+			}
+			BTreeFile bf = emptyFile();
+			OpIterator it = open(tuples(keys));
+			BTreeFileEncoder.bulkLoad(bf, it, 1.0);
+			it.close();
+			if(n == 0) {
+				assertEquals(1, bf.numPages());
+				DbFileIterator scan = bf.iterator(tid);
+				scan.open();
+				assertFalse(scan.hasNext());
+				scan.close();
+			}
+			else {
+				checkTree(bf, keys);
+			}
+		}
+	}
+
+	@Test
+	public void testUpdatesAfterLoad() throws Exception {
+		int[] keys = new int[5000];
+		for(int i = 0; i < keys.length; i++) {
+			keys[i] = 2 * i;
+		}
+		BTreeFile bf = emptyFile();
+		OpIterator it = open(tuples(keys));
+		BTreeFileEncoder.bulkLoad(bf, it, 1.0);
+		it.close();
+
+		// full leaves split as usual, and new pages are appended to the file
+		int pages = bf.numPages();
+		for(int i = 0; i < 200; i++) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[] {4 * i + 1, -1}));
+		}
+		assertTrue(bf.numPages() > pages);
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+
+		int[] all = new int[keys.length + 200];
+		for(int i = 0; i < keys.length; i++) {
+			all[i] = keys[i];
+		}
+		for(int i = 0; i < 200; i++) {
+			all[keys.length + i] = 4 * i + 1;
+		}
+		Arrays.sort(all);
+		// internal page splits may leave a page one entry short of half full
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+		DbFileIterator scan = bf.iterator(tid);
+		scan.open();
+		for(int k : all) {
+			assertEquals(new IntField(k), scan.next().getField(0));
+		}
+		assertFalse(scan.hasNext());
+		scan.close();
+	}
+
+	@Test(expected = DbException.class)
+	public void testUnsortedInput() throws Exception {
+		BTreeFile bf = emptyFile();
+		BTreeFileEncoder.bulkLoad(bf, open(tuples(new int[] {1, 2, 3, 2})), 1.0);
+	}
+
+	@Test(expected = DbException.class)
+	public void testNonEmptyFile() throws Exception {
+		BTreeFile bf = emptyFile();
+		BTreeFileEncoder.bulkLoad(bf, open(tuples(new int[] {1, 2, 3})), 1.0);
+		BTreeFileEncoder.bulkLoad(bf, open(tuples(new int[] {4})), 1.0);
+	}
+
+	@Test
+	public void testSortAndBulkLoad() throws Exception {
+		// a small operator memory budget makes the sort spill sorted runs to disk
+		BufferPool.setOperatorMemoryPages(2);
+		Random rand = new Random(43);
+		int[] keys = new int[10000];
+		for(int i = 0; i < keys.length; i++) {
+			keys[i] = rand.nextInt(100000);
+		}
+		BTreeFile bf = emptyFile();
+		OpIterator it = open(tuples(keys));
+		BTreeFileEncoder.sortAndBulkLoad(bf, it, BTreeFileEncoder.DEFAULT_FILL_FACTOR);
+		it.close();
+		Arrays.sort(keys);
+		checkTree(bf, keys);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoadTest.class);
+	}
+}
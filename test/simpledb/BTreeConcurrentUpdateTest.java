@@ -0,0 +1,157 @@
+package simpledb;
+
+import simpledb.BTreeUtility.*;
+import simpledb.Predicate.Op;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeConcurrentUpdateTest extends SimpleDbTestBase {
+	private static final int ROUNDS = 5;
+	private static final int THREADS = 10;
+
+	private TransactionId tid;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		Database.reset();
+	}
+
+	/**
+	 * @return the tuples of the file, in the order a scan along the leaves
+	 *         reads them
+	 */
+	private List<ArrayList<Integer>> scan(BTreeFile f) throws Exception {
+		List<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		DbFileIterator it = f.iterator(tid);
+		it.open();
+		while (it.hasNext())
+			tuples.add(BTreeUtility.tupleToList(it.next()));
+		it.close();
+		return tuples;
+	}
+
+	private boolean find(BTreeFile f, ArrayList<Integer> tuple) throws Exception {
+		DbFileIterator it = f.indexIterator(tid, new IndexPredicate(Op.EQUALS,
+				new IntField(tuple.get(f.keyField()))));
+		it.open();
+		try {
+			while (it.hasNext())
+				if (BTreeUtility.tupleToList(it.next()).equals(tuple))
+					return true;
+			return false;
+		} finally {
+			it.close();
+		}
+	}
+
+	private static void sort(List<ArrayList<Integer>> tuples) {
+		Collections.sort(tuples, new Comparator<ArrayList<Integer>>() {
+			public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+				for (int i = 0; i < a.size(); i++) {
+					int c = a.get(i).compareTo(b.get(i));
+					if (c != 0)
+						return c;
+				}
+				return 0;
+			}
+		});
+	}
+
+	/**
+	 * Splitting a leaf points the right sibling pointer of the leaf to its
+	 * left at the new page, so that change must reach the disk with the rest
+	 * of the split
+	 */
+	@Test
+	public void splitUpdatesLeftSibling() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		// every leaf of the file is full
+		BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 5000, null, tuples, 0);
+		BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+				new BTreePageId(f.getId(), 3, BTreePageId.LEAF), Permissions.READ_ONLY);
+		BTreePageId left = leaf.getLeftSiblingId();
+		assertNotNull(left);
+		int key = ((IntField) leaf.iterator().next().getField(0)).getValue();
+
+		Tuple t = BTreeUtility.getBTreeTuple(new int[] {key, 0});
+		Database.getBufferPool().insertTuple(tid, f.getId(), t);
+		assertEquals(tid, Database.getBufferPool().getPage(tid, left, Permissions.READ_ONLY).isDirty());
+		Database.getBufferPool().transactionComplete(tid);
+		tuples.add(BTreeUtility.tupleToList(t));
+
+		// read the file back from disk
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		tid = new TransactionId();
+		List<ArrayList<Integer>> read = scan(f);
+		sort(read);
+		sort(tuples);
+		assertEquals(tuples, read);
+	}
+
+	/**
+	 * Rounds of concurrent inserts and deletes, of keys drawn from a seeded
+	 * generator, keep every committed tuple: once the pages are read back
+	 * from disk, a scan returns exactly the tuples inserted and not deleted,
+	 * and a search finds each of them. Transactions that abort on a lock
+	 * timeout leave the tree as it was.
+	 */
+	@Test
+	public void concurrentInsertsAndDeletes() throws Exception {
+		Random rand = new Random(42);
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 5000, null, tuples, 0);
+		Database.resetBufferPool(500);
+		BlockingQueue<ArrayList<Integer>> committed = new ArrayBlockingQueue<ArrayList<Integer>>(10000);
+		committed.addAll(tuples);
+
+		for (int round = 0; round < ROUNDS; round++) {
+			List<Thread> threads = new ArrayList<Thread>();
+			for (int i = 0; i < THREADS; i++) {
+				int[] tupdata = new int[] {rand.nextInt(BTreeUtility.MAX_RAND_VALUE),
+						rand.nextInt(BTreeUtility.MAX_RAND_VALUE)};
+				threads.add(new BTreeInserter(f, tupdata, committed));
+				threads.add(new BTreeDeleter(f, committed));
+			}
+			for (Thread thread : threads)
+				thread.start();
+			for (Thread thread : threads)
+				thread.join();
+		}
+
+		Database.resetBufferPool(500);
+		List<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>(committed);
+		List<ArrayList<Integer>> read = scan(f);
+		sort(expected);
+		sort(read);
+		assertEquals(expected, read);
+		for (ArrayList<Integer> tuple : expected)
+			assertTrue(find(f, tuple));
+		BTreeChecker.checkRep(f, tid, new HashMap<PageId, Page>(), false);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeConcurrentUpdateTest.class);
+	}
+}
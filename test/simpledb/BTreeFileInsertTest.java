@@ -5,6 +5,8 @@ import simpledb.Predicate.Op;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.After;
 import org.junit.Before;
@@ -172,6 +174,145 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		assertTrue(page.getId().getPageNumber() == 2 || otherPage.getId().getPageNumber() == 2);
 	}
 
+	/**
+	 * Searches and inserts lock internal pages only while they descend the tree, so a
+	 * reader that has not committed does not hold up a split under the root
+	 */
+	@Test
+	public void testLatchCrabbing() throws Exception {
+		// This should create a B+ tree with 100 full leaf pages
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 50200,
+				null, null, 0);
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(bigFile.getId());
+		TransactionId reader = new TransactionId();
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				reader, rootPtrId, Permissions.READ_ONLY);
+		BTreePageId rootId = rootPtr.getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(
+				reader, rootId, Permissions.READ_ONLY);
+		Iterator<BTreeEntry> it = root.reverseIterator();
+		Field key = it.next().getKey();
+		Database.getBufferPool().transactionComplete(reader);
+
+		// read a tuple from the right-most leaves
+		reader = new TransactionId();
+		DbFileIterator fit = bigFile.indexIterator(reader, new IndexPredicate(Op.GREATER_THAN_OR_EQ, key));
+		fit.open();
+		assertTrue(fit.hasNext());
+		Tuple read = fit.next();
+		assertTrue(Database.getBufferPool().holdsLock(reader, read.getRecordId().getPageId()));
+		assertFalse(Database.getBufferPool().holdsLock(reader, rootPtrId));
+		assertFalse(Database.getBufferPool().holdsLock(reader, rootId));
+
+		// split the left-most leaf, which adds an entry to the root
+		Database.getBufferPool().insertTuple(tid, bigFile.getId(), BTreeUtility.getBTreeTuple(-1, 2));
+		assertTrue(Database.getBufferPool().holdsLock(tid, rootId));
+		// allocating the new leaf keeps the root pointer, and with it the header
+		// pages, locked until the transaction completes
+		assertTrue(Database.getBufferPool().holdsLock(tid, rootPtrId));
+		fit.close();
+		Database.getBufferPool().transactionComplete(reader);
+	}
+
+	/**
+	 * Transactions that split leaves under different internal pages do not wait for
+	 * each other: each write locks only its own parent, and allocating pages only read
+	 * locks the root pointer. Every thread keeps its locks until all of them have split,
+	 * so a thread that had to wait for another would time out and abort.
+	 */
+	@Test
+	public void testConcurrentSplits() throws Exception {
+		BufferPool.setPageSize(1024);
+		File file = File.createTempFile("splits", ".dat");
+		file.deleteOnExit();
+		Database.reset();
+		final BTreeFile bf = BTreeUtility.createEmptyBTreeFile(file.getAbsolutePath(), 2, 0);
+		// keys 0, 10, 20, ... on pages with room for a few more children each
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for(int i = 0; i < 40000; i++) {
+			tuples.add(BTreeUtility.getBTreeTuple(new int[] {i * 10, i}));
+		}
+		OpIterator sorted = new TupleIterator(Utility.getTupleDesc(2), tuples);
+		sorted.open();
+		BTreeFileEncoder.bulkLoad(bf, sorted, BTreeFileEncoder.DEFAULT_FILL_FACTOR);
+		Database.resetBufferPool(1000);
+
+		// one thread for each subtree under the root, splitting a leaf in its middle
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(
+				tid, rootPtr.getRootId(), Permissions.READ_ONLY);
+		List<Integer> keys = new ArrayList<Integer>();
+		Iterator<BTreeEntry> it = root.iterator();
+		BTreeEntry e = null;
+		while(it.hasNext()) {
+			e = it.next();
+			keys.add(middleKey(e.getLeftChild()));
+		}
+		keys.add(middleKey(e.getRightChild()));
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+		assertTrue(keys.size() > 2);
+		int pages = bf.numPages();
+
+		final int inserts = 60;
+		final CyclicBarrier split = new CyclicBarrier(keys.size());
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for(final int key : keys) {
+			threads.add(new Thread() {
+				public void run() {
+					TransactionId t = new TransactionId();
+					try {
+						for(int i = 0; i < inserts; i++) {
+							Database.getBufferPool().insertTuple(t, bf.getId(),
+									BTreeUtility.getBTreeTuple(new int[] {key + 1 + i % 9, -1}));
+						}
+						split.await(10, TimeUnit.SECONDS);
+						Database.getBufferPool().transactionComplete(t);
+					} catch(Throwable ex) {
+						errors.add(ex);
+						split.reset();
+					}
+				}
+			});
+		}
+		for(Thread thread : threads) {
+			thread.start();
+		}
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(new ArrayList<Throwable>(), errors);
+
+		// every thread split its leaf, and every tuple is there
+		assertTrue(bf.numPages() >= pages + keys.size());
+		DbFileIterator fit = bf.iterator(tid);
+		fit.open();
+		int n = 0;
+		while(fit.hasNext()) {
+			fit.next();
+			n++;
+		}
+		fit.close();
+		assertEquals(tuples.size() + keys.size() * inserts, n);
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+	}
+
+	/**
+	 * @return the key of the middle entry of an internal page
+	 */
+	private int middleKey(BTreePageId pid) throws Exception {
+		BTreeInternalPage page = (BTreeInternalPage) Database.getBufferPool().getPage(
+				tid, pid, Permissions.READ_ONLY);
+		Iterator<BTreeEntry> it = page.iterator();
+		for(int i = 0; i < page.getNumEntries() / 2; i++) {
+			it.next();
+		}
+		return ((IntField) it.next().getKey()).getValue();
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -313,6 +313,46 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.findChild() and findReverseChild(),
+	 * against a walk of the entries
+	 */
+	@Test public void findChild() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		Iterator<BTreeEntry> it;
+		for (int round = 0; round < 3; ++round) {
+			for (int key = 0; key < 70000; key += 997) {
+				IntField f = new IntField(key);
+				BTreePageId left = null, right = null;
+				it = page.iterator();
+				BTreeEntry first = null, e = null;
+				while (it.hasNext()) {
+					e = it.next();
+					if (first == null)
+						first = e;
+					if (left == null && e.getKey().compare(Predicate.Op.GREATER_THAN_OR_EQ, f))
+						left = e.getLeftChild();
+					if (e.getKey().compare(Predicate.Op.LESS_THAN_OR_EQ, f))
+						right = e.getRightChild();
+				}
+				assertEquals(left == null ? e.getRightChild() : left, page.findChild(f));
+				assertEquals(right == null ? first.getLeftChild() : right, page.findReverseChild(f));
+			}
+			// remove some entries to leave holes in the page
+			it = page.iterator();
+			it.next();
+			page.deleteKeyAndRightChild(it.next());
+			it.next();
+			page.deleteKeyAndLeftChild(it.next());
+		}
+		it = page.iterator();
+		BTreeEntry e = it.next();
+		assertEquals(e.getLeftChild(), page.findChild(null));
+		while (it.hasNext())
+			e = it.next();
+		assertEquals(e.getRightChild(), page.findReverseChild(null));
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -0,0 +1,230 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeLazyRebalanceTest extends SimpleDbTestBase {
+	private TransactionId tid;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		Database.reset();
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private void commit() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+	}
+
+	/**
+	 * @return the leaves of the file, in key order
+	 */
+	private List<BTreePageId> leaves(BTreeFile f) throws Exception {
+		Set<BTreePageId> leaves = new LinkedHashSet<BTreePageId>();
+		DbFileIterator it = f.iterator(tid);
+		it.open();
+		while (it.hasNext())
+			leaves.add((BTreePageId) it.next().getRecordId().getPageId());
+		it.close();
+		return new ArrayList<BTreePageId>(leaves);
+	}
+
+	private BTreeLeafPage leaf(BTreePageId pid) throws Exception {
+		return (BTreeLeafPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+	}
+
+	private static List<Tuple> tuples(BTreeLeafPage leaf) {
+		List<Tuple> tuples = new ArrayList<Tuple>();
+		Iterator<Tuple> it = leaf.iterator();
+		while (it.hasNext())
+			tuples.add(it.next());
+		return tuples;
+	}
+
+	/**
+	 * @return the keys of the file, in order
+	 */
+	private List<Integer> keys(BTreeFile f) throws Exception {
+		List<Integer> keys = new ArrayList<Integer>();
+		DbFileIterator it = f.iterator(tid);
+		it.open();
+		while (it.hasNext())
+			keys.add(((IntField) it.next().getField(0)).getValue());
+		it.close();
+		return keys;
+	}
+
+	/**
+	 * Delete 7 of every 10 tuples of each leaf, which leaves every leaf less
+	 * than half full but none empty, and commit
+	 *
+	 * @return the keys left, in order
+	 */
+	private List<Integer> thin(BTreeFile f) throws Exception {
+		List<Integer> left = new ArrayList<Integer>();
+		for (BTreePageId pid : leaves(f)) {
+			List<Tuple> tuples = tuples(leaf(pid));
+			for (int i = 0; i < tuples.size(); i++) {
+				if (i % 10 < 7)
+					assertEquals(1, f.deleteTuple(tid, tuples.get(i)).size());
+				else
+					left.add(((IntField) tuples.get(i).getField(0)).getValue());
+			}
+		}
+		commit();
+		Collections.sort(left);
+		return left;
+	}
+
+	/**
+	 * Delete tuples from a leaf until one more would take it below the merge
+	 * watermark
+	 *
+	 * @return the number of pages each delete dirtied
+	 */
+	private List<Integer> drain(BTreeFile f, BTreeLeafPage leaf) throws Exception {
+		List<Integer> dirtied = new ArrayList<Integer>();
+		int minTuples = (int) (leaf.getMaxTuples() * f.getMergeWatermark());
+		for (Tuple t : tuples(leaf)) {
+			if (leaf.getNumTuples() <= minTuples)
+				break;
+			dirtied.add(f.deleteTuple(tid, t).size());
+		}
+		return dirtied;
+	}
+
+	/**
+	 * Unit test for BTreeFile.deleteTuple() with the default watermark, which
+	 * rebalances a leaf as soon as it is less than half full
+	 */
+	@Test
+	public void eagerByDefault() throws Exception {
+		BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 5000, null, null, 0);
+		BTreeLeafPage leaf = leaf(leaves(f).get(1));
+		int full = leaf.getNumTuples();
+		assertTrue(full > leaf.getMaxTuples() / 2);
+		assertEquals(Collections.nCopies(full - leaf.getMaxTuples() / 2, 1), drain(f, leaf));
+		assertTrue(f.deleteTuple(tid, leaf.iterator().next()).size() > 1);
+		assertEquals(0, f.numUnderfullLeaves());
+	}
+
+	/**
+	 * Unit test for BTreeFile.deleteTuple() with a low watermark, which
+	 * leaves underfull leaves alone until they fall below it
+	 */
+	@Test
+	public void lazyAboveWatermark() throws Exception {
+		BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 5000, null, null, 0);
+		f.setMergeWatermark(0.25);
+		BTreeLeafPage leaf = leaf(leaves(f).get(1));
+		int full = leaf.getNumTuples();
+		List<Integer> dirtied = drain(f, leaf);
+		// every delete down to the watermark dirties only the leaf
+		assertEquals(Collections.nCopies(full - leaf.getMaxTuples() / 4, 1), dirtied);
+		assertEquals(1, f.numUnderfullLeaves());
+		// and the one below it steals from, or merges with, a sibling
+		assertTrue(f.deleteTuple(tid, leaf.iterator().next()).size() > 1);
+		assertEquals(0, f.numUnderfullLeaves());
+	}
+
+	/**
+	 * With a watermark of 0, a leaf is rebalanced only once it is empty
+	 */
+	@Test
+	public void rebalanceEmptyLeaf() throws Exception {
+		BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 5000, null, null, 0);
+		f.setMergeWatermark(0);
+		int pages = leaves(f).size();
+		BTreeLeafPage leaf = leaf(leaves(f).get(1));
+		List<Tuple> tuples = tuples(leaf);
+		for (Tuple t : tuples.subList(0, tuples.size() - 1))
+			assertEquals(1, f.deleteTuple(tid, t).size());
+		assertEquals(1, f.numUnderfullLeaves());
+		assertTrue(f.deleteTuple(tid, tuples.get(tuples.size() - 1)).size() > 1);
+		assertEquals(0, f.numUnderfullLeaves());
+		// the empty leaf is merged away, or refilled from a full sibling
+		assertTrue(leaves(f).size() == pages - 1 || leaf.getNumTuples() >= leaf.getMaxTuples() / 2);
+		assertEquals(5000 - tuples.size(), keys(f).size());
+	}
+
+	/**
+	 * Compacting rebalances the leaves deletes left underfull, so that every
+	 * leaf but the root is at least half full again, and keeps every tuple
+	 */
+	@Test
+	public void compact() throws Exception {
+		BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 10000, null, null, 0);
+		f.setMergeWatermark(0);
+		int pages = leaves(f).size();
+		commit();
+		List<Integer> left = thin(f);
+		assertEquals(pages, f.numUnderfullLeaves());
+
+		assertEquals(pages, new BTreeCompactor().compactAll());
+		assertEquals(0, f.numUnderfullLeaves());
+		List<BTreePageId> leaves = leaves(f);
+		assertTrue(leaves.size() < pages);
+		for (BTreePageId pid : leaves)
+			assertTrue(leaf(pid).getNumTuples() >= leaf(pid).getMaxTuples() / 2);
+		assertEquals(left, keys(f));
+		BTreeChecker.checkRep(f, tid, new HashMap<PageId, Page>(), true);
+	}
+
+	/**
+	 * Compacting skips a leaf another transaction is using, and rebalances
+	 * it in the background once that transaction completes
+	 */
+	@Test
+	public void compactSkipsLockedLeaves() throws Exception {
+		BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 10000, null, null, 0);
+		f.setMergeWatermark(0);
+		BTreePageId locked = leaves(f).get(3);
+		commit();
+		thin(f);
+
+		TransactionId reader = new TransactionId();
+		BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().getPage(reader, locked, Permissions.READ_ONLY);
+		int before = leaf.getNumTuples();
+		BTreeCompactor compactor = new BTreeCompactor();
+		compactor.compactAll();
+		assertTrue(f.numUnderfullLeaves() > 0);
+		assertEquals(before, leaf.getNumTuples());
+		Database.getBufferPool().transactionComplete(reader);
+
+		compactor.start(10);
+		try {
+			long deadline = System.currentTimeMillis() + 10000;
+			while (f.numUnderfullLeaves() > 0 && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+		} finally {
+			compactor.stop();
+		}
+		assertEquals(0, f.numUnderfullLeaves());
+		for (BTreePageId pid : leaves(f))
+			assertTrue(leaf(pid).getNumTuples() >= leaf(pid).getMaxTuples() / 2);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeLazyRebalanceTest.class);
+	}
+}
@@ -0,0 +1,263 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeLeafCompressionTest extends SimpleDbTestBase {
+	private TransactionId tid;
+
+	/**
+	 * Set up initial resources for each unit test, with small pages so that
+	 * the trees have several levels.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		BufferPool.setPageSize(1024);
+		Database.reset();
+		Database.resetBufferPool(2000);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
+		BufferPool.resetOperatorMemoryPages();
+		Database.reset();
+	}
+
+	/**
+	 * @return an empty B+ tree of (string s, int i, string t) tuples keyed on
+	 * the given fields
+	 */
+	private static BTreeFile emptyFile(int[] keys, boolean compressed) throws Exception {
+		File f = File.createTempFile("prefix", ".dat");
+		f.deleteOnExit();
+		TupleDesc td = new TupleDesc(new Type[] {Type.STRING_TYPE, Type.INT_TYPE, Type.STRING_TYPE},
+				new String[] {"s", "i", "t"});
+		BTreeFile bf = new BTreeFile(f, keys, td, compressed);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		return bf;
+	}
+
+	private static Tuple tuple(BTreeFile bf, int id) {
+		Tuple t = new Tuple(bf.getTupleDesc());
+		t.setField(0, new StringField(name(id), Type.STRING_LEN));
+		t.setField(1, new IntField(id % 10));
+		t.setField(2, new StringField("note " + id, Type.STRING_LEN));
+		return t;
+	}
+
+	private static String name(int i) {
+		return String.format("customer-%06d", i);
+	}
+
+	private void commit() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+	}
+
+	private ArrayList<Integer> shuffled(int n, long seed) {
+		ArrayList<Integer> ids = new ArrayList<Integer>();
+		for(int i = 0; i < n; i++) {
+			ids.add(i);
+		}
+		Collections.shuffle(ids, new Random(seed));
+		return ids;
+	}
+
+	private BTreeFile insert(int[] keys, boolean compressed, List<Integer> ids) throws Exception {
+		BTreeFile bf = emptyFile(keys, compressed);
+		for(int i = 0; i < ids.size(); i++) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(bf, ids.get(i)));
+			if(i % 50 == 49) {
+				commit();
+			}
+		}
+		commit();
+		return bf;
+	}
+
+	private void checkScan(BTreeFile bf, Collection<Integer> ids) throws Exception {
+		ArrayList<Integer> sorted = new ArrayList<Integer>(ids);
+		Collections.sort(sorted);
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		for(int id : sorted) {
+			assertTrue(it.hasNext());
+			Tuple t = it.next();
+			assertEquals(new StringField(name(id), Type.STRING_LEN), t.getField(0));
+			assertEquals(new IntField(id % 10), t.getField(1));
+			assertEquals(new StringField("note " + id, Type.STRING_LEN), t.getField(2));
+		}
+		assertFalse(it.hasNext());
+		it.close();
+	}
+
+	/**
+	 * @return the number of leaf pages of a tree
+	 */
+	private int numLeaves(BTreeFile bf) throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		BTreePageId pid = rootPtr.getRootId();
+		while(pid.pgcateg() == BTreePageId.INTERNAL) {
+			BTreeInternalPage p = (BTreeInternalPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+			pid = p.iterator().next().getLeftChild();
+		}
+		int n = 0;
+		while(pid != null) {
+			n++;
+			pid = ((BTreeLeafPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY)).getRightSiblingId();
+		}
+		return n;
+	}
+
+	private int count(DbFileIterator it) throws Exception {
+		int n = 0;
+		it.open();
+		while(it.hasNext()) {
+			it.next();
+			n++;
+		}
+		it.close();
+		return n;
+	}
+
+	@Test
+	public void testPageData() throws Exception {
+		BTreeFile bf = emptyFile(new int[] {0}, true);
+		BTreeLeafPage page = new BTreeLeafPage(new BTreePageId(bf.getId(), 1, BTreePageId.LEAF),
+				BTreeLeafPage.createEmptyPageData(), 0);
+		for(int id : shuffled(60, 50)) {
+			page.insertTuple(tuple(bf, id));
+		}
+		page.setParentId(new BTreePageId(bf.getId(), 7, BTreePageId.INTERNAL));
+		page.setRightSiblingId(new BTreePageId(bf.getId(), 3, BTreePageId.LEAF));
+
+		// the page reads back what it wrote, with the tuples in key order
+		BTreeLeafPage copy = new BTreeLeafPage(page.getId(), page.getPageData(), 0);
+		assertArrayEquals(page.getPageData(), copy.getPageData());
+		assertEquals(60, copy.getNumTuples());
+		assertEquals(7, copy.getParentId().getPageNumber());
+		assertEquals(3, copy.getRightSiblingId().getPageNumber());
+		Iterator<Tuple> it = copy.iterator();
+		for(int id = 0; id < 60; id++) {
+			Tuple t = it.next();
+			assertEquals(new StringField(name(id), Type.STRING_LEN), t.getField(0));
+			assertEquals(new StringField("note " + id, Type.STRING_LEN), t.getField(2));
+			assertEquals(copy.getId(), t.getRecordId().getPageId());
+		}
+		assertFalse(it.hasNext());
+
+		// sixty tuples with keys sharing a long prefix fit on a page that holds
+		// fewer than an eighth as many uncompressed
+		BTreeFile plain = emptyFile(new int[] {0}, false);
+		BTreeLeafPage plainPage = new BTreeLeafPage(new BTreePageId(plain.getId(), 1, BTreePageId.LEAF),
+				BTreeLeafPage.createEmptyPageData(), 0);
+		assertTrue(plainPage.getMaxTuples() * 8 < 60);
+	}
+
+	@Test
+	public void testInsertsAndDeletes() throws Exception {
+		List<Integer> ids = shuffled(3000, 51);
+		BTreeFile bf = insert(new int[] {0}, true, ids);
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+		checkScan(bf, ids);
+		int compressedLeaves = numLeaves(bf);
+		BTreeFile plain = insert(new int[] {0}, false, ids);
+		assertTrue(compressedLeaves * 4 < numLeaves(plain));
+
+		for(int id : new int[] {0, 1234, 2999}) {
+			DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS,
+					new StringField(name(id), Type.STRING_LEN)));
+			it.open();
+			assertTrue(it.hasNext());
+			assertEquals(new StringField("note " + id, Type.STRING_LEN), it.next().getField(2));
+			assertFalse(it.hasNext());
+			it.close();
+		}
+		assertEquals(999, count(bf.indexReverseIterator(tid, new IndexPredicate(Op.GREATER_THAN,
+				new StringField(name(2000), Type.STRING_LEN)))));
+
+		// delete two thirds of the tuples, then insert some of them again
+		Set<Integer> left = new HashSet<Integer>(ids);
+		List<Integer> deletes = shuffled(3000, 52).subList(0, 2000);
+		for(int i = 0; i < deletes.size(); i++) {
+			int id = deletes.get(i);
+			DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS,
+					new StringField(name(id), Type.STRING_LEN)));
+			it.open();
+			Database.getBufferPool().deleteTuple(tid, it.next());
+			it.close();
+			left.remove(id);
+			if(i % 50 == 49) {
+				commit();
+				BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+			}
+		}
+		commit();
+		checkScan(bf, left);
+		for(int id : deletes.subList(0, 500)) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(bf, id));
+			left.add(id);
+		}
+		commit();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+		checkScan(bf, left);
+	}
+
+	@Test
+	public void testCompositeKeys() throws Exception {
+		// keyed on (i, s), so the string key field is the last one
+		List<Integer> ids = shuffled(2000, 53);
+		BTreeFile bf = insert(new int[] {1, 0}, true, ids);
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+		assertEquals(2000, count(bf.iterator(tid)));
+		assertEquals(200, count(bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(3)))));
+		Field key = new CompositeField(new Field[] {new IntField(3), new StringField(name(1003), Type.STRING_LEN)});
+		assertEquals(1, count(bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, key))));
+	}
+
+	@Test
+	public void testBulkLoad() throws Exception {
+		List<Integer> ids = shuffled(3000, 54);
+		BTreeFile bf = emptyFile(new int[] {0}, true);
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for(int id : ids) {
+			tuples.add(tuple(bf, id));
+		}
+		OpIterator it = new TupleIterator(bf.getTupleDesc(), tuples);
+		it.open();
+		BTreeFileEncoder.sortAndBulkLoad(bf, it, 1.0);
+		it.close();
+
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		checkScan(bf, ids);
+
+		// full pages split as usual
+		for(int i = 0; i < 100; i++) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(bf, 3000 + i));
+		}
+		commit();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+		assertEquals(3100, count(bf.iterator(tid)));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeLeafCompressionTest.class);
+	}
+}
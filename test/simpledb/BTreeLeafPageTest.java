@@ -336,6 +336,50 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.insertTuple() and iterator(Field) on a page
+	 * with holes left by deletions
+	 */
+	@Test public void insertAroundHoles() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, BTreeLeafPage.createEmptyPageData(), 0);
+		Random rand = new Random(7);
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		ArrayList<Tuple> stored = new ArrayList<Tuple>();
+		for (int round = 0; round < 2000; ++round) {
+			if (page.getNumEmptySlots() > 0 && (stored.isEmpty() || rand.nextInt(3) > 0)) {
+				int key = rand.nextInt(100);
+				Tuple t = BTreeUtility.getBTreeTuple(new int[] { key, round });
+				page.insertTuple(t);
+				keys.add(key);
+				stored.add(t);
+			} else {
+				Tuple t = stored.remove(rand.nextInt(stored.size()));
+				keys.remove(Integer.valueOf(((IntField) t.getField(0)).getValue()));
+				page.deleteTuple(t);
+			}
+			assertEquals(stored.size(), page.getNumTuples());
+		}
+		Collections.sort(keys);
+
+		// the tuples are in key order, and each one knows its slot
+		Iterator<Tuple> it = page.iterator();
+		for (int key : keys) {
+			Tuple t = it.next();
+			assertEquals(key, ((IntField) t.getField(0)).getValue());
+			assertTrue(page.getTuple(t.getRecordId().getTupleNumber()) == t);
+		}
+		assertFalse(it.hasNext());
+
+		for (int from = -1; from <= 100; from += 7) {
+			it = page.iterator(new IntField(from));
+			for (int key : keys) {
+				if (key >= from)
+					assertEquals(key, ((IntField) it.next().getField(0)).getValue());
+			}
+			assertFalse(it.hasNext());
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
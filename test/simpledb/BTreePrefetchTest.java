@@ -0,0 +1,228 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.Predicate.Op;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreePrefetchTest extends SimpleDbTestBase {
+	private TransactionId tid;
+
+	private static final Op[] OPS = { Op.EQUALS, Op.LESS_THAN, Op.LESS_THAN_OR_EQ,
+			Op.GREATER_THAN, Op.GREATER_THAN_OR_EQ, Op.NOT_EQUALS };
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		Database.reset();
+		Database.resetBufferPool(2000);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		BTreeFile.resetPrefetchLeaves();
+		Database.reset();
+	}
+
+	private void commit() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+	}
+
+	/**
+	 * @return the keys the iterator returns, in order
+	 */
+	private static List<Integer> keys(DbFileIterator it) throws Exception {
+		List<Integer> keys = new ArrayList<Integer>();
+		it.open();
+		while (it.hasNext())
+			keys.add(((IntField) it.next().getField(0)).getValue());
+		it.close();
+		return keys;
+	}
+
+	/**
+	 * @return the keys of the tuples matching a predicate, in order
+	 */
+	private static List<Integer> matching(List<ArrayList<Integer>> tuples, Op op, int key, boolean reverse) {
+		List<Integer> keys = new ArrayList<Integer>();
+		for (ArrayList<Integer> t : tuples) {
+			if (new IntField(t.get(0)).compare(op, new IntField(key)))
+				keys.add(t.get(0));
+		}
+		Collections.sort(keys);
+		if (reverse)
+			Collections.reverse(keys);
+		return keys;
+	}
+
+	/**
+	 * @return the leaves of the file the transaction holds a lock on
+	 */
+	private static Set<BTreePageId> lockedLeaves(BTreeFile f, TransactionId tid) {
+		Set<BTreePageId> locked = new HashSet<BTreePageId>();
+		for (int i = 1; i <= f.numPages(); i++) {
+			BTreePageId pid = new BTreePageId(f.getId(), i, BTreePageId.LEAF);
+			if (Database.getBufferPool().holdsLock(tid, pid))
+				locked.add(pid);
+		}
+		return locked;
+	}
+
+	/**
+	 * Range scans in both directions return the tuples in range, with and
+	 * without reading ahead, including runs of equal keys across leaves
+	 */
+	@Test
+	public void rangeScans() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 30000, 3000, null, tuples, 0);
+		Random r = new Random(49);
+		int[] keys = { -1, 0, 1500, 2999, 3000, r.nextInt(3000), r.nextInt(3000) };
+		for (int leaves : new int[] { 0, 3, BTreeFile.DEFAULT_PREFETCH_LEAVES }) {
+			BTreeFile.setPrefetchLeaves(leaves);
+			for (Op op : OPS) {
+				for (int key : keys) {
+					IndexPredicate ipred = new IndexPredicate(op, new IntField(key));
+					String what = op + " " + key + " reading ahead " + leaves;
+					assertEquals(what, matching(tuples, op, key, false), keys(f.indexIterator(tid, ipred)));
+					assertEquals(what, matching(tuples, op, key, true), keys(f.indexReverseIterator(tid, ipred)));
+				}
+			}
+			assertEquals(tuples.size(), keys(f.iterator(tid)).size());
+			assertEquals(tuples.size(), keys(f.reverseIterator(tid)).size());
+			commit();
+		}
+	}
+
+	/**
+	 * Reading ahead locks the leaves after the one a scan is on, but none
+	 * past the end of its range, and the locks go when the transaction does
+	 */
+	@Test
+	public void readAheadLocks() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 30000, 30000, null, tuples, 0);
+
+		// reading one tuple of an open-ended scan locks the leaves ahead
+		BTreeFile.setPrefetchLeaves(4);
+		DbFileIterator it = f.indexIterator(tid, new IndexPredicate(Op.GREATER_THAN, new IntField(1000)));
+		it.open();
+		assertTrue(it.hasNext());
+		assertEquals(5, lockedLeaves(f, tid).size());
+		it.close();
+		// closing the scan gives up the leaves it did not reach
+		assertEquals(1, lockedLeaves(f, tid).size());
+		it = f.indexReverseIterator(tid, new IndexPredicate(Op.LESS_THAN, new IntField(29000)));
+		it.open();
+		assertTrue(it.hasNext());
+		assertEquals(6, lockedLeaves(f, tid).size());
+		it.close();
+		assertEquals(2, lockedLeaves(f, tid).size());
+		commit();
+
+		// a bounded scan locks the same leaves as without reading ahead
+		for (Op op : new Op[] { Op.LESS_THAN, Op.LESS_THAN_OR_EQ, Op.EQUALS }) {
+			for (boolean reverse : new boolean[] { false, true }) {
+				Op bounded = !reverse ? op
+						: op == Op.LESS_THAN ? Op.GREATER_THAN
+						: op == Op.LESS_THAN_OR_EQ ? Op.GREATER_THAN_OR_EQ : op;
+				int key = tuples.get(0).get(0);
+				IndexPredicate ipred = new IndexPredicate(bounded, new IntField(reverse ? 30000 - key : key));
+				BTreeFile.setPrefetchLeaves(0);
+				int n = keys(reverse ? f.indexReverseIterator(tid, ipred) : f.indexIterator(tid, ipred)).size();
+				Set<BTreePageId> without = lockedLeaves(f, tid);
+				commit();
+				BTreeFile.setPrefetchLeaves(BTreeFile.DEFAULT_PREFETCH_LEAVES);
+				assertEquals(n, keys(reverse ? f.indexReverseIterator(tid, ipred) : f.indexIterator(tid, ipred)).size());
+				assertEquals(bounded + " reverse " + reverse, without, lockedLeaves(f, tid));
+				TransactionId done = tid;
+				commit();
+				assertTrue(lockedLeaves(f, done).isEmpty());
+			}
+		}
+	}
+
+	/**
+	 * A leaf read ahead is write locked by another transaction once the
+	 * reader completes, and the writer sees its own changes
+	 */
+	@Test
+	public void readAheadThenWrite() throws Exception {
+		BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 30000, 30000, null, null, 0);
+		DbFileIterator it = f.iterator(tid);
+		it.open();
+		assertTrue(it.hasNext());
+		Set<BTreePageId> ahead = lockedLeaves(f, tid);
+		assertTrue(ahead.size() > 1);
+		it.close();
+		commit();
+
+		TransactionId writer = new TransactionId();
+		for (BTreePageId pid : ahead) {
+			BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().tryGetPage(writer, pid, Permissions.READ_WRITE);
+			assertNotNull(leaf);
+			Tuple t = leaf.iterator().next();
+			Database.getBufferPool().deleteTuple(writer, t);
+		}
+		Database.getBufferPool().transactionComplete(writer);
+		assertEquals(30000 - ahead.size(), keys(f.iterator(tid)).size());
+	}
+
+	/**
+	 * Once a scan is closed, a writer can lock the leaves it read ahead but
+	 * never reached without waiting for the reader to complete, while the
+	 * leaves the reader did visit, or had locked before, stay locked
+	 */
+	@Test
+	public void closeReleasesUnvisitedLeaves() throws Exception {
+		BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 30000, 30000, null, null, 0);
+		BTreeFile.setPrefetchLeaves(4);
+		DbFileIterator it = f.iterator(tid);
+		it.open();
+		assertTrue(it.hasNext());
+		Set<BTreePageId> ahead = lockedLeaves(f, tid);
+		assertEquals(5, ahead.size());
+		it.close();
+		Set<BTreePageId> visited = lockedLeaves(f, tid);
+		assertEquals(1, visited.size());
+		ahead.removeAll(visited);
+
+		// the reader is still running
+		TransactionId writer = new TransactionId();
+		for (BTreePageId pid : ahead)
+			assertNotNull(Database.getBufferPool().tryGetPage(writer, pid, Permissions.READ_WRITE));
+		assertNull(Database.getBufferPool().tryGetPage(writer, visited.iterator().next(), Permissions.READ_WRITE));
+		Database.getBufferPool().transactionComplete(writer);
+
+		// a leaf locked before the scan reads it ahead stays locked after
+		commit();
+		BTreePageId kept = ahead.iterator().next();
+		Database.getBufferPool().getPage(tid, kept, Permissions.READ_ONLY);
+		// out of the buffer pool, so that it is read ahead again
+		Database.getBufferPool().discardPage(kept);
+		it = f.iterator(tid);
+		it.open();
+		assertTrue(it.hasNext());
+		it.close();
+		assertTrue(Database.getBufferPool().holdsLock(tid, kept));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreePrefetchTest.class);
+	}
+}
@@ -0,0 +1,291 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeVariableKeyTest extends SimpleDbTestBase {
+	private TransactionId tid;
+
+	/**
+	 * Set up initial resources for each unit test, with small pages so that
+	 * the trees have several levels.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		BufferPool.setPageSize(1024);
+		Database.reset();
+		Database.resetBufferPool(2000);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
+		BufferPool.resetOperatorMemoryPages();
+		Database.reset();
+	}
+
+	/**
+	 * @return an empty B+ tree of (string s, int i) tuples keyed on the given fields
+	 */
+	private static BTreeFile emptyFile(int[] keys) throws Exception {
+		File f = File.createTempFile("varkey", ".dat");
+		f.deleteOnExit();
+		TupleDesc td = new TupleDesc(new Type[] {Type.STRING_TYPE, Type.INT_TYPE}, new String[] {"s", "i"});
+		BTreeFile bf = new BTreeFile(f, keys, td);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		return bf;
+	}
+
+	private static Tuple tuple(BTreeFile bf, String s, int i) {
+		Tuple t = new Tuple(bf.getTupleDesc());
+		t.setField(0, new StringField(s, Type.STRING_LEN));
+		t.setField(1, new IntField(i));
+		return t;
+	}
+
+	/**
+	 * @return the ith name; names share a long prefix, as in many string keys
+	 */
+	private static String name(int i) {
+		return String.format("customer-%06d", i);
+	}
+
+	private void commit() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+	}
+
+	private ArrayList<Integer> shuffled(int n, long seed) {
+		ArrayList<Integer> ids = new ArrayList<Integer>();
+		for(int i = 0; i < n; i++) {
+			ids.add(i);
+		}
+		Collections.shuffle(ids, new Random(seed));
+		return ids;
+	}
+
+	private BTreeFile insertNames(int[] keys, List<Integer> ids) throws Exception {
+		BTreeFile bf = emptyFile(keys);
+		for(int i = 0; i < ids.size(); i++) {
+			int id = ids.get(i);
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(bf, name(id), id % 10));
+			if(i % 50 == 49) {
+				commit();
+			}
+		}
+		commit();
+		return bf;
+	}
+
+	private BTreePage root(BTreeFile bf) throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		return (BTreePage) Database.getBufferPool().getPage(tid, rootPtr.getRootId(), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * @return the largest number of entries on an internal page of the subtree
+	 */
+	private int maxEntries(BTreePage page) throws Exception {
+		if(page.getId().pgcateg() == BTreePageId.LEAF) {
+			return 0;
+		}
+		BTreeInternalPage internal = (BTreeInternalPage) page;
+		int max = internal.getNumEntries();
+		Iterator<BTreeEntry> it = internal.iterator();
+		while(it.hasNext()) {
+			BTreeEntry e = it.next();
+			max = Math.max(max, maxEntries((BTreePage) Database.getBufferPool().getPage(tid,
+					e.getLeftChild(), Permissions.READ_ONLY)));
+		}
+		return max;
+	}
+
+	private void checkScan(BTreeFile bf, Collection<Integer> ids) throws Exception {
+		ArrayList<Integer> sorted = new ArrayList<Integer>(ids);
+		Collections.sort(sorted);
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		for(int id : sorted) {
+			assertTrue(it.hasNext());
+			assertEquals(new StringField(name(id), Type.STRING_LEN), it.next().getField(0));
+		}
+		assertFalse(it.hasNext());
+		it.close();
+	}
+
+	private int count(DbFileIterator it) throws Exception {
+		int n = 0;
+		it.open();
+		while(it.hasNext()) {
+			it.next();
+			n++;
+		}
+		it.close();
+		return n;
+	}
+
+	@Test
+	public void testSeparator() {
+		assertEquals(new StringField("customer-0002", Type.STRING_LEN), BTreeFile.separator(
+				new StringField(name(123), Type.STRING_LEN), new StringField(name(200), Type.STRING_LEN)));
+		assertEquals(new StringField("b", Type.STRING_LEN), BTreeFile.separator(
+				new StringField("apple", Type.STRING_LEN), new StringField("banana", Type.STRING_LEN)));
+		assertEquals(new StringField("abc", Type.STRING_LEN), BTreeFile.separator(
+				new StringField("ab", Type.STRING_LEN), new StringField("abc", Type.STRING_LEN)));
+		assertEquals(new StringField("abc", Type.STRING_LEN), BTreeFile.separator(
+				new StringField("abc", Type.STRING_LEN), new StringField("abc", Type.STRING_LEN)));
+		assertEquals(new IntField(7), BTreeFile.separator(new IntField(3), new IntField(7)));
+
+		// composite keys keep the fields up to the first that differs
+		Field left = new CompositeField(new Field[] {new IntField(1), new StringField("apple", Type.STRING_LEN)});
+		Field right = new CompositeField(new Field[] {new IntField(2), new StringField("apple", Type.STRING_LEN)});
+		assertEquals(new CompositeField(new Field[] {new IntField(2)}), BTreeFile.separator(left, right));
+		right = new CompositeField(new Field[] {new IntField(1), new StringField("banana", Type.STRING_LEN)});
+		assertEquals(new CompositeField(new Field[] {new IntField(1), new StringField("b", Type.STRING_LEN)}),
+				BTreeFile.separator(left, right));
+		assertTrue(BTreeFile.separator(left, right).compare(Op.GREATER_THAN, left));
+		assertTrue(BTreeFile.separator(left, right).compare(Op.LESS_THAN_OR_EQ, right));
+	}
+
+	@Test
+	public void testStringKeys() throws Exception {
+		List<Integer> ids = shuffled(3000, 45);
+		BTreeFile bf = insertNames(new int[] {0}, ids);
+		// internal page splits may leave a page one entry short of half full
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+		checkScan(bf, ids);
+
+		// short separators give internal pages many more entries than the
+		// largest keys would
+		BTreePage root = root(bf);
+		assertEquals(BTreePageId.INTERNAL, root.getId().pgcateg());
+		assertTrue(maxEntries(root) > 4 * ((BTreeInternalPage) root).getMaxEntries());
+
+		for(int id : new int[] {0, 1234, 2999}) {
+			DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS,
+					new StringField(name(id), Type.STRING_LEN)));
+			it.open();
+			assertTrue(it.hasNext());
+			assertEquals(new IntField(id % 10), it.next().getField(1));
+			assertFalse(it.hasNext());
+			it.close();
+		}
+		assertEquals(1000, count(bf.indexIterator(tid, new IndexPredicate(Op.LESS_THAN,
+				new StringField(name(1000), Type.STRING_LEN)))));
+		assertEquals(999, count(bf.indexReverseIterator(tid, new IndexPredicate(Op.GREATER_THAN,
+				new StringField(name(2000), Type.STRING_LEN)))));
+	}
+
+	@Test
+	public void testDeletes() throws Exception {
+		List<Integer> ids = shuffled(3000, 46);
+		BTreeFile bf = insertNames(new int[] {0}, ids);
+
+		// delete two thirds of the tuples, which merges and redistributes
+		// pages at every level
+		Set<Integer> left = new HashSet<Integer>(ids);
+		List<Integer> deletes = shuffled(3000, 47).subList(0, 2000);
+		for(int i = 0; i < deletes.size(); i++) {
+			int id = deletes.get(i);
+			DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS,
+					new StringField(name(id), Type.STRING_LEN)));
+			it.open();
+			Database.getBufferPool().deleteTuple(tid, it.next());
+			it.close();
+			left.remove(id);
+			if(i % 50 == 49) {
+				commit();
+				BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+			}
+		}
+		commit();
+		checkScan(bf, left);
+
+		// and the tree still takes inserts
+		for(int id : deletes.subList(0, 500)) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(bf, name(id), id % 10));
+			left.add(id);
+		}
+		commit();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+		checkScan(bf, left);
+	}
+
+	@Test
+	public void testCompositeKeys() throws Exception {
+		// keyed on (i, s)
+		List<Integer> ids = shuffled(2000, 48);
+		BTreeFile bf = insertNames(new int[] {1, 0}, ids);
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+		assertEquals(1, bf.keyField());
+		assertArrayEquals(new int[] {1, 0}, bf.keyFields());
+
+		// a predicate on the first key field matches every key with that prefix
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(3)));
+		it.open();
+		for(int id = 3; id < 2000; id += 10) {
+			Tuple t = it.next();
+			assertEquals(new IntField(3), t.getField(1));
+			assertEquals(new StringField(name(id), Type.STRING_LEN), t.getField(0));
+		}
+		assertFalse(it.hasNext());
+		it.close();
+		assertEquals(200, count(bf.indexReverseIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(3)))));
+		assertEquals(400, count(bf.indexIterator(tid, new IndexPredicate(Op.GREATER_THAN, new IntField(7)))));
+		assertEquals(600, count(bf.indexReverseIterator(tid, new IndexPredicate(Op.LESS_THAN, new IntField(3)))));
+
+		// and a composite predicate compares every field it has
+		Field key = new CompositeField(new Field[] {new IntField(3), new StringField(name(1003), Type.STRING_LEN)});
+		assertEquals(1, count(bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, key))));
+		assertEquals(600 + 100, count(bf.indexIterator(tid, new IndexPredicate(Op.LESS_THAN, key))));
+		key = new CompositeField(new Field[] {new IntField(3), new StringField("customer-001", Type.STRING_LEN)});
+		assertEquals(600 + 100, count(bf.indexIterator(tid, new IndexPredicate(Op.LESS_THAN_OR_EQ, key))));
+	}
+
+	@Test
+	public void testBulkLoad() throws Exception {
+		List<Integer> ids = shuffled(3000, 49);
+		BTreeFile bf = emptyFile(new int[] {0});
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for(int id : ids) {
+			tuples.add(tuple(bf, name(id), id % 10));
+		}
+		OpIterator it = new TupleIterator(bf.getTupleDesc(), tuples);
+		it.open();
+		BTreeFileEncoder.sortAndBulkLoad(bf, it, 1.0);
+		it.close();
+
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		checkScan(bf, ids);
+		BTreePage root = root(bf);
+		assertTrue(maxEntries(root) > 4 * ((BTreeInternalPage) root).getMaxEntries());
+
+		// full pages split as usual
+		for(int i = 0; i < 100; i++) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(bf, name(i) + "x", -1));
+		}
+		commit();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+		assertEquals(3100, count(bf.iterator(tid)));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeVariableKeyTest.class);
+	}
+}
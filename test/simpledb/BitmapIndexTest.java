@@ -0,0 +1,322 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class BitmapIndexTest extends SimpleDbTestBase {
+
+  private static final int ROWS = 5000;
+
+  private TransactionId tid;
+  private HeapFile hf;
+  private ArrayList<ArrayList<Integer>> rows;
+
+  /**
+   * Use small pages, so that the table has many pages. Tuple i of the table
+   * is (i % 10, i % 7, i, i / 500), so c3 is clustered and the others are
+   * spread over every page.
+   */
+  @Before public void setUp() throws Exception {
+    BufferPool.setPageSize(1024);
+    Database.reset();
+    Database.resetBufferPool(2000);
+    rows = new ArrayList<ArrayList<Integer>>();
+    for (int i = 0; i < ROWS; i++)
+      rows.add(new ArrayList<Integer>(Arrays.asList(i % 10, i % 7, i, i / 500)));
+    File f = File.createTempFile("bitmap", ".dat");
+    f.deleteOnExit();
+    HeapFileEncoder.convert(rows, f, BufferPool.getPageSize(), 4);
+    hf = new HeapFile(f, Utility.getTupleDesc(4, "c"));
+    Database.getCatalog().addTable(hf, "b");
+    tid = new TransactionId();
+  }
+
+  @After public void tearDown() throws Exception {
+    Database.getBufferPool().transactionComplete(tid);
+    BufferPool.resetPageSize();
+    Database.reset();
+  }
+
+  private void commit() throws Exception {
+    Database.getBufferPool().transactionComplete(tid);
+    tid = new TransactionId();
+  }
+
+  private static Set<Integer> toSet(RoaringBitmap b) {
+    Set<Integer> s = new TreeSet<Integer>();
+    PrimitiveIterator.OfInt it = b.iterator();
+    int last = -1;
+    while (it.hasNext()) {
+      int x = it.nextInt();
+      assertTrue(x > last);
+      s.add(x);
+      last = x;
+    }
+    assertEquals(s.size(), b.getCardinality());
+    return s;
+  }
+
+  private static RoaringBitmap random(Random r, Set<Integer> members, int n, int range) {
+    RoaringBitmap b = new RoaringBitmap();
+    for (int i = 0; i < n; i++) {
+      int x = r.nextInt(range);
+      b.add(x);
+      members.add(x);
+    }
+    return b;
+  }
+
+  @Test public void roaringBitmap() throws Exception {
+    RoaringBitmap b = new RoaringBitmap();
+    assertTrue(b.isEmpty());
+    b.add(3);
+    b.add(70000);
+    b.add(3);
+    assertEquals(2, b.getCardinality());
+    assertTrue(b.contains(3));
+    assertTrue(b.contains(70000));
+    assertFalse(b.contains(4));
+    assertEquals("{3, 70000}", b.toString());
+    b.remove(3);
+    b.remove(5);
+    assertFalse(b.contains(3));
+    b.remove(70000);
+    assertTrue(b.isEmpty());
+
+    // a chunk turns into a bitmap past ARRAY_MAX members and back below it
+    for (int i = 0; i < 2 * RoaringBitmap.ARRAY_MAX; i++)
+      b.add(2 * i);
+    assertEquals(2 * RoaringBitmap.ARRAY_MAX, b.getCardinality());
+    assertTrue(b.contains(2 * RoaringBitmap.ARRAY_MAX));
+    assertFalse(b.contains(2 * RoaringBitmap.ARRAY_MAX + 1));
+    for (int i = 0; i < 2 * RoaringBitmap.ARRAY_MAX; i += 2)
+      b.remove(2 * i);
+    assertEquals(RoaringBitmap.ARRAY_MAX, b.getCardinality());
+    assertTrue(b.contains(2));
+    assertFalse(b.contains(4));
+
+    // set operations on sparse and dense chunks agree with sets
+    Random r = new Random(48);
+    for (int round = 0; round < 20; round++) {
+      Set<Integer> sa = new TreeSet<Integer>(), sb = new TreeSet<Integer>();
+      RoaringBitmap a = random(r, sa, r.nextInt(20000), 1 << (14 + round % 5));
+      RoaringBitmap c = random(r, sb, r.nextInt(20000), 1 << (14 + round % 4));
+      Set<Integer> want = new TreeSet<Integer>(sa);
+      want.retainAll(sb);
+      assertEquals(want, toSet(a.and(c)));
+      want = new TreeSet<Integer>(sa);
+      want.addAll(sb);
+      assertEquals(want, toSet(a.or(c)));
+      want = new TreeSet<Integer>(sa);
+      want.removeAll(sb);
+      assertEquals(want, toSet(a.andNot(c)));
+      // the operands are unchanged
+      assertEquals(sa, toSet(a));
+      assertEquals(sb, toSet(c));
+    }
+  }
+
+  /**
+   * @return the ids, column c2, of the tuples an operator returns
+   */
+  private static Set<Integer> ids(OpIterator it, int field) throws Exception {
+    Set<Integer> ids = new TreeSet<Integer>();
+    it.open();
+    while (it.hasNext())
+      assertTrue(ids.add(((IntField) it.next().getField(field)).getValue()));
+    it.close();
+    return ids;
+  }
+
+  private Set<Integer> scan(Expression condition) throws Exception {
+    return ids(new BitmapHeapScan(tid, hf.getId(), "b", condition, null), 2);
+  }
+
+  /**
+   * @return the ids of the rows of the table that pass a condition
+   */
+  private Set<Integer> bruteForce(Expression condition) throws Exception {
+    TupleDesc td = new TupleDesc(Utility.getTypes(4), new String[] { "b.c0", "b.c1", "b.c2", "b.c3" });
+    Expression.Test test = condition.compilePredicate(td);
+    Set<Integer> ids = new TreeSet<Integer>();
+    for (ArrayList<Integer> row : rows) {
+      Tuple t = new Tuple(td);
+      for (int i = 0; i < 4; i++)
+        t.setField(i, new IntField(row.get(i)));
+      if (test.test(t))
+        ids.add(row.get(2));
+    }
+    return ids;
+  }
+
+  private static Expression cmp(String column, Predicate.Op op, int value) {
+    return Expression.compare(op, Expression.column(column), Expression.constant(value));
+  }
+
+  @Test public void combinedScans() throws Exception {
+    BitmapIndex.create(hf.getId(), 0);
+    BitmapIndex.create(hf.getId(), 1);
+    BitmapIndex.create(hf.getId(), 3);
+    Expression[] conditions = {
+        cmp("b.c0", Predicate.Op.EQUALS, 3),
+        Expression.and(cmp("b.c0", Predicate.Op.EQUALS, 3), cmp("b.c1", Predicate.Op.LESS_THAN, 2)),
+        Expression.or(cmp("b.c0", Predicate.Op.EQUALS, 3), cmp("b.c3", Predicate.Op.EQUALS, 9)),
+        Expression.and(cmp("b.c3", Predicate.Op.GREATER_THAN_OR_EQ, 4),
+            Expression.not(cmp("b.c1", Predicate.Op.NOT_EQUALS, 5))),
+        Expression.compare(Predicate.Op.GREATER_THAN, Expression.constant(2), Expression.column("b.c0")),
+        // c2 is not indexed: the bitmaps answer c3 and the tuples read check c2
+        Expression.and(cmp("b.c3", Predicate.Op.EQUALS, 1), cmp("b.c2", Predicate.Op.LESS_THAN, 700)),
+        Expression.not(Expression.and(cmp("b.c0", Predicate.Op.EQUALS, 1), cmp("b.c2", Predicate.Op.LESS_THAN, 700))),
+        Expression.or(cmp("b.c0", Predicate.Op.EQUALS, 1), cmp("b.c2", Predicate.Op.LESS_THAN, 100)),
+    };
+    for (Expression condition : conditions) {
+      Set<Integer> want = bruteForce(condition);
+      assertEquals(condition.toString(), want, scan(condition));
+    }
+
+    BitmapHeapScan s = new BitmapHeapScan(tid, hf.getId(), "b",
+        Expression.and(cmp("b.c0", Predicate.Op.EQUALS, 3), cmp("b.c1", Predicate.Op.EQUALS, 3)), null);
+    assertEquals(ROWS / 70 + 1, s.estimateCardinality());
+    // terms the bitmaps cannot answer leave the scan reading every page
+    s = new BitmapHeapScan(tid, hf.getId(), "b", conditions[7], null);
+    assertEquals(-1, s.estimateCardinality());
+  }
+
+  /**
+   * The scan reads, and locks, only the pages with candidate tuples
+   */
+  @Test public void readsOnlyMatchingPages() throws Exception {
+    BitmapIndex.create(hf.getId(), 3);
+    BitmapIndex.create(hf.getId(), 0);
+    commit();
+    BitmapIndex index = Database.getCatalog().getBitmapIndexes(hf.getId()).get(0);
+    int perPage = index.getSlotsPerPage();
+    Expression condition = Expression.and(cmp("b.c3", Predicate.Op.EQUALS, 4), cmp("b.c0", Predicate.Op.EQUALS, 7));
+    assertEquals(bruteForce(condition), scan(condition));
+    int first = 2000 / perPage, last = 2499 / perPage;
+    for (int i = 0; i < hf.numPages(); i++) {
+      boolean locked = Database.getBufferPool().holdsLock(tid, new HeapPageId(hf.getId(), i));
+      assertEquals("page " + i, i >= first && i <= last, locked);
+    }
+    assertEquals(last - first + 1, index.countPages(BitmapIndex.candidates(hf.getId(), condition,
+        new TupleDesc(Utility.getTypes(4), new String[] { "b.c0", "b.c1", "b.c2", "b.c3" }))));
+  }
+
+  @Test public void maintenance() throws Exception {
+    BitmapIndex.create(hf.getId(), 0);
+    Expression c0is42 = cmp("b.c0", Predicate.Op.EQUALS, 42);
+    assertTrue(scan(c0is42).isEmpty());
+
+    // inserts are seen by the transaction that made them
+    for (int i = 0; i < 100; i++)
+      Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { 42, 0, ROWS + i, 0 }));
+    assertEquals(100, scan(c0is42).size());
+    Database.getBufferPool().transactionComplete(tid, false);
+    tid = new TransactionId();
+    assertTrue(scan(c0is42).isEmpty());
+    BitmapIndex index = Database.getCatalog().getBitmapIndexes(hf.getId()).get(0);
+    assertTrue(index.inFlux().isEmpty());
+    assertEquals(ROWS, index.all().getCardinality());
+
+    // deletes, committed and aborted
+    Expression c0is5 = cmp("b.c0", Predicate.Op.EQUALS, 5);
+    List<Tuple> matches = new ArrayList<Tuple>();
+    BitmapHeapScan s = new BitmapHeapScan(tid, hf.getId(), "b", c0is5, null);
+    s.open();
+    while (s.hasNext())
+      matches.add(s.next());
+    s.close();
+    assertEquals(ROWS / 10, matches.size());
+    Set<Integer> deleted = new HashSet<Integer>();
+    for (int i = 0; i < matches.size(); i += 2) {
+      Database.getBufferPool().deleteTuple(tid, matches.get(i));
+      deleted.add(((IntField) matches.get(i).getField(2)).getValue());
+    }
+    commit();
+    assertEquals(ROWS / 20, scan(c0is5).size());
+    for (int i = 1; i < matches.size(); i += 2)
+      Database.getBufferPool().deleteTuple(tid, matches.get(i));
+    assertTrue(scan(c0is5).isEmpty());
+    Database.getBufferPool().transactionComplete(tid, false);
+    tid = new TransactionId();
+    assertEquals(ROWS / 20, scan(c0is5).size());
+    assertEquals(ROWS - ROWS / 20, index.all().getCardinality());
+
+    // a new index of the table sees the committed changes
+    BitmapIndex.create(hf.getId(), 1);
+    Expression c1is3 = cmp("b.c1", Predicate.Op.EQUALS, 3);
+    Set<Integer> want = bruteForce(c1is3);
+    want.removeAll(deleted);
+    assertEquals(want, scan(c1is3));
+    want = bruteForce(c0is5);
+    want.removeAll(deleted);
+    assertEquals(want, scan(c0is5));
+  }
+
+  private static int count(OpIterator it) throws Exception {
+    int n = 0;
+    it.open();
+    while (it.hasNext()) {
+      it.next();
+      n++;
+    }
+    it.close();
+    return n;
+  }
+
+  /**
+   * The filters on a table with bitmap indexes become the condition of a
+   * bitmap scan when it reads fewer pages than a sequential scan
+   */
+  @Test public void planner() throws Exception {
+    BitmapIndex.create(hf.getId(), 0);
+    BitmapIndex.create(hf.getId(), 3);
+    TableStats.setTableStats("b", new TestUtil.FixedStats(hf.getId(), hf.numPages(), ROWS, 0.1));
+
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+        "SELECT b.c2 FROM b WHERE b.c3 = 2 AND b.c0 = 1;");
+    OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertNotNull(TestUtil.find(plan, BitmapHeapScan.class));
+    assertNull(TestUtil.find(plan, SeqScan.class));
+    assertNull(TestUtil.find(plan, Filter.class));
+    assertEquals(50, count(plan));
+
+    // expression filters are answered too, unindexed columns are rechecked
+    lp = new Parser().generateLogicalPlan(tid,
+        "SELECT b.c2 FROM b WHERE (b.c3 = 2 OR b.c3 = 7) AND b.c1 = 3;");
+    plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    BitmapHeapScan s = (BitmapHeapScan) TestUtil.find(plan, BitmapHeapScan.class);
+    assertNotNull(s);
+    assertNull(TestUtil.find(plan, Filter.class));
+    assertEquals(bruteForce(s.getCondition()).size(), count(plan));
+    assertEquals(ROWS / 5, s.estimateCardinality());
+
+    // a filter matching every page is cheaper to read sequentially
+    lp = new Parser().generateLogicalPlan(tid, "SELECT b.c2 FROM b WHERE b.c0 = 1;");
+    plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertNull(TestUtil.find(plan, BitmapHeapScan.class));
+    assertNotNull(TestUtil.find(plan, SeqScan.class));
+    assertEquals(ROWS / 10, count(plan));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(BitmapIndexTest.class);
+  }
+}
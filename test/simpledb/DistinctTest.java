@@ -0,0 +1,125 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class DistinctTest extends SimpleDbTestBase {
+
+  @After public void resetOperatorMemory() {
+    BufferPool.resetOperatorMemoryPages();
+  }
+
+  /**
+   * Build width-2 rows of random values in [0, range1) and [0, range2).
+   */
+  private static int[] randomRows(int rows, int range1, int range2) {
+    Random r = new Random(rows);
+    int[] data = new int[rows * 2];
+    for (int i = 0; i < rows; i++) {
+      data[2 * i] = r.nextInt(range1);
+      data[2 * i + 1] = r.nextInt(range2);
+    }
+    return data;
+  }
+
+  private static List<String> expected(int[] data) throws Exception {
+    TupleIterator it = TestUtil.createTupleList(2, data);
+    it.open();
+    Set<String> rows = new LinkedHashSet<String>();
+    while (it.hasNext())
+      rows.add(it.next().toString());
+    List<String> out = new ArrayList<String>(rows);
+    Collections.sort(out);
+    return out;
+  }
+
+  private static void check(Distinct op, List<String> want) throws Exception {
+    op.open();
+    assertEquals(want, TestUtil.drain(op));
+    assertTrue(TestUtil.checkExhausted(op));
+    op.rewind();
+    assertEquals(want, TestUtil.drain(op));
+    op.close();
+  }
+
+  /**
+   * Unit test for Distinct.getTupleDesc()
+   */
+  @Test public void getTupleDesc() {
+    OpIterator child = TestUtil.createTupleList(2, new int[] { 1, 2 });
+    assertEquals(child.getTupleDesc(), new Distinct(child).getTupleDesc());
+  }
+
+  /**
+   * Duplicates are removed on all columns
+   */
+  @Test public void removesDuplicates() throws Exception {
+    int[] data = randomRows(2000, 20, 5);
+    Distinct op = new Distinct(TestUtil.createTupleList(2, data));
+    assertFalse(op.isStreaming());
+    check(op, expected(data));
+  }
+
+  /**
+   * More distinct rows than fit in one page are spilled and deduplicated
+   * partition by partition
+   */
+  @Test public void spill() throws Exception {
+    BufferPool.setOperatorMemoryPages(1);
+    int[] data = randomRows(8000, 200, 20);
+    check(new Distinct(TestUtil.createTupleList(2, data)), expected(data));
+  }
+
+  /**
+   * An input ordered on a column only remembers the rows of the current
+   * value of that column
+   */
+  @Test public void streaming() throws Exception {
+    BufferPool.setOperatorMemoryPages(1);
+    int[] data = randomRows(8000, 400, 10);
+    Distinct op = new Distinct(new OrderBy(1, true, TestUtil.createTupleList(2, data)));
+    assertTrue(op.isStreaming());
+    check(op, expected(data));
+
+    // a sorted single column comes out sorted
+    int[] keys = new int[data.length];
+    for (int i = 0; i < data.length; i += 2)
+      keys[i] = keys[i + 1] = data[i];
+    TupleIterator single = TestUtil.createTupleList(1, keys);
+    op = new Distinct(new OrderBy(0, true, single));
+    assertTrue(SortMergeJoin.isSortedOn(op, 0, true));
+    op.open();
+    int last = -1;
+    int n = 0;
+    while (op.hasNext()) {
+      int key = ((IntField) op.next().getField(0)).getValue();
+      assertTrue(key > last);
+      last = key;
+      n++;
+    }
+    op.close();
+    assertEquals(400, n);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(DistinctTest.class);
+  }
+}
@@ -0,0 +1,167 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ExpressionTest extends SimpleDbTestBase {
+
+  private static final Type[] TYPES = new Type[] { Type.INT_TYPE, Type.INT_TYPE, Type.STRING_TYPE };
+  private static final TupleDesc TD = new TupleDesc(TYPES, new String[] { "a", "b", "s" });
+
+  private static Tuple tuple(int a, int b, String s) {
+    Tuple t = new Tuple(TD);
+    t.setField(0, new IntField(a));
+    t.setField(1, new IntField(b));
+    t.setField(2, new StringField(s, Type.STRING_LEN));
+    return t;
+  }
+
+  /**
+   * Compiled comparisons agree with Field.compare for every operator, with
+   * the constant on either side
+   */
+  @Test public void comparisons() {
+    String[] strings = new String[] { "", "ab", "abc", "b", "xaby" };
+    for (Predicate.Op op : Predicate.Op.values()) {
+      for (int a = -2; a <= 2; a++) {
+        for (int k = -2; k <= 2; k++) {
+          Tuple t = tuple(a, 0, "");
+          IntField c = new IntField(k);
+          boolean want = t.getField(0).compare(op, c);
+          assertEquals(want, Expression.compare(op, Expression.column(0),
+              Expression.constant(c)).compilePredicate(TD).test(t));
+          assertEquals(want, Expression.of(new Predicate(0, op, c)).compilePredicate(null).test(t));
+          assertEquals(c.compare(op, t.getField(0)), Expression.compare(op,
+              Expression.constant(c), Expression.column("a")).compilePredicate(TD).test(t));
+        }
+      }
+      for (String s : strings) {
+        for (String k : strings) {
+          Tuple t = tuple(0, 0, s);
+          StringField c = new StringField(k, Type.STRING_LEN);
+          assertEquals(t.getField(2).compare(op, c), Expression.compare(op,
+              Expression.column("s"), Expression.constant(c)).compilePredicate(TD).test(t));
+        }
+      }
+    }
+  }
+
+  /**
+   * Arithmetic and comparisons of two columns
+   */
+  @Test public void arithmetic() {
+    Expression e = Expression.compare(Predicate.Op.EQUALS,
+        Expression.arith(Expression.ArithOp.PLUS, Expression.column("a"),
+            Expression.arith(Expression.ArithOp.TIMES, Expression.column("b"), Expression.constant(2))),
+        Expression.constant(11));
+    Expression.Test test = e.compilePredicate(TD);
+    assertTrue(test.test(tuple(5, 3, "")));
+    assertFalse(test.test(tuple(5, 4, "")));
+
+    Expression.IntValue v = Expression.arith(Expression.ArithOp.MOD,
+        Expression.arith(Expression.ArithOp.MINUS, Expression.column("a"), Expression.column("b")),
+        Expression.constant(4)).compileInt(TD);
+    assertEquals(3, v.eval(tuple(10, 3, "")));
+    assertEquals(Type.INT_TYPE, Expression.arith(Expression.ArithOp.DIVIDE,
+        Expression.column("a"), Expression.constant(2)).getType(TD));
+
+    test = Expression.compare(Predicate.Op.LESS_THAN, Expression.column("a"),
+        Expression.column("b")).compilePredicate(TD);
+    assertTrue(test.test(tuple(1, 2, "")));
+    assertFalse(test.test(tuple(2, 2, "")));
+  }
+
+  /**
+   * AND, OR and NOT
+   */
+  @Test public void connectives() {
+    Expression aPos = Expression.compare(Predicate.Op.GREATER_THAN, Expression.column("a"), Expression.constant(0));
+    Expression bPos = Expression.compare(Predicate.Op.GREATER_THAN, Expression.column("b"), Expression.constant(0));
+    Expression sX = Expression.compare(Predicate.Op.EQUALS, Expression.column("s"),
+        Expression.constant(new StringField("x", Type.STRING_LEN)));
+    Expression.Test and = Expression.and(aPos, bPos, sX).compilePredicate(TD);
+    Expression.Test or = Expression.or(aPos, Expression.not(bPos)).compilePredicate(TD);
+    for (int a = -1; a <= 1; a++) {
+      for (int b = -1; b <= 1; b++) {
+        for (String s : new String[] { "x", "y" }) {
+          Tuple t = tuple(a, b, s);
+          assertEquals(a > 0 && b > 0 && s.equals("x"), and.test(t));
+          assertEquals(a > 0 || !(b > 0), or.test(t));
+        }
+      }
+    }
+  }
+
+  /**
+   * Ill-typed expressions are rejected when compiled
+   */
+  @Test(expected = IllegalArgumentException.class) public void typeMismatch() {
+    Expression.compare(Predicate.Op.EQUALS, Expression.column("s"), Expression.constant(1))
+        .compilePredicate(TD);
+  }
+
+  /**
+   * Only comparisons of a column with a constant have a Predicate
+   */
+  @Test public void asPredicate() {
+    Predicate p = Expression.compare(Predicate.Op.LESS_THAN, Expression.column(1),
+        Expression.constant(3)).asPredicate();
+    assertEquals(1, p.getField());
+    assertEquals(Predicate.Op.LESS_THAN, p.getOp());
+    assertEquals(new IntField(3), p.getOperand());
+    assertNull(Expression.not(Expression.compare(Predicate.Op.LESS_THAN, Expression.column(1),
+        Expression.constant(3))).asPredicate());
+    assertNull(Expression.compare(Predicate.Op.LESS_THAN, Expression.column(0),
+        Expression.column(1)).asPredicate());
+  }
+
+  /**
+   * A Filter on an expression returns the matching tuples
+   */
+  @Test public void filter() throws Exception {
+    int[] data = new int[40];
+    for (int i = 0; i < 20; i++) {
+      data[2 * i] = i;
+      data[2 * i + 1] = i % 3;
+    }
+    OpIterator child = TestUtil.createTupleList(2, data);
+    Expression e = Expression.or(
+        Expression.compare(Predicate.Op.EQUALS, Expression.column(1), Expression.constant(0)),
+        Expression.compare(Predicate.Op.GREATER_THAN,
+            Expression.arith(Expression.ArithOp.TIMES, Expression.column(0),
+                Expression.constant(2)), Expression.constant(30)));
+    Filter f = new Filter(e, child);
+    assertNull(f.getPredicate());
+    List<Integer> got = new ArrayList<Integer>();
+    f.open();
+    while (f.hasNext())
+      got.add(((IntField) f.next().getField(0)).getValue());
+    f.rewind();
+    assertTrue(f.hasNext());
+    f.close();
+    List<Integer> want = new ArrayList<Integer>();
+    for (int i = 0; i < 20; i++) {
+      if (i % 3 == 0 || i * 2 > 30)
+        want.add(i);
+    }
+    assertEquals(want, got);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ExpressionTest.class);
+  }
+}
@@ -0,0 +1,120 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ExternalSortTest extends SimpleDbTestBase {
+
+  @After public void resetOperatorMemory() {
+    BufferPool.resetOperatorMemoryPages();
+  }
+
+  /**
+   * Build a width-2 tuple list of random values in [0, range) in the first
+   * column, numbering the rows in the second.
+   */
+  private static TupleIterator randomTuples(int rows, int range) {
+    Random r = new Random(rows);
+    int[] data = new int[rows * 2];
+    for (int i = 0; i < rows; i++) {
+      data[2 * i] = r.nextInt(range);
+      data[2 * i + 1] = i;
+    }
+    return TestUtil.createTupleList(2, data);
+  }
+
+  private static int value(Tuple t, int field) {
+    return ((IntField) t.getField(field)).getValue();
+  }
+
+  /**
+   * Sort the given tuples on (field 0 ascending, field 1 descending) and
+   * check the output is complete and ordered.
+   */
+  private void checkSort(int rows, int range, int expectedRuns) throws Exception {
+    TupleIterator input = randomTuples(rows, range);
+    ExternalSort sort = new ExternalSort(input.getTupleDesc(),
+        new TupleComparator(new int[] { 0, 1 }, new boolean[] { true, false }));
+    input.open();
+    sort.addAll(input);
+    OpIterator it = sort.iterator();
+    assertEquals(expectedRuns, sort.numRuns());
+    it.open();
+    for (int pass = 0; pass < 2; pass++) {
+      boolean[] seen = new boolean[rows];
+      Tuple prev = null;
+      int count = 0;
+      while (it.hasNext()) {
+        Tuple t = it.next();
+        if (prev != null) {
+          assertTrue(value(prev, 0) <= value(t, 0));
+          if (value(prev, 0) == value(t, 0))
+            assertTrue(value(prev, 1) > value(t, 1));
+        }
+        assertFalse(seen[value(t, 1)]);
+        seen[value(t, 1)] = true;
+        prev = t;
+        count++;
+      }
+      assertEquals(rows, count);
+      it.rewind();
+    }
+    it.close();
+    sort.close();
+  }
+
+  /**
+   * Input that fits in memory is sorted without spilling
+   */
+  @Test public void inMemory() throws Exception {
+    checkSort(1000, 50, 0);
+  }
+
+  /**
+   * Input larger than memory is written out as sorted runs and merged
+   */
+  @Test public void spilledRuns() throws Exception {
+    // 512 two-int tuples per run, with a fan-in of two for the final merge
+    BufferPool.setOperatorMemoryPages(1);
+    checkSort(5000, 300, 1);
+    BufferPool.setOperatorMemoryPages(20);
+    checkSort(100000, 1000, 9);
+  }
+
+  /**
+   * Unit test for OrderBy over an input larger than memory
+   */
+  @Test public void orderBy() throws Exception {
+    BufferPool.setOperatorMemoryPages(1);
+    OrderBy op = new OrderBy(0, false, randomTuples(3000, 100000));
+    op.open();
+    int count = 0;
+    int prev = Integer.MAX_VALUE;
+    while (op.hasNext()) {
+      int v = value(op.next(), 0);
+      assertTrue(v <= prev);
+      prev = v;
+      count++;
+    }
+    assertEquals(3000, count);
+    assertTrue(TestUtil.checkExhausted(op));
+    op.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ExternalSortTest.class);
+  }
+}
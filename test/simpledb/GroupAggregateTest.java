@@ -0,0 +1,218 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class GroupAggregateTest extends SimpleDbTestBase {
+
+  private static final Aggregator.Op[] ALL_OPS = new Aggregator.Op[] {
+      Aggregator.Op.COUNT, Aggregator.Op.SUM, Aggregator.Op.MIN,
+      Aggregator.Op.MAX, Aggregator.Op.AVG };
+
+  @After public void resetOperatorMemory() {
+    BufferPool.resetOperatorMemoryPages();
+  }
+
+  /**
+   * Build a width-3 tuple list: a random key in [0, range1), a random key
+   * in [0, range2), and a random value in [0, 1000).
+   */
+  private static int[] randomRows(int rows, int range1, int range2) {
+    Random r = new Random(rows);
+    int[] data = new int[rows * 3];
+    for (int i = 0; i < rows; i++) {
+      data[3 * i] = r.nextInt(range1);
+      data[3 * i + 1] = r.nextInt(range2);
+      data[3 * i + 2] = r.nextInt(1000);
+    }
+    return data;
+  }
+
+  /**
+   * COUNT, SUM, MIN, MAX and AVG of column 2 grouped by columns 0 and 1 (or
+   * by column 0 only), computed directly
+   */
+  private static List<String> expected(int[] data, boolean both) throws Exception {
+    Map<List<Integer>, long[]> groups = new HashMap<List<Integer>, long[]>();
+    for (int i = 0; i < data.length; i += 3) {
+      List<Integer> key = new ArrayList<Integer>();
+      key.add(data[i]);
+      if (both)
+        key.add(data[i + 1]);
+      long[] acc = groups.get(key);
+      int v = data[i + 2];
+      if (acc == null) {
+        groups.put(key, new long[] { 1, v, v, v });
+      } else {
+        acc[0]++;
+        acc[1] += v;
+        acc[2] = Math.min(acc[2], v);
+        acc[3] = Math.max(acc[3], v);
+      }
+    }
+    int width = both ? 7 : 6;
+    int[] out = new int[groups.size() * width];
+    int pos = 0;
+    for (Map.Entry<List<Integer>, long[]> e : groups.entrySet()) {
+      for (int k : e.getKey())
+        out[pos++] = k;
+      long[] acc = e.getValue();
+      out[pos++] = (int) acc[0];
+      out[pos++] = (int) acc[1];
+      out[pos++] = (int) acc[2];
+      out[pos++] = (int) acc[3];
+      out[pos++] = (int) (acc[1] / acc[0]);
+    }
+    TupleIterator it = TestUtil.createTupleList(width, out);
+    it.open();
+    return TestUtil.drain(it);
+  }
+
+  private static GroupAggregate allOps(OpIterator child, int[] gfields) {
+    return new GroupAggregate(child, gfields, new int[] { 2, 2, 2, 2, 2 }, ALL_OPS);
+  }
+
+  private static void check(GroupAggregate op, List<String> want) throws Exception {
+    op.open();
+    assertEquals(want, TestUtil.drain(op));
+    assertTrue(TestUtil.checkExhausted(op));
+    op.rewind();
+    assertEquals(want, TestUtil.drain(op));
+    op.close();
+  }
+
+  /**
+   * Unit test for GroupAggregate.getTupleDesc()
+   */
+  @Test public void getTupleDesc() {
+    OpIterator child = TestUtil.createTupleList(3, new int[] { 1, 2, 3 });
+    GroupAggregate op = allOps(child, new int[] { 1, 0 });
+    TupleDesc td = op.getTupleDesc();
+    assertEquals(7, td.numFields());
+    assertEquals(child.getTupleDesc().getFieldName(1), td.getFieldName(0));
+    assertEquals("sum(" + child.getTupleDesc().getFieldName(2) + ")", td.getFieldName(3));
+    assertEquals(Type.INT_TYPE, td.getFieldType(6));
+  }
+
+  /**
+   * Several aggregates over groups of two columns
+   */
+  @Test public void multiColumnGroups() throws Exception {
+    int[] data = randomRows(2000, 10, 7);
+    check(allOps(TestUtil.createTupleList(3, data), new int[] { 0, 1 }),
+        expected(data, true));
+  }
+
+  /**
+   * Without grouping columns all tuples form one group
+   */
+  @Test public void noGrouping() throws Exception {
+    GroupAggregate op = new GroupAggregate(
+        TestUtil.createTupleList(3, new int[] { 1, 2, 3, 4, 5, 6 }), new int[0],
+        new int[] { 2, 0 }, new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.COUNT });
+    op.open();
+    assertEquals(TestUtil.drain(TestUtil.createTupleList(2, new int[] { 9, 2 })), TestUtil.drain(op));
+    op.close();
+  }
+
+  /**
+   * COUNT accepts string columns; the other aggregates do not
+   */
+  @Test public void stringColumns() throws Exception {
+    OpIterator child = TestUtil.createTupleList(2,
+        new Object[] { "a", 1, "b", 2, "a", 3 });
+    GroupAggregate op = new GroupAggregate(child, new int[] { 0 }, new int[] { 0, 1 },
+        new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.SUM });
+    op.open();
+    Tuple a = new Tuple(op.getTupleDesc());
+    a.setField(0, new StringField("a", Type.STRING_LEN));
+    a.setField(1, new IntField(2));
+    a.setField(2, new IntField(4));
+    Tuple b = new Tuple(op.getTupleDesc());
+    b.setField(0, new StringField("b", Type.STRING_LEN));
+    b.setField(1, new IntField(1));
+    b.setField(2, new IntField(2));
+    List<String> got = TestUtil.drain(op);
+    assertEquals(2, got.size());
+    assertTrue(got.contains(a.toString()));
+    assertTrue(got.contains(b.toString()));
+    op.close();
+  }
+
+  @Test(expected = IllegalArgumentException.class) public void sumOfStrings() {
+    new GroupAggregate(TestUtil.createTupleList(2, new Object[] { "a", 1 }),
+        new int[] { 1 }, new int[] { 0 }, new Aggregator.Op[] { Aggregator.Op.SUM });
+  }
+
+  /**
+   * More groups than fit in one page are spilled and aggregated partition
+   * by partition
+   */
+  @Test public void spill() throws Exception {
+    BufferPool.setOperatorMemoryPages(1);
+    int[] data = randomRows(6000, 100, 30);
+    check(allOps(TestUtil.createTupleList(3, data), new int[] { 0, 1 }),
+        expected(data, true));
+  }
+
+  /**
+   * An input ordered on a grouping column is aggregated one run of that
+   * column at a time, and the groups come out in its order
+   */
+  @Test public void streaming() throws Exception {
+    int[] data = randomRows(2000, 50, 7);
+    GroupAggregate op = allOps(new OrderBy(0, false, TestUtil.createTupleList(3, data)),
+        new int[] { 0 });
+    assertTrue(op.isStreaming());
+    assertTrue(SortMergeJoin.isSortedOn(op, 0, false));
+    check(op, expected(data, false));
+
+    op.open();
+    int last = Integer.MAX_VALUE;
+    while (op.hasNext()) {
+      int key = ((IntField) op.next().getField(0)).getValue();
+      assertTrue(key < last);
+      last = key;
+    }
+    op.close();
+
+    // only one of several grouping columns needs to be ordered
+    BufferPool.setOperatorMemoryPages(1);
+    op = allOps(new OrderBy(0, true, TestUtil.createTupleList(3, data)), new int[] { 1, 0 });
+    assertTrue(op.isStreaming());
+    assertFalse(SortMergeJoin.isSortedOn(op, 0, true));
+    check(op, expected(swapKeys(data), true));
+
+    assertFalse(allOps(TestUtil.createTupleList(3, data), new int[] { 0 }).isStreaming());
+  }
+
+  private static int[] swapKeys(int[] data) {
+    int[] out = data.clone();
+    for (int i = 0; i < out.length; i += 3) {
+      out[i] = data[i + 1];
+      out[i + 1] = data[i];
+    }
+    return out;
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(GroupAggregateTest.class);
+  }
+}
@@ -0,0 +1,222 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  int width2 = 3;
+  OpIterator scan1;
+  OpIterator scan2;
+  OpIterator eqJoin;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTupleLists() throws Exception {
+    this.scan1 = TestUtil.createTupleList(width1,
+        new int[] { 1, 2,
+                    3, 4,
+                    5, 6,
+                    7, 8 });
+    this.scan2 = TestUtil.createTupleList(width2,
+        new int[] { 1, 2, 3,
+                    2, 3, 4,
+                    3, 4, 5,
+                    4, 5, 6,
+                    5, 6, 7 });
+    this.eqJoin = TestUtil.createTupleList(width1 + width2,
+        new int[] { 1, 2, 1, 2, 3,
+                    3, 4, 3, 4, 5,
+                    5, 6, 5, 6, 7 });
+  }
+
+  @After public void resetOperatorMemory() {
+    BufferPool.resetOperatorMemoryPages();
+  }
+
+  /**
+   * Build a width-2 tuple list whose first column takes keys 0..distinct-1
+   * round robin and whose second column numbers the rows.
+   */
+  private static TupleIterator keyedTuples(int rows, int distinct) {
+    int[] data = new int[rows * 2];
+    for (int i = 0; i < rows; i++) {
+      data[2 * i] = i % distinct;
+      data[2 * i + 1] = i;
+    }
+    return TestUtil.createTupleList(2, data);
+  }
+
+  /**
+   * Check that a HashEquiJoin returns the same multiset of tuples as the
+   * nested loops Join over the same inputs.
+   */
+  private void checkAgainstNestedLoops(int rows1, int distinct1, int rows2,
+      int distinct2) throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    Join expected = new Join(pred, keyedTuples(rows1, distinct1),
+        keyedTuples(rows2, distinct2));
+    expected.open();
+    List<String> want = TestUtil.drain(expected);
+    expected.close();
+
+    HashEquiJoin actual = new HashEquiJoin(pred, keyedTuples(rows1, distinct1),
+        keyedTuples(rows2, distinct2));
+    actual.open();
+    assertEquals(want, TestUtil.drain(actual));
+    assertTrue(TestUtil.checkExhausted(actual));
+
+    // a rewound join has to produce the same result again
+    actual.rewind();
+    assertEquals(want, TestUtil.drain(actual));
+    actual.close();
+  }
+
+  /**
+   * Unit test for HashEquiJoin.getTupleDesc()
+   */
+  @Test public void getTupleDesc() {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, scan1, scan2);
+    TupleDesc expected = Utility.getTupleDesc(width1 + width2);
+    TupleDesc actual = op.getTupleDesc();
+    assertEquals(expected, actual);
+  }
+
+  /**
+   * Unit test for HashEquiJoin.rewind()
+   */
+  @Test public void rewind() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, scan1, scan2);
+    op.open();
+    while (op.hasNext()) {
+      assertNotNull(op.next());
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+    op.rewind();
+
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+  }
+
+  /**
+   * Unit test for HashEquiJoin.getNext() when everything fits in memory
+   */
+  @Test public void eqJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, scan1, scan2);
+    op.open();
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+  }
+
+  /**
+   * The build side is several times larger than the operator budget, so
+   * both inputs are partitioned to disk.
+   */
+  @Test public void spillingJoin() throws Exception {
+    // one page holds 512 two-int tuples
+    BufferPool.setOperatorMemoryPages(1);
+    checkAgainstNestedLoops(3000, 700, 2000, 900);
+  }
+
+  /**
+   * A single key too large for memory can never be split by partitioning;
+   * the join has to fall back to joining it chunk by chunk.
+   */
+  @Test public void skewedJoin() throws Exception {
+    BufferPool.setOperatorMemoryPages(1);
+    checkAgainstNestedLoops(1500, 3, 40, 5);
+  }
+
+  /**
+   * Unit test for RuntimeFilter: added keys are always accepted, and most
+   * other keys are rejected.
+   */
+  @Test public void runtimeFilter() {
+    RuntimeFilter f = new RuntimeFilter(0, 1000);
+    assertFalse(f.mightContain(new IntField(1)));
+    for (int i = 0; i < 1000; i++)
+      f.add(new IntField(i * 7));
+    int falsePositives = 0;
+    for (int i = 0; i < 7000; i++) {
+      boolean added = i % 7 == 0;
+      if (added)
+        assertTrue(f.mightContain(new IntField(i)));
+      else if (f.mightContain(new IntField(i)))
+        falsePositives++;
+    }
+    assertTrue(falsePositives < 6000 / 10);
+    // outside the range of the added keys
+    assertFalse(f.mightContain(new IntField(-1)));
+    assertFalse(f.mightContain(new IntField(7000)));
+    assertTrue(f.isSelective());
+  }
+
+  /**
+   * The build keys are pushed into the probe-side scan as a runtime filter
+   */
+  @Test public void runtimeFilterPushdown() throws Exception {
+    HeapFile build = SystemTestUtil.createRandomHeapFile(2, 50, 100000, null, null);
+    HeapFile probe = SystemTestUtil.createRandomHeapFile(2, 2000, 100000, null, null);
+    TransactionId tid = new TransactionId();
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+
+    Join expected = new Join(pred, new SeqScan(tid, build.getId()),
+        new SeqScan(tid, probe.getId()));
+    expected.open();
+    List<String> want = TestUtil.drain(expected);
+    expected.close();
+
+    SeqScan probeScan = new SeqScan(tid, probe.getId());
+    Predicate keep = new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0));
+    HashEquiJoin actual = new HashEquiJoin(pred, new SeqScan(tid, build.getId()),
+        new Filter(keep, probeScan));
+    actual.open();
+    assertEquals(1, probeScan.getRuntimeFilters().size());
+    RuntimeFilter f = probeScan.getRuntimeFilters().get(0);
+    assertEquals(1, f.getField());
+    assertEquals(50, f.size());
+    assertEquals(want, TestUtil.drain(actual));
+    actual.rewind();
+    assertEquals(1, probeScan.getRuntimeFilters().size());
+    assertEquals(want, TestUtil.drain(actual));
+    actual.close();
+    assertEquals(0, probeScan.getRuntimeFilters().size());
+
+    // most probe tuples never reach the join
+    probeScan.open();
+    probeScan.addRuntimeFilter(f);
+    int scanned = 0;
+    while (probeScan.hasNext()) {
+      probeScan.next();
+      scanned++;
+    }
+    probeScan.close();
+    assertTrue(scanned < 200);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HashEquiJoinTest.class);
+  }
+}
@@ -0,0 +1,297 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HashFileTest extends SimpleDbTestBase {
+
+  private TransactionId tid;
+
+  /**
+   * Use small pages, so that the files have many buckets
+   */
+  @Before public void setUp() throws Exception {
+    BufferPool.setPageSize(1024);
+    Database.reset();
+    Database.resetBufferPool(2000);
+    tid = new TransactionId();
+  }
+
+  @After public void tearDown() throws Exception {
+    Database.getBufferPool().transactionComplete(tid);
+    BufferPool.resetPageSize();
+    Database.reset();
+  }
+
+  /**
+   * @return an empty hash file of (c0, c1) int tuples hashed on c0
+   */
+  private static HashFile emptyFile(String name) throws Exception {
+    File f = File.createTempFile("hash", ".dat");
+    f.deleteOnExit();
+    HashFile hf = new HashFile(f, 0, Utility.getTupleDesc(2, "c"));
+    Database.getCatalog().addTable(hf, name);
+    return hf;
+  }
+
+  private void commit() throws Exception {
+    Database.getBufferPool().transactionComplete(tid);
+    tid = new TransactionId();
+  }
+
+  private void insert(HashFile hf, int key, int value) throws Exception {
+    Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { key, value }));
+  }
+
+  /**
+   * Insert a tuple (id % keys, id) for each id below n, in random order
+   */
+  private void insertAll(HashFile hf, int n, int keys) throws Exception {
+    List<Integer> ids = new ArrayList<Integer>();
+    for (int i = 0; i < n; i++)
+      ids.add(i);
+    Collections.shuffle(ids, new Random(n));
+    for (int i = 0; i < n; i++) {
+      insert(hf, ids.get(i) % keys, ids.get(i));
+      if (i % 100 == 99)
+        commit();
+    }
+    commit();
+  }
+
+  /**
+   * @return the values of the tuples with the given key, sorted
+   */
+  private List<Integer> lookup(HashFile hf, int key) throws Exception {
+    List<Integer> values = new ArrayList<Integer>();
+    DbFileIterator it = hf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+    it.open();
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      assertEquals(new IntField(key), t.getField(0));
+      values.add(((IntField) t.getField(1)).getValue());
+    }
+    it.close();
+    Collections.sort(values);
+    return values;
+  }
+
+  private static int count(DbFileIterator it) throws Exception {
+    int n = 0;
+    it.open();
+    while (it.hasNext()) {
+      it.next();
+      n++;
+    }
+    it.close();
+    return n;
+  }
+
+  private static int count(OpIterator it) throws Exception {
+    int n = 0;
+    it.open();
+    while (it.hasNext()) {
+      it.next();
+      n++;
+    }
+    it.close();
+    return n;
+  }
+
+  private HashDirectoryPage directory(HashFile hf) throws Exception {
+    return (HashDirectoryPage) Database.getBufferPool().getPage(tid,
+        HashDirectoryPage.getId(hf.getId()), Permissions.READ_ONLY);
+  }
+
+  @Test public void insertsAndLookups() throws Exception {
+    HashFile hf = emptyFile("h");
+    assertEquals(0, count(hf.iterator(tid)));
+    assertTrue(lookup(hf, 3).isEmpty());
+
+    insertAll(hf, 5000, 2000);
+    assertEquals(5000, count(hf.iterator(tid)));
+    for (int key = 0; key < 2000; key += 37) {
+      List<Integer> want = new ArrayList<Integer>();
+      for (int id = key; id < 5000; id += 2000)
+        want.add(id);
+      assertEquals(want, lookup(hf, key));
+    }
+    assertTrue(lookup(hf, 2000).isEmpty());
+    assertTrue(lookup(hf, -1).isEmpty());
+
+    // the buckets split instead of growing overflow chains
+    HashDirectoryPage dir = directory(hf);
+    assertTrue(dir.getGlobalDepth() > 4);
+    Set<HashPageId> buckets = new HashSet<HashPageId>();
+    for (int i = 0; i < dir.getNumEntries(); i++)
+      buckets.add(dir.getBucketId(i));
+    assertEquals(hf.numPages() - 1, buckets.size());
+  }
+
+  @Test public void duplicateKeys() throws Exception {
+    HashFile hf = emptyFile("h");
+    int perPage = (BufferPool.getPageSize() - 8) * 8 / (8 * 8 + 1);
+    for (int i = 0; i < 8 * perPage; i++) {
+      insert(hf, 7, i);
+      if (i % 100 == 99)
+        commit();
+    }
+    commit();
+    // copies of one key cannot be split apart, so they fill an overflow chain
+    assertEquals(0, directory(hf).getGlobalDepth());
+    assertEquals(9, hf.numPages());
+    assertEquals(8 * perPage, lookup(hf, 7).size());
+
+    // other keys still split the bucket, and the chain moves as a whole
+    for (int i = 0; i < 1000; i++)
+      insert(hf, 100 + i, i);
+    commit();
+    assertTrue(directory(hf).getGlobalDepth() > 0);
+    assertEquals(8 * perPage, lookup(hf, 7).size());
+    for (int i = 0; i < 1000; i += 7)
+      assertEquals(Arrays.asList(i), lookup(hf, 100 + i));
+    assertEquals(8 * perPage + 1000, count(hf.iterator(tid)));
+  }
+
+  @Test public void deletes() throws Exception {
+    HashFile hf = emptyFile("h");
+    insertAll(hf, 3000, 1000);
+    int pages = hf.numPages();
+
+    // delete the tuples of two thirds of the keys
+    for (int key = 0; key < 1000; key++) {
+      if (key % 3 == 0)
+        continue;
+      DbFileIterator it = hf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+      it.open();
+      List<Tuple> matches = new ArrayList<Tuple>();
+      while (it.hasNext())
+        matches.add(it.next());
+      it.close();
+      for (Tuple t : matches)
+        Database.getBufferPool().deleteTuple(tid, t);
+      if (key % 50 == 49)
+        commit();
+    }
+    commit();
+    assertEquals(1002, count(hf.iterator(tid)));
+    assertEquals(Arrays.asList(3, 1003, 2003), lookup(hf, 3));
+    assertTrue(lookup(hf, 4).isEmpty());
+
+    // the space freed is reused
+    for (int key = 1; key < 1000; key += 3)
+      insert(hf, key, key);
+    commit();
+    assertEquals(Arrays.asList(4), lookup(hf, 4));
+    assertEquals(1335, count(hf.iterator(tid)));
+    assertEquals(pages, hf.numPages());
+  }
+
+  @Test public void abortedSplits() throws Exception {
+    HashFile hf = emptyFile("h");
+    insertAll(hf, 500, 500);
+    int depth = directory(hf).getGlobalDepth();
+    commit();
+
+    for (int i = 500; i < 3000; i++)
+      insert(hf, i, i);
+    Database.getBufferPool().transactionComplete(tid, false);
+    tid = new TransactionId();
+
+    assertEquals(depth, directory(hf).getGlobalDepth());
+    assertEquals(500, count(hf.iterator(tid)));
+    assertEquals(Arrays.asList(123), lookup(hf, 123));
+    assertTrue(lookup(hf, 1234).isEmpty());
+  }
+
+  /**
+   * A lookup keeps a lock on the bucket it read, but not on the directory
+   */
+  @Test public void lookupLocks() throws Exception {
+    HashFile hf = emptyFile("h");
+    insertAll(hf, 2000, 2000);
+    assertEquals(Arrays.asList(42), lookup(hf, 42));
+    HashPageId dirId = HashDirectoryPage.getId(hf.getId());
+    assertFalse(Database.getBufferPool().holdsLock(tid, dirId));
+    int locked = 0;
+    for (int i = 1; i < hf.numPages(); i++) {
+      if (Database.getBufferPool().holdsLock(tid, new HashPageId(hf.getId(), i, HashPageId.BUCKET)))
+        locked++;
+    }
+    assertEquals(1, locked);
+  }
+
+  @Test public void hashScan() throws Exception {
+    HashFile hf = emptyFile("h");
+    insertAll(hf, 1000, 100);
+    HashScan scan = new HashScan(tid, hf.getId(), "x",
+        new IndexPredicate(Predicate.Op.EQUALS, new IntField(5)), new int[] { 1 });
+    assertEquals("x.c1", scan.getTupleDesc().getFieldName(0));
+    assertEquals(1, scan.getTupleDesc().numFields());
+    scan.open();
+    int n = 0;
+    while (scan.hasNext()) {
+      assertEquals(5, ((IntField) scan.next().getField(0)).getValue() % 100);
+      n++;
+    }
+    assertEquals(10, n);
+
+    // look up another key with the same operator
+    scan.rewind(new IndexPredicate(Predicate.Op.EQUALS, new IntField(99)));
+    n = 0;
+    while (scan.hasNext()) {
+      assertEquals(99, ((IntField) scan.next().getField(0)).getValue() % 100);
+      n++;
+    }
+    assertEquals(10, n);
+    scan.close();
+
+    assertEquals(1000, count(new HashScan(tid, hf.getId(), "x", null, null)));
+  }
+
+  /**
+   * An equality filter on the key of a hash file becomes a hash scan; a
+   * range filter does not
+   */
+  @Test public void planner() throws Exception {
+    HashFile hf = emptyFile("hp");
+    insertAll(hf, 2000, 500);
+    TableStats.setTableStats("hp", new TestUtil.FixedStats(hf.getId(), hf.numPages(), 2000, 0.002));
+
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid, "SELECT hp.c1 FROM hp WHERE hp.c0 = 17;");
+    OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    HashScan scan = (HashScan) TestUtil.find(plan, HashScan.class);
+    assertNotNull(scan);
+    assertNull(TestUtil.find(plan, SeqScan.class));
+    assertNull(TestUtil.find(plan, Filter.class));
+    assertEquals(new IntField(17), scan.getIndexPredicate().getField());
+    assertEquals(4, count(plan));
+
+    lp = new Parser().generateLogicalPlan(tid, "SELECT hp.c1 FROM hp WHERE hp.c0 < 17;");
+    plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertNull(TestUtil.find(plan, HashScan.class));
+    assertNotNull(TestUtil.find(plan, SeqScan.class));
+    assertEquals(68, count(plan));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HashFileTest.class);
+  }
+}
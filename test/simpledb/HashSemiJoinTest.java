@@ -0,0 +1,161 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HashSemiJoinTest extends SimpleDbTestBase {
+
+  @After public void resetOperatorMemory() {
+    BufferPool.resetOperatorMemoryPages();
+  }
+
+  /**
+   * Build a width-2 tuple list with the given keys in the first column,
+   * numbering the rows in the second.
+   */
+  private static TupleIterator keyed(int[] keys) {
+    int[] data = new int[keys.length * 2];
+    for (int i = 0; i < keys.length; i++) {
+      data[2 * i] = keys[i];
+      data[2 * i + 1] = i;
+    }
+    return TestUtil.createTupleList(2, data);
+  }
+
+  private static int[] randomKeys(int rows, int range, long seed) {
+    Random r = new Random(seed);
+    int[] keys = new int[rows];
+    for (int i = 0; i < rows; i++)
+      keys[i] = r.nextInt(range);
+    return keys;
+  }
+
+  /**
+   * The rows of keyed(outer) whose key is (or, for anti, is not) in inner
+   */
+  private static List<String> expected(int[] outer, int[] inner, boolean anti)
+      throws Exception {
+    Set<Integer> in = new HashSet<Integer>();
+    for (int k : inner)
+      in.add(k);
+    List<Integer> rows = new ArrayList<Integer>();
+    for (int i = 0; i < outer.length; i++) {
+      if (in.contains(outer[i]) != anti) {
+        rows.add(outer[i]);
+        rows.add(i);
+      }
+    }
+    int[] data = new int[rows.size()];
+    for (int i = 0; i < data.length; i++)
+      data[i] = rows.get(i);
+    TupleIterator it = TestUtil.createTupleList(2, data);
+    it.open();
+    return TestUtil.drain(it);
+  }
+
+  private static void check(int[] outer, int[] inner, boolean anti)
+      throws Exception {
+    HashSemiJoin op = new HashSemiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        keyed(outer), keyed(inner), anti);
+    List<String> want = expected(outer, inner, anti);
+    op.open();
+    assertEquals(want, TestUtil.drain(op));
+    assertTrue(TestUtil.checkExhausted(op));
+    op.rewind();
+    assertEquals(want, TestUtil.drain(op));
+    op.close();
+  }
+
+  /**
+   * Unit test for HashSemiJoin.getTupleDesc()
+   */
+  @Test public void getTupleDesc() {
+    HashSemiJoin op = new HashSemiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        keyed(new int[] { 1 }), TestUtil.createTupleList(3, new int[] { 1, 2, 3 }), false);
+    assertEquals(Utility.getTupleDesc(2), op.getTupleDesc());
+  }
+
+  /**
+   * Non-equality predicates are rejected
+   */
+  @Test(expected = IllegalArgumentException.class) public void rangePredicate() {
+    new HashSemiJoin(new JoinPredicate(0, Predicate.Op.LESS_THAN, 0),
+        keyed(new int[] { 1 }), keyed(new int[] { 1 }), false);
+  }
+
+  /**
+   * Each outer row is returned once, however many inner rows match it
+   */
+  @Test public void semiJoin() throws Exception {
+    check(new int[] { 1, 2, 3, 3, 4 }, new int[] { 3, 3, 3, 1, 1, 7 }, false);
+  }
+
+  @Test public void antiJoin() throws Exception {
+    check(new int[] { 1, 2, 3, 3, 4 }, new int[] { 3, 3, 3, 1, 1, 7 }, true);
+  }
+
+  /**
+   * Empty inputs on either side
+   */
+  @Test public void emptyInputs() throws Exception {
+    check(new int[] { 1, 2 }, new int[0], false);
+    check(new int[] { 1, 2 }, new int[0], true);
+    check(new int[0], new int[] { 1, 2 }, false);
+  }
+
+  /**
+   * More distinct inner keys than fit in one page are spilled and joined
+   * partition by partition
+   */
+  @Test public void spill() throws Exception {
+    BufferPool.setOperatorMemoryPages(1);
+    int[] outer = randomKeys(3000, 4000, 1);
+    int[] inner = randomKeys(4000, 4000, 2);
+    check(outer, inner, false);
+    check(outer, inner, true);
+  }
+
+  /**
+   * Without a predicate, every outer row is returned if the inner input is
+   * not empty (EXISTS), or if it is (NOT EXISTS)
+   */
+  @Test public void exists() throws Exception {
+    int[] outer = new int[] { 5, 6, 7 };
+    HashSemiJoin op = new HashSemiJoin(null, keyed(outer), keyed(new int[] { 1 }), false);
+    assertNull(op.getJoinField1Name());
+    op.open();
+    assertEquals(expected(outer, outer, false), TestUtil.drain(op));
+    op.close();
+
+    op = new HashSemiJoin(null, keyed(outer), keyed(new int[] { 1 }), true);
+    op.open();
+    assertEquals(0, TestUtil.drain(op).size());
+    op.close();
+
+    op = new HashSemiJoin(null, keyed(outer), keyed(new int[0]), true);
+    op.open();
+    assertEquals(expected(outer, outer, false), TestUtil.drain(op));
+    op.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HashSemiJoinTest.class);
+  }
+}
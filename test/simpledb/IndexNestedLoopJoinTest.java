@@ -0,0 +1,132 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+
+  private BTreeFile inner;
+  private TransactionId tid;
+
+  @Before public void setUp() throws Exception {
+    inner = BTreeUtility.createRandomBTreeFile(2, 3000, 400, null, null, 0);
+    tid = new TransactionId();
+  }
+
+  @After public void tearDown() throws Exception {
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Build a width-2 tuple list of random values in [0, range) in the first
+   * column, numbering the rows in the second.
+   */
+  private static TupleIterator randomTuples(int rows, int range) {
+    Random r = new Random(rows);
+    int[] data = new int[rows * 2];
+    for (int i = 0; i < rows; i++) {
+      data[2 * i] = r.nextInt(range);
+      data[2 * i + 1] = i;
+    }
+    return TestUtil.createTupleList(2, data);
+  }
+
+  /**
+   * Check that an IndexNestedLoopJoin returns the same multiset of tuples as
+   * the nested loops Join over the same inputs, before and after a rewind.
+   */
+  private void checkAgainstNestedLoops(Predicate.Op op, int outerRows,
+      Predicate innerFilter) throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, op, 0);
+    OpIterator scan = new SeqScan(tid, inner.getId());
+    if (innerFilter != null)
+      scan = new Filter(innerFilter, scan);
+    Join expected = new Join(pred, randomTuples(outerRows, 500), scan);
+    expected.open();
+    List<String> want = TestUtil.drain(expected);
+    expected.close();
+
+    scan = new SeqScan(tid, inner.getId());
+    if (innerFilter != null)
+      scan = new Filter(innerFilter, scan);
+    IndexNestedLoopJoin actual = new IndexNestedLoopJoin(pred,
+        randomTuples(outerRows, 500), scan);
+    actual.open();
+    assertEquals(want, TestUtil.drain(actual));
+    assertTrue(TestUtil.checkExhausted(actual));
+    actual.rewind();
+    assertEquals(want, TestUtil.drain(actual));
+    actual.close();
+  }
+
+  /**
+   * Unit test for IndexNestedLoopJoin.getTupleDesc()
+   */
+  @Test public void getTupleDesc() {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    IndexNestedLoopJoin op = new IndexNestedLoopJoin(pred, randomTuples(1, 1),
+        new SeqScan(tid, inner.getId(), "t"));
+    assertEquals(4, op.getTupleDesc().numFields());
+    assertEquals(op.getTupleDesc().getFieldName(2), op.getJoinField2Name());
+  }
+
+  /**
+   * Equality probes, including keys missing from the index
+   */
+  @Test public void eqJoin() throws Exception {
+    checkAgainstNestedLoops(Predicate.Op.EQUALS, 200, null);
+  }
+
+  /**
+   * Range probes in both directions
+   */
+  @Test public void rangeJoins() throws Exception {
+    checkAgainstNestedLoops(Predicate.Op.LESS_THAN, 10, null);
+    checkAgainstNestedLoops(Predicate.Op.GREATER_THAN_OR_EQ, 10, null);
+  }
+
+  /**
+   * Filters over the inner scan are applied to the probed tuples
+   */
+  @Test public void filteredInner() throws Exception {
+    checkAgainstNestedLoops(Predicate.Op.EQUALS, 200,
+        new Predicate(1, Predicate.Op.LESS_THAN, new IntField(200)));
+  }
+
+  /**
+   * Only scans of B+ trees keyed on the join field can be probed
+   */
+  @Test public void canProbe() throws Exception {
+    SeqScan scan = new SeqScan(tid, inner.getId());
+    assertTrue(IndexNestedLoopJoin.canProbe(scan, 0, Predicate.Op.EQUALS));
+    assertTrue(IndexNestedLoopJoin.canProbe(new Filter(new Predicate(1,
+        Predicate.Op.EQUALS, new IntField(3)), scan), 0, Predicate.Op.LESS_THAN));
+    assertFalse(IndexNestedLoopJoin.canProbe(scan, 1, Predicate.Op.EQUALS));
+    assertFalse(IndexNestedLoopJoin.canProbe(scan, 0, Predicate.Op.NOT_EQUALS));
+    assertFalse(IndexNestedLoopJoin.canProbe(randomTuples(1, 1), 0,
+        Predicate.Op.EQUALS));
+    HeapFile heap = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+    assertFalse(IndexNestedLoopJoin.canProbe(new SeqScan(tid, heap.getId()), 0,
+        Predicate.Op.EQUALS));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+  }
+}
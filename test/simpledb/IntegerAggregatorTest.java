@@ -1,11 +1,14 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
+import java.io.File;
 import java.util.NoSuchElementException;
 
 import junit.framework.JUnit4TestAdapter;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -178,6 +181,86 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  @After public void resetOperatorMemory() {
+    BufferPool.resetOperatorMemoryPages();
+  }
+
+  /**
+   * Test grouping into more groups than fit in the operator memory budget,
+   * so that most groups are spilled to disk and aggregated afterwards
+   */
+  @Test public void spillGroups() throws Exception {
+    // one page holds fewer than a hundred groups
+    BufferPool.setOperatorMemoryPages(1);
+    final int groups = 2000;
+    int[] data = new int[groups * 3 * 2];
+    for (int i = 0; i < groups * 3; i++) {
+      data[2 * i] = i % groups;
+      data[2 * i + 1] = i;
+    }
+    OpIterator scan = TestUtil.createTupleList(width1, data);
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG);
+    scan.open();
+    while (scan.hasNext())
+      agg.mergeTupleIntoGroup(scan.next());
+
+    // group g averages g, g + groups and g + 2 * groups
+    boolean[] seen = new boolean[groups];
+    OpIterator it = agg.iterator();
+    it.open();
+    for (int pass = 0; pass < 2; pass++) {
+      int count = 0;
+      while (it.hasNext()) {
+        Tuple t = it.next();
+        int g = ((IntField) t.getField(0)).getValue();
+        assertEquals(g + groups, ((IntField) t.getField(1)).getValue());
+        assertFalse(seen[g] && pass == 0);
+        seen[g] = true;
+        count++;
+      }
+      assertEquals(groups, count);
+      it.rewind();
+    }
+  }
+
+  /**
+   * @return the number of spill files in the temp directory
+   */
+  private static int spillFiles() {
+    File[] files = new File(System.getProperty("java.io.tmpdir")).listFiles(
+        (dir, name) -> name.startsWith("spill") && name.endsWith(".dat"));
+    return files == null ? 0 : files.length;
+  }
+
+  /**
+   * The files an Aggregate spills groups to, including those of the
+   * partitions spilled again, are deleted by the time it is closed
+   */
+  @Test public void spillFilesDeleted() throws Exception {
+    // so few pages that each spilled partition spills again
+    BufferPool.setOperatorMemoryPages(1);
+    final int groups = 20000;
+    int[] data = new int[groups * 2];
+    for (int i = 0; i < groups; i++) {
+      data[2 * i] = i;
+      data[2 * i + 1] = i;
+    }
+    int before = spillFiles();
+    Aggregate agg = new Aggregate(TestUtil.createTupleList(width1, data), 1, 0, Aggregator.Op.SUM);
+    agg.open();
+    for (int pass = 0; pass < 2; pass++) {
+      int count = 0;
+      while (agg.hasNext()) {
+        agg.next();
+        count++;
+      }
+      assertEquals(groups, count);
+      agg.rewind();
+    }
+    agg.close();
+    assertEquals(before, spillFiles());
+  }
+
   /**
    * JUnit suite target
    */
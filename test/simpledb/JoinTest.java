@@ -5,6 +5,7 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -53,6 +54,10 @@ public class JoinTest extends SimpleDbTestBase {
                     7, 8, 5, 6, 7 });
   }
 
+  @After public void resetOperatorMemory() {
+    BufferPool.resetOperatorMemoryPages();
+  }
+
   /**
    * Unit test for Join.getTupleDesc()
    */
@@ -105,6 +110,37 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Unit test for Join.getNext() with an outer relation larger than one
+   * block, using a != predicate
+   */
+  @Test public void blockJoin() throws Exception {
+    // one page holds a block of 512 two-int tuples
+    BufferPool.setOperatorMemoryPages(1);
+    int rows = 1500;
+    int[] data = new int[rows * 2];
+    for (int i = 0; i < rows; i++) {
+      data[2 * i] = i % 10;
+      data[2 * i + 1] = i;
+    }
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0);
+    Join op = new Join(pred, TestUtil.createTupleList(width1, data), scan2);
+    op.open();
+    for (int pass = 0; pass < 2; pass++) {
+      int count = 0;
+      while (op.hasNext()) {
+        Tuple t = op.next();
+        assertTrue(((IntField) t.getField(0)).getValue()
+            != ((IntField) t.getField(width1)).getValue());
+        count++;
+      }
+      // keys 1..5 of scan2 each match 150 outer rows
+      assertEquals(rows * 5 - 150 * 5, count);
+      op.rewind();
+    }
+    op.close();
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,121 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class KeyHashTableTest extends SimpleDbTestBase {
+
+  /**
+   * Unit test for KeyHashTable.create()
+   */
+  @Test public void create() {
+    assertTrue(KeyHashTable.create(Type.INT_TYPE) instanceof IntKeyHashTable);
+    assertTrue(KeyHashTable.create(Type.STRING_TYPE) instanceof StringKeyHashTable);
+  }
+
+  /**
+   * Keys get dense ordinals in insertion order, across several rehashes
+   */
+  @Test public void intOrdinals() {
+    KeyHashTable<Void> table = KeyHashTable.create(Type.INT_TYPE);
+    for (int i = 0; i < 10000; i++)
+      assertEquals(i, table.findOrInsert(new IntField(i * 7 - 5000)));
+    assertEquals(10000, table.size());
+    for (int i = 0; i < 10000; i++) {
+      assertEquals(i, table.find(new IntField(i * 7 - 5000)));
+      assertEquals(new IntField(i * 7 - 5000), table.getKey(i));
+    }
+    assertEquals(KeyHashTable.NONE, table.find(new IntField(1)));
+  }
+
+  @Test public void stringOrdinals() {
+    KeyHashTable<Void> table = KeyHashTable.create(Type.STRING_TYPE);
+    for (int i = 0; i < 1000; i++)
+      assertEquals(i, table.findOrInsert(new StringField("key" + i, Type.STRING_LEN)));
+    assertEquals(5, table.findOrInsert(new StringField("key5", Type.STRING_LEN)));
+    assertEquals(1000, table.size());
+    assertEquals(999, table.find(new StringField("key999", Type.STRING_LEN)));
+    assertEquals(KeyHashTable.NONE, table.find(new StringField("nokey", Type.STRING_LEN)));
+    assertEquals(new StringField("key42", Type.STRING_LEN), table.getKey(42));
+  }
+
+  /**
+   * Payloads of a key are chained in insertion order
+   */
+  @Test public void payloadChains() {
+    KeyHashTable<Integer> table = KeyHashTable.create(Type.INT_TYPE);
+    for (int i = 0; i < 300; i++)
+      table.add(new IntField(i % 3), i);
+    assertEquals(3, table.size());
+    assertEquals(300, table.payloadCount());
+
+    int expected = 1;
+    int entry = table.firstPayload(table.find(new IntField(1)));
+    while (entry != KeyHashTable.NONE) {
+      assertEquals(expected, (int) table.getPayload(entry));
+      expected += 3;
+      entry = table.nextPayload(entry);
+    }
+    assertEquals(301, expected);
+    assertEquals(KeyHashTable.NONE, table.firstPayload(table.find(new IntField(3))));
+  }
+
+  /**
+   * Unit test for KeyHashTable.clear()
+   */
+  @Test public void clear() {
+    KeyHashTable<Integer> table = KeyHashTable.create(Type.INT_TYPE);
+    for (int i = 0; i < 500; i++)
+      table.add(new IntField(i), i);
+    table.clear();
+    assertEquals(0, table.size());
+    assertEquals(0, table.payloadCount());
+    assertEquals(KeyHashTable.NONE, table.find(new IntField(7)));
+    assertEquals(0, table.add(new IntField(7), 7));
+    assertEquals(7, (int) table.getPayload(table.firstPayload(0)));
+  }
+
+  /**
+   * Clearing a table that grew large leaves it empty and usable for many
+   * small runs of keys, for every key type
+   */
+  @Test public void clearAfterGrowth() {
+    KeyHashTable<Void> ints = KeyHashTable.create(Type.INT_TYPE);
+    KeyHashTable<Void> strings = KeyHashTable.create(Type.STRING_TYPE);
+    KeyHashTable<Void> rows = new RowKeyHashTable<Void>();
+    for (KeyHashTable<Void> table : Arrays.asList(ints, strings, rows)) {
+      boolean isString = table == strings;
+      for (int i = 0; i < 5000; i++)
+        table.findOrInsert(key(isString, i));
+      for (int run = 0; run < 20; run++) {
+        table.clear();
+        assertEquals(0, table.size());
+        assertEquals(KeyHashTable.NONE, table.find(key(isString, 4999)));
+        for (int i = 0; i < 10; i++)
+          assertEquals(i, table.findOrInsert(key(isString, run * 10 + i)));
+        for (int i = 0; i < 10; i++)
+          assertEquals(i, table.find(key(isString, run * 10 + i)));
+        assertEquals(KeyHashTable.NONE, table.find(key(isString, run * 10 + 10)));
+      }
+    }
+  }
+
+  private static Field key(boolean isString, int i) {
+    return isString ? new StringField("key" + i, Type.STRING_LEN) : new IntField(i);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(KeyHashTableTest.class);
+  }
+}
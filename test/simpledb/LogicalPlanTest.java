@@ -0,0 +1,233 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogicalPlanTest extends SimpleDbTestBase {
+
+  private static final String[] TABLES = new String[] { "pa", "pb", "pc" };
+  private Map<String, ArrayList<ArrayList<Integer>>> tuples;
+
+  /**
+   * Create three tables of four columns c0..c3 with values in [0, 20)
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    tuples = new HashMap<String, ArrayList<ArrayList<Integer>>>();
+    for (String name : TABLES) {
+      ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+      HeapFile f = SystemTestUtil.createRandomHeapFile(4, 200, 20, null, rows, "c");
+      Database.getCatalog().addTable(f, name);
+      TableStats.setTableStats(name, new TableStats(f.getId(), 19));
+      tuples.put(name, rows);
+    }
+  }
+
+  private static OpIterator plan(TransactionId tid, String sql) throws Exception {
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid, sql);
+    return lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+  }
+
+  private static int count(OpIterator it) throws Exception {
+    int n = 0;
+    it.open();
+    while (it.hasNext()) {
+      it.next();
+      n++;
+    }
+    it.close();
+    return n;
+  }
+
+  private static Map<String, SeqScan> scans(OpIterator plan, Map<String, SeqScan> out) {
+    if (plan instanceof SeqScan)
+      out.put(((SeqScan) plan).getAlias(), (SeqScan) plan);
+    else if (plan instanceof Operator) {
+      for (OpIterator child : ((Operator) plan).getChildren())
+        scans(child, out);
+    }
+    return out;
+  }
+
+  /**
+   * Scans return only the columns the query uses
+   */
+  @Test public void projectionPushdown() throws Exception {
+    TransactionId tid = new TransactionId();
+    OpIterator plan = plan(tid, "SELECT pa.c1 FROM pa, pb WHERE pa.c0 = pb.c0 AND pb.c2 < 5;");
+    Map<String, SeqScan> scans = scans(plan, new HashMap<String, SeqScan>());
+    assertArrayEquals(new int[] { 0, 1 }, scans.get("pa").getColumns());
+    assertArrayEquals(new int[] { 0, 2 }, scans.get("pb").getColumns());
+
+    int want = 0;
+    for (List<Integer> a : tuples.get("pa")) {
+      for (List<Integer> b : tuples.get("pb")) {
+        if (a.get(0).equals(b.get(0)) && b.get(2) < 5)
+          want++;
+      }
+    }
+    assertEquals(want, count(plan));
+
+    plan = plan(tid, "SELECT COUNT(pa.c3) FROM pa GROUP BY pa.c2;");
+    assertArrayEquals(new int[] { 2, 3 }, ((SeqScan) TestUtil.find(plan, SeqScan.class)).getColumns());
+
+    plan = plan(tid, "SELECT * FROM pa WHERE pa.c1 < 5;");
+    assertNull(((SeqScan) TestUtil.find(plan, SeqScan.class)).getColumns());
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * An expression over two tables is applied right above the join that
+   * brings them together
+   */
+  @Test public void filterPushdown() throws Exception {
+    TransactionId tid = new TransactionId();
+    OpIterator plan = plan(tid, "SELECT pa.c1 FROM pa, pb, pc WHERE pa.c0 = pb.c0 "
+        + "AND pb.c1 = pc.c1 AND pa.c2 + pb.c2 > 30;");
+    Filter f = (Filter) TestUtil.find(plan, Filter.class);
+    assertNotNull(f);
+    assertNull(f.getPredicate());
+    // the filter's input is the first join that contains both pa and pb
+    OpIterator join = f.getChildren()[0];
+    assertTrue(join instanceof HashEquiJoin || join instanceof Join
+        || join instanceof SortMergeJoin || join instanceof IndexNestedLoopJoin);
+    int tables = 0;
+    for (OpIterator child : ((Operator) join).getChildren()) {
+      TupleDesc td = child.getTupleDesc();
+      boolean hasA = false, hasB = false;
+      for (int i = 0; i < td.numFields(); i++) {
+        hasA |= td.getFieldName(i).startsWith("pa.");
+        hasB |= td.getFieldName(i).startsWith("pb.");
+      }
+      assertTrue(!(hasA && hasB));
+      tables += (hasA || hasB) ? 1 : 0;
+    }
+    assertEquals(2, tables);
+
+    int want = 0;
+    for (List<Integer> a : tuples.get("pa")) {
+      for (List<Integer> b : tuples.get("pb")) {
+        if (!a.get(0).equals(b.get(0)) || a.get(2) + b.get(2) <= 30)
+          continue;
+        for (List<Integer> c : tuples.get("pc")) {
+          if (b.get(1).equals(c.get(1)))
+            want++;
+        }
+      }
+    }
+    assertEquals(want, count(plan));
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * A selective filter on the key of a B+ tree file becomes an index range
+   * scan; an unselective one does not
+   */
+  @Test public void indexSelection() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    BTreeFile f = BTreeUtility.createRandomBTreeFile(3, 5000, 1000, null, rows, 1);
+    f = new BTreeFile(f.getFile(), 1, Utility.getTupleDesc(3, "c"));
+    Database.getCatalog().addTable(f, "bt");
+    TransactionId tid = new TransactionId();
+
+    TableStats.setTableStats("bt", new TestUtil.FixedStats(f.getId(), f.numPages(), rows.size(), 0.01));
+    OpIterator plan = plan(tid, "SELECT bt.c2 FROM bt WHERE bt.c1 < 20 AND bt.c0 > 500;");
+    BTreeScan scan = (BTreeScan) TestUtil.find(plan, BTreeScan.class);
+    assertNotNull(scan);
+    assertNull(TestUtil.find(plan, SeqScan.class));
+    assertEquals(Predicate.Op.LESS_THAN, scan.getIndexPredicate().getOp());
+    assertEquals(new IntField(20), scan.getIndexPredicate().getField());
+    assertNull(scan.getColumns());
+    // the key range is not filtered again; the other filter is
+    Filter filter = (Filter) TestUtil.find(plan, Filter.class);
+    assertEquals(scan, filter.getChildren()[0]);
+    assertEquals(Predicate.Op.GREATER_THAN, filter.getPredicate().getOp());
+
+    int want = 0;
+    for (List<Integer> r : rows) {
+      if (r.get(1) < 20 && r.get(0) > 500)
+        want++;
+    }
+    assertEquals(want, count(plan));
+
+    plan = plan(tid, "SELECT bt.c2 FROM bt WHERE bt.c1 = 7;");
+    want = 0;
+    for (List<Integer> r : rows) {
+      if (r.get(1) == 7)
+        want++;
+    }
+    scan = (BTreeScan) TestUtil.find(plan, BTreeScan.class);
+    assertArrayEquals(new int[] { 1, 2 }, scan.getColumns());
+    assertEquals(want, count(plan));
+
+    // reading most of the range costs more than scanning the file
+    TableStats.setTableStats("bt", new TestUtil.FixedStats(f.getId(), f.numPages(), rows.size(), 0.9));
+    plan = plan(tid, "SELECT bt.c2 FROM bt WHERE bt.c1 > 20;");
+    assertNull(TestUtil.find(plan, BTreeScan.class));
+    assertNotNull(TestUtil.find(plan, SeqScan.class));
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * A join probes the B+ tree on its inner key only when the optimizer costs
+   * the probes below a hash join, and the plan holds the join it costed
+   */
+  @Test public void indexJoinSelection() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    // c0 runs 1..5000, so each outer tuple matches at most one inner tuple
+    BTreeFile f = BTreeUtility.createBTreeFile(3, 5000, null, rows, 0);
+    f = new BTreeFile(f.getFile(), 0, Utility.getTupleDesc(3, "c"));
+    Database.getCatalog().addTable(f, "bt", "c0");
+    TableStats.setTableStats("bt", new TestUtil.FixedStats(f.getId(), f.numPages(), rows.size(), 1.0));
+    HeapFile pa = (HeapFile) Database.getCatalog().getDatabaseFile(
+        Database.getCatalog().getTableId("pa"));
+    TransactionId tid = new TransactionId();
+    String sql = "SELECT pa.c0, bt.c2 FROM pa, bt WHERE pa.c1 = bt.c0 AND pa.c2 = 3;";
+
+    // a handful of outer tuples: one descent each beats reading bt
+    TableStats.setTableStats("pa", new TestUtil.FixedStats(pa.getId(), pa.numPages(), 200, 0.005));
+    OpIterator plan = plan(tid, sql);
+    assertNotNull(TestUtil.find(plan, IndexNestedLoopJoin.class));
+    assertNull(TestUtil.find(plan, HashEquiJoin.class));
+    int want = 0;
+    for (List<Integer> a : tuples.get("pa")) {
+      for (List<Integer> b : rows) {
+        if (a.get(2) == 3 && a.get(1).equals(b.get(0)))
+          want++;
+      }
+    }
+    assertEquals(want, count(plan));
+
+    // the filter keeps every outer tuple: probing once per tuple costs more
+    // than one scan of bt, so the join hashes it
+    TableStats.setTableStats("pa", new TestUtil.FixedStats(pa.getId(), pa.numPages(), 200, 1.0));
+    plan = plan(tid, sql);
+    assertNull(TestUtil.find(plan, IndexNestedLoopJoin.class));
+    assertNotNull(TestUtil.find(plan, HashEquiJoin.class));
+    assertEquals(want, count(plan));
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LogicalPlanTest.class);
+  }
+}
@@ -0,0 +1,303 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+
+  private ArrayList<ArrayList<Integer>> rows;
+  private HeapFile heap;
+  private SecondaryIndex index;
+
+  /**
+   * Create a heap file of three columns c0..c2 with an index on c1
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    rows = new ArrayList<ArrayList<Integer>>();
+    heap = SystemTestUtil.createRandomHeapFile(3, 2000, 100, null, rows, "c");
+    Database.getCatalog().addTable(heap, "h");
+    File f = File.createTempFile("h_c1", ".idx");
+    f.deleteOnExit();
+    index = SecondaryIndex.create(heap.getId(), 1, f);
+  }
+
+  private static List<List<Integer>> read(DbFileIterator it) throws Exception {
+    List<List<Integer>> got = new ArrayList<List<Integer>>();
+    it.open();
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      List<Integer> row = new ArrayList<Integer>();
+      for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+        row.add(((IntField) t.getField(i)).getValue());
+      got.add(row);
+    }
+    it.close();
+    return got;
+  }
+
+  private List<List<Integer>> matching(List<? extends List<Integer>> all, int field, Predicate.Op op, int c) {
+    List<List<Integer>> want = new ArrayList<List<Integer>>();
+    for (List<Integer> r : all) {
+      if (new IntField(r.get(field)).compare(op, new IntField(c)))
+        want.add(r);
+    }
+    return want;
+  }
+
+  private static void assertSameRows(List<List<Integer>> want, List<List<Integer>> got, int field) {
+    for (int i = 1; i < got.size(); i++)
+      assertTrue(got.get(i - 1).get(field) <= got.get(i).get(field));
+    Collections.sort(want, ROWS);
+    Collections.sort(got, ROWS);
+    assertEquals(want, got);
+  }
+
+  private static final java.util.Comparator<List<Integer>> ROWS = new java.util.Comparator<List<Integer>>() {
+    public int compare(List<Integer> a, List<Integer> b) {
+      for (int i = 0; i < a.size(); i++) {
+        int c = a.get(i).compareTo(b.get(i));
+        if (c != 0)
+          return c;
+      }
+      return 0;
+    }
+  };
+
+  /**
+   * The index of a heap file returns the matching tuples in key order
+   */
+  @Test public void heapLookup() throws Exception {
+    assertEquals(1, Database.getCatalog().getIndexes(heap.getId()).size());
+    assertEquals("h_c1_idx", index.getName());
+    TransactionId tid = new TransactionId();
+    assertSameRows(matching(rows, 1, Predicate.Op.EQUALS, 42),
+        read(index.iterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(42)))), 1);
+    assertSameRows(matching(rows, 1, Predicate.Op.LESS_THAN, 10),
+        read(index.iterator(tid, new IndexPredicate(Predicate.Op.LESS_THAN, new IntField(10)))), 1);
+    assertSameRows(matching(rows, 1, Predicate.Op.GREATER_THAN_OR_EQ, 0),
+        read(index.iterator(tid, null)), 1);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Inserts and deletes through the buffer pool keep the index up to date
+   */
+  @Test public void maintenance() throws Exception {
+    TransactionId tid = new TransactionId();
+    List<List<Integer>> all = new ArrayList<List<Integer>>(rows);
+    for (int i = 0; i < 50; i++) {
+      Tuple t = new Tuple(heap.getTupleDesc());
+      t.setField(0, new IntField(i));
+      t.setField(1, new IntField(1000));
+      t.setField(2, new IntField(-i));
+      Database.getBufferPool().insertTuple(tid, heap.getId(), t);
+      all.add(java.util.Arrays.asList(i, 1000, -i));
+    }
+    // delete every tuple with c1 < 20, found by a scan of the heap file
+    DbFileIterator it = heap.iterator(tid);
+    List<Tuple> doomed = new ArrayList<Tuple>();
+    it.open();
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      if (((IntField) t.getField(1)).getValue() < 20)
+        doomed.add(t);
+    }
+    it.close();
+    for (Tuple t : doomed)
+      Database.getBufferPool().deleteTuple(tid, t);
+    List<List<Integer>> left = matching(all, 1, Predicate.Op.GREATER_THAN_OR_EQ, 20);
+    Database.getBufferPool().transactionComplete(tid);
+
+    tid = new TransactionId();
+    assertSameRows(left, read(index.iterator(tid, null)), 1);
+    assertSameRows(matching(left, 1, Predicate.Op.EQUALS, 1000),
+        read(index.iterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(1000)))), 1);
+    assertEquals(left.size(), read(index.getFile().iterator(tid)).size());
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * An index of a B+ tree file refers to tuples by primary key
+   */
+  @Test public void btreeLookup() throws Exception {
+    ArrayList<ArrayList<Integer>> brows = new ArrayList<ArrayList<Integer>>();
+    BTreeFile bf = BTreeUtility.createRandomBTreeFile(3, 3000, 200, null, brows, 0);
+    Database.getCatalog().addTable(bf, "b");
+    File f = File.createTempFile("b_c2", ".idx");
+    f.deleteOnExit();
+    SecondaryIndex bindex = SecondaryIndex.create(bf.getId(), 2, f);
+    assertEquals(2, bindex.getFile().getTupleDesc().numFields());
+
+    TransactionId tid = new TransactionId();
+    assertSameRows(matching(brows, 2, Predicate.Op.EQUALS, 17),
+        read(bindex.iterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(17)))), 2);
+    assertSameRows(matching(brows, 2, Predicate.Op.LESS_THAN_OR_EQ, 30),
+        read(bindex.iterator(tid, new IndexPredicate(Predicate.Op.LESS_THAN_OR_EQ, new IntField(30)))), 2);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * The planner reads a selective filter's tuples through the index, and
+   * scans the table for an unselective one
+   */
+  @Test public void planner() throws Exception {
+    TransactionId tid = new TransactionId();
+    TableStats.setTableStats("h", new TestUtil.FixedStats(heap.getId(), heap.numPages(), rows.size(), 0.001));
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid, "SELECT h.c0 FROM h WHERE h.c1 = 42 AND h.c2 > 50;");
+    OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    SecondaryIndexScan scan = (SecondaryIndexScan) TestUtil.find(plan, SecondaryIndexScan.class);
+    assertNotNull(scan);
+    assertEquals(index, scan.getIndex());
+    assertEquals(Predicate.Op.EQUALS, scan.getIndexPredicate().getOp());
+    assertNull(TestUtil.find(plan, SeqScan.class));
+    List<List<Integer>> want = new ArrayList<List<Integer>>();
+    for (List<Integer> r : matching(matching(rows, 1, Predicate.Op.EQUALS, 42), 2, Predicate.Op.GREATER_THAN, 50))
+      want.add(Collections.singletonList(r.get(0)));
+    List<List<Integer>> got = new ArrayList<List<Integer>>();
+    plan.open();
+    while (plan.hasNext())
+      got.add(Collections.singletonList(((IntField) plan.next().getField(0)).getValue()));
+    plan.close();
+    Collections.sort(want, ROWS);
+    Collections.sort(got, ROWS);
+    assertEquals(want, got);
+
+    TableStats.setTableStats("h", new TestUtil.FixedStats(heap.getId(), heap.numPages(), rows.size(), 0.5));
+    lp = new Parser().generateLogicalPlan(tid, "SELECT h.c0 FROM h WHERE h.c1 < 50;");
+    plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertNull(TestUtil.find(plan, SecondaryIndexScan.class));
+    assertNotNull(TestUtil.find(plan, SeqScan.class));
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * An index with included columns returns them without reading the table,
+   * and keeps them up to date
+   */
+  @Test public void coveringLookup() throws Exception {
+    File f = File.createTempFile("h_c2", ".idx");
+    f.deleteOnExit();
+    SecondaryIndex cover = SecondaryIndex.create(heap.getId(), 2, new int[] { 0 }, f);
+    assertTrue(cover.covers(new int[] { 2, 0 }));
+    assertFalse(cover.covers(new int[] { 1 }));
+    assertFalse(index.covers(new int[] { 1, 2 }));
+
+    TransactionId tid = new TransactionId();
+    Tuple t = new Tuple(heap.getTupleDesc());
+    t.setField(0, new IntField(7));
+    t.setField(1, new IntField(8));
+    t.setField(2, new IntField(10));
+    Database.getBufferPool().insertTuple(tid, heap.getId(), t);
+    List<List<Integer>> all = new ArrayList<List<Integer>>(rows);
+    all.add(java.util.Arrays.asList(7, 8, 10));
+    Database.getBufferPool().transactionComplete(tid);
+
+    tid = new TransactionId();
+    List<List<Integer>> want = new ArrayList<List<Integer>>();
+    for (List<Integer> r : matching(all, 2, Predicate.Op.LESS_THAN_OR_EQ, 10))
+      want.add(java.util.Arrays.asList(r.get(2), r.get(0)));
+    DbFileIterator it = cover.coveringIterator(tid,
+        new IndexPredicate(Predicate.Op.LESS_THAN_OR_EQ, new IntField(10)), new int[] { 2, 0 });
+    assertSameRows(want, read(it), 0);
+    assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(heap.getId(), 0)));
+
+    // the tuples keep their record ids, so they can be deleted
+    it.open();
+    Tuple found = it.next();
+    it.close();
+    Database.getBufferPool().deleteTuple(tid, found);
+    assertEquals(want.size() - 1, read(cover.coveringIterator(tid,
+        new IndexPredicate(Predicate.Op.LESS_THAN_OR_EQ, new IntField(10)), new int[] { 2 })).size());
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  private static int count(OpIterator plan) throws Exception {
+    int n = 0;
+    plan.open();
+    while (plan.hasNext()) {
+      plan.next();
+      n++;
+    }
+    plan.close();
+    return n;
+  }
+
+  /**
+   * The planner answers queries from a covering index without reading the
+   * table: filtered and unfiltered aggregates, and projections
+   */
+  @Test public void coveringPlanner() throws Exception {
+    ArrayList<ArrayList<Integer>> wrows = new ArrayList<ArrayList<Integer>>();
+    HeapFile wide = SystemTestUtil.createRandomHeapFile(10, 2000, 100, null, wrows, "c");
+    Database.getCatalog().addTable(wide, "w");
+    File f = File.createTempFile("w_c1", ".idx");
+    f.deleteOnExit();
+    SecondaryIndex cover = SecondaryIndex.create(wide.getId(), 1, new int[] { 2 }, f);
+    TableStats.setTableStats("w", new TestUtil.FixedStats(wide.getId(), wide.numPages(), wrows.size(), 0.01));
+    HeapPageId first = new HeapPageId(wide.getId(), 0);
+
+    TransactionId tid = new TransactionId();
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid, "SELECT SUM(w.c2) FROM w WHERE w.c1 < 5;");
+    OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    SecondaryIndexScan scan = (SecondaryIndexScan) TestUtil.find(plan, SecondaryIndexScan.class);
+    assertNotNull(scan);
+    assertEquals(cover, scan.getIndex());
+    assertTrue(scan.isCovering());
+    int sum = 0;
+    for (List<Integer> r : matching(wrows, 1, Predicate.Op.LESS_THAN, 5))
+      sum += r.get(2);
+    plan.open();
+    assertEquals(sum, ((IntField) plan.next().getField(0)).getValue());
+    plan.close();
+    assertFalse(Database.getBufferPool().holdsLock(tid, first));
+
+    // with no filter, the index is read because it is smaller than the table
+    lp = new Parser().generateLogicalPlan(tid, "SELECT COUNT(w.c1) FROM w;");
+    plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    scan = (SecondaryIndexScan) TestUtil.find(plan, SecondaryIndexScan.class);
+    assertNotNull(scan);
+    assertNull(scan.getIndexPredicate());
+    assertTrue(scan.isCovering());
+    plan.open();
+    assertEquals(wrows.size(), ((IntField) plan.next().getField(0)).getValue());
+    plan.close();
+    assertFalse(Database.getBufferPool().holdsLock(tid, first));
+
+    // other columns come from the table
+    TableStats.setTableStats("w", new TestUtil.FixedStats(wide.getId(), wide.numPages(), wrows.size(), 0.001));
+    lp = new Parser().generateLogicalPlan(tid, "SELECT w.c2, w.c3 FROM w WHERE w.c1 = 5;");
+    plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    scan = (SecondaryIndexScan) TestUtil.find(plan, SecondaryIndexScan.class);
+    assertFalse(scan.isCovering());
+    assertEquals(matching(wrows, 1, Predicate.Op.EQUALS, 5).size(), count(plan));
+    boolean locked = false;
+    for (int i = 0; i < wide.numPages(); i++)
+      locked |= Database.getBufferPool().holdsLock(tid, new HeapPageId(wide.getId(), i));
+    assertTrue(locked || matching(wrows, 1, Predicate.Op.EQUALS, 5).isEmpty());
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SecondaryIndexTest.class);
+  }
+}
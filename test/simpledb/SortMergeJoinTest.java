@@ -0,0 +1,145 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+  @After public void resetOperatorMemory() {
+    BufferPool.resetOperatorMemoryPages();
+  }
+
+  /**
+   * Build a width-2 tuple list of random values in [0, range) in the first
+   * column, numbering the rows in the second.
+   */
+  private static TupleIterator randomTuples(int rows, int range, long seed) {
+    Random r = new Random(seed);
+    int[] data = new int[rows * 2];
+    for (int i = 0; i < rows; i++) {
+      data[2 * i] = r.nextInt(range);
+      data[2 * i + 1] = i;
+    }
+    return TestUtil.createTupleList(2, data);
+  }
+
+  /**
+   * Check that a SortMergeJoin returns the same multiset of tuples as the
+   * nested loops Join over the same inputs, before and after a rewind.
+   */
+  private void checkAgainstNestedLoops(Predicate.Op op, int rows1, int rows2,
+      int range) throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, op, 0);
+    Join expected = new Join(pred, randomTuples(rows1, range, 1),
+        randomTuples(rows2, range, 2));
+    expected.open();
+    List<String> want = TestUtil.drain(expected);
+    expected.close();
+
+    SortMergeJoin actual = new SortMergeJoin(pred, randomTuples(rows1, range, 1),
+        randomTuples(rows2, range, 2));
+    actual.open();
+    assertEquals(want, TestUtil.drain(actual));
+    assertTrue(TestUtil.checkExhausted(actual));
+    actual.rewind();
+    assertEquals(want, TestUtil.drain(actual));
+    actual.close();
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getTupleDesc()
+   */
+  @Test public void getTupleDesc() {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, randomTuples(1, 1, 1),
+        TestUtil.createTupleList(3, new int[] { 1, 2, 3 }));
+    assertEquals(Utility.getTupleDesc(5), op.getTupleDesc());
+  }
+
+  /**
+   * Equality merge with duplicate keys on both sides
+   */
+  @Test public void eqJoin() throws Exception {
+    checkAgainstNestedLoops(Predicate.Op.EQUALS, 300, 200, 40);
+  }
+
+  /**
+   * Equality merge whose inputs and duplicate groups exceed memory
+   */
+  @Test public void eqJoinSpilled() throws Exception {
+    BufferPool.setOperatorMemoryPages(1);
+    checkAgainstNestedLoops(Predicate.Op.EQUALS, 300, 1100, 2);
+  }
+
+  /**
+   * Range predicates in both directions
+   */
+  @Test public void rangeJoins() throws Exception {
+    checkAgainstNestedLoops(Predicate.Op.LESS_THAN, 200, 150, 100);
+    checkAgainstNestedLoops(Predicate.Op.LESS_THAN_OR_EQ, 200, 150, 100);
+    checkAgainstNestedLoops(Predicate.Op.GREATER_THAN, 200, 150, 100);
+    checkAgainstNestedLoops(Predicate.Op.GREATER_THAN_OR_EQ, 200, 150, 100);
+  }
+
+  /**
+   * Predicates that cannot be evaluated by merging are rejected
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void notEquals() {
+    new SortMergeJoin(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0),
+        randomTuples(1, 1, 1), randomTuples(1, 1, 2));
+  }
+
+  /**
+   * Two B+ tree files joined on their keys are merged without sorting
+   */
+  @Test public void btreeInputs() throws Exception {
+    BTreeFile f1 = BTreeUtility.createRandomBTreeFile(2, 2000, 500, null, null, 0);
+    BTreeFile f2 = BTreeUtility.createRandomBTreeFile(2, 1000, 500, null, null, 0);
+    TransactionId tid = new TransactionId();
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+
+    assertTrue(SortMergeJoin.isSortedOn(new SeqScan(tid, f1.getId()), 0, true));
+    assertFalse(SortMergeJoin.isSortedOn(new SeqScan(tid, f1.getId()), 1, true));
+    assertFalse(SortMergeJoin.isSortedOn(new SeqScan(tid, f1.getId()), 0, false));
+
+    HashEquiJoin expected = new HashEquiJoin(pred, new SeqScan(tid, f1.getId()),
+        new SeqScan(tid, f2.getId()));
+    expected.open();
+    List<String> want = TestUtil.drain(expected);
+    expected.close();
+
+    SortMergeJoin actual = new SortMergeJoin(pred, new SeqScan(tid, f1.getId()),
+        new SeqScan(tid, f2.getId()));
+    actual.open();
+    assertNull(actual.sort1);
+    assertNull(actual.sort2);
+    assertEquals(want, TestUtil.drain(actual));
+    actual.close();
+
+    // the merge output stays ordered on the key, so it can feed another merge
+    assertTrue(SortMergeJoin.isSortedOn(actual, 0, true));
+    assertTrue(SortMergeJoin.isSortedOn(actual, 2, true));
+    assertFalse(SortMergeJoin.isSortedOn(actual, 1, true));
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SortMergeJoinTest.class);
+  }
+}
@@ -149,6 +149,73 @@ public class TestUtil {
         }
     }
 
+    /**
+     * Read the rest of an opened iterator.
+     *
+     * @return the string form of every tuple left, sorted, so that the
+     *         output of operators which return the same multiset of tuples
+     *         in different orders compares equal
+     */
+    public static List<String> drain(OpIterator it)
+            throws DbException, TransactionAbortedException {
+        List<String> out = new ArrayList<String>();
+        while (it.hasNext())
+            out.add(it.next().toString());
+        Collections.sort(out);
+        return out;
+    }
+
+    /**
+     * @return the first operator of the given class in a plan, in pre-order,
+     *         or null if there is none
+     */
+    public static OpIterator find(OpIterator plan, Class<?> c) {
+        if (c.isInstance(plan))
+            return plan;
+        if (plan instanceof Operator) {
+            for (OpIterator child : ((Operator) plan).getChildren()) {
+                OpIterator found = find(child, c);
+                if (found != null)
+                    return found;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Statistics with a fixed selectivity for every predicate, for tests
+     * that steer the planner's choice of access method.
+     */
+    public static class FixedStats extends TableStats {
+        private final int pages, rows;
+        private final double sel;
+
+        /**
+         * @param tableId the table the statistics are for
+         * @param pages the number of pages a scan of the table reads
+         * @param rows the number of tuples in the table
+         * @param sel the selectivity of every predicate
+         */
+        public FixedStats(int tableId, int pages, int rows, double sel) {
+            super(tableId, 1000);
+            this.pages = pages;
+            this.rows = rows;
+            this.sel = sel;
+        }
+
+        public double estimateScanCost() {
+            return 1000.0 * pages;
+        }
+
+        public int estimateTableCardinality(double selectivityFactor) {
+            return (int) (rows * selectivityFactor);
+        }
+
+        public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
+            return sel;
+        }
+    }
+
     /**
      * Verifies that the OpIterator has been exhausted of all elements.
      */
@@ -0,0 +1,135 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class TopNTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  OpIterator scan1;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTupleList() throws Exception {
+    this.scan1 = TestUtil.createTupleList(width1,
+        new int[] { 5, 0,
+                    3, 1,
+                    9, 2,
+                    1, 3,
+                    7, 4,
+                    3, 5,
+                    8, 6 });
+  }
+
+  @After public void resetOperatorMemory() {
+    BufferPool.resetOperatorMemoryPages();
+  }
+
+  /**
+   * Unit test for TopN.getTupleDesc()
+   */
+  @Test public void getTupleDesc() {
+    TopN op = new TopN(0, true, 3, 0, scan1);
+    assertEquals(scan1.getTupleDesc(), op.getTupleDesc());
+  }
+
+  /**
+   * Unit test for TopN with an ascending sort and no offset
+   */
+  @Test public void topAscending() throws Exception {
+    TopN op = new TopN(0, true, 3, 0, scan1);
+    op.open();
+    OpIterator expected = TestUtil.createTupleList(width1,
+        new int[] { 1, 3, 3, 1, 3, 5 });
+    expected.open();
+    while (expected.hasNext())
+      assertEquals(((IntField) expected.next().getField(0)).getValue(),
+          ((IntField) op.next().getField(0)).getValue());
+    assertTrue(TestUtil.checkExhausted(op));
+  }
+
+  /**
+   * Unit test for TopN with a descending sort and an offset
+   */
+  @Test public void topDescendingOffset() throws Exception {
+    TopN op = new TopN(0, false, 2, 1, scan1);
+    op.open();
+    OpIterator expected = TestUtil.createTupleList(width1,
+        new int[] { 8, 6, 7, 4 });
+    expected.open();
+    TestUtil.compareDbIterators(expected, op);
+
+    // the same tuples again after a rewind
+    op.rewind();
+    expected.rewind();
+    TestUtil.compareDbIterators(expected, op);
+  }
+
+  /**
+   * A limit larger than the memory budget falls back to an external sort
+   */
+  @Test public void largeLimit() throws Exception {
+    BufferPool.setOperatorMemoryPages(1);
+    int rows = 3000;
+    int[] data = new int[rows * 2];
+    for (int i = 0; i < rows; i++) {
+      data[2 * i] = (i * 7919) % rows;
+      data[2 * i + 1] = i;
+    }
+    TopN op = new TopN(0, true, 2000, 500, TestUtil.createTupleList(width1, data));
+    op.open();
+    for (int i = 500; i < 2500; i++)
+      assertEquals(i, ((IntField) op.next().getField(0)).getValue());
+    assertTrue(TestUtil.checkExhausted(op));
+  }
+
+  /**
+   * A zero limit returns nothing
+   */
+  @Test public void zeroLimit() throws Exception {
+    TopN op = new TopN(0, true, 0, 0, scan1);
+    op.open();
+    assertTrue(TestUtil.checkExhausted(op));
+  }
+
+  /**
+   * Unit test for Limit, with and without an offset
+   */
+  @Test public void limit() throws Exception {
+    Limit op = new Limit(2, 3, scan1);
+    op.open();
+    OpIterator expected = TestUtil.createTupleList(width1,
+        new int[] { 1, 3, 7, 4 });
+    expected.open();
+    TestUtil.compareDbIterators(expected, op);
+    op.rewind();
+    expected.rewind();
+    TestUtil.compareDbIterators(expected, op);
+    op.close();
+
+    op = new Limit(100, 0, scan1);
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    assertEquals(7, count);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TopNTest.class);
+  }
+}
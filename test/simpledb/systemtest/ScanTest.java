@@ -67,6 +67,30 @@ public class ScanTest extends SimpleDbTestBase {
         Database.getBufferPool().transactionComplete(tid);
     }
 
+    /** A scan of some columns returns those columns, in the order given. */
+    @Test public void testColumns() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(4, 1000, null, tuples);
+
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, f.getId(), "table", new int[] { 3, 1 });
+        TupleDesc td = scan.getTupleDesc();
+        assertEquals(2, td.numFields());
+        assertEquals("table." + f.getTupleDesc().getFieldName(3), td.getFieldName(0));
+        assertEquals(3, scan.getTableField(0));
+        scan.open();
+        for (ArrayList<Integer> want : tuples) {
+            assertTrue(scan.hasNext());
+            Tuple t = scan.next();
+            assertEquals(want.get(3), SystemTestUtil.tupleToList(t).get(0));
+            assertEquals(want.get(1), SystemTestUtil.tupleToList(t).get(1));
+            assertNotNull(t.getRecordId());
+        }
+        assertFalse(scan.hasNext());
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /** Verifies that the buffer pool is actually caching data.
      * @throws TransactionAbortedException
      * @throws DbException */